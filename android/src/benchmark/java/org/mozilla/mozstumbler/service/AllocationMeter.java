@@ -0,0 +1,83 @@
+package org.mozilla.mozstumbler.service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+
+/* Adds up the time and the bytes allocated by the current thread between start() and stop(), for the
+ * benchmarks. The allocation counter is HotSpot's: on other VMs, isAvailable() is false. */
+public class AllocationMeter {
+    private final com.sun.management.ThreadMXBean mThreadBean;
+    private final long mThreadId = Thread.currentThread().getId();
+    private long mStartNanos;
+    private long mStartBytes;
+    private long mNanos;
+    private long mBytes;
+    private int mRuns;
+
+    public AllocationMeter() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        mThreadBean = (bean instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean) bean : null;
+    }
+
+    public boolean isAvailable() {
+        return mThreadBean != null;
+    }
+
+    public void start() {
+        mStartBytes = mThreadBean.getThreadAllocatedBytes(mThreadId);
+        mStartNanos = System.nanoTime();
+    }
+
+    public void stop() {
+        mNanos += System.nanoTime() - mStartNanos;
+        mBytes += mThreadBean.getThreadAllocatedBytes(mThreadId) - mStartBytes;
+        mRuns++;
+    }
+
+    /* Forgets the runs so far, such as the warmup. */
+    public void reset() {
+        mNanos = 0;
+        mBytes = 0;
+        mRuns = 0;
+    }
+
+    public long getBytesPerRun() {
+        return mBytes / Math.max(1, mRuns);
+    }
+
+    public long getNanosPerRun() {
+        return mNanos / Math.max(1, mRuns);
+    }
+
+    public long getRunsPerSecond() {
+        return (mNanos < 1) ? 0 : mRuns * 1000000000L / mNanos;
+    }
+
+    // Bytes allocated per microsecond is MB/s
+    public long getAllocatedMBPerSecond() {
+        return (mNanos < 1) ? 0 : mBytes * 1000 / mNanos;
+    }
+
+    /* How much the heap grows while the task runs, from a collected heap: what the task holds at once,
+     * plus its garbage if no collection ran meanwhile. An upper bound of the task's peak live bytes. */
+    public static long measurePeakHeapBytes(Runnable task) {
+        System.gc();
+        long usedBefore = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                usedBefore += pool.getUsage().getUsed();
+            }
+        }
+        task.run();
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return Math.max(0, peak - usedBefore);
+    }
+}
@@ -0,0 +1,111 @@
+package org.mozilla.mozstumbler.service.stumblerthread;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.support.v4.content.LocalBroadcastManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.AllocationMeter;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+
+// Prints the cost of delivering one wifi scan to one listener, through a LocalBroadcastManager Intent
+// as the scanners did, and through ScanEventBus
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ScanEventBusBenchmark {
+
+    private static final String ACTION_WIFIS_SCANNED = "test.WIFIS_SCANNED";
+    private static final String ARG_RESULTS = "scan_results";
+    private static final String ARG_TIME = "time";
+
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 20000;
+
+    private static class CountingListener implements ScanEventBus.WifiScanListener {
+        int mWifis;
+
+        @Override
+        public void onWifisScanned(List<ScanResult> results) {
+            mWifis += results.size();
+        }
+    }
+
+    private static ArrayList<ScanResult> makeScanResults(int count) throws Exception {
+        // The (WifiSsid, BSSID, caps, level, frequency, tsf) constructor is hidden
+        Constructor<?> ctor = null;
+        for (Constructor<?> c : ScanResult.class.getConstructors()) {
+            if (c.getParameterTypes().length == 6) {
+                ctor = c;
+            }
+        }
+        ArrayList<ScanResult> results = new ArrayList<ScanResult>();
+        for (int i = 0; i < count; i++) {
+            results.add((ScanResult) ctor.newInstance(null, String.format("01:02:03:04:05:%02x", i), "", -60, 2412, 0L));
+        }
+        return results;
+    }
+
+    @Test
+    public void benchmarkDispatchPerScan() throws Exception {
+        final AllocationMeter broadcast = new AllocationMeter();
+        final AllocationMeter bus = new AllocationMeter();
+        if (!broadcast.isAvailable()) {
+            return;
+        }
+
+        final ArrayList<ScanResult> results = makeScanResults(20);
+        final CountingListener listener = new CountingListener();
+
+        final Context ctx = Robolectric.application;
+        final LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(ctx);
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getAction().equals(ACTION_WIFIS_SCANNED)) {
+                    List<ScanResult> scans = intent.getParcelableArrayListExtra(ARG_RESULTS);
+                    listener.onWifisScanned(scans);
+                }
+            }
+        };
+        lbm.registerReceiver(receiver, new IntentFilter(ACTION_WIFIS_SCANNED));
+
+        final ScanEventBus scanEventBus = new ScanEventBus();
+        scanEventBus.register(listener);
+
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            if (i == WARMUP) {
+                broadcast.reset();
+                bus.reset();
+            }
+
+            broadcast.start();
+            Intent intent = new Intent(ACTION_WIFIS_SCANNED);
+            intent.putParcelableArrayListExtra(ARG_RESULTS, results);
+            intent.putExtra(ARG_TIME, System.currentTimeMillis());
+            lbm.sendBroadcastSync(intent);
+            broadcast.stop();
+
+            bus.start();
+            scanEventBus.postWifisScanned(results);
+            bus.stop();
+        }
+        lbm.unregisterReceiver(receiver);
+
+        System.out.println("Dispatch per wifi scan: " +
+                "LocalBroadcastManager " + broadcast.getBytesPerRun() + " bytes, " + broadcast.getNanosPerRun() + " ns; " +
+                "ScanEventBus " + bus.getBytesPerRun() + " bytes, " + bus.getNanosPerRun() + " ns");
+        assertEquals(2 * (WARMUP + ITERATIONS) * results.size(), listener.mWifis);
+    }
+}
@@ -0,0 +1,133 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.AllocationMeter;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import static junit.framework.Assert.assertTrue;
+
+// Prints the size of a batch of 50 reports of 20 wifis stored as MLS JSON and as compact records, and the
+// cost of storing a report in each format, and of converting a compact batch to JSON for upload
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class CompactReportCodecBenchmark {
+
+    private static final long AP_SEED = 0x5c4a7e3b1d20L;
+    private static final int REPORTS_PER_BATCH = 50;
+    private static final int WARMUP = 100;
+    private static final int ITERATIONS = 300;
+    // DataStorageManager.DEFAULT_MAX_BYTES_STORED_ON_DISK
+    private static final long MAX_BYTES_STORED = 1024 * 250;
+
+    private ScanResult makeScanResult(String bssid, int level, int frequency) throws Exception {
+        for (Constructor<?> c : ScanResult.class.getConstructors()) {
+            if (c.getParameterTypes().length == 6) {
+                return (ScanResult) c.newInstance(null, bssid, "caps", level, frequency, 10L);
+            }
+        }
+        throw new RuntimeException("No constructor found");
+    }
+
+    private CellInfo makeCellInfo(int mcc, int mnc, int lac, int cid, int asu) throws Exception {
+        CellInfo cell = new CellInfo(TelephonyManager.PHONE_TYPE_GSM);
+        Method method = CellInfo.class.getDeclaredMethod("setGsmCellInfo",
+                int.class, int.class, int.class, int.class, int.class);
+        method.setAccessible(true);
+        method.invoke(cell, mcc, mnc, lac, cid, asu);
+        return cell;
+    }
+
+    private StumblerBundle makeBundle(int seed) throws Exception {
+        Location location = new Location("mock");
+        location.setTime(1406863343313L + seed);
+        location.setLatitude(43.6532 + seed * 0.0001);
+        location.setLongitude(-79.3832 - seed * 0.0001);
+        location.setAccuracy(12.3f);
+
+        StumblerBundle bundle = new StumblerBundle(location, TelephonyManager.PHONE_TYPE_GSM);
+        // Successive reports mostly see the same access points, as when walking down a street
+        Random random = new Random(seed);
+        for (int i = 0; i < 20; i++) {
+            String bssid = String.format("%012x", (AP_SEED + (seed + i) * 0x9e3779b97f4aL) & 0xffffffffffffL);
+            bundle.addWifi(makeScanResult(bssid, -40 - random.nextInt(50), i % 2 == 0 ? 2412 : 5180));
+        }
+        bundle.addCell(makeCellInfo(302, 720, 2000 + seed, 1600199 + seed, 19));
+        return bundle;
+    }
+
+    @Test
+    public void benchmarkBatchOf50Reports() throws Exception {
+        final AllocationMeter json = new AllocationMeter();
+        final AllocationMeter compact = new AllocationMeter();
+        final AllocationMeter upload = new AllocationMeter();
+        if (!json.isAvailable()) {
+            return;
+        }
+
+        final StumblerBundle[] bundles = new StumblerBundle[REPORTS_PER_BATCH];
+        for (int i = 0; i < bundles.length; i++) {
+            bundles[i] = makeBundle(i);
+        }
+        final MLSJSONWriter jsonWriter = new MLSJSONWriter();
+        final CompactReportCodec codec = new CompactReportCodec();
+        final ReportBatchWriter jsonBatch = new ReportBatchWriter();
+        final ReportBatchWriter compactBatch = new ReportBatchWriter(ReportBatchWriter.FORMAT_COMPACT);
+        final ReportBatchWriter uploadBatch = new ReportBatchWriter();
+
+        long jsonBytes = 0;
+        long compactBytes = 0;
+        byte[] jsonGzipped = null;
+        byte[] compactGzipped = null;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            if (i == WARMUP) {
+                json.reset();
+                compact.reset();
+                upload.reset();
+            }
+
+            json.start();
+            for (StumblerBundle bundle : bundles) {
+                final int length = jsonWriter.write(bundle);
+                jsonBatch.add(jsonWriter.getBuffer(), length, jsonWriter.getWifiCount(), jsonWriter.getCellCount());
+            }
+            jsonBytes = jsonBatch.getUncompressedBytes();
+            jsonGzipped = jsonBatch.finish();
+            json.stop();
+
+            compact.start();
+            for (StumblerBundle bundle : bundles) {
+                compactBatch.add(codec.getBuffer(), codec.encode(bundle), bundle.getWifiData().size(),
+                        bundle.getCellData().size());
+            }
+            compactBytes = compactBatch.getUncompressedBytes();
+            compactGzipped = compactBatch.finish();
+            compact.stop();
+
+            upload.start();
+            CompactReportCodec.toJSONBatch(compactGzipped, uploadBatch);
+            upload.stop();
+        }
+
+        System.out.println("Batch of " + REPORTS_PER_BATCH + " reports: " +
+                "JSON " + jsonBytes + " bytes, " + jsonGzipped.length + " gzipped, " +
+                (json.getNanosPerRun() / 1000) + " us and " + json.getBytesPerRun() + " bytes allocated to store; " +
+                "compact " + compactBytes + " bytes, " + compactGzipped.length + " gzipped, " +
+                (compact.getNanosPerRun() / 1000) + " us and " + compact.getBytesPerRun() + " bytes allocated to store, " +
+                (upload.getNanosPerRun() / 1000) + " us to convert for upload. " +
+                "Reports in " + MAX_BYTES_STORED + " bytes: JSON " +
+                (MAX_BYTES_STORED * REPORTS_PER_BATCH / jsonGzipped.length) + ", compact " +
+                (MAX_BYTES_STORED * REPORTS_PER_BATCH / compactGzipped.length));
+        assertTrue(compactGzipped.length < jsonGzipped.length);
+    }
+}
@@ -0,0 +1,120 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.AllocationMeter;
+import org.mozilla.mozstumbler.service.utils.Zipper;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static junit.framework.Assert.assertTrue;
+
+// Prints the allocations and the peak heap per batch of the old code path (reports kept in an ArrayList,
+// joined into a StringBuilder by finalizeReports, getBytes(), then Zipper.zipData) and of ReportBatchWriter
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ReportBatchWriterBenchmark {
+
+    private static final int REPORTS_PER_BATCH = 50;
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 500;
+    private static final int PEAK_HEAP_RUNS = 20;
+
+    private final String[] mReports = new String[REPORTS_PER_BATCH];
+    private final ReportBatchWriter mWriter = new ReportBatchWriter();
+
+    private static String makeReport(int seed) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"timestamp\":").append(1406863343313L + seed)
+          .append(",\"lat\":43.6").append(seed).append(",\"lon\":-79.3").append(seed)
+          .append(",\"accuracy\":10,\"radio\":\"gsm\",\"cell\":[],\"cell_count\":0,\"wifi\":[");
+        for (int i = 0; i < 20; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"key\":\"").append(Long.toHexString(0xabcd00000000L + seed * 20 + i))
+              .append("\",\"frequency\":2412,\"signal\":-").append(40 + i).append('}');
+        }
+        return sb.append("],\"wifi_count\":20}").toString();
+    }
+
+    // As DataStorageManager.finalizeReports() did
+    private static String finalizeReports(ArrayList<String> reports) {
+        StringBuilder sb = new StringBuilder("{\"items\":[");
+        String sep = "";
+        for (String s : reports) {
+            sb.append(sep).append(s);
+            sep = ",";
+        }
+        return sb.append("]}").toString();
+    }
+
+    private byte[] oldBatch() {
+        ArrayList<String> list = new ArrayList<String>();
+        for (String r : mReports) {
+            list.add(r);
+        }
+        return Zipper.zipData(finalizeReports(list).getBytes());
+    }
+
+    private byte[] newBatch() {
+        for (String r : mReports) {
+            mWriter.add(r, 20, 0);
+        }
+        return mWriter.finish();
+    }
+
+    @Test
+    public void benchmarkAllocationsPerBatch() {
+        final AllocationMeter old = new AllocationMeter();
+        final AllocationMeter streaming = new AllocationMeter();
+        if (!old.isAvailable()) {
+            return;
+        }
+        for (int i = 0; i < mReports.length; i++) {
+            mReports[i] = makeReport(i);
+        }
+
+        long sink = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            if (i == WARMUP) {
+                old.reset();
+                streaming.reset();
+            }
+
+            old.start();
+            sink += oldBatch().length;
+            old.stop();
+
+            streaming.start();
+            sink += newBatch().length;
+            streaming.stop();
+        }
+
+        long oldPeak = 0;
+        long newPeak = 0;
+        for (int i = 0; i < PEAK_HEAP_RUNS; i++) {
+            oldPeak = Math.max(oldPeak, AllocationMeter.measurePeakHeapBytes(new Runnable() {
+                @Override
+                public void run() {
+                    oldBatch();
+                }
+            }));
+            newPeak = Math.max(newPeak, AllocationMeter.measurePeakHeapBytes(new Runnable() {
+                @Override
+                public void run() {
+                    newBatch();
+                }
+            }));
+        }
+
+        System.out.println("Per batch of " + REPORTS_PER_BATCH + " reports: " +
+                "join+gzip " + old.getBytesPerRun() + " bytes allocated, " + oldPeak + " bytes peak heap, " +
+                (old.getNanosPerRun() / 1000) + " us; " +
+                "ReportBatchWriter " + streaming.getBytesPerRun() + " bytes allocated, " + newPeak + " bytes peak heap, " +
+                (streaming.getNanosPerRun() / 1000) + " us");
+        assertTrue(sink > 0);
+    }
+}
@@ -0,0 +1,124 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.AllocationMeter;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.Assert.assertTrue;
+
+// Prints the cost of merging 20 scans of 40 wifis and 8 cells (mostly repeats) into a bundle, keyed by
+// String as Reporter's putWifiResults() and putCellResults() did, and by long into a reset StumblerBundle
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class StumblerBundleBenchmark {
+
+    private static final int WARMUP = 500;
+    private static final int ITERATIONS = 2000;
+    private static final int SCANS = 20;
+
+    private ScanResult makeScanResult(String bssid, int level) throws Exception {
+        for (Constructor<?> c : ScanResult.class.getConstructors()) {
+            if (c.getParameterTypes().length == 6) {
+                return (ScanResult) c.newInstance(null, bssid, "caps", level, 2412, 10L);
+            }
+        }
+        throw new RuntimeException("No constructor found");
+    }
+
+    private CellInfo makeCellInfo(int mcc, int mnc, int lac, int cid, int asu) throws Exception {
+        CellInfo cell = new CellInfo(TelephonyManager.PHONE_TYPE_GSM);
+        Method method = CellInfo.class.getDeclaredMethod("setGsmCellInfo",
+                int.class, int.class, int.class, int.class, int.class);
+        method.setAccessible(true);
+        method.invoke(cell, mcc, mnc, lac, cid, asu);
+        return cell;
+    }
+
+    @Test
+    public void benchmarkMergeScans() throws Exception {
+        final AllocationMeter stringKeys = new AllocationMeter();
+        final AllocationMeter longKeys = new AllocationMeter();
+        if (!stringKeys.isAvailable()) {
+            return;
+        }
+
+        final Random random = new Random(1);
+        final List<ScanResult> wifis = new ArrayList<ScanResult>();
+        for (int i = 0; i < 60; i++) {
+            wifis.add(makeScanResult(String.format("%02x:%02x:%02x:%02x:%02x:%02x", random.nextInt(256),
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256), i), -70));
+        }
+        final List<CellInfo> cells = new ArrayList<CellInfo>();
+        for (int i = 0; i < 12; i++) {
+            cells.add(makeCellInfo(302, 720, 2000 + i % 3, 1600199 + i, 19));
+        }
+
+        final Location location = new Location("mock");
+        final StumblerBundle bundle = new StumblerBundle(location, TelephonyManager.PHONE_TYPE_GSM);
+        long sink = 0;
+
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            if (i == WARMUP) {
+                stringKeys.reset();
+                longKeys.reset();
+            }
+
+            stringKeys.start();
+            Map<String, ScanResult> wifiData = new HashMap<String, ScanResult>();
+            Map<String, CellInfo> cellData = new HashMap<String, CellInfo>();
+            for (int scan = 0; scan < SCANS; scan++) {
+                for (int w = 0; w < 40; w++) {
+                    ScanResult wifi = wifis.get((scan + w) % wifis.size());
+                    String key = wifi.BSSID;
+                    if (!wifiData.containsKey(key)) {
+                        wifiData.put(key, wifi);
+                    }
+                }
+                for (int c = 0; c < 8; c++) {
+                    CellInfo cell = cells.get((scan + c) % cells.size());
+                    String key = cell.getCellIdentity();
+                    if (!cellData.containsKey(key)) {
+                        cellData.put(key, cell);
+                    }
+                }
+            }
+            sink += wifiData.size() + cellData.size();
+            stringKeys.stop();
+
+            longKeys.start();
+            bundle.reset(location);
+            for (int scan = 0; scan < SCANS; scan++) {
+                for (int w = 0; w < 40; w++) {
+                    bundle.addWifi(wifis.get((scan + w) % wifis.size()));
+                }
+                for (int c = 0; c < 8; c++) {
+                    bundle.addCell(cells.get((scan + c) % cells.size()));
+                }
+            }
+            sink += bundle.getWifiData().size() + bundle.getCellData().size();
+            longKeys.stop();
+        }
+
+        System.out.println("Merging " + SCANS + " scans into a bundle: " +
+                "HashMap<String> " + (stringKeys.getNanosPerRun() / 1000) + " us/bundle, " +
+                stringKeys.getBytesPerRun() + " bytes/bundle; " +
+                "StumblerBundle " + (longKeys.getNanosPerRun() / 1000) + " us/bundle, " +
+                longKeys.getBytesPerRun() + " bytes/bundle");
+        assertTrue(sink > 0);
+    }
+}
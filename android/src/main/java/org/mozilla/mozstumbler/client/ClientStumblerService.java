@@ -13,6 +13,7 @@ import android.util.Log;
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.stumblerthread.StumblerService;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.RetentionPolicies;
 
 // Used as a bound service (with foreground priority) in Mozilla Stumbler, a.k.a. active scanning mode.
 // -- In accordance with Android service docs -and experimental findings- this puts the service as low
@@ -34,7 +35,9 @@ public class ClientStumblerService extends StumblerService {
                 throw new RuntimeException("Only call from main thread");
             }
             DataStorageManager.createGlobalInstance(ClientStumblerService.this,
-                    ClientStumblerService.this, maxBytesOnDisk, maxWeeksOld);
+                    ClientStumblerService.this, maxBytesOnDisk, maxWeeksOld, true /* compact storage */)
+                    .setRetentionPolicy(RetentionPolicies.chain(RetentionPolicies.thinRedundant(),
+                            RetentionPolicies.recompact(), RetentionPolicies.DROP_OLDEST));
             init();
             return ClientStumblerService.this;
         }
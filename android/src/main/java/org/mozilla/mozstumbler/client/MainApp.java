@@ -17,6 +17,7 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.net.wifi.ScanResult;
 import android.os.Build;
 import android.os.IBinder;
 import android.os.StrictMode;
@@ -29,16 +30,18 @@ import org.acra.annotation.ReportsCrashes;
 import org.acra.sender.HttpSender;
 import org.mozilla.mozstumbler.BuildConfig;
 import org.mozilla.mozstumbler.R;
+import org.mozilla.mozstumbler.client.mapview.LocalPositionIndex;
+import org.mozilla.mozstumbler.client.mapview.MLSLookupService;
 import org.mozilla.mozstumbler.client.navdrawer.MainDrawerActivity;
 import org.mozilla.mozstumbler.client.subactivities.DeveloperActivity;
 import org.mozilla.mozstumbler.client.subactivities.LogActivity;
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.Prefs;
 import org.mozilla.mozstumbler.service.core.logging.MockAcraLog;
+import org.mozilla.mozstumbler.service.stumblerthread.ScanEventBus;
 import org.mozilla.mozstumbler.service.stumblerthread.StumblerService;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
-import org.mozilla.mozstumbler.service.stumblerthread.scanners.WifiScanner;
-import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellScanner;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
 import org.mozilla.mozstumbler.service.uploadthread.AsyncUploadParam;
 import org.mozilla.mozstumbler.service.uploadthread.AsyncUploader;
 import org.mozilla.mozstumbler.service.utils.NetworkInfo;
@@ -48,6 +51,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -140,7 +144,9 @@ public class MainApp extends Application
         NetworkInfo.createGlobalInstance(this);
         LogActivity.LogMessageReceiver.createGlobalInstance(this);
         // This will create, and register the receiver
-        ObservedLocationsReceiver.createGlobalInstance(this.getApplicationContext(), this);
+        ObservedLocationsReceiver.createGlobalInstance(this);
+        MLSLookupService.createGlobalInstance(getCacheDir());
+        LocalPositionIndex.createGlobalInstance(getFilesDir());
 
         enableStrictMode();
 
@@ -282,17 +288,15 @@ public class MainApp extends Application
                 .penaltyLog().build());
     }
 
-    private class ServiceBroadcastReceiver extends BroadcastReceiver {
+    private class ServiceBroadcastReceiver extends BroadcastReceiver
+            implements ScanEventBus.WifiScanListener, ScanEventBus.CellScanListener {
         private boolean mReceiverIsRegistered;
 
         public void register() {
             if (!mReceiverIsRegistered) {
                 mReceiverIsRegistered = true;
 
-                IntentFilter intentFilter = new IntentFilter();
-                intentFilter.addAction(WifiScanner.ACTION_WIFIS_SCANNED);
-                intentFilter.addAction(CellScanner.ACTION_CELLS_SCANNED);
-                LocalBroadcastManager.getInstance(getApplicationContext()).registerReceiver(this, intentFilter);
+                ScanEventBus.getInstance().register(this);
 
                 // This can't be a local broadcast as it comes from notification menu
                 getApplicationContext().registerReceiver(this, new IntentFilter(INTENT_TURN_OFF));
@@ -301,7 +305,7 @@ public class MainApp extends Application
 
         public void unregister() {
             if (mReceiverIsRegistered) {
-                LocalBroadcastManager.getInstance(MainApp.this).unregisterReceiver(this);
+                ScanEventBus.getInstance().unregister(this);
                 mReceiverIsRegistered = false;
             }
         }
@@ -312,7 +316,20 @@ public class MainApp extends Application
                 Log.d(LOG_TAG, "INTENT_TURN_OFF");
                 stopScanning();
             }
+            updateUi();
+        }
+
+        @Override
+        public void onWifisScanned(List<ScanResult> results) {
+            updateUi();
+        }
+
+        @Override
+        public void onCellsScanned(List<CellInfo> cells) {
+            updateUi();
+        }
 
+        private void updateUi() {
             if (mMainActivity.get() != null) {
                 mMainActivity.get().updateUiOnMainThread();
             }
@@ -4,36 +4,28 @@
 
 package org.mozilla.mozstumbler.client;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.location.Location;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
-import android.support.v4.content.LocalBroadcastManager;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.mozilla.mozstumbler.client.mapview.LocalPositionIndex;
 import org.mozilla.mozstumbler.client.mapview.MapFragment;
 import org.mozilla.mozstumbler.client.mapview.ObservationPoint;
-import org.mozilla.mozstumbler.service.core.logging.Log;
-import org.mozilla.mozstumbler.service.stumblerthread.Reporter;
-import org.mozilla.mozstumbler.service.stumblerthread.datahandling.StumblerBundle;
+import org.mozilla.mozstumbler.service.stumblerthread.ScanEventBus;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.Observation;
 import org.mozilla.osmdroid.util.GeoPoint;
 
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.LinkedList;
 
-public class ObservedLocationsReceiver extends BroadcastReceiver {
+public class ObservedLocationsReceiver implements ScanEventBus.ObservationListener {
 
     public interface ICountObserver {
         public void observedLocationCountIncrement();
     }
 
-    private static final String LOG_TAG = ObservedLocationsReceiver.class.getSimpleName();
     private WeakReference<MapFragment> mMapActivity = new WeakReference<MapFragment>(null);
     private final LinkedList<ObservationPoint> mCollectionPoints = new LinkedList<ObservationPoint>();
     private final LinkedList<ObservationPoint> mQueuedForMLS = new LinkedList<ObservationPoint>();
@@ -53,12 +45,10 @@ public class ObservedLocationsReceiver extends BroadcastReceiver {
 
     private static ObservedLocationsReceiver sInstance;
 
-    public static void createGlobalInstance(Context context, ICountObserver countObserver) {
+    public static void createGlobalInstance(ICountObserver countObserver) {
         sInstance = new ObservedLocationsReceiver();
         sInstance.mCountObserver = new WeakReference<ICountObserver>(countObserver);
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(Reporter.ACTION_NEW_BUNDLE);
-        LocalBroadcastManager.getInstance(context).registerReceiver(sInstance, intentFilter);
+        ScanEventBus.getInstance().register(sInstance);
     }
 
     public static ObservedLocationsReceiver getInstance() {
@@ -82,8 +72,13 @@ public class ObservedLocationsReceiver extends BroadcastReceiver {
                 while (li.hasNext() && count < MAX_QUEUED_MLS_POINTS_TO_FETCH) {
                     ObservationPoint obs = li.next();
                     if (obs.needsToFetchMLS()) {
+                        final boolean hadPointMLS = obs.pointMLS != null;
                         obs.fetchMLS();
                         count++;
+                        // A local estimate, while offline
+                        if (!hadPointMLS && obs.pointMLS != null && getMapActivity() != null) {
+                            getMapActivity().newMLSPoint(obs);
+                        }
                     } else {
                         if (getMapActivity() != null && obs.pointMLS != null) {
                             getMapActivity().newMLSPoint(obs);
@@ -109,39 +104,31 @@ public class ObservedLocationsReceiver extends BroadcastReceiver {
         return mMapActivity.get();
     }
 
+    // Called on the stumbler thread, from Reporter.flush(): the local estimate and indexing are done on
+    // the LocalPositionIndex thread
     @Override
-    public synchronized void onReceive(Context context, Intent intent) {
-        final String action = intent.getAction();
-        if (!action.equals(Reporter.ACTION_NEW_BUNDLE)) {
-            return;
-        }
-
-        final StumblerBundle bundle = intent.getParcelableExtra(Reporter.NEW_BUNDLE_ARG_BUNDLE);
-        if (bundle == null) {
-            return;
-        }
-
-        Location position = bundle.getGpsPosition();
-        if (position == null) {
-            return;
-        }
-        ObservationPoint observation = new ObservationPoint(new GeoPoint(position));
-
-        try {
-            JSONObject jsonBundle = bundle.toMLSJSON();
-            observation.setCounts(jsonBundle);
-
-            boolean getInfoForMLS = ClientPrefs.getInstance().isOptionEnabledToShowMLSOnMap();
-            if (getInfoForMLS) {
-                observation.setMLSQuery(jsonBundle);
-
-                if (mQueuedForMLS.size() < MAX_SIZE_OF_POINT_LISTS) {
-                    mQueuedForMLS.addFirst(observation);
+    public synchronized void onNewObservation(Observation newObservation) {
+        final ObservationPoint observation = new ObservationPoint(
+                new GeoPoint(newObservation.getLatitude(), newObservation.getLongitude()));
+        observation.setCounts(newObservation.getWifiCount(), newObservation.getCellCount());
+
+        boolean getInfoForMLS = ClientPrefs.getInstance().isOptionEnabledToShowMLSOnMap();
+        LocalPositionIndex.EstimateListener estimateListener = null;
+        if (getInfoForMLS) {
+            observation.setMLSQuery(newObservation);
+            // Estimated before this report is indexed, to only use the previous ones
+            estimateListener = new LocalPositionIndex.EstimateListener() {
+                @Override
+                public void onEstimate(Location location) {
+                    observation.setLocalEstimate(location);
                 }
+            };
+
+            if (mQueuedForMLS.size() < MAX_SIZE_OF_POINT_LISTS) {
+                mQueuedForMLS.addFirst(observation);
             }
-        } catch (JSONException e) {
-            Log.w(LOG_TAG, "Failed to convert bundle to JSON: " + e);
         }
+        LocalPositionIndex.getInstance().addAsync(newObservation, estimateListener);
 
         // Notify main app of observation
         if (mCountObserver.get() != null) {
@@ -0,0 +1,436 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.client.mapview;
+
+import android.location.Location;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageContract;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.Observation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+Estimates positions from what this device has stumbled, without the network.
+
+Each wifi and cell seen is indexed to the weighted centroid of the GPS fixes it was seen at. A query (in the
+format of an MLS search) is answered with the centroid of the centroids of its wifis, weighted by signal, or
+of its cells if none of its wifis are known.
+
+The index is an open-addressing hash table of primitive arrays: the key is the BSSID packed in a long, or a
+hash of the cell identity with the top bit set. It holds at most MAX_ENTRIES; beyond that the least recently
+observed of a small sample of entries is evicted. It is saved to disk every SAVE_INTERVAL_ADDS reports.
+
+Observations are indexed with addAsync(), on the index's own thread: the stumbler thread that publishes them
+does not parse their JSON.
+ */
+public class LocalPositionIndex {
+    private static final String LOG_TAG = AppGlobals.LOG_PREFIX + LocalPositionIndex.class.getSimpleName();
+
+    static final String FILENAME = "local_position_index.bin";
+    private static final int MAGIC = 0x4c504931; // "LPI1"
+    private static final int VERSION = 1;
+
+    static final int MAX_ENTRIES = 20000;
+    // A power of 2, with room for the table to stay sparse when full
+    private static final int CAPACITY = 32768;
+    private static final int EVICTION_SAMPLE = 16;
+    private static final int SAVE_INTERVAL_ADDS = 100;
+
+    static final float WIFI_MIN_ACCURACY_M = 50;
+    static final float CELL_MIN_ACCURACY_M = 1000;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private static final long NO_KEY = 0;
+    private static final long CELL_KEY_BIT = Long.MIN_VALUE;
+
+    private static LocalPositionIndex sInstance;
+
+    private final long[] mKeys = new long[CAPACITY];
+    private final double[] mLat = new double[CAPACITY];
+    private final double[] mLon = new double[CAPACITY];
+    private final float[] mWeight = new float[CAPACITY];
+    private final int[] mLastObserved = new int[CAPACITY];
+    private int mSize;
+    private int mClock;
+    private int mEvictionCursor;
+
+    public interface EstimateListener {
+        /* Called on the index's thread, location is null if there is no estimate. */
+        void onEstimate(Location location);
+    }
+
+    private final File mFile;
+    // Runs the indexing of observations and the saves, one at a time
+    private final Executor mExecutor;
+    private int mAddsSinceSave;
+
+    /* Must be created on application startup, dir holds the saved index. */
+    public static synchronized LocalPositionIndex createGlobalInstance(File dir) {
+        if (sInstance == null) {
+            sInstance = new LocalPositionIndex(dir, Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, LOG_TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+        }
+        return sInstance;
+    }
+
+    /* Only access after createGlobalInstance(File) has been called at startup. */
+    public static synchronized LocalPositionIndex getInstance() {
+        assert(sInstance != null);
+        return sInstance;
+    }
+
+    /* Pass a null dir to not save the index. */
+    LocalPositionIndex(File dir, Executor executor) {
+        mFile = (dir == null) ? null : new File(dir, FILENAME);
+        mExecutor = executor;
+        load();
+    }
+
+    /* Indexes the observation on the index's thread. If listener isn't null, the observation's position is
+     * first estimated from the observations indexed before it. */
+    public void addAsync(final Observation observation, final EstimateListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final JSONObject report = observation.getMLSJSON();
+                if (listener != null) {
+                    listener.onEstimate(estimate(report));
+                }
+                add(report);
+            }
+        });
+    }
+
+    /* Indexes the wifis and cells of a report (as made by StumblerBundle.toMLSJSON()). */
+    public void add(JSONObject report) {
+        final double lat = report.optDouble(DataStorageContract.ReportsColumns.LAT, Double.NaN);
+        final double lon = report.optDouble(DataStorageContract.ReportsColumns.LON, Double.NaN);
+        if (Double.isNaN(lat) || Double.isNaN(lon)) {
+            return;
+        }
+        // Precise fixes count more
+        final float fixWeight = 1f / Math.max(1, report.optInt(DataStorageContract.ReportsColumns.ACCURACY, 50));
+
+        final JSONArray wifis = report.optJSONArray(DataStorageContract.ReportsColumns.WIFI);
+        final JSONArray cells = report.optJSONArray(DataStorageContract.ReportsColumns.CELL);
+        final boolean isSaveDue;
+        synchronized (this) {
+            mClock++;
+            for (int i = 0; wifis != null && i < wifis.length(); i++) {
+                final JSONObject wifi = wifis.optJSONObject(i);
+                final long key = (wifi == null) ? NO_KEY : wifiKey(wifi.optString("key"));
+                if (key != NO_KEY) {
+                    observe(key, lat, lon, fixWeight * signalWeight(wifi));
+                }
+            }
+            for (int i = 0; cells != null && i < cells.length(); i++) {
+                final JSONObject cell = cells.optJSONObject(i);
+                final long key = (cell == null) ? NO_KEY : cellKey(cell);
+                if (key != NO_KEY) {
+                    observe(key, lat, lon, fixWeight);
+                }
+            }
+            mAddsSinceSave++;
+            isSaveDue = (mFile != null && mAddsSinceSave >= SAVE_INTERVAL_ADDS);
+            if (isSaveDue) {
+                mAddsSinceSave = 0;
+            }
+        }
+        if (isSaveDue) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            });
+        }
+    }
+
+    /* The estimated position for an MLS search query, or null if none of its wifis or cells are known. */
+    public Location estimate(JSONObject query) {
+        final JSONArray wifis = query.optJSONArray(DataStorageContract.ReportsColumns.WIFI);
+        final JSONArray cells = query.optJSONArray(DataStorageContract.ReportsColumns.CELL);
+        // lat, lon, weight of the wifi matches, then the same for the cell matches
+        final double[] sums = new double[6];
+        final int wifiCount = (wifis == null) ? 0 : wifis.length();
+        final int cellCount = (cells == null) ? 0 : cells.length();
+        final long[] keys = new long[wifiCount + cellCount];
+        final int[] slots = new int[keys.length];
+        final float[] queryWeights = new float[keys.length];
+
+        synchronized (this) {
+            for (int i = 0; i < keys.length; i++) {
+                final boolean isWifiItem = i < wifiCount;
+                final JSONObject item = isWifiItem ? wifis.optJSONObject(i) : cells.optJSONObject(i - wifiCount);
+                if (item == null) {
+                    continue;
+                }
+                keys[i] = isWifiItem ? wifiKey(item.optString("key")) : cellKey(item);
+                slots[i] = (keys[i] == NO_KEY) ? -1 : find(keys[i]);
+                if (slots[i] < 0) {
+                    keys[i] = NO_KEY;
+                    continue;
+                }
+                queryWeights[i] = isWifiItem ? signalWeight(item) : 1;
+                final int offset = isWifiItem ? 0 : 3;
+                sums[offset] += mLat[slots[i]] * queryWeights[i];
+                sums[offset + 1] += mLon[slots[i]] * queryWeights[i];
+                sums[offset + 2] += queryWeights[i];
+            }
+
+            final boolean isWifi = sums[2] > 0;
+            final int offset = isWifi ? 0 : 3;
+            if (sums[offset + 2] == 0) {
+                return null;
+            }
+            final double lat = sums[offset] / sums[offset + 2];
+            final double lon = sums[offset + 1] / sums[offset + 2];
+
+            // As far as the farthest centroid used
+            float accuracy = isWifi ? WIFI_MIN_ACCURACY_M : CELL_MIN_ACCURACY_M;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != NO_KEY && (i < wifiCount) == isWifi) {
+                    accuracy = Math.max(accuracy, distanceMeters(lat, lon, mLat[slots[i]], mLon[slots[i]]));
+                }
+            }
+
+            final Location location = new Location(AppGlobals.LOCATION_ORIGIN_INTERNAL);
+            location.setLatitude(lat);
+            location.setLongitude(lon);
+            location.setAccuracy(accuracy);
+            return location;
+        }
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    // The BSSID as a long, or NO_KEY if it is not 12 hex digits (separators are ignored)
+    static long wifiKey(String bssid) {
+        long key = 0;
+        int digits = 0;
+        for (int i = 0; i < bssid.length(); i++) {
+            final int digit = Character.digit(bssid.charAt(i), 16);
+            if (digit >= 0) {
+                key = (key << 4) | digit;
+                digits++;
+            } else if (bssid.charAt(i) != ':' && bssid.charAt(i) != '-') {
+                return NO_KEY;
+            }
+        }
+        return (digits == 12) ? key : NO_KEY;
+    }
+
+    // A hash of the cell identity, or NO_KEY if the cell id is unknown
+    static long cellKey(JSONObject cell) {
+        if (!cell.has("cid")) {
+            return NO_KEY;
+        }
+        final String identity = cell.optString("radio") + "/" + cell.optString("mcc") + "/" +
+                cell.optString("mnc") + "/" + cell.optString("lac") + "/" + cell.optString("cid");
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < identity.length(); i++) {
+            hash = (hash ^ identity.charAt(i)) * 0x100000001b3L;
+        }
+        return hash | CELL_KEY_BIT;
+    }
+
+    // From 1 at -100 dBm (or unknown) to 70 at -30 dBm
+    private static float signalWeight(JSONObject wifi) {
+        final int signal = wifi.optInt("signal", -100);
+        return Math.max(1, Math.min(70, 100 + signal));
+    }
+
+    private static float distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        final double dy = (lat2 - lat1) * METERS_PER_DEGREE;
+        final double dx = (lon2 - lon1) * METERS_PER_DEGREE * Math.cos(Math.toRadians(lat1));
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static int slotOf(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 49) & (CAPACITY - 1);
+    }
+
+    // The slot of key, or -1
+    private int find(long key) {
+        for (int slot = slotOf(key); mKeys[slot] != NO_KEY; slot = (slot + 1) & (CAPACITY - 1)) {
+            if (mKeys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void observe(long key, double lat, double lon, float weight) {
+        int slot = find(key);
+        if (slot < 0) {
+            if (mSize >= MAX_ENTRIES) {
+                evictOne();
+            }
+            slot = slotOf(key);
+            while (mKeys[slot] != NO_KEY) {
+                slot = (slot + 1) & (CAPACITY - 1);
+            }
+            mKeys[slot] = key;
+            mLat[slot] = lat;
+            mLon[slot] = lon;
+            mWeight[slot] = weight;
+            mSize++;
+        } else {
+            // Running weighted mean
+            final float total = mWeight[slot] + weight;
+            mLat[slot] += (lat - mLat[slot]) * weight / total;
+            mLon[slot] += (lon - mLon[slot]) * weight / total;
+            mWeight[slot] = total;
+        }
+        mLastObserved[slot] = mClock;
+    }
+
+    // Removes the least recently observed of the next EVICTION_SAMPLE entries
+    private void evictOne() {
+        int oldest = -1;
+        int seen = 0;
+        for (int i = 0; i < CAPACITY && seen < EVICTION_SAMPLE; i++) {
+            final int slot = (mEvictionCursor + i) & (CAPACITY - 1);
+            if (mKeys[slot] != NO_KEY) {
+                seen++;
+                if (oldest < 0 || mLastObserved[slot] - mLastObserved[oldest] < 0) {
+                    oldest = slot;
+                }
+            }
+        }
+        mEvictionCursor = (oldest + 1) & (CAPACITY - 1);
+        remove(oldest);
+    }
+
+    // Backward shift deletion, so lookups need no tombstones
+    private void remove(int slot) {
+        int hole = slot;
+        for (int next = (hole + 1) & (CAPACITY - 1); mKeys[next] != NO_KEY; next = (next + 1) & (CAPACITY - 1)) {
+            final int home = slotOf(mKeys[next]);
+            // Move next into the hole unless its home slot is cyclically in (hole, next]
+            final boolean isHomeBetween = (hole <= next) ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!isHomeBetween) {
+                mKeys[hole] = mKeys[next];
+                mLat[hole] = mLat[next];
+                mLon[hole] = mLon[next];
+                mWeight[hole] = mWeight[next];
+                mLastObserved[hole] = mLastObserved[next];
+                hole = next;
+            }
+        }
+        mKeys[hole] = NO_KEY;
+        mSize--;
+    }
+
+    private synchronized void load() {
+        if (mFile == null || !mFile.exists()) {
+            return;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    Log.w(LOG_TAG, "Unknown index file format");
+                    return;
+                }
+                mClock = in.readInt();
+                final int count = Math.min(in.readInt(), MAX_ENTRIES);
+                for (int i = 0; i < count; i++) {
+                    final long key = in.readLong();
+                    final double lat = in.readDouble();
+                    final double lon = in.readDouble();
+                    final float weight = in.readFloat();
+                    final int lastObserved = in.readInt();
+                    if (key != NO_KEY && find(key) < 0) {
+                        observe(key, lat, lon, weight);
+                        mLastObserved[find(key)] = lastObserved;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Error reading " + FILENAME + ", kept " + mSize + " entries", ex);
+        }
+    }
+
+    void save() {
+        // Copied, to not hold the lock while writing
+        final int count;
+        final long[] keys;
+        final double[] coordinates;
+        final float[] weights;
+        final int[] lastObserved;
+        final int clock;
+        synchronized (this) {
+            count = mSize;
+            clock = mClock;
+            keys = new long[count];
+            coordinates = new double[count * 2];
+            weights = new float[count];
+            lastObserved = new int[count];
+            for (int slot = 0, i = 0; slot < CAPACITY; slot++) {
+                if (mKeys[slot] != NO_KEY) {
+                    keys[i] = mKeys[slot];
+                    coordinates[i * 2] = mLat[slot];
+                    coordinates[i * 2 + 1] = mLon[slot];
+                    weights[i] = mWeight[slot];
+                    lastObserved[i] = mLastObserved[slot];
+                    i++;
+                }
+            }
+        }
+
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(clock);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(keys[i]);
+                    out.writeDouble(coordinates[i * 2]);
+                    out.writeDouble(coordinates[i * 2 + 1]);
+                    out.writeFloat(weights[i]);
+                    out.writeInt(lastObserved[i]);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Can't rename " + tmp);
+            }
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Error writing " + FILENAME, ex);
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.client.mapview;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.http.CachingLocationService;
+import org.mozilla.mozstumbler.service.core.http.HttpUtil;
+import org.mozilla.mozstumbler.service.core.http.IResponse;
+import org.mozilla.mozstumbler.service.core.http.MLS;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.Observation;
+import org.mozilla.mozstumbler.service.utils.LocationAdapter;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+Looks up the MLS location of observations, for showing MLS on the map.
+
+The queries are sent by MAX_CONCURRENT_REQUESTS threads, which reuse their kept-alive connection to MLS.
+Queries are keyed by their fingerprint (the wifis and cells seen, not the signal strengths): a query with
+the fingerprint of one that is still pending is not sent again. The results found are cached, on disk, by
+CachingLocationService, so the points of a route stumbled again are located without asking MLS.
+The callbacks run on the main thread.
+ */
+public class MLSLookupService {
+    private static final String LOG_TAG = AppGlobals.LOG_PREFIX + MLSLookupService.class.getSimpleName();
+    private static final String RESPONSE_OK_TEXT = "ok";
+
+    static final int MAX_CONCURRENT_REQUESTS = 2;
+    // Queries beyond this fail right away, the caller asks again later
+    static final int MAX_PENDING_QUERIES = 50;
+
+    public interface Callback {
+        void setMLSResponseLocation(Location loc);
+        void errorMLSResponse(boolean stopRequesting);
+    }
+
+    private static MLSLookupService sInstance;
+
+    private final CachingLocationService mMLS;
+    private final Executor mCallbackExecutor;
+    private final ThreadPoolExecutor mExecutor;
+    // The callbacks waiting for each pending query
+    private final HashMap<String, List<Callback>> mPending = new HashMap<String, List<Callback>>();
+    private int mRequestCount;
+    private int mDedupedCount;
+
+    /* Must be created on application startup, cacheDir holds the cached results. */
+    public static synchronized MLSLookupService createGlobalInstance(File cacheDir) {
+        if (sInstance == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            final CachingLocationService mls = new CachingLocationService(new MLS(new HttpUtil()), cacheDir,
+                    Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, CachingLocationService.class.getSimpleName());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }));
+            sInstance = new MLSLookupService(mls, new Executor() {
+                @Override
+                public void execute(Runnable r) {
+                    handler.post(r);
+                }
+            });
+        }
+        return sInstance;
+    }
+
+    /* Only access after createGlobalInstance(File) has been called at startup. */
+    public static synchronized MLSLookupService getInstance() {
+        assert(sInstance != null);
+        return sInstance;
+    }
+
+    MLSLookupService(CachingLocationService mls, Executor callbackExecutor) {
+        mMLS = mls;
+        mCallbackExecutor = callbackExecutor;
+        mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, LOG_TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public void lookup(JSONObject query, Callback callback) {
+        lookup(query.toString(), CachingLocationService.fingerprint(query), callback);
+    }
+
+    /* Uses the JSON string and the fingerprint the Reporter already made. */
+    public void lookup(Observation observation, Callback callback) {
+        lookup(observation.getMLSJSONString(), observation.getFingerprint(), callback);
+    }
+
+    private void lookup(String query, Long hash, final Callback callback) {
+        final String fingerprint = (hash == null) ? query : Long.toString(hash);
+        synchronized (this) {
+            final List<Callback> waiting = mPending.get(fingerprint);
+            if (waiting != null) {
+                mDedupedCount++;
+                waiting.add(callback);
+                return;
+            }
+            if (mPending.size() >= MAX_PENDING_QUERIES) {
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.errorMLSResponse(false);
+                    }
+                });
+                return;
+            }
+            final List<Callback> callbacks = new ArrayList<Callback>();
+            callbacks.add(callback);
+            mPending.put(fingerprint, callbacks);
+            mRequestCount++;
+        }
+
+        final byte[] queryBytes;
+        try {
+            queryBytes = query.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                IResponse resp = null;
+                try {
+                    resp = mMLS.search(queryBytes, null, false);
+                } catch (RuntimeException ex) {
+                    Log.e(LOG_TAG, "Error processing search request", ex);
+                }
+                final Location location = parse(resp);
+                final List<Callback> callbacks;
+                synchronized (MLSLookupService.this) {
+                    callbacks = mPending.remove(fingerprint);
+                }
+                deliver(callbacks, location, resp != null && resp.isErrorCode400BadRequest());
+            }
+        });
+    }
+
+    private void deliver(List<Callback> callbacks, final Location location, final boolean isBadRequest) {
+        for (final Callback callback : callbacks) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (location == null) {
+                        callback.errorMLSResponse(isBadRequest);
+                    } else {
+                        callback.setMLSResponseLocation(new Location(location));
+                    }
+                }
+            });
+        }
+    }
+
+    private static Location parse(IResponse resp) {
+        if (resp == null) {
+            Log.i(LOG_TAG, "Error processing search request");
+            return null;
+        }
+        if (resp.isErrorCode400BadRequest()) {
+            //TODO detect malformed request, and clear out mlsrequest on observation point
+            return null;
+        }
+
+        final JSONObject response;
+        try {
+            response = new JSONObject(resp.body());
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Error deserializing JSON", e);
+            return null;
+        }
+        if (!RESPONSE_OK_TEXT.equals(response.optString("status"))) {
+            return null;
+        }
+        return LocationAdapter.fromJSON(response);
+    }
+
+    synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /* Lookups sent to the search threads, whether answered from the cache or by MLS. */
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /* Lookups answered from the cache, without a request to MLS. */
+    public long getCacheHitCount() {
+        return mMLS.getHitCount();
+    }
+
+    public synchronized int getDedupedCount() {
+        return mDedupedCount;
+    }
+}
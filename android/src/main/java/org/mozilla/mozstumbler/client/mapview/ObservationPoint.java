@@ -8,19 +8,21 @@ import android.location.Location;
 
 import com.ekito.simpleKML.model.Coordinate;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.mozilla.mozstumbler.client.ClientPrefs;
 import org.mozilla.mozstumbler.service.core.logging.Log;
-import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageContract;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.Observation;
 import org.mozilla.mozstumbler.service.utils.NetworkInfo;
 import org.mozilla.osmdroid.util.GeoPoint;
 
-public class ObservationPoint implements MLSLocationGetter.MLSLocationGetterCallback {
+public class ObservationPoint implements MLSLookupService.Callback {
     public final GeoPoint pointGPS;
     public GeoPoint pointMLS;
-    private JSONObject mMLSQuery;
+    private Observation mMLSQuery;
     private boolean mIsMLSLocationQueryRunning;
+    // Estimated from the previously stumbled data, shown while MLS can't be asked
+    // Set on the LocalPositionIndex thread
+    private volatile Location mLocalEstimate;
+    private boolean mIsPointMLSLocalEstimate;
     public long mTimestamp;
     public int mWifiCount;
     public int mCellCount;
@@ -39,32 +41,43 @@ public class ObservationPoint implements MLSLocationGetter.MLSLocationGetterCall
         /*mTimestamp = timestamp;*/
     }
 
-    public void setMLSQuery(JSONObject ichnaeaQueryObj) {
-        mMLSQuery = ichnaeaQueryObj;
+    public void setMLSQuery(Observation observation) {
+        mMLSQuery = observation;
     }
 
-    public void setCounts(JSONObject ichnaeaQueryObj) {
-        try {
-            mCellCount = ichnaeaQueryObj.getInt(DataStorageContract.ReportsColumns.CELL_COUNT);
-            mWifiCount = ichnaeaQueryObj.getInt(DataStorageContract.ReportsColumns.WIFI_COUNT);
-        } catch (JSONException ex) {}
+    public void setLocalEstimate(Location location) {
+        mLocalEstimate = location;
+    }
+
+    public boolean isPointMLSLocalEstimate() {
+        return mIsPointMLSLocalEstimate;
+    }
+
+    public void setCounts(int wifis, int cells) {
+        mWifiCount = wifis;
+        mCellCount = cells;
     }
 
     public void fetchMLS() {
-        if (mMLSQuery == null || pointMLS != null || mIsMLSLocationQueryRunning) {
+        if (!needsToFetchMLS() || mIsMLSLocationQueryRunning) {
             return;
         }
         ClientPrefs prefs = ClientPrefs.getInstance();
-        if (prefs.getUseWifiOnly() && !NetworkInfo.getInstance().isWifiAvailable()) {
+        NetworkInfo networkInfo = NetworkInfo.getInstance();
+        if (!networkInfo.isConnected() || (prefs.getUseWifiOnly() && !networkInfo.isWifiAvailable())) {
+            if (pointMLS == null && mLocalEstimate != null) {
+                pointMLS = new GeoPoint(mLocalEstimate);
+                mIsPointMLSLocalEstimate = true;
+            }
             return;
         }
 
         mIsMLSLocationQueryRunning = true;
-        new MLSLocationGetter(this, mMLSQuery).execute();
+        MLSLookupService.getInstance().lookup(mMLSQuery, this);
     }
 
     public boolean needsToFetchMLS() {
-        return pointMLS == null && mMLSQuery != null;
+        return mMLSQuery != null && (pointMLS == null || mIsPointMLSLocalEstimate);
     }
 
     public void setMLSResponseLocation(Location location) {
@@ -73,6 +86,7 @@ public class ObservationPoint implements MLSLocationGetter.MLSLocationGetterCall
         if (location != null) {
             mMLSQuery = null; // todo decide how to persist this to kml
             pointMLS = new GeoPoint(location);
+            mIsPointMLSLocalEstimate = false;
         }
     }
 
@@ -90,7 +104,7 @@ public class ObservationPoint implements MLSLocationGetter.MLSLocationGetterCall
 
     public void errorMLSResponse(boolean stopRequesting) {
         if (stopRequesting) {
-            Log.i(ObservationPoint.class.getSimpleName(), "Error:" + mMLSQuery.toString());
+            Log.i(ObservationPoint.class.getSimpleName(), "Error:" + mMLSQuery.getMLSJSONString());
             mMLSQuery = null;
         }
         mIsMLSLocationQueryRunning = false;
@@ -6,7 +6,6 @@ package org.mozilla.mozstumbler.client.navdrawer;
 
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Log;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
@@ -20,16 +19,13 @@ import org.mozilla.mozstumbler.client.ClientPrefs;
 import org.mozilla.mozstumbler.client.DateTimeUtils;
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.Prefs;
-import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageContract;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
 import org.mozilla.mozstumbler.service.uploadthread.AsyncUploadParam;
 import org.mozilla.mozstumbler.service.uploadthread.AsyncUploader;
 
-import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.Date;
 import java.util.Locale;
-import java.util.Properties;
 
 public class MetricsView {
 
@@ -199,32 +195,21 @@ public class MetricsView {
         }
         mTotalBytesUploadedThisSession_lastDisplayed = bytesUploadedThisSession;
 
-        try {
-            Properties props = dataStorageManager.readSyncStats();
-            String value;
-            value = props.getProperty(DataStorageContract.Stats.KEY_CELLS_SENT, "0");
-            mAllTimeCellsSentView.setText(String.valueOf(value));
-            value = props.getProperty(DataStorageContract.Stats.KEY_WIFIS_SENT, "0");
-            mAllTimeWifisSentView.setText(String.valueOf(value));
-            value = props.getProperty(DataStorageContract.Stats.KEY_OBSERVATIONS_SENT, "0");
-            String bytes = props.getProperty(DataStorageContract.Stats.KEY_BYTES_SENT, "0");
-            value = String.format(mObservationAndSize, Integer.parseInt(value), formatKb(Long.parseLong(bytes)));
-            mAllTimeObservationsSentView.setText(value);
-
-            value = "never";
-            final long lastUploadTime = Long.parseLong(props.getProperty(DataStorageContract.Stats.KEY_LAST_UPLOAD_TIME, "0"));
-            if (lastUploadTime > 0) {
-                if (Locale.getDefault().getLanguage().equals("en")) {
-                    value = new PrettyTime().format(new Date(lastUploadTime));
-                } else {
-                    value = DateTimeUtils.formatTimeForLocale(lastUploadTime);
-                }
+        final DataStorageManager.SyncStats stats = dataStorageManager.getSyncStats();
+        mAllTimeCellsSentView.setText(String.valueOf(stats.mCellsSent));
+        mAllTimeWifisSentView.setText(String.valueOf(stats.mWifisSent));
+        String value = String.format(mObservationAndSize, stats.mObservationsSent, formatKb(stats.mBytesSent));
+        mAllTimeObservationsSentView.setText(value);
+
+        value = "never";
+        if (stats.mLastUploadTimeMs > 0) {
+            if (Locale.getDefault().getLanguage().equals("en")) {
+                value = new PrettyTime().format(new Date(stats.mLastUploadTimeMs));
+            } else {
+                value = DateTimeUtils.formatTimeForLocale(stats.mLastUploadTimeMs);
             }
-            mLastUpdateTimeView.setText(value);
-        }
-        catch (IOException ex) {
-            Log.e(LOG_TAG, "Exception in updateSyncedStats()", ex);
         }
+        mLastUpdateTimeView.setText(value);
     }
 
     private void updateQueuedStats(DataStorageManager dataStorageManager) {
@@ -172,7 +172,7 @@ public class ObservationPointSerializer extends AsyncTask<Void, Void, Boolean> {
             placemark.setGeometryList(geometryList);
             gpsFeatures.add(placemark);
 
-            if (observationPoint.pointMLS != null) {
+            if (observationPoint.pointMLS != null && !observationPoint.isPointMLSLocalEstimate()) {
                 placemark = new Placemark();
                 placemark.setStyleUrl("#" + STYLE_NAME_RED_CIRCLE);
                 placemark.setName(MLS_NAME);
@@ -18,12 +18,6 @@ public class AppGlobals {
     public static final String ACTION_GUI_LOG_MESSAGE = AppGlobals.ACTION_NAMESPACE + ".LOG_MESSAGE";
     public static final String ACTION_GUI_LOG_MESSAGE_EXTRA = ACTION_GUI_LOG_MESSAGE + ".MESSAGE";
 
-    /* Defined here so that the Reporter class can access the time of an Intent in a generic fashion.
-     * Classes should have their own constant that is assigned to this, for example,
-     * WifiScanner has ACTION_WIFIS_SCANNED_ARG_TIME = ACTION_ARG_TIME.
-     * This member definition in the broadcaster makes it clear what the extra Intent args are for that class. */
-    public static final String ACTION_ARG_TIME = "time";
-
     /* Location constructor requires a named origin, these are created in the app. */
     public static final String LOCATION_ORIGIN_INTERNAL = "internal";
 
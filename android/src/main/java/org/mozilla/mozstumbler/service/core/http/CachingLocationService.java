@@ -0,0 +1,280 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.core.http;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageContract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/* Caches the successful search results of an ILocationService, in memory and in a file.
+ *
+ * A search is keyed by the fingerprint of its query: a hash of the sorted wifi BSSIDs and cell identities, so the
+ * order of the observations and their signal strengths do not matter. Results are kept for TTL_MS, the least
+ * recently used ones are evicted beyond MAX_ENTRIES. Submits are passed through.
+ *
+ * File format: [magic][version][count], then per entry [fingerprint][time stored][body length][body].
+ * The file is rewritten (to a temporary file, then renamed) on the save executor after a result is added, once for
+ * all the results added while a save is waiting to run.
+ */
+public class CachingLocationService implements ILocationService {
+    private static final String LOG_TAG = AppGlobals.LOG_PREFIX + CachingLocationService.class.getSimpleName();
+
+    static final String FILENAME = "mls_search_cache.bin";
+    private static final int MAGIC = 0x4d534331; // "MSC1"
+    private static final int VERSION = 1;
+
+    static final int MAX_ENTRIES = 1000;
+    static final long TTL_MS = 1000L * 60 * 60 * 24 * 7;
+    // A bigger body is not a search result
+    private static final int MAX_BODY_BYTES = 16 * 1024;
+
+    private static class Entry {
+        final long timeMs;
+        final byte[] body;
+
+        Entry(long timeMs, byte[] body) {
+            this.timeMs = timeMs;
+            this.body = body;
+        }
+    }
+
+    private final ILocationService mService;
+    private final File mFile;
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private long mHits;
+    private long mMisses;
+    // Runs the saves, one at a time
+    private final Executor mSaveExecutor;
+    private boolean mIsSavePending;
+
+    /* Pass a null dir to only cache in memory, saveExecutor is then not used. */
+    public CachingLocationService(ILocationService service, File dir, Executor saveExecutor) {
+        mService = service;
+        mFile = (dir == null) ? null : new File(dir, FILENAME);
+        mSaveExecutor = saveExecutor;
+        load();
+    }
+
+    @Override
+    public IResponse submit(byte[] data, Map<String, String> headers, boolean precompressed) {
+        return mService.submit(data, headers, precompressed);
+    }
+
+    @Override
+    public IResponse search(byte[] data, Map<String, String> headers, boolean precompressed) {
+        final Long fingerprint = precompressed ? null : fingerprint(data);
+        if (fingerprint == null) {
+            return mService.search(data, headers, precompressed);
+        }
+
+        synchronized (this) {
+            final Entry entry = mEntries.get(fingerprint);
+            if (entry != null && System.currentTimeMillis() - entry.timeMs < TTL_MS) {
+                mHits++;
+                return new HTTPResponse(200, new HashMap<String, List<String>>(), entry.body, 0, 0);
+            }
+            if (entry != null) {
+                mEntries.remove(fingerprint);
+            }
+            mMisses++;
+        }
+
+        final IResponse response = mService.search(data, headers, precompressed);
+        if (response != null && response.isSuccessCode2XX() && response.bodyBytes() != null &&
+                response.bodyBytes().length <= MAX_BODY_BYTES && isFound(response)) {
+            final boolean isSaveDue;
+            synchronized (this) {
+                mEntries.put(fingerprint, new Entry(System.currentTimeMillis(), response.bodyBytes()));
+                isSaveDue = (mFile != null && !mIsSavePending);
+                mIsSavePending |= isSaveDue;
+            }
+            if (isSaveDue) {
+                mSaveExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        save();
+                    }
+                });
+            }
+        }
+        return response;
+    }
+
+    // Only locations are cached, "not found" may change as the stumblers submit
+    private static boolean isFound(IResponse response) {
+        try {
+            return "ok".equals(new JSONObject(response.body()).optString("status"));
+        } catch (JSONException ex) {
+            return false;
+        }
+    }
+
+    private static Long fingerprint(byte[] query) {
+        try {
+            return fingerprint(new JSONObject(new String(query, "UTF-8")));
+        } catch (JSONException ex) {
+            return null;
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /* Order-independent: the sorted wifi keys and cell identities, hashed. Signal strengths are left out.
+     * Returns null if the query has no wifis or cells. */
+    public static Long fingerprint(JSONObject query) {
+        final ArrayList<String> keys = new ArrayList<String>();
+        final JSONArray wifis = query.optJSONArray(DataStorageContract.ReportsColumns.WIFI);
+        for (int i = 0; wifis != null && i < wifis.length(); i++) {
+            final JSONObject wifi = wifis.optJSONObject(i);
+            if (wifi != null) {
+                keys.add("w" + wifi.optString("key").toLowerCase().replace(":", ""));
+            }
+        }
+        final JSONArray cells = query.optJSONArray(DataStorageContract.ReportsColumns.CELL);
+        for (int i = 0; cells != null && i < cells.length(); i++) {
+            final JSONObject cell = cells.optJSONObject(i);
+            if (cell != null) {
+                keys.add("c" + cell.optString("radio") + "/" + cell.optString("mcc") + "/" + cell.optString("mnc") +
+                        "/" + cell.optString("lac") + "/" + cell.optString("cid") + "/" + cell.optString("psc"));
+            }
+        }
+        if (keys.isEmpty()) {
+            return null;
+        }
+        Collections.sort(keys);
+
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (String key : keys) {
+            for (int i = 0; i < key.length(); i++) {
+                hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+            }
+            hash = (hash ^ ',') * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void load() {
+        if (mFile == null || !mFile.exists()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    Log.w(LOG_TAG, "Unknown cache file format");
+                    return;
+                }
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final long fingerprint = in.readLong();
+                    final long timeMs = in.readLong();
+                    final int length = in.readInt();
+                    if (length < 0 || length > MAX_BODY_BYTES) {
+                        throw new IOException("Bad entry length " + length);
+                    }
+                    final byte[] body = new byte[length];
+                    in.readFully(body);
+                    if (now - timeMs < TTL_MS) {
+                        mEntries.put(fingerprint, new Entry(timeMs, body));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException ex) {
+            Log.w(LOG_TAG, "Truncated " + FILENAME + ", kept " + mEntries.size() + " entries");
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Error reading " + FILENAME, ex);
+        }
+    }
+
+    // Least recently used first, so the order survives a reload
+    private void save() {
+        // Copied, to not hold the lock while writing. The bodies are never modified.
+        final long[] fingerprints;
+        final Entry[] entries;
+        synchronized (this) {
+            mIsSavePending = false;
+            fingerprints = new long[mEntries.size()];
+            entries = new Entry[mEntries.size()];
+            int i = 0;
+            for (Map.Entry<Long, Entry> e : mEntries.entrySet()) {
+                fingerprints[i] = e.getKey();
+                entries[i] = e.getValue();
+                i++;
+            }
+        }
+
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.length);
+                for (int i = 0; i < entries.length; i++) {
+                    out.writeLong(fingerprints[i]);
+                    out.writeLong(entries[i].timeMs);
+                    out.writeInt(entries[i].body.length);
+                    out.write(entries[i].body);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Can't rename " + tmp);
+            }
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Error writing " + FILENAME, ex);
+            tmp.delete();
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /* Of the searches with a fingerprint, 0 if there were none. */
+    public synchronized float getHitRate() {
+        final long total = mHits + mMisses;
+        return (total == 0) ? 0 : mHits / (float) total;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+}
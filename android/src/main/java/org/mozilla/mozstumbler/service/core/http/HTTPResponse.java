@@ -15,19 +15,32 @@ public class HTTPResponse implements IResponse {
     private final byte[] bodyBytes;
     private final int bytesSent;
     private final Map<String, List<String>> headers;
+    private final long bytesAllocated;
 
     public HTTPResponse(int responseCode, Map<String, List<String>> headerFields, byte[] contentBody, int txByteLength) {
+        this(responseCode, headerFields, contentBody, txByteLength, contentBody.length);
+    }
+
+    public HTTPResponse(int responseCode, Map<String, List<String>> headerFields, byte[] contentBody, int txByteLength,
+                        long bytesAllocatedForBody) {
         statusCode = responseCode;
         bodyBytes = contentBody;
         bytesSent = txByteLength;
         headers = headerFields;
+        bytesAllocated = bytesAllocatedForBody;
         if (AppGlobals.isDebug) {
             Log.d(LOG_TAG, "HTTP Status: " + Integer.toString(statusCode) +
                     ", Bytes Sent: " + Integer.toString(bytesSent) +
-                    ", Bytes received: " + Integer.toString(bodyBytes.length));
+                    ", Bytes received: " + Integer.toString(bodyBytes.length) +
+                    ", Bytes allocated: " + Long.toString(bytesAllocated));
         }
     }
 
+    /* The bytes allocated to read the body, at least its length. */
+    public long bytesAllocated() {
+        return bytesAllocated;
+    }
+
     public boolean isErrorCode400BadRequest() {
         return 400 == statusCode;
     }
@@ -4,34 +4,34 @@
 
 package org.mozilla.mozstumbler.service.core.http;
 
-import android.os.Build;
-
 import org.apache.http.protocol.HTTP;
 import org.mozilla.mozstumbler.client.ClientPrefs;
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.core.logging.Log;
 import org.mozilla.mozstumbler.service.utils.Zipper;
-import org.mozilla.osmdroid.tileprovider.util.StreamUtils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.ProxySelector;
+import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -40,12 +40,17 @@ public class HttpUtil implements IHttpUtil {
     private static final String LOG_TAG = AppGlobals.LOG_PREFIX + HttpUtil.class.getSimpleName();
     private static final String USER_AGENT_HEADER = "User-Agent";
     private final String userAgent;
+    private final KeepAliveEstimator mKeepAlive;
 
     public HttpUtil() {
         this(ClientPrefs.getInstance().getUserAgent());
     }
     public HttpUtil(String ua){
+        this(ua, KeepAliveEstimator.getInstance());
+    }
+    HttpUtil(String ua, KeepAliveEstimator keepAlive) {
         userAgent = ua;
+        mKeepAlive = keepAlive;
     }
 
     private URLConnection openConnectionWithProxy(URL url) throws IOException {
@@ -72,23 +77,20 @@ public class HttpUtil implements IHttpUtil {
     }
 
     public String getUrlAsString(URL url) throws IOException {
-        InputStream stream = null;
+        final HttpURLConnection connection = connect(url, "GET", new HashMap<String, String>(), null);
+        boolean isReusable = false;
         try {
-            URLConnection connection = openConnectionWithProxy(url);
-            stream = connection.getInputStream();
-            BufferedReader reader = null;
+            InputStream stream = connection.getInputStream();
+            byte[] content;
             try {
-                reader = new BufferedReader(new InputStreamReader(stream));
-                return reader.readLine();
+                content = new ResponseBodyReader().read(stream, connection.getContentLength());
             } finally {
-                if (reader != null) {
-                    reader.close();
-                }
-            }
-        } finally {
-            if (stream != null) {
                 stream.close();
             }
+            isReusable = true;
+            return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content))).readLine();
+        } finally {
+            mKeepAlive.release(url, connection, isReusable);
         }
     }
 
@@ -97,34 +99,79 @@ public class HttpUtil implements IHttpUtil {
         return getUrlAsString(new URL(url));
     }
 
+    // The connection is released when the stream is closed, and kept alive if it was read to the end
     @Override
-    public InputStream getUrlAsStream(String url) throws IOException {
-        return new URL(url).openStream();
-    }
+    public InputStream getUrlAsStream(String urlString) throws IOException {
+        final URL url = new URL(urlString);
+        final HttpURLConnection connection = connect(url, "GET", new HashMap<String, String>(), null);
+        final InputStream stream;
+        try {
+            stream = connection.getInputStream();
+        } catch (IOException e) {
+            mKeepAlive.release(url, connection, false);
+            throw e;
+        }
+        return new FilterInputStream(stream) {
+            private boolean mIsAtEnd;
+            private boolean mIsClosed;
+
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                mIsAtEnd |= (b == -1);
+                return b;
+            }
 
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                final int n = super.read(buffer, offset, count);
+                mIsAtEnd |= (n == -1);
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (mIsClosed) {
+                    return;
+                }
+                mIsClosed = true;
+                try {
+                    super.close();
+                } finally {
+                    mKeepAlive.release(url, connection, mIsAtEnd);
+                }
+            }
+        };
+    }
 
     public File getUrlAsFile(URL url, File file) throws IOException {
         final int bufferLength = 8192;
         final byte[] buffer = new byte[bufferLength];
+        final HttpURLConnection connection = connect(url, "GET", new HashMap<String, String>(), null);
+        boolean isReusable = false;
         InputStream inputStream = null;
         OutputStream outputStream = null;
         try {
-            URLConnection connection = openConnectionWithProxy(url);
             inputStream = connection.getInputStream();
             outputStream = new FileOutputStream(file);
             for (;;) {
                 int readLength = inputStream.read(buffer, 0, bufferLength);
                 if (readLength == -1) {
+                    isReusable = true;
                     return file;
                 }
                 outputStream.write(buffer, 0, readLength);
             }
         } finally {
-            if (outputStream != null) {
-                outputStream.close();
-            }
-            if (inputStream != null) {
-                inputStream.close();
+            try {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } finally {
+                mKeepAlive.release(url, connection, isReusable);
             }
         }
     }
@@ -138,7 +185,6 @@ public class HttpUtil implements IHttpUtil {
 
     private IResponse getHttpResponse(String urlString, Map<String, String> headers, String HTTP_METHOD) {
         URL url = null;
-        HttpURLConnection httpURLConnection = null;
 
         try {
             url = new URL(urlString);
@@ -152,42 +198,111 @@ public class HttpUtil implements IHttpUtil {
         }
 
         try {
-            httpURLConnection = (HttpURLConnection) url.openConnection();
-            if (HTTP_METHOD.toUpperCase().equals("HEAD")) {
-                httpURLConnection.setInstanceFollowRedirects(false);
+            return execute(url, HTTP_METHOD, headers, null);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Networking error", e);
+        }
+        return null;
+    }
+
+    private HTTPResponse execute(URL url, String method, Map<String, String> headers, RequestBody body) throws IOException {
+        final HttpURLConnection connection = connect(url, method, headers, body);
+        boolean isReusable = false;
+        try {
+            final ResponseBodyReader reader = new ResponseBodyReader();
+            HTTPResponse response = new HTTPResponse(connection.getResponseCode(),
+                    connection.getHeaderFields(),
+                    getContentBody(connection, reader),
+                    (body == null) ? 0 : (int) body.length(),
+                    reader.getAllocatedBytes());
+            isReusable = !"close".equalsIgnoreCase(connection.getHeaderField("Connection"));
+            return response;
+        } finally {
+            mKeepAlive.release(url, connection, isReusable);
+        }
+    }
+
+    /*
+     Sends the request, on a kept-alive connection to the host if there is one, and waits for the response
+     code. The caller reads the response and releases the connection.
+
+     Workaround for a bug in Android HttpURLConnection: when the library reuses a stale connection, the
+     request fails with an EOFException before any response is read (other VMs throw a SocketException).
+     The request is then sent once more on a new connection, instead of disabling connection reuse
+     with "Connection: Close".
+     The same failure on a connection that was not stale may come after the server acted on the request,
+     so only GET and HEAD requests are always resent. Other requests are resent only if KeepAliveEstimator
+     expected a reused connection: a stale one was closed by the server before the request reached it.
+     http://stackoverflow.com/questions/15411213/android-httpsurlconnection-eofexception/17791819#17791819
+     */
+    private HttpURLConnection connect(URL url, String method, Map<String, String> headers, RequestBody body) throws IOException {
+        final boolean isReuseExpected = mKeepAlive.acquire(url);
+        HttpURLConnection connection = open(url, method, headers, body);
+        try {
+            send(connection, body);
+            return connection;
+        } catch (IOException e) {
+            connection.disconnect();
+            if (!isStaleConnectionError(e) || !(isIdempotent(method) || isReuseExpected) ||
+                    (body != null && !body.isRepeatable())) {
+                throw e;
             }
-            httpURLConnection.setConnectTimeout(5000); // set timeout to 5 seconds
+            Log.w(LOG_TAG, "Stale connection to " + url.getHost() + ", retrying");
+            mKeepAlive.evict(url);
+        }
 
-            httpURLConnection.setRequestMethod(HTTP_METHOD);
-            httpURLConnection.setRequestProperty(USER_AGENT_HEADER, userAgent);
+        mKeepAlive.acquire(url);
+        connection = open(url, method, headers, body);
+        try {
+            send(connection, body);
+            return connection;
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Couldn't open a connection: ", e);
-            return null;
+            connection.disconnect();
+            throw e;
         }
+    }
+
+    // A refused connection was not a stale one
+    private static boolean isStaleConnectionError(IOException e) {
+        return (e instanceof EOFException || e instanceof SocketException) && !(e instanceof ConnectException);
+    }
+
+    private static boolean isIdempotent(String method) {
+        return method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD");
+    }
 
-        // Workaround for a bug in Android mHttpURLConnection. When the library
-        // reuses a stale connection, the connection may fail with an EOFException
-        // http://stackoverflow.com/questions/15411213/android-httpsurlconnection-eofexception/17791819#17791819
-        if (Build.VERSION.SDK_INT > 13 && Build.VERSION.SDK_INT < 19) {
-            httpURLConnection.setRequestProperty("Connection", "Close");
+    private HttpURLConnection open(URL url, String method, Map<String, String> headers, RequestBody body) throws IOException {
+        HttpURLConnection httpURLConnection = (HttpURLConnection) openConnectionWithProxy(url);
+        if (method.toUpperCase().equals("HEAD")) {
+            httpURLConnection.setInstanceFollowRedirects(false);
         }
+        httpURLConnection.setConnectTimeout(5000); // set timeout to 5 seconds
+        httpURLConnection.setRequestMethod(method);
+        httpURLConnection.setRequestProperty(USER_AGENT_HEADER, userAgent);
 
         // Set headers
         for (Map.Entry<String, String> entry : headers.entrySet()) {
             httpURLConnection.setRequestProperty(entry.getKey(), entry.getValue());
         }
 
-        try {
-            return new HTTPResponse(httpURLConnection.getResponseCode(),
-                                    httpURLConnection.getHeaderFields(),
-                                    getContentBody(httpURLConnection),
-                                    0);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Networking error", e);
-        } finally {
-            httpURLConnection.disconnect();
+        if (body != null) {
+            // HttpURLConnection and Java are braindead.
+            // http://stackoverflow.com/questions/8587913/what-exactly-does-urlconnection-setdooutput-affect
+            httpURLConnection.setDoOutput(true);
+            httpURLConnection.setFixedLengthStreamingMode((int) body.length());
         }
-        return null;
+        return httpURLConnection;
+    }
+
+    // Returns the response code. The body is written to the connection unbuffered, the connection
+    // sends it in chunks as it comes.
+    private int send(HttpURLConnection httpURLConnection, RequestBody body) throws IOException {
+        if (body != null) {
+            OutputStream out = httpURLConnection.getOutputStream();
+            body.writeTo(out);
+            out.close();
+        }
+        return httpURLConnection.getResponseCode();
     }
 
     @Override
@@ -200,7 +315,6 @@ public class HttpUtil implements IHttpUtil {
     public IResponse post(String urlString, byte[] data, Map<String, String> headers, boolean precompressed) {
 
         URL url = null;
-        HttpURLConnection httpURLConnection = null;
 
         try {
             url = new URL(urlString);
@@ -216,70 +330,68 @@ public class HttpUtil implements IHttpUtil {
             headers = new HashMap<String, String>();
         }
 
-
-        try {
-            httpURLConnection = (HttpURLConnection) url.openConnection();
-            httpURLConnection.setConnectTimeout(5000); // set timeout to 5 seconds
-            // HttpURLConnection and Java are braindead.
-            // http://stackoverflow.com/questions/8587913/what-exactly-does-urlconnection-setdooutput-affect
-            httpURLConnection.setDoOutput(true);
-            httpURLConnection.setRequestMethod("POST");
-
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Couldn't open a connection: ", e);
-            return null;
-        }
-
-        httpURLConnection.setDoOutput(true);
-        httpURLConnection.setRequestProperty(USER_AGENT_HEADER, userAgent);
-        httpURLConnection.setRequestProperty("Content-Type", "application/json");
-
-        // Workaround for a bug in Android mHttpURLConnection. When the library
-        // reuses a stale connection, the connection may fail with an EOFException
-        // http://stackoverflow.com/questions/15411213/android-httpsurlconnection-eofexception/17791819#17791819
-        if (Build.VERSION.SDK_INT > 13 && Build.VERSION.SDK_INT < 19) {
-            httpURLConnection.setRequestProperty("Connection", "Close");
-        }
-
-        // Set headers
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            httpURLConnection.setRequestProperty(entry.getKey(), entry.getValue());
-        }
+        // The caller's headers go between the defaults and Content-Encoding, as before
+        Map<String, String> requestHeaders = new LinkedHashMap<String, String>();
+        requestHeaders.put("Content-Type", "application/json");
+        requestHeaders.putAll(headers);
 
         byte[] wire_data = data;
         if (!precompressed) {
             wire_data = Zipper.zipData(data);
             if (wire_data != null) {
-                httpURLConnection.setRequestProperty("Content-Encoding", "gzip");
+                requestHeaders.put("Content-Encoding", "gzip");
             } else {
                 Log.w(LOG_TAG, "Couldn't compress data, falling back to raw data.");
                 wire_data = data;
             }
         } else {
-            httpURLConnection.setRequestProperty("Content-Encoding", "gzip");
+            requestHeaders.put("Content-Encoding", "gzip");
         }
 
-        httpURLConnection.setFixedLengthStreamingMode(wire_data.length);
+        return post(url, RequestBody.of(wire_data), requestHeaders);
+    }
+
+    @Override
+    public IResponse post(String urlString, RequestBody body, Map<String, String> headers) {
+        URL url = null;
+
         try {
-            OutputStream out = new BufferedOutputStream(httpURLConnection.getOutputStream());
-            out.write(wire_data);
-            out.flush();
-            return new HTTPResponse(httpURLConnection.getResponseCode(),
-                    httpURLConnection.getHeaderFields(),
-                    getContentBody(httpURLConnection),
-                    wire_data.length);
+            url = new URL(urlString);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid URL", e);
+        }
+
+        if (body == null) {
+            throw new IllegalArgumentException("Body must be not null");
+        }
+        // Before API 19, fixed-length streaming mode takes an int
+        if (body.length() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Body too large: " + body.length());
+        }
+
+        Map<String, String> requestHeaders = new LinkedHashMap<String, String>();
+        requestHeaders.put("Content-Type", "application/json");
+        if (headers != null) {
+            requestHeaders.putAll(headers);
+        }
+        requestHeaders.put("Content-Encoding", "gzip");
+        return post(url, body, requestHeaders);
+    }
+
+    private IResponse post(URL url, RequestBody body, Map<String, String> requestHeaders) {
+        try {
+            return execute(url, "POST", requestHeaders, body);
         } catch (IOException e) {
             Log.e(LOG_TAG, "post error", e);
-        } finally {
-            httpURLConnection.disconnect();
         }
         return null;
     }
 
-    private byte[] getContentBody(HttpURLConnection httpURLConnection) throws IOException {
+    // Reads the body, sized from Content-Length when present, and closes the stream
+    private byte[] getContentBody(HttpURLConnection httpURLConnection, ResponseBodyReader reader) throws IOException {
         InputStream in = null;
         try {
-            in = new BufferedInputStream(httpURLConnection.getInputStream());
+            in = httpURLConnection.getInputStream();
         } catch (Exception ex) {
             in = httpURLConnection.getErrorStream();
         }
@@ -287,31 +399,14 @@ public class HttpUtil implements IHttpUtil {
             return new byte[]{};
         }
 
-        ByteArrayOutputStream dataStream = null;
-        OutputStream out = null;
-
         try {
-            dataStream = new ByteArrayOutputStream();
-            out = new BufferedOutputStream(dataStream, StreamUtils.IO_BUFFER_SIZE);
-            StreamUtils.copy(in, out);
-            out.flush();
+            return reader.read(in, httpURLConnection.getContentLength());
         } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException ioEx) {
-                    Log.e(LOG_TAG, "Error closing tile output stream.", ioEx);
-                }
-            }
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException ioEx) {
-                    Log.e(LOG_TAG, "Error closing tile output stream.", ioEx);
-                }
+            try {
+                in.close();
+            } catch (IOException ioEx) {
+                Log.e(LOG_TAG, "Error closing response stream.", ioEx);
             }
         }
-
-        return dataStream.toByteArray();
     }
 }
@@ -29,6 +29,14 @@ public interface IHttpUtil {
     */
     IResponse post(String urlString, byte[] data, Map<String, String> headers, boolean precompressed);
 
+    /*
+     POST a body that is already gzipped, streamed to the server without buffering it as a whole.
+
+     Return a response object from the server
+     On IOException, this will return null.
+     */
+    IResponse post(String urlString, RequestBody body, Map<String, String> headers);
+
     IResponse get(String urlString, Map<String, String> headers);
 
     IResponse head(String latestUrl,  Map<String, String> headers);
@@ -0,0 +1,100 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.core.http;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Guesses, per host, whether the next request of HttpUtil goes out on a kept-alive connection.
+ *
+ * This class holds no connections. The sockets are pooled by HttpURLConnection, which gives no way to tell
+ * whether a request was sent on a reused one: a connection goes back to its pool when the response body
+ * has been read to the end and closed, and the connection is not disconnect()ed. release() makes that
+ * choice, and records the connections it hands back the way the pool does (at most MAX_IDLE_PER_HOST
+ * idle connections per host, each kept for KEEP_ALIVE_MS).
+ *
+ * The guess and the counts are heuristics. The HttpURLConnection pool is shared with every other user in
+ * the process, and servers close idle connections sooner than KEEP_ALIVE_MS, so they are only logged, and
+ * a guessed reuse never makes a request be sent twice unless resending it is safe anyway.
+ */
+public class KeepAliveEstimator {
+    // The defaults of the HttpURLConnection pool, see the http.maxConnections system property
+    static final int MAX_IDLE_PER_HOST = 5;
+    static final long KEEP_ALIVE_MS = 1000 * 60 * 5;
+
+    private static final KeepAliveEstimator sInstance = new KeepAliveEstimator();
+
+    // Release times of the connections guessed to be idle, oldest first
+    private final HashMap<String, ArrayDeque<Long>> mIdle = new HashMap<String, ArrayDeque<Long>>();
+    private final AtomicLong mGuessedReused = new AtomicLong();
+    private final AtomicLong mGuessedNew = new AtomicLong();
+
+    public static KeepAliveEstimator getInstance() {
+        return sInstance;
+    }
+
+    KeepAliveEstimator() {}
+
+    private static String key(URL url) {
+        final int port = (url.getPort() == -1) ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /* Returns true if the request is expected to go out on an idle kept-alive connection. A guess. */
+    boolean acquire(URL url) {
+        final boolean isReused;
+        synchronized (mIdle) {
+            final ArrayDeque<Long> idle = mIdle.get(key(url));
+            final long now = System.currentTimeMillis();
+            while (idle != null && !idle.isEmpty() && now - idle.peekFirst() > KEEP_ALIVE_MS) {
+                idle.removeFirst();
+            }
+            // the most recently used connection is handed out first
+            isReused = (idle != null && idle.pollLast() != null);
+        }
+        (isReused ? mGuessedReused : mGuessedNew).incrementAndGet();
+        return isReused;
+    }
+
+    /* The response body must have been read and closed, for the connection to be reused. */
+    void release(URL url, HttpURLConnection connection, boolean isReusable) {
+        if (!isReusable) {
+            connection.disconnect();
+            return;
+        }
+        synchronized (mIdle) {
+            final String key = key(url);
+            ArrayDeque<Long> idle = mIdle.get(key);
+            if (idle == null) {
+                idle = new ArrayDeque<Long>();
+                mIdle.put(key, idle);
+            }
+            if (idle.size() == MAX_IDLE_PER_HOST) {
+                idle.removeFirst();
+            }
+            idle.addLast(System.currentTimeMillis());
+        }
+    }
+
+    /* A connection to the host turned out to be stale, the other idle ones likely are too. */
+    void evict(URL url) {
+        synchronized (mIdle) {
+            mIdle.remove(key(url));
+        }
+    }
+
+    /* The number of requests guessed to have gone out on a kept-alive connection. */
+    public long getGuessedReusedCount() {
+        return mGuessedReused.get();
+    }
+
+    /* The number of requests guessed to have opened a new connection. */
+    public long getGuessedNewCount() {
+        return mGuessedNew.get();
+    }
+}
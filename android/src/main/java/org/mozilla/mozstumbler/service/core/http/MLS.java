@@ -23,7 +23,11 @@ public class MLS implements ILocationService {
     private String mozApiKey;
 
     public MLS(IHttpUtil httpUtil) {
-        mozApiKey = Prefs.getInstance().getMozApiKey();
+        this(httpUtil, Prefs.getInstance().getMozApiKey());
+    }
+
+    public MLS(IHttpUtil httpUtil, String apiKey) {
+        mozApiKey = apiKey;
         httpDelegate = httpUtil;
     }
 
@@ -51,4 +51,9 @@ public class MockHttpUtil implements IHttpUtil {
         return null;
     }
 
+    @Override
+    public IResponse post(String urlString, RequestBody body, Map<String, String> headers) {
+        return null;
+    }
+
 }
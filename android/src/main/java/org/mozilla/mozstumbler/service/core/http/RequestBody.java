@@ -0,0 +1,37 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.core.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/* A POST body of known length, written straight to the connection by IHttpUtil.post(String, RequestBody, Map),
+ * with no copy of it in between. A body that reads its data from elsewhere as it is written should go through
+ * one small buffer at most, and report a source that ends early as an IOException, not an EOFException
+ * (which means a stale connection). */
+public abstract class RequestBody {
+    public abstract long length();
+
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /* A body that can be written more than once can be sent again, when a kept-alive connection was stale. */
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public static RequestBody of(final byte[] data) {
+        return new RequestBody() {
+            @Override
+            public long length() {
+                return data.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data);
+            }
+        };
+    }
+}
@@ -0,0 +1,137 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.core.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Reads a response body into an array of its exact size.
+ *
+ * With a Content-Length of at most MAX_PREALLOCATED_SIZE, the body is read straight into an array of that size.
+ * Otherwise it is read into a buffer from a small pool shared by all requests, grown as data arrives, and
+ * copied once into the result: a wrong or hostile Content-Length can't make it allocate more than was sent.
+ * One reader is used per request, and counts the bytes it allocated.
+ */
+public class ResponseBodyReader {
+    static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    static final int MAX_PREALLOCATED_SIZE = 64 * 1024;
+    // Larger buffers (rare, tiles and MLS responses are small) are left to the GC
+    static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final ArrayDeque<byte[]> sPool = new ArrayDeque<byte[]>();
+    private static final AtomicLong sAllocatedBytes = new AtomicLong();
+    private static final AtomicLong sReusedBuffers = new AtomicLong();
+
+    private long mAllocatedBytes;
+
+    /* Pass -1 if the length is unknown. The stream is not closed. */
+    public byte[] read(InputStream in, int contentLength) throws IOException {
+        if (contentLength == 0) {
+            return new byte[0];
+        }
+        if (contentLength > 0 && contentLength <= MAX_PREALLOCATED_SIZE) {
+            final byte[] body = allocate(contentLength);
+            final int n = readFully(in, body, 0);
+            if (n < contentLength) {
+                return copy(body, n);
+            }
+            final int next = in.read();
+            if (next == -1) {
+                return body;
+            }
+            // Longer than announced, read the rest the slow way
+            final byte[] buffer = obtain(contentLength * 2);
+            System.arraycopy(body, 0, buffer, 0, contentLength);
+            buffer[contentLength] = (byte) next;
+            return readRest(in, buffer, contentLength + 1);
+        }
+        return readRest(in, obtain(INITIAL_BUFFER_SIZE), 0);
+    }
+
+    private byte[] readRest(InputStream in, byte[] buffer, int length) throws IOException {
+        for (;;) {
+            length = readFully(in, buffer, length);
+            if (length < buffer.length) {
+                break;
+            }
+            final byte[] larger = obtain(buffer.length * 2);
+            System.arraycopy(buffer, 0, larger, 0, length);
+            recycle(buffer);
+            buffer = larger;
+        }
+        final byte[] body = copy(buffer, length);
+        recycle(buffer);
+        return body;
+    }
+
+    // Returns the length read, less than buffer.length only at the end of the stream
+    private static int readFully(InputStream in, byte[] buffer, int offset) throws IOException {
+        while (offset < buffer.length) {
+            final int n = in.read(buffer, offset, buffer.length - offset);
+            if (n < 0) {
+                break;
+            }
+            offset += n;
+        }
+        return offset;
+    }
+
+    private byte[] copy(byte[] buffer, int length) {
+        mAllocatedBytes += length;
+        sAllocatedBytes.addAndGet(length);
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private byte[] allocate(int size) {
+        mAllocatedBytes += size;
+        sAllocatedBytes.addAndGet(size);
+        return new byte[size];
+    }
+
+    // A pooled buffer of at least minSize bytes, if there is one
+    private byte[] obtain(int minSize) {
+        synchronized (sPool) {
+            for (byte[] buffer : sPool) {
+                if (buffer.length >= minSize) {
+                    sPool.remove(buffer);
+                    sReusedBuffers.incrementAndGet();
+                    return buffer;
+                }
+            }
+        }
+        return allocate(minSize);
+    }
+
+    private static void recycle(byte[] buffer) {
+        if (buffer.length > MAX_POOLED_BUFFER_SIZE) {
+            return;
+        }
+        synchronized (sPool) {
+            if (sPool.size() == MAX_POOLED_BUFFERS) {
+                sPool.removeFirst();
+            }
+            sPool.addLast(buffer);
+        }
+    }
+
+    /* The bytes allocated by this reader. */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /* The bytes allocated by all readers. */
+    public static long getTotalAllocatedBytes() {
+        return sAllocatedBytes.get();
+    }
+
+    /* The number of times a pooled buffer was used instead of a new one. */
+    public static long getReusedBufferCount() {
+        return sReusedBuffers.get();
+    }
+}
@@ -24,9 +24,9 @@ public interface IReporter {
      * StumblerService::stopScanning() is called - usually from UI
      * events from an Activity.
      *
-     * The other thread of control is the Android intents pump,
-     * which calls into the Reporter class through onReceive via
-     * an Intent.
+     * The other thread of control is the scanners, which call
+     * into the Reporter class through its ScanEventBus listener
+     * methods.
      * 
      */
 
@@ -4,36 +4,28 @@
 
 package org.mozilla.mozstumbler.service.stumblerthread;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.location.Location;
 import android.net.wifi.ScanResult;
-import android.support.v4.content.LocalBroadcastManager;
 import android.telephony.TelephonyManager;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.core.logging.Log;
-import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageContract;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.MLSJSONWriter;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.Observation;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.StumblerBundle;
-import org.mozilla.mozstumbler.service.stumblerthread.scanners.GPSScanner;
-import org.mozilla.mozstumbler.service.stumblerthread.scanners.WifiScanner;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
-import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellScanner;
+import org.mozilla.mozstumbler.service.utils.LongKeyedMap;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Map;
 
-public final class Reporter extends BroadcastReceiver implements IReporter {
+public final class Reporter implements IReporter, ScanEventBus.WifiScanListener, ScanEventBus.CellScanListener,
+        ScanEventBus.GpsListener, ScanEventBus.FlushListener {
     private static final String LOG_TAG = AppGlobals.LOG_PREFIX + Reporter.class.getSimpleName();
-    public static final String ACTION_FLUSH_TO_BUNDLE = AppGlobals.ACTION_NAMESPACE + ".FLUSH";
-    public static final String ACTION_NEW_BUNDLE = AppGlobals.ACTION_NAMESPACE + ".NEW_BUNDLE";
-    public static final String NEW_BUNDLE_ARG_BUNDLE = "bundle";
     private boolean mIsStarted;
 
     /* The maximum number of Wi-Fi access points in a single observation. */
@@ -46,12 +38,23 @@ public final class Reporter extends BroadcastReceiver implements IReporter {
     private int mPhoneType;
 
     private StumblerBundle mBundle;
-    private JSONObject mPreviousBundleJSON;
+    // The last flushed bundle, reused for the next fix
+    private StumblerBundle mSpareBundle;
+    private final MLSJSONWriter mJSONWriter = new MLSJSONWriter();
+    // Only parsed when asked for
+    private String mPreviousBundleJSON;
 
     public Reporter() {}
 
     public synchronized JSONObject getPreviousBundleJSON() {
-        return mPreviousBundleJSON;
+        if (mPreviousBundleJSON == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(mPreviousBundleJSON);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     public synchronized void startup(Context context) {
@@ -66,14 +69,7 @@ public final class Reporter extends BroadcastReceiver implements IReporter {
         mIsStarted = true;
 
         mBundle = null;
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(WifiScanner.ACTION_WIFIS_SCANNED);
-        intentFilter.addAction(CellScanner.ACTION_CELLS_SCANNED);
-        intentFilter.addAction(GPSScanner.ACTION_GPS_UPDATED);
-        intentFilter.addAction(ACTION_FLUSH_TO_BUNDLE);
-
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(this,
-                intentFilter);
+        ScanEventBus.getInstance().register(this);
     }
 
     public synchronized void shutdown() {
@@ -85,48 +81,48 @@ public final class Reporter extends BroadcastReceiver implements IReporter {
 
         Log.d(LOG_TAG, "shutdown");
         flush();
-        LocalBroadcastManager.getInstance(mContext).unregisterReceiver(this);
+        ScanEventBus.getInstance().unregister(this);
     }
 
-    private void receivedWifiMessage(Intent intent) {
-        List<ScanResult> results = intent.getParcelableArrayListExtra(WifiScanner.ACTION_WIFIS_SCANNED_ARG_RESULTS);
+    @Override
+    public synchronized void onWifisScanned(List<ScanResult> results) {
         putWifiResults(results);
+        flushIfFull();
     }
 
-    private void receivedCellMessage(Intent intent) {
-        List<CellInfo> results = intent.getParcelableArrayListExtra(CellScanner.ACTION_CELLS_SCANNED_ARG_CELLS);
-        putCellResults(results);
+    @Override
+    public synchronized void onCellsScanned(List<CellInfo> cells) {
+        putCellResults(cells);
+        flushIfFull();
     }
 
-    private void receivedGpsMessage(Intent intent) {
-        String subject = intent.getStringExtra(Intent.EXTRA_SUBJECT);
-
-        if (subject.equals(GPSScanner.SUBJECT_NEW_LOCATION)) {
-            Location newPosition = intent.getParcelableExtra(GPSScanner.NEW_LOCATION_ARG_LOCATION);
-            // Only create StumblerBundle instances if the position exists
-            if (newPosition != null) {
-                flush();
+    // This is the common case
+    @Override
+    public synchronized void onNewLocation(Location newPosition) {
+        // Only create StumblerBundle instances if the position exists
+        if (newPosition != null) {
+            flush();
+            if (mSpareBundle != null) {
+                mBundle = mSpareBundle;
+                mSpareBundle = null;
+                mBundle.reset(newPosition);
+            } else {
                 mBundle = new StumblerBundle(newPosition, mPhoneType);
             }
         }
+        flushIfFull();
     }
 
     @Override
-    public synchronized void onReceive(Context context, Intent intent) {
-        String action = intent.getAction();
+    public void onLocationLost() {
+    }
 
-        if (action.equals(ACTION_FLUSH_TO_BUNDLE)) {
-            flush();
-            return;
-        } else if (action.equals(WifiScanner.ACTION_WIFIS_SCANNED)) {
-            receivedWifiMessage(intent);
-        } else if (action.equals(CellScanner.ACTION_CELLS_SCANNED)) {
-            receivedCellMessage(intent);
-        } else if (action.equals(GPSScanner.ACTION_GPS_UPDATED)) {
-            // This is the common case
-            receivedGpsMessage(intent);
-        }
+    @Override
+    public void onFlushRequested() {
+        flush();
+    }
 
+    private void flushIfFull() {
         if (mBundle != null &&
                 (mBundle.getWifiData().size() > MAX_WIFIS_PER_LOCATION ||
                  mBundle.getCellData().size() > MAX_CELLS_PER_LOCATION))
@@ -136,14 +132,14 @@ public final class Reporter extends BroadcastReceiver implements IReporter {
         }
     }
 
-    public synchronized Map<String, ScanResult> getWifiData() {
+    public synchronized LongKeyedMap<ScanResult> getWifiData() {
         if (mBundle == null){
             return null;
         }
         return mBundle.getWifiData();
     }
 
-    public synchronized Map<String, CellInfo> getCellData() {
+    public synchronized LongKeyedMap<CellInfo> getCellData() {
         if (mBundle == null){
             return null;
         }
@@ -162,18 +158,13 @@ public final class Reporter extends BroadcastReceiver implements IReporter {
             return;
         }
 
-        Map<String, ScanResult> currentWifiData = mBundle.getWifiData();
-        for (ScanResult result : results) {
-            if (currentWifiData.size() > MAX_WIFIS_PER_LOCATION) {
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < results.size(); i++) {
+            if (mBundle.getWifiData().size() > MAX_WIFIS_PER_LOCATION) {
                 AppGlobals.guiLogInfo("Max wifi limit exceeded for this location, ignoring data.");
                 return;
             }
-
-            String key = result.BSSID;
-            if (!currentWifiData.containsKey(key)) {
-                currentWifiData.put(key, result);
-            }
-
+            mBundle.addWifi(results.get(i), now);
         }
     }
 
@@ -182,62 +173,63 @@ public final class Reporter extends BroadcastReceiver implements IReporter {
             return;
         }
 
-        Map<String, CellInfo> currentCellData = mBundle.getCellData();
-        for (CellInfo result : cells) {
-            if (currentCellData.size() > MAX_CELLS_PER_LOCATION) {
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < cells.size(); i++) {
+            if (mBundle.getCellData().size() > MAX_CELLS_PER_LOCATION) {
                 AppGlobals.guiLogInfo("Max cell limit exceeded for this location, ignoring data.");
                 return;
             }
-            String key = result.getCellIdentity();
-            if (!currentCellData.containsKey(key)) {
-                currentCellData.put(key, result);
-            }
+            mBundle.addCell(cells.get(i), now);
         }
     }
 
     public synchronized void flush() {
-        JSONObject mlsObj;
-        int wifiCount = 0;
-        int cellCount = 0;
+        final int length;
 
         if (mBundle == null) {
             return;
         }
 
         try {
-            mlsObj = mBundle.toMLSJSON();
-            wifiCount = mlsObj.getInt(DataStorageContract.ReportsColumns.WIFI_COUNT);
-            cellCount = mlsObj.getInt(DataStorageContract.ReportsColumns.CELL_COUNT);
+            length = mJSONWriter.write(mBundle);
         } catch (JSONException e) {
             Log.w(LOG_TAG, "Failed to convert bundle to JSON: " + e);
-            mBundle = null;
+            recycleBundle();
             return;
         }
-
-        if (AppGlobals.isDebug) {
-            Log.d(LOG_TAG, "Received a MLS bundle" + mlsObj.toString());
-        }
+        final int wifiCount = mJSONWriter.getWifiCount();
+        final int cellCount = mJSONWriter.getCellCount();
 
         if (wifiCount + cellCount < 1) {
-            mBundle = null;
+            recycleBundle();
             return;
         }
 
-        mPreviousBundleJSON = mlsObj;
+        // Decoded once, for the logs and the consumers
+        final String mlsString = mJSONWriter.toString();
+        if (AppGlobals.isDebug) {
+            Log.d(LOG_TAG, "Received a MLS bundle" + mlsString);
+        }
 
-        AppGlobals.guiLogInfo("MLS record: " + mlsObj.toString());
+        mPreviousBundleJSON = mlsString;
 
-        Intent i = new Intent(ACTION_NEW_BUNDLE);
-        i.putExtra(NEW_BUNDLE_ARG_BUNDLE, mBundle);
-        i.putExtra(AppGlobals.ACTION_ARG_TIME, System.currentTimeMillis());
-        LocalBroadcastManager.getInstance(mContext).sendBroadcastSync(i);
+        AppGlobals.guiLogInfo("MLS record: " + mlsString);
+
+        ScanEventBus.getInstance().postNewObservation(
+                new Observation(mBundle.getGpsPosition(), mlsString, wifiCount, cellCount));
 
         try {
-            DataStorageManager.getInstance().insert(mlsObj.toString(), wifiCount, cellCount);
+            DataStorageManager.getInstance().insert(mBundle, mJSONWriter.getBuffer(), length, wifiCount, cellCount);
         } catch (IOException e) {
             Log.w(LOG_TAG, e.toString());
         }
 
+        recycleBundle();
+    }
+
+    // Nothing holds on to a flushed bundle: the Observation and the stored report are copies
+    private void recycleBundle() {
+        mSpareBundle = mBundle;
         mBundle = null;
     }
 }
@@ -0,0 +1,152 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.Observation;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+
+import java.util.List;
+
+/* Delivers the scan results to the Reporter, and the Reporter's observations to the client, in process.
+ *
+ * The listeners are called directly, on the posting thread (as sendBroadcastSync did), with no Intent
+ * or Bundle built per event. Each kind of listener is kept in an array that is copied when a listener
+ * is added or removed (rare), so posting takes no lock and allocates nothing.
+ */
+public final class ScanEventBus {
+
+    public interface WifiScanListener {
+        void onWifisScanned(List<ScanResult> results);
+    }
+
+    public interface CellScanListener {
+        void onCellsScanned(List<CellInfo> cells);
+    }
+
+    public interface GpsListener {
+        void onNewLocation(Location location);
+        void onLocationLost();
+    }
+
+    /* The Reporter flushed a bundle. */
+    public interface ObservationListener {
+        void onNewObservation(Observation observation);
+    }
+
+    /* The Reporter should flush its current bundle. */
+    public interface FlushListener {
+        void onFlushRequested();
+    }
+
+    private static final ScanEventBus sInstance = new ScanEventBus();
+
+    private static final Object[] NONE = new Object[0];
+
+    private volatile Object[] mWifiListeners = NONE;
+    private volatile Object[] mCellListeners = NONE;
+    private volatile Object[] mGpsListeners = NONE;
+    private volatile Object[] mObservationListeners = NONE;
+    private volatile Object[] mFlushListeners = NONE;
+
+    public static ScanEventBus getInstance() {
+        return sInstance;
+    }
+
+    ScanEventBus() {}
+
+    /* Registers the listener for each of the listener interfaces it implements. */
+    public synchronized void register(Object listener) {
+        if (listener instanceof WifiScanListener) {
+            mWifiListeners = add(mWifiListeners, listener);
+        }
+        if (listener instanceof CellScanListener) {
+            mCellListeners = add(mCellListeners, listener);
+        }
+        if (listener instanceof GpsListener) {
+            mGpsListeners = add(mGpsListeners, listener);
+        }
+        if (listener instanceof ObservationListener) {
+            mObservationListeners = add(mObservationListeners, listener);
+        }
+        if (listener instanceof FlushListener) {
+            mFlushListeners = add(mFlushListeners, listener);
+        }
+    }
+
+    public synchronized void unregister(Object listener) {
+        mWifiListeners = remove(mWifiListeners, listener);
+        mCellListeners = remove(mCellListeners, listener);
+        mGpsListeners = remove(mGpsListeners, listener);
+        mObservationListeners = remove(mObservationListeners, listener);
+        mFlushListeners = remove(mFlushListeners, listener);
+    }
+
+    // Registering twice is a no-op, as with registerReceiver
+    private static Object[] add(Object[] listeners, Object listener) {
+        for (Object l : listeners) {
+            if (l == listener) {
+                return listeners;
+            }
+        }
+        final Object[] added = new Object[listeners.length + 1];
+        System.arraycopy(listeners, 0, added, 0, listeners.length);
+        added[listeners.length] = listener;
+        return added;
+    }
+
+    private static Object[] remove(Object[] listeners, Object listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                if (listeners.length == 1) {
+                    return NONE;
+                }
+                final Object[] removed = new Object[listeners.length - 1];
+                System.arraycopy(listeners, 0, removed, 0, i);
+                System.arraycopy(listeners, i + 1, removed, i, listeners.length - i - 1);
+                return removed;
+            }
+        }
+        return listeners;
+    }
+
+    public void postWifisScanned(List<ScanResult> results) {
+        for (Object listener : mWifiListeners) {
+            ((WifiScanListener) listener).onWifisScanned(results);
+        }
+    }
+
+    public void postCellsScanned(List<CellInfo> cells) {
+        for (Object listener : mCellListeners) {
+            ((CellScanListener) listener).onCellsScanned(cells);
+        }
+    }
+
+    public void postNewLocation(Location location) {
+        for (Object listener : mGpsListeners) {
+            ((GpsListener) listener).onNewLocation(location);
+        }
+    }
+
+    public void postLocationLost() {
+        for (Object listener : mGpsListeners) {
+            ((GpsListener) listener).onLocationLost();
+        }
+    }
+
+    public void postNewObservation(Observation observation) {
+        for (Object listener : mObservationListeners) {
+            ((ObservationListener) listener).onNewObservation(observation);
+        }
+    }
+
+    public void postFlush() {
+        for (Object listener : mFlushListeners) {
+            ((FlushListener) listener).onFlushRequested();
+        }
+    }
+}
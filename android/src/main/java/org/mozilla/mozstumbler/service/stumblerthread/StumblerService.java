@@ -4,8 +4,11 @@
 
 package org.mozilla.mozstumbler.service.stumblerthread;
 
+import android.content.BroadcastReceiver;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.location.Location;
+import android.net.ConnectivityManager;
 import android.os.AsyncTask;
 import android.util.Log;
 
@@ -16,6 +19,7 @@ import org.mozilla.mozstumbler.service.stumblerthread.blocklist.WifiBlockListInt
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.ScanManager;
 import org.mozilla.mozstumbler.service.uploadthread.UploadAlarmReceiver;
+import org.mozilla.mozstumbler.service.uploadthread.UploadScheduler;
 import org.mozilla.mozstumbler.service.utils.NetworkInfo;
 import org.mozilla.mozstumbler.service.utils.PersistentIntentService;
 
@@ -36,14 +40,12 @@ public class StumblerService extends PersistentIntentService
     public static final AtomicBoolean sFirefoxStumblingEnabled = new AtomicBoolean();
     protected final ScanManager mScanManager = new ScanManager();
     protected final IReporter mReporter = new Reporter();
+    private BroadcastReceiver mConnectivityReceiver;
 
     // This is a delay before the single-shot upload is attempted. The number is arbitrary
     // and used to avoid startup tasks bunching up.
     private static final int DELAY_IN_SEC_BEFORE_STARTING_UPLOAD_IN_PASSIVE_MODE = 2;
 
-    // This is the frequency of the repeating upload alarm in active scanning mode.
-    private static final int FREQUENCY_IN_SEC_OF_UPLOAD_IN_ACTIVE_MODE = 5 * 60;
-
     // Used to guard against attempting to upload too frequently in passive mode.
     private static final long PASSIVE_UPLOAD_FREQ_GUARD_MSEC = 5 * 60 * 1000;
 
@@ -119,6 +121,13 @@ public class StumblerService extends PersistentIntentService
     public void onDestroy() {
         super.onDestroy();
 
+        synchronized (this) {
+            if (mConnectivityReceiver != null) {
+                unregisterReceiver(mConnectivityReceiver);
+                mConnectivityReceiver = null;
+            }
+        }
+
         if (!isScanning()) {
             return;
         }
@@ -210,11 +219,21 @@ public class StumblerService extends PersistentIntentService
     }
 
     // Note that in passive mode, having data isn't an upload trigger, it is triggered by the start intent
+    // In active mode the UploadScheduler decides when to upload, also on connectivity changes while data is queued.
     public synchronized void notifyStorageStateEmpty(boolean isEmpty) {
+        UploadScheduler.getInstance().setStorageEmpty(isEmpty);
         if (isEmpty) {
             UploadAlarmReceiver.cancelAlarm(this, !mScanManager.isPassiveMode());
+            if (mConnectivityReceiver != null) {
+                unregisterReceiver(mConnectivityReceiver);
+                mConnectivityReceiver = null;
+            }
         } else if (!mScanManager.isPassiveMode()) {
-            UploadAlarmReceiver.scheduleAlarm(this, FREQUENCY_IN_SEC_OF_UPLOAD_IN_ACTIVE_MODE, true /* repeating */);
+            UploadAlarmReceiver.scheduleAdaptiveAlarm(this);
+            if (mConnectivityReceiver == null) {
+                mConnectivityReceiver = new UploadAlarmReceiver.ConnectivityChangeReceiver();
+                registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            }
         }
     }
 
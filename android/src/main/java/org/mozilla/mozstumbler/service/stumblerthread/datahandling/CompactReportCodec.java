@@ -0,0 +1,527 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.mozilla.mozstumbler.service.utils.LongKeyedMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/* Binary encoding of a StumblerBundle, stored instead of its MLS JSON when DataStorageManager
+ * uses ReportBatchWriter.FORMAT_COMPACT. The JSON is only produced when a batch is read for upload.
+ *
+ * A record (big-endian):
+ *   byte version, long time, int lat and int lon (microdegrees), byte flags, [int accuracy], [int altitude],
+ *   byte radio,
+ *   short cell count, per cell: byte cell radio [string if not a known radio],
+ *                               int mcc, mnc, lac, cid, signal, asu, ta, psc, age
+ *   short wifi count, per wifi: 6 byte BSSID, unsigned short frequency, short signal, int age
+ *   short count of wifis with a non-canonical BSSID, per wifi: string BSSID, frequency, signal and age
+ * Strings are a short length followed by UTF-8 bytes, or the length NULL_STRING for null (a wifi with no
+ * BSSID has no "key" in the JSON, as MLSJSONWriter writes it). An age is in ms (see StumblerBundle.getWifiAge()),
+ * NO_AGE if unknown; the ages are only there if the FLAG_AGES flag is set, when any entry has one.
+ *
+ * A wifi is 14 bytes instead of ~65 in JSON. Records are concatenated without framing in a batch.
+ *
+ * Not thread-safe, an instance reuses its encoding buffer.
+ */
+final class CompactReportCodec {
+    static final byte VERSION = 2;
+
+    private static final int FLAG_ACCURACY = 1;
+    private static final int FLAG_ALTITUDE = 2;
+    private static final int FLAG_AGES = 4;
+
+    private static final byte RADIO_NONE = 0;
+    private static final byte RADIO_GSM = 1;
+    private static final byte RADIO_CDMA = 2;
+
+    // Index is the code stored for the cell radio, 0 is a null radio
+    private static final String[] CELL_RADIOS = { null, CellInfo.CELL_RADIO_GSM, CellInfo.CELL_RADIO_UMTS,
+            CellInfo.CELL_RADIO_CDMA, CellInfo.CELL_RADIO_LTE };
+    private static final byte CELL_RADIO_OTHER = 0x7f;
+
+    private static final int NO_AGE = Integer.MIN_VALUE;
+    private static final int NULL_STRING = 0xffff;
+
+    private static final int BSSID_BYTES = 6;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private byte[] mBuffer = new byte[1024];
+    private int mLength;
+    // Whether the record being encoded has ages
+    private boolean mHasAges;
+
+    /* Encodes the bundle into getBuffer(), returns the record length. */
+    int encode(StumblerBundle bundle) {
+        mLength = 0;
+        final Location location = bundle.getGpsPosition();
+
+        final byte radio;
+        if (bundle.getPhoneType() == TelephonyManager.PHONE_TYPE_GSM) {
+            radio = RADIO_GSM;
+        } else if (bundle.getPhoneType() == TelephonyManager.PHONE_TYPE_CDMA) {
+            radio = RADIO_CDMA;
+        } else {
+            radio = RADIO_NONE;
+        }
+        mHasAges = false;
+        for (int i = 0; i < bundle.getCellData().size() && !mHasAges; i++) {
+            mHasAges = bundle.getCellAge(i) != StumblerBundle.UNKNOWN_AGE;
+        }
+        for (int i = 0; i < bundle.getWifiData().size() && !mHasAges; i++) {
+            mHasAges = bundle.getWifiAge(i) != StumblerBundle.UNKNOWN_AGE;
+        }
+        putHeader(location.getTime(),
+                (int) Math.floor(location.getLatitude() * 1.0E6),
+                (int) Math.floor(location.getLongitude() * 1.0E6),
+                location.hasAccuracy(), (int) Math.ceil(location.getAccuracy()),
+                location.hasAltitude(), (int) Math.round(location.getAltitude()),
+                radio);
+
+        final LongKeyedMap<CellInfo> cells = bundle.getCellData();
+        putShort(cells.size());
+        for (int i = 0; i < cells.size(); i++) {
+            final CellInfo cell = cells.valueAt(i);
+            putCell(cell.getCellRadio(), cell.getMcc(), cell.getMnc(), cell.getLac(), cell.getCid(),
+                    cell.getSignal(), cell.getAsu(), cell.getTa(), cell.getPsc());
+            putAge(bundle.getCellAge(i));
+        }
+
+        final LongKeyedMap<ScanResult> wifis = bundle.getWifiData();
+        int packed = 0;
+        for (int i = 0; i < wifis.size(); i++) {
+            if (isCanonicalBSSID(wifis.valueAt(i).BSSID)) {
+                packed++;
+            }
+        }
+
+        putShort(packed);
+        for (int i = 0; i < wifis.size(); i++) {
+            final ScanResult wifi = wifis.valueAt(i);
+            if (isCanonicalBSSID(wifi.BSSID)) {
+                putBSSID(wifi.BSSID);
+                putShort(wifi.frequency);
+                putShort(wifi.level);
+                putAge(bundle.getWifiAge(i));
+            }
+        }
+
+        putShort(wifis.size() - packed);
+        for (int i = 0; i < wifis.size(); i++) {
+            final ScanResult wifi = wifis.valueAt(i);
+            if (!isCanonicalBSSID(wifi.BSSID)) {
+                putString(wifi.BSSID);
+                putShort(wifi.frequency);
+                putShort(wifi.level);
+                putAge(bundle.getWifiAge(i));
+            }
+        }
+
+        return mLength;
+    }
+
+    /* Encodes a report in the MLS JSON format (as returned by decodeToMLSJSON()) into getBuffer(),
+     * returns the record length. */
+    int encode(JSONObject item) throws JSONException {
+        mLength = 0;
+
+        final String radio = item.optString(DataStorageContract.ReportsColumns.RADIO);
+        final boolean hasAccuracy = item.has(DataStorageContract.ReportsColumns.ACCURACY);
+        final boolean hasAltitude = item.has(DataStorageContract.ReportsColumns.ALTITUDE);
+        final JSONArray cells = item.optJSONArray(DataStorageContract.ReportsColumns.CELL);
+        final JSONArray wifis = item.optJSONArray(DataStorageContract.ReportsColumns.WIFI);
+        mHasAges = hasAges(cells) || hasAges(wifis);
+        // The JSON lat/lon are already truncated to microdegrees
+        putHeader(item.getLong(DataStorageContract.ReportsColumns.TIME),
+                (int) Math.round(item.getDouble(DataStorageContract.ReportsColumns.LAT) * 1.0E6),
+                (int) Math.round(item.getDouble(DataStorageContract.ReportsColumns.LON) * 1.0E6),
+                hasAccuracy, hasAccuracy ? item.getInt(DataStorageContract.ReportsColumns.ACCURACY) : 0,
+                hasAltitude, hasAltitude ? item.getInt(DataStorageContract.ReportsColumns.ALTITUDE) : 0,
+                "gsm".equals(radio) ? RADIO_GSM : ("cdma".equals(radio) ? RADIO_CDMA : RADIO_NONE));
+
+        final int cellCount = (cells == null) ? 0 : cells.length();
+        putShort(cellCount);
+        for (int i = 0; i < cellCount; i++) {
+            final JSONObject cell = cells.getJSONObject(i);
+            putCell(cell.has("radio") ? cell.getString("radio") : null,
+                    cell.getInt("mcc"), cell.getInt("mnc"),
+                    cell.optInt("lac", CellInfo.UNKNOWN_CID), cell.optInt("cid", CellInfo.UNKNOWN_CID),
+                    cell.optInt("signal", CellInfo.UNKNOWN_SIGNAL), cell.optInt("asu", CellInfo.UNKNOWN_SIGNAL),
+                    cell.optInt("ta", CellInfo.UNKNOWN_CID), cell.optInt("psc", CellInfo.UNKNOWN_CID));
+            putAge(cell.has("age") ? cell.getLong("age") : StumblerBundle.UNKNOWN_AGE);
+        }
+
+        final int wifiCount = (wifis == null) ? 0 : wifis.length();
+        int packed = 0;
+        for (int i = 0; i < wifiCount; i++) {
+            if (isCanonicalBSSID(getKey(wifis.getJSONObject(i)))) {
+                packed++;
+            }
+        }
+
+        putShort(packed);
+        for (int i = 0; i < wifiCount; i++) {
+            final JSONObject wifi = wifis.getJSONObject(i);
+            if (isCanonicalBSSID(getKey(wifi))) {
+                putBSSID(getKey(wifi));
+                putShort(wifi.getInt("frequency"));
+                putShort(wifi.getInt("signal"));
+                putAge(wifi.has("age") ? wifi.getLong("age") : StumblerBundle.UNKNOWN_AGE);
+            }
+        }
+
+        putShort(wifiCount - packed);
+        for (int i = 0; i < wifiCount; i++) {
+            final JSONObject wifi = wifis.getJSONObject(i);
+            if (!isCanonicalBSSID(getKey(wifi))) {
+                putString(getKey(wifi));
+                putShort(wifi.getInt("frequency"));
+                putShort(wifi.getInt("signal"));
+                putAge(wifi.has("age") ? wifi.getLong("age") : StumblerBundle.UNKNOWN_AGE);
+            }
+        }
+
+        return mLength;
+    }
+
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    private void putHeader(long time, int latE6, int lonE6, boolean hasAccuracy, int accuracy,
+                           boolean hasAltitude, int altitude, byte radio) {
+        putByte(VERSION);
+        putLong(time);
+        putInt(latE6);
+        putInt(lonE6);
+        putByte((hasAccuracy ? FLAG_ACCURACY : 0) | (hasAltitude ? FLAG_ALTITUDE : 0) | (mHasAges ? FLAG_AGES : 0));
+        if (hasAccuracy) {
+            putInt(accuracy);
+        }
+        if (hasAltitude) {
+            putInt(altitude);
+        }
+        putByte(radio);
+    }
+
+    private void putCell(String cellRadio, int mcc, int mnc, int lac, int cid, int signal, int asu, int ta, int psc) {
+        final int code = cellRadioCode(cellRadio);
+        putByte(code);
+        if (code == CELL_RADIO_OTHER) {
+            putString(cellRadio);
+        }
+        putInt(mcc);
+        putInt(mnc);
+        putInt(lac);
+        putInt(cid);
+        putInt(signal);
+        putInt(asu);
+        putInt(ta);
+        putInt(psc);
+    }
+
+    // Null if the wifi has no BSSID
+    private static String getKey(JSONObject wifi) {
+        return wifi.isNull("key") ? null : wifi.optString("key");
+    }
+
+    private static boolean hasAges(JSONArray entries) throws JSONException {
+        for (int i = 0; entries != null && i < entries.length(); i++) {
+            if (entries.getJSONObject(i).has("age")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Ages are at most StumblerBundle.MAX_AGE_MS, a larger one in the JSON is dropped as it would be there
+    private void putAge(long age) {
+        if (!mHasAges) {
+            return;
+        }
+        if (age == StumblerBundle.UNKNOWN_AGE || Math.abs(age) > StumblerBundle.MAX_AGE_MS) {
+            putInt(NO_AGE);
+        } else {
+            putInt((int) age);
+        }
+    }
+
+    /* Reads one record, and returns it as the JSON StumblerBundle.toMLSJSON() would have produced. */
+    static JSONObject decodeToMLSJSON(ByteBuffer in) throws IOException {
+        try {
+            final int version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unknown compact report version: " + version);
+            }
+
+            final JSONObject item = new JSONObject();
+            item.put(DataStorageContract.ReportsColumns.TIME, in.getLong());
+            item.put(DataStorageContract.ReportsColumns.LAT, in.getInt() / 1.0E6);
+            item.put(DataStorageContract.ReportsColumns.LON, in.getInt() / 1.0E6);
+
+            final int flags = in.get();
+            if ((flags & FLAG_ACCURACY) != 0) {
+                item.put(DataStorageContract.ReportsColumns.ACCURACY, in.getInt());
+            }
+            if ((flags & FLAG_ALTITUDE) != 0) {
+                item.put(DataStorageContract.ReportsColumns.ALTITUDE, (long) in.getInt());
+            }
+            final boolean hasAges = (flags & FLAG_AGES) != 0;
+
+            final byte radio = in.get();
+            if (radio == RADIO_GSM) {
+                item.put(DataStorageContract.ReportsColumns.RADIO, "gsm");
+            } else if (radio == RADIO_CDMA) {
+                item.put(DataStorageContract.ReportsColumns.RADIO, "cdma");
+            } else {
+                item.put(DataStorageContract.ReportsColumns.RADIO, "");
+            }
+
+            final JSONArray cells = new JSONArray();
+            final int cellCount = in.getShort() & 0xffff;
+            for (int i = 0; i < cellCount; i++) {
+                final byte code = in.get();
+                final String cellRadio = (code == CELL_RADIO_OTHER) ? getString(in) : CELL_RADIOS[code];
+                cells.put(cellToJSON(cellRadio, in, hasAges));
+            }
+            item.put(DataStorageContract.ReportsColumns.CELL, cells);
+            item.put(DataStorageContract.ReportsColumns.CELL_COUNT, cells.length());
+
+            final JSONArray wifis = new JSONArray();
+            final int packed = in.getShort() & 0xffff;
+            for (int i = 0; i < packed; i++) {
+                wifis.put(wifiToJSON(getBSSID(in), in, hasAges));
+            }
+            final int unpacked = in.getShort() & 0xffff;
+            for (int i = 0; i < unpacked; i++) {
+                wifis.put(wifiToJSON(getString(in), in, hasAges));
+            }
+            item.put(DataStorageContract.ReportsColumns.WIFI, wifis);
+            item.put(DataStorageContract.ReportsColumns.WIFI_COUNT, wifis.length());
+            return item;
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated compact report");
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Corrupt compact report");
+        } catch (JSONException ex) {
+            throw new IOException(ex.toString());
+        }
+    }
+
+    /* Returns the reports of a gzipped batch, in either format, as MLS JSON objects. */
+    static ArrayList<JSONObject> decodeBatch(byte[] batch, int format) throws IOException {
+        final byte[] data = gunzip(batch);
+        final ArrayList<JSONObject> reports = new ArrayList<JSONObject>();
+        if (format == ReportBatchWriter.FORMAT_COMPACT) {
+            final ByteBuffer in = ByteBuffer.wrap(data);
+            while (in.hasRemaining()) {
+                reports.add(decodeToMLSJSON(in));
+            }
+            return reports;
+        }
+
+        try {
+            final JSONArray items = new JSONObject(new String(data, "UTF-8")).getJSONArray("items");
+            for (int i = 0; i < items.length(); i++) {
+                reports.add(items.getJSONObject(i));
+            }
+        } catch (JSONException ex) {
+            throw new IOException(ex.toString());
+        }
+        return reports;
+    }
+
+    /* Converts a gzipped batch of compact records to a gzipped JSON batch, ready for upload. */
+    static byte[] toJSONBatch(byte[] compactBatch, ReportBatchWriter jsonWriter) throws IOException {
+        final ByteBuffer in = ByteBuffer.wrap(gunzip(compactBatch));
+        jsonWriter.reset();
+        while (in.hasRemaining()) {
+            final JSONObject item = decodeToMLSJSON(in);
+            try {
+                jsonWriter.add(item.toString(),
+                        item.getInt(DataStorageContract.ReportsColumns.WIFI_COUNT),
+                        item.getInt(DataStorageContract.ReportsColumns.CELL_COUNT));
+            } catch (JSONException ex) {
+                throw new IOException(ex.toString());
+            }
+        }
+        return jsonWriter.finish();
+    }
+
+    private static JSONObject cellToJSON(String cellRadio, ByteBuffer in, boolean hasAge) throws JSONException {
+        // Same keys, and the same unknown values left out, as CellInfo.toJSONObject()
+        final JSONObject obj = new JSONObject();
+        obj.put("radio", cellRadio);
+        obj.put("mcc", in.getInt());
+        obj.put("mnc", in.getInt());
+        final int lac = in.getInt();
+        final int cid = in.getInt();
+        final int signal = in.getInt();
+        final int asu = in.getInt();
+        final int ta = in.getInt();
+        final int psc = in.getInt();
+        if (lac != CellInfo.UNKNOWN_CID) obj.put("lac", lac);
+        if (cid != CellInfo.UNKNOWN_CID) obj.put("cid", cid);
+        if (signal != CellInfo.UNKNOWN_SIGNAL) obj.put("signal", signal);
+        if (asu != CellInfo.UNKNOWN_SIGNAL) obj.put("asu", asu);
+        if (ta != CellInfo.UNKNOWN_CID) obj.put("ta", ta);
+        if (psc != CellInfo.UNKNOWN_CID) obj.put("psc", psc);
+        if (hasAge) {
+            getAge(obj, in);
+        }
+        return obj;
+    }
+
+    private static JSONObject wifiToJSON(String bssid, ByteBuffer in, boolean hasAge) throws JSONException {
+        final JSONObject obj = new JSONObject();
+        if (bssid != null) {
+            obj.put("key", bssid);
+        }
+        obj.put("frequency", in.getShort() & 0xffff);
+        obj.put("signal", in.getShort());
+        if (hasAge) {
+            getAge(obj, in);
+        }
+        return obj;
+    }
+
+    private static void getAge(JSONObject obj, ByteBuffer in) throws JSONException {
+        final int age = in.getInt();
+        if (age != NO_AGE) {
+            obj.put("age", (long) age);
+        }
+    }
+
+    static byte[] gunzip(byte[] data) throws IOException {
+        final InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        try {
+            byte[] out = new byte[Math.max(1024, data.length * 4)];
+            int length = 0;
+            int n;
+            while ((n = in.read(out, length, out.length - length)) > 0) {
+                length += n;
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int cellRadioCode(String cellRadio) {
+        for (int i = 0; i < CELL_RADIOS.length; i++) {
+            if (cellRadio == null ? CELL_RADIOS[i] == null : cellRadio.equals(CELL_RADIOS[i])) {
+                return i;
+            }
+        }
+        return CELL_RADIO_OTHER;
+    }
+
+    // The form BSSIDBlockList.canonicalizeBSSID() produces: 12 lowercase hex digits
+    private static boolean isCanonicalBSSID(String bssid) {
+        if (bssid == null || bssid.length() != BSSID_BYTES * 2) {
+            return false;
+        }
+        for (int i = 0; i < bssid.length(); i++) {
+            final char c = bssid.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void putBSSID(String bssid) {
+        for (int i = 0; i < BSSID_BYTES; i++) {
+            putByte(Character.digit(bssid.charAt(i * 2), 16) << 4 | Character.digit(bssid.charAt(i * 2 + 1), 16));
+        }
+    }
+
+    private static String getBSSID(ByteBuffer in) {
+        final char[] chars = new char[BSSID_BYTES * 2];
+        for (int i = 0; i < BSSID_BYTES; i++) {
+            final int b = in.get() & 0xff;
+            chars[i * 2] = HEX[b >> 4];
+            chars[i * 2 + 1] = HEX[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private void putString(String s) {
+        if (s == null) {
+            putShort(NULL_STRING);
+            return;
+        }
+        final byte[] bytes;
+        try {
+            bytes = s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        final int length = Math.min(bytes.length, NULL_STRING - 1);
+        putShort(length);
+        ensureCapacity(length);
+        System.arraycopy(bytes, 0, mBuffer, mLength, length);
+        mLength += length;
+    }
+
+    private static String getString(ByteBuffer in) throws IOException {
+        final int length = in.getShort() & 0xffff;
+        if (length == NULL_STRING) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + extra));
+        }
+    }
+
+    private void putByte(int value) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    private void putShort(int value) {
+        ensureCapacity(2);
+        mBuffer[mLength++] = (byte) (value >> 8);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    private void putInt(int value) {
+        ensureCapacity(4);
+        mBuffer[mLength++] = (byte) (value >> 24);
+        mBuffer[mLength++] = (byte) (value >> 16);
+        mBuffer[mLength++] = (byte) (value >> 8);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    private void putLong(long value) {
+        putInt((int) (value >> 32));
+        putInt((int) value);
+    }
+}
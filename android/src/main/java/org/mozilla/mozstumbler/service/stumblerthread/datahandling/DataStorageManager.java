@@ -6,27 +6,42 @@ package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
 
 import android.content.Context;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.core.logging.Log;
-import org.mozilla.mozstumbler.service.utils.Zipper;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 
 /* Stores reports in memory (mCurrentReports) until MAX_REPORTS_IN_MEMORY,
- * then writes them to disk as a .gz file. The name of the file has
- * the time written, the # of reports, and the # of cells and wifis.
+ * then appends the batch to the ReportJournal. mCurrentReports is a ReportBatchWriter, which gzips
+ * each report as it is inserted, so the batch is already compressed when it is flushed. The journal index keeps the
+ * time written, the # of reports, and the # of cells and wifis for each batch.
  *
- * Each .gz file is typically 1-5KB. File name example: reports-t1406863343313-r4-w25-c7.gz
+ * Each batch is typically 1-5KB. Batches are appended to a small number of segment files,
+ * so the reports directory is not listed again after startup. Batch files written by older
+ * versions (i.e. reports-t1406863343313-r4-w25-c7.gz) are moved into the journal on startup.
  *
- * The sync stats are written as a key-value pair file (not zipped).
+ * With compact storage enabled, reports are stored as CompactReportCodec records, about a fifth of the size
+ * of the JSON before compression, and two thirds after. Those batches are converted to the MLS JSON by getFirstBatch()/getNextBatch(), so the uploader
+ * always gets JSON. The journal records the format of each batch, so both formats can be on disk at once.
+ *
+ * Once the batches on disk reach mMaxBytesDiskStorage, the RetentionPolicy decides what is evicted to make room
+ * (by default the oldest batches). The evicted reports are counted, see getEvictedCounts().
+ *
+ * The sync stats are kept in memory (see getSyncStats()), and written to a small fixed-layout
+ * file by SyncStatsFile on each update.
  *
  * The tricky bit is the mCurrentReportsSendBuffer. When the uploader code begins accessing the
  * report batches, mCurrentReports gets pushed to mCurrentReportsSendBuffer.
@@ -37,7 +52,15 @@ import java.util.TimerTask;
  * in-memory.
  *
  * Also of note: the in-memory buffers (both mCurrentReports and mCurrentReportsSendBuffer) are saved
- * when the service is destroyed.
+ * when the service is destroyed. In case the process is killed instead, each inserted report is also
+ * appended to a WriteAheadLog, which is replayed into mCurrentReports on startup.
+ *
+ * Locking: the memory side (mCurrentReports, mPendingBatches) is guarded by mMemoryLock, the disk side
+ * (the journal, the send buffer, the upload iteration) by mDiskLock, and the sync stats by mStatsLock.
+ * When mDiskLock is needed too, it is taken first. Inserts only take mMemoryLock, which is never held for
+ * journal I/O: a full memory buffer is handed off to mPendingBatches, and written to the journal by
+ * whichever thread holds mDiskLock when it unlocks. So the stumbler thread never waits on the uploader's
+ * disk reads and deletes.
  */
 public class DataStorageManager {
     private static final String LOG_TAG = AppGlobals.LOG_PREFIX + DataStorageManager.class.getSimpleName();
@@ -46,10 +69,28 @@ public class DataStorageManager {
     // After this size is reached, data is persisted to disk, mCurrentReports is cleared.
     private static final int MAX_REPORTS_IN_MEMORY = 50;
 
-    // Used to cap the amount of data stored. When this limit is hit, no more data is saved to disk
-    // until the data is uploaded, or and data exceeds DEFAULT_MAX_WEEKS_DATA_ON_DISK.
+    // If collection stops and wifi is not available for uploading, the memory buffer is flushed to disk
+    // after this long without a new report.
+    private static final long DEFAULT_FLUSH_IDLE_MS = 1000 * 60 * 3;
+
+    // The memory buffer is also flushed once its oldest report is this old, even if reports keep arriving.
+    private static final long DEFAULT_FLUSH_MAX_AGE_MS = 1000 * 60 * 10;
+
+    // Used to cap the amount of data stored. When this limit is hit, the RetentionPolicy makes room for new data
+    // (or drops it), until the data is uploaded, or and data exceeds DEFAULT_MAX_WEEKS_DATA_ON_DISK.
     private static final long DEFAULT_MAX_BYTES_STORED_ON_DISK = 1024 * 250; // 250 KiB max by default
 
+    // Adjacent stored batches are merged into upload batches of about this size, so the per-request
+    // overhead is paid once per upload batch, instead of once per (typically 1-5KB) stored batch.
+    private static final long DEFAULT_UPLOAD_BATCH_TARGET_BYTES = 1024 * 64;
+
+    // An upload batch must still be accepted by the server in one request
+    static final int MAX_REPORTS_PER_UPLOAD_BATCH = 500;
+
+    // Space is only reclaimed once a whole segment is removed, so segments are kept small relative to the cap.
+    private static final int SEGMENTS_PER_MAX_BYTES = 8;
+    private static final long MIN_SEGMENT_BYTES = 1024 * 4;
+
     // Used as a safeguard to ensure stumbling data is not persisted. The intended use case of the stumbler lib is not
     // for long-term storage, and so if ANY data on disk is this old, ALL data is wiped as a privacy mechanism.
     private static final int DEFAULT_MAX_WEEKS_DATA_ON_DISK = 2;
@@ -60,17 +101,48 @@ public class DataStorageManager {
     // Set to the default value specified above.
     private final int mMaxWeeksStored;
 
-    private final ReportBatchBuilder mCurrentReports = new ReportBatchBuilder();
+    // Used to estimate the gzipped size of the in-memory reports until a batch has been zipped.
+    private static final float DEFAULT_COMPRESSION_RATIO = 0.2f;
+
+    private final Object mMemoryLock = new Object();
+    private final ReentrantLock mDiskLock = new ReentrantLock();
+    private final Object mStatsLock = new Object();
+    private final Object mTrackerLock = new Object();
+
+    private final ReportBatchWriter mCurrentReports;
+    private final CompactReportCodec mCodec = new CompactReportCodec();
+    // Memory buffers that were handed off, oldest first, not yet in the journal
+    private final ArrayDeque<PendingBatch> mPendingBatches = new ArrayDeque<PendingBatch>();
+    // Converts compact batches to JSON for upload, created on first use
+    private ReportBatchWriter mJsonBatchWriter;
     private final File mReportsDir;
-    private final File mStatsFile;
+    private final SyncStatsFile mSyncStatsFile;
     private final StorageIsEmptyTracker mTracker;
+    // What mTracker was last told, guarded by mTrackerLock
+    private boolean mIsTrackerToldEmpty = true;
+    private final ReportJournal mJournal;
+    private final FlushScheduler mFlushScheduler;
+    private final WriteAheadLog mWriteAheadLog;
+    private final JournalStore mStore = new JournalStore();
+    private RetentionPolicy mRetentionPolicy = RetentionPolicies.DROP_OLDEST;
+    private long mUploadBatchTargetBytes = DEFAULT_UPLOAD_BATCH_TARGET_BYTES;
 
     private static DataStorageManager sInstance;
 
     private ReportBatch mCurrentReportsSendBuffer;
+    // The send buffer as it is stored, in the format of mCurrentReports
+    private byte[] mCurrentReportsSendBufferStored;
     private ReportBatchIterator mReportBatchIterator;
-    private ReportFileList mFileList;
-    private Timer mFlushMemoryBuffersToDiskTimer;
+
+    // Compressed size / uncompressed size of the last batch zipped.
+    private float mCompressionRatio = DEFAULT_COMPRESSION_RATIO;
+
+    // Replaced (never modified) whenever the queued data changes, read without locking.
+    private volatile QueuedCounts mQueuedCounts = new QueuedCounts(0, 0, 0, 0);
+    // The journal and send buffer part of mQueuedCounts, guarded by mMemoryLock like the rest
+    private QueuedCounts mDiskQueuedCounts = mQueuedCounts;
+    private volatile EvictedCounts mEvictedCounts = new EvictedCounts(0, 0, 0);
+    private volatile SyncStats mSyncStats;
 
     static final String SEP_REPORT_COUNT = "-r";
     static final String SEP_WIFI_COUNT = "-w";
@@ -93,78 +165,89 @@ public class DataStorageManager {
         }
     }
 
-    /* Some data is calculated on-demand, don't abuse this function */
-    public synchronized QueuedCounts getQueuedCounts() {
-        int reportCount = mFileList.mReportCount + mCurrentReports.reports.size();
-        int wifiCount = mFileList.mWifiCount + mCurrentReports.wifiCount;
-        int cellCount = mFileList.mCellCount + mCurrentReports.cellCount;
-        long byteLength = 0;
+    /* Reports removed by the RetentionPolicy, or not saved for lack of room, since startup. */
+    public static class EvictedCounts {
+        public final int mReportCount;
+        public final int mWifiCount;
+        public final int mCellCount;
 
-        if (mCurrentReports.reports.size() > 0) {
-            byte[] bytes;
-            bytes = Zipper.zipData(finalizeReports(mCurrentReports.reports).getBytes());
-            if (bytes == null) {
-                Log.e(LOG_TAG, "Error compressing current reports queued", new RuntimeException("GZip Failure"));
-            } else {
-                byteLength += bytes.length;
-            }
-            if (mFileList.mReportCount > 0) {
-                byteLength += mFileList.mFilesOnDiskBytes;
-            }
+        EvictedCounts(int reportCount, int wifiCount, int cellCount) {
+            this.mReportCount = reportCount;
+            this.mWifiCount = wifiCount;
+            this.mCellCount = cellCount;
         }
+    }
 
-        if (mCurrentReportsSendBuffer != null) {
-            reportCount += mCurrentReportsSendBuffer.reportCount;
-            wifiCount += mCurrentReportsSendBuffer.wifiCount;
-            cellCount += mCurrentReportsSendBuffer.cellCount;
-            byteLength += mCurrentReportsSendBuffer.data.length;
+    /* The all-time upload counters. */
+    public static class SyncStats {
+        public final long mLastUploadTimeMs;
+        public final long mBytesSent;
+        public final long mObservationsSent;
+        public final long mCellsSent;
+        public final long mWifisSent;
+
+        SyncStats(long lastUploadTimeMs, long bytesSent, long observationsSent, long cellsSent, long wifisSent) {
+            this.mLastUploadTimeMs = lastUploadTimeMs;
+            this.mBytesSent = bytesSent;
+            this.mObservationsSent = observationsSent;
+            this.mCellsSent = cellsSent;
+            this.mWifisSent = wifisSent;
         }
-        return new QueuedCounts(reportCount, wifiCount, cellCount, byteLength);
     }
 
-    private static class ReportFileList {
-        File[] mFiles;
-        int mReportCount;
-        int mWifiCount;
-        int mCellCount;
-        long mFilesOnDiskBytes;
+    public EvictedCounts getEvictedCounts() {
+        return mEvictedCounts;
+    }
 
-        public ReportFileList() {}
-        public ReportFileList(ReportFileList other) {
-            if (other == null) {
-                return;
-            }
+    private void countEvicted(int reportCount, int wifiCount, int cellCount) {
+        final EvictedCounts c = mEvictedCounts;
+        mEvictedCounts = new EvictedCounts(c.mReportCount + reportCount, c.mWifiCount + wifiCount,
+                c.mCellCount + cellCount);
+    }
 
-            if (other.mFiles != null) {
-                mFiles = other.mFiles.clone();
-            }
+    /* Does not lock or allocate, safe to call from the UI thread. The counts are updated as reports are
+     * inserted, flushed and deleted. The byte count of the reports still in memory is an estimate, based on the
+     * compression ratio of the last batch that was zipped. */
+    public QueuedCounts getQueuedCounts() {
+        return mQueuedCounts;
+    }
 
-            mReportCount = other.mReportCount;
-            mWifiCount = other.mWifiCount;
-            mCellCount = other.mCellCount;
-            mFilesOnDiskBytes = other.mFilesOnDiskBytes;
+    // Called with mDiskLock held, after the journal or the send buffer changed.
+    private void updateQueuedCounts() {
+        int reportCount = mJournal.getReportCount();
+        int wifiCount = mJournal.getWifiCount();
+        int cellCount = mJournal.getCellCount();
+        long byteLength = mJournal.getLiveBytes();
+        if (mCurrentReportsSendBuffer != null) {
+            reportCount += mCurrentReportsSendBuffer.reportCount;
+            wifiCount += mCurrentReportsSendBuffer.wifiCount;
+            cellCount += mCurrentReportsSendBuffer.cellCount;
+            byteLength += mCurrentReportsSendBufferStored.length;
         }
+        final QueuedCounts diskCounts = new QueuedCounts(reportCount, wifiCount, cellCount, byteLength);
+        synchronized (mMemoryLock) {
+            mDiskQueuedCounts = diskCounts;
+            publishQueuedCounts();
+        }
+    }
 
-        void update(File directory) {
-            mFiles = directory.listFiles();
-            if (mFiles == null) {
-                return;
-            }
-
-            if (AppGlobals.isDebug) {
-                for (File f : mFiles) {
-                    Log.d("StumblerFiles", f.getName());
-                }
-            }
-
-            mFilesOnDiskBytes = mReportCount = mWifiCount = mCellCount = 0;
-            for (File f : mFiles) {
-                mReportCount += (int) getLongFromFilename(f.getName(), SEP_REPORT_COUNT);
-                mWifiCount += (int) getLongFromFilename(f.getName(), SEP_WIFI_COUNT);
-                mCellCount += (int) getLongFromFilename(f.getName(), SEP_CELL_COUNT);
-                mFilesOnDiskBytes += f.length();
-            }
+    // Called with mMemoryLock held, after the memory buffer or the pending batches changed.
+    private void publishQueuedCounts() {
+        final QueuedCounts disk = mDiskQueuedCounts;
+        int reportCount = disk.mReportCount + mCurrentReports.getReportCount();
+        int wifiCount = disk.mWifiCount + mCurrentReports.getWifiCount();
+        int cellCount = disk.mCellCount + mCurrentReports.getCellCount();
+        long byteLength = disk.mBytes;
+        if (mCurrentReports.getReportCount() > 0) {
+            byteLength += (long) (mCurrentReports.getUncompressedBytes() * mCompressionRatio);
+        }
+        for (PendingBatch batch : mPendingBatches) {
+            reportCount += batch.reportCount;
+            wifiCount += batch.wifiCount;
+            cellCount += batch.cellCount;
+            byteLength += batch.data.length;
         }
+        mQueuedCounts = new QueuedCounts(reportCount, wifiCount, cellCount, byteLength);
     }
 
     public static class ReportBatch {
@@ -173,37 +256,64 @@ public class DataStorageManager {
         public final int reportCount;
         public final int wifiCount;
         public final int cellCount;
+        // The stored batches merged into this one, see delete(ReportBatch)
+        final String[] sourceNames;
 
         public ReportBatch(String filename, byte[] data, int reportCount, int wifiCount, int cellCount) {
+            this(filename, new String[] { filename }, data, reportCount, wifiCount, cellCount);
+        }
+
+        ReportBatch(String filename, String[] sourceNames, byte[] data, int reportCount, int wifiCount, int cellCount) {
             this.filename = filename;
+            this.sourceNames = sourceNames;
             this.data = data;
             this.reportCount = reportCount;
             this.wifiCount = wifiCount;
             this.cellCount = cellCount;
         }
+
+        /* The reports that were in memory, see getFirstBatch(). */
+        public boolean isSendBuffer() {
+            // do not use .equals()
+            //noinspection StringEquality
+            return filename == MEMORY_BUFFER_NAME;
+        }
     }
 
-    private static class ReportBatchBuilder {
-        public final ArrayList<String> reports = new ArrayList<String>();
-        public int wifiCount;
-        public int cellCount;
+    private static class PendingBatch {
+        final byte[] data;
+        final int format;
+        // See WriteAheadLog.sealAsPending()
+        final int walId;
+        final int reportCount;
+        final int wifiCount;
+        final int cellCount;
+
+        PendingBatch(byte[] data, int format, int walId, int reportCount, int wifiCount, int cellCount) {
+            this.data = data;
+            this.format = format;
+            this.walId = walId;
+            this.reportCount = reportCount;
+            this.wifiCount = wifiCount;
+            this.cellCount = cellCount;
+        }
     }
 
     private static class ReportBatchIterator {
-        public ReportBatchIterator(ReportFileList list) {
-            fileList = new ReportFileList(list);
+        public ReportBatchIterator(ReportJournal.Entry[] entries) {
+            this.entries = entries;
         }
 
         static final int BATCH_INDEX_FOR_MEM_BUFFER = -1;
         public int currentIndex = BATCH_INDEX_FOR_MEM_BUFFER;
-        public final ReportFileList fileList;
+        public final ReportJournal.Entry[] entries;
     }
 
     public interface StorageIsEmptyTracker {
         public void notifyStorageStateEmpty(boolean isEmpty);
     }
 
-    private String getStorageDir(Context c) {
+    private static String getStorageDir(Context c) {
         File dir = null;
         if (AppGlobals.isDebug) {
             // in debug, put files in public location
@@ -234,8 +344,16 @@ public class DataStorageManager {
 
     public static synchronized DataStorageManager createGlobalInstance(Context context, StorageIsEmptyTracker tracker,
                                                          long maxBytesStoredOnDisk, int maxWeeksDataStored) {
+        return createGlobalInstance(context, tracker, maxBytesStoredOnDisk, maxWeeksDataStored, false);
+    }
+
+    /* useCompactStorage: store new reports in the compact binary format instead of JSON. */
+    public static synchronized DataStorageManager createGlobalInstance(Context context, StorageIsEmptyTracker tracker,
+                                                         long maxBytesStoredOnDisk, int maxWeeksDataStored,
+                                                         boolean useCompactStorage) {
         if (sInstance == null) {
-            sInstance = new DataStorageManager(context, tracker, maxBytesStoredOnDisk, maxWeeksDataStored);
+            sInstance = new DataStorageManager(context, tracker, maxBytesStoredOnDisk, maxWeeksDataStored,
+                    useCompactStorage ? ReportBatchWriter.FORMAT_COMPACT : ReportBatchWriter.FORMAT_JSON);
         }
         return sInstance;
     }
@@ -245,21 +363,209 @@ public class DataStorageManager {
     }
 
     private DataStorageManager(Context c, StorageIsEmptyTracker tracker,
-                               long maxBytesStoredOnDisk, int maxWeeksDataStored) {
+                               long maxBytesStoredOnDisk, int maxWeeksDataStored, int format) {
+        this(new File(getStorageDir(c)), tracker, maxBytesStoredOnDisk, maxWeeksDataStored, format);
+    }
+
+    DataStorageManager(File baseDir, StorageIsEmptyTracker tracker,
+                       long maxBytesStoredOnDisk, int maxWeeksDataStored, int format) {
+        mCurrentReports = new ReportBatchWriter(format);
         mMaxBytesDiskStorage = maxBytesStoredOnDisk;
         mMaxWeeksStored = maxWeeksDataStored;
         mTracker = tracker;
-        final String baseDir = getStorageDir(c);
-        mStatsFile = new File(baseDir, "upload_stats.ini");
-        mReportsDir = new File(baseDir + "/reports");
+        mSyncStatsFile = new SyncStatsFile(baseDir);
+        mSyncStats = mSyncStatsFile.load();
+        mReportsDir = new File(baseDir, "reports");
         if (!mReportsDir.exists()) {
             mReportsDir.mkdirs();
         }
-        mFileList = new ReportFileList();
-        mFileList.update(mReportsDir);
+        mJournal = new ReportJournal(mReportsDir, Math.min(ReportJournal.DEFAULT_MAX_SEGMENT_BYTES,
+                Math.max(MIN_SEGMENT_BYTES, maxBytesStoredOnDisk / SEGMENTS_PER_MAX_BYTES)));
+        migrateReportFiles();
+        updateQueuedCounts();
+
+        mFlushScheduler = new FlushScheduler(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            saveCurrentReportsToDisk();
+                        } catch (IOException ex) {
+                            Log.e(LOG_TAG, "Exception flushing memory buffer to disk", ex);
+                        }
+                    }
+                },
+                MAX_REPORTS_IN_MEMORY, DEFAULT_FLUSH_IDLE_MS, DEFAULT_FLUSH_MAX_AGE_MS,
+                FlushScheduler.SYSTEM_CLOCK, new FlushScheduler.SingleThreadTaskScheduler());
+
+        // Recover the reports that were in memory when the process last died
+        // Reports logged in the other format (compact storage was switched on or off) are saved as their own batch.
+        mWriteAheadLog = new WriteAheadLog(mReportsDir);
+        final ReportBatchWriter otherFormat = new ReportBatchWriter(format == ReportBatchWriter.FORMAT_JSON ?
+                ReportBatchWriter.FORMAT_COMPACT : ReportBatchWriter.FORMAT_JSON);
+        final int replayed;
+        try {
+            replayed = mWriteAheadLog.replay(new WriteAheadLog.Replayer() {
+                @Override
+                public boolean replay(int format, byte[] report, int wifiCount, int cellCount) {
+                    if (format == mCurrentReports.getFormat()) {
+                        mCurrentReports.add(report, report.length, wifiCount, cellCount);
+                        return true;
+                    }
+                    otherFormat.add(report, report.length, wifiCount, cellCount);
+                    return false;
+                }
+            });
+            if (otherFormat.getReportCount() > 0) {
+                try {
+                    saveToDisk(otherFormat);
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "Error saving recovered reports", ex);
+                }
+            }
+        } finally {
+            otherFormat.end();
+        }
+        if (mCurrentReports.getReportCount() > 0) {
+            Log.d(LOG_TAG, "Recovered reports from write-ahead log: " + replayed);
+            mFlushScheduler.onInsert();
+            updateQueuedCounts();
+        }
+    }
+
+    /* See RetentionPolicies for the choices. */
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        mDiskLock.lock();
+        try {
+            mRetentionPolicy = policy;
+        } finally {
+            unlockDisk();
+        }
+    }
+
+    /* Stored batches are merged into upload batches up to this size (1 for no merging). */
+    public void setUploadBatchTargetBytes(long bytes) {
+        mDiskLock.lock();
+        try {
+            mUploadBatchTargetBytes = bytes;
+        } finally {
+            unlockDisk();
+        }
+    }
+
+    // Releases mDiskLock, after writing the pending batches to the journal. An insert that hands off a batch
+    // while the lock is held does not wait for it, so the batch is written here, or by the insert itself if it
+    // gets the lock after this thread has released it.
+    private void unlockDisk() {
+        while (true) {
+            try {
+                writePendingBatches();
+            } catch (IOException ex) {
+                // The batches stay pending, and are logged in the write-ahead log
+                Log.e(LOG_TAG, "Error writing pending batches", ex);
+                mDiskLock.unlock();
+                return;
+            }
+            mDiskLock.unlock();
+            if (!hasPendingBatches() || !mDiskLock.tryLock()) {
+                return;
+            }
+        }
+    }
+
+    // Never waits for mDiskLock.
+    private void drainPendingBatches() {
+        if (hasPendingBatches() && mDiskLock.tryLock()) {
+            unlockDisk();
+        }
     }
 
-    public synchronized int getMaxWeeksStored() {
+    private boolean hasPendingBatches() {
+        synchronized (mMemoryLock) {
+            return !mPendingBatches.isEmpty();
+        }
+    }
+
+    // Called with mDiskLock held. The batches are written in the order they were handed off.
+    private void writePendingBatches() throws IOException {
+        while (true) {
+            final PendingBatch batch;
+            synchronized (mMemoryLock) {
+                batch = mPendingBatches.peek();
+            }
+            if (batch == null) {
+                return;
+            }
+            saveToDisk(batch.data, batch.format, batch.reportCount, batch.wifiCount, batch.cellCount);
+            mWriteAheadLog.discardPending(batch.walId);
+            synchronized (mMemoryLock) {
+                mPendingBatches.remove();
+                updateQueuedCounts();
+            }
+        }
+    }
+
+    // Called with mMemoryLock held. Moves the memory buffer to mPendingBatches.
+    private void handOffCurrentReports() {
+        final int reportCount = mCurrentReports.getReportCount();
+        if (reportCount < 1) {
+            return;
+        }
+        final int wifiCount = mCurrentReports.getWifiCount();
+        final int cellCount = mCurrentReports.getCellCount();
+        final byte[] data = finishCurrentReports();
+        mPendingBatches.add(new PendingBatch(data, mCurrentReports.getFormat(), mWriteAheadLog.sealAsPending(),
+                reportCount, wifiCount, cellCount));
+        publishQueuedCounts();
+    }
+
+    /* Configure when the in-memory reports are written to disk: once maxReports are buffered, after idleMs
+     * without a new report, or once the oldest buffered report is maxAgeMs old. */
+    public void setMemoryFlushThresholds(int maxReports, long idleMs, long maxAgeMs) {
+        mFlushScheduler.setThresholds(maxReports, idleMs, maxAgeMs);
+    }
+
+    // Move batch files written by older versions into the journal, oldest first.
+    private void migrateReportFiles() {
+        final File[] files = mReportsDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final ArrayList<File> legacy = new ArrayList<File>();
+        for (File f : files) {
+            final String name = f.getName();
+            if (name.startsWith(FILENAME_PREFIX) && name.endsWith(".gz")) {
+                legacy.add(f);
+            }
+        }
+        Collections.sort(legacy, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = getLongFromFilename(lhs.getName(), SEP_TIME_MS);
+                final long r = getLongFromFilename(rhs.getName(), SEP_TIME_MS);
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+
+        for (File f : legacy) {
+            final String name = f.getName();
+            try {
+                mJournal.append(readFile(f),
+                        getLongFromFilename(name, SEP_TIME_MS),
+                        (int) getLongFromFilename(name, SEP_REPORT_COUNT),
+                        (int) getLongFromFilename(name, SEP_WIFI_COUNT),
+                        (int) getLongFromFilename(name, SEP_CELL_COUNT));
+                f.delete();
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "Error moving " + name + " to the journal", ex);
+            } catch (NumberFormatException ex) {
+                Log.w(LOG_TAG, "Deleting unrecognized file: " + name);
+                f.delete();
+            }
+        }
+    }
+
+    public int getMaxWeeksStored() {
         return mMaxWeeksStored;
     }
 
@@ -274,23 +580,70 @@ public class DataStorageManager {
         }
     }
 
-    public synchronized boolean isDirEmpty() {
-        return (mFileList.mFiles == null || mFileList.mFiles.length < 1);
+    /* Pending batches count as on disk, they are written to the journal as soon as it is not busy. */
+    public boolean isDirEmpty() {
+        if (hasPendingBatches()) {
+            return false;
+        }
+        mDiskLock.lock();
+        try {
+            return mJournal.isEmpty();
+        } finally {
+            unlockDisk();
+        }
     }
 
-    /* Pass filename returned from dataToSend() */
-    public synchronized boolean delete(String filename) {
-        // do not use .equals()
-        //noinspection StringEquality
-        if (filename == MEMORY_BUFFER_NAME) {
-            mCurrentReportsSendBuffer = null;
-            return true;
+    /* Deletes an uploaded batch, and all the stored batches merged into it. */
+    public boolean delete(ReportBatch batch) {
+        if (batch.isSendBuffer()) {
+            return delete(batch.filename);
+        }
+        mDiskLock.lock();
+        try {
+            boolean isDeleted = true;
+            for (String name : batch.sourceNames) {
+                try {
+                    isDeleted &= mJournal.remove(name);
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "Error deleting " + name, ex);
+                    isDeleted = false;
+                }
+            }
+            updateQueuedCounts();
+            return isDeleted;
+        } finally {
+            unlockDisk();
+            notifyIfStorageStateChanged();
         }
+    }
+
+    /* Pass filename returned from dataToSend(). Only deletes one stored batch, use delete(ReportBatch)
+     * for the batches returned by getNextBatch(). */
+    public boolean delete(String filename) {
+        mDiskLock.lock();
+        try {
+            // do not use .equals()
+            //noinspection StringEquality
+            if (filename == MEMORY_BUFFER_NAME) {
+                mCurrentReportsSendBuffer = null;
+                mCurrentReportsSendBufferStored = null;
+                mWriteAheadLog.discardSendBuffer();
+                updateQueuedCounts();
+                return true;
+            }
 
-        final File file = new File(mReportsDir, filename);
-        final boolean ok = file.delete();
-        mFileList.update(mReportsDir);
-        return ok;
+            try {
+                return mJournal.remove(filename);
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "Error deleting " + filename, ex);
+                return false;
+            } finally {
+                updateQueuedCounts();
+            }
+        } finally {
+            unlockDisk();
+            notifyIfStorageStateChanged();
+        }
     }
 
     private static long getLongFromFilename(String name, String separator) {
@@ -304,229 +657,467 @@ public class DataStorageManager {
 
     /* return name of file used, or memory buffer sentinel value.
      * The return value is used to delete the file/buffer later. */
-    public synchronized ReportBatch getFirstBatch() throws IOException {
-        final boolean dirEmpty = isDirEmpty();
-        final int currentReportsCount = mCurrentReports.reports.size();
+    public ReportBatch getFirstBatch() throws IOException {
+        mDiskLock.lock();
+        try {
+            writePendingBatches();
+
+            final int currentReportsCount;
+            final int wifiCount;
+            final int cellCount;
+            final byte[] data;
+            synchronized (mMemoryLock) {
+                currentReportsCount = mCurrentReports.getReportCount();
+                if (mJournal.isEmpty() && currentReportsCount < 1) {
+                    return null;
+                }
+                wifiCount = mCurrentReports.getWifiCount();
+                cellCount = mCurrentReports.getCellCount();
+                if (currentReportsCount > 0) {
+                    data = finishCurrentReports();
+                    mWriteAheadLog.sealAsSendBuffer();
+                } else {
+                    data = null;
+                }
+            }
+
+            mReportBatchIterator = new ReportBatchIterator(mJournal.snapshot());
+
+            if (currentReportsCount > 0) {
+                final String filename = MEMORY_BUFFER_NAME;
+                mCurrentReportsSendBufferStored = data;
+                final ReportBatch result = new ReportBatch(filename, toJSONBatch(data, mCurrentReports.getFormat()),
+                        currentReportsCount, wifiCount, cellCount);
+                mCurrentReportsSendBuffer = result;
+                updateQueuedCounts();
+                return result;
+            } else {
+                return nextBatch();
+            }
+        } finally {
+            unlockDisk();
+        }
+    }
+
+    // Returns the gzipped batch and clears mCurrentReports. Also updates the compression ratio
+    // used to estimate the size of the in-memory reports.
+    private byte[] finishCurrentReports() {
+        final long uncompressedBytes = mCurrentReports.getUncompressedBytes();
+        final byte[] bytes = mCurrentReports.finish();
+        mCompressionRatio = bytes.length / (float) uncompressedBytes;
+        mFlushScheduler.onFlushed();
+        return bytes;
+    }
+
+    public ReportBatch getNextBatch() throws IOException {
+        mDiskLock.lock();
+        try {
+            return nextBatch();
+        } finally {
+            unlockDisk();
+        }
+    }
 
-        if (dirEmpty && currentReportsCount < 1) {
+    // Merges the next stored batches, oldest first, up to mUploadBatchTargetBytes.
+    private ReportBatch nextBatch() throws IOException {
+        if (mReportBatchIterator == null) {
             return null;
         }
 
-        mReportBatchIterator = new ReportBatchIterator(mFileList);
+        final ReportJournal.Entry[] entries = mReportBatchIterator.entries;
+        final ArrayList<ReportJournal.Entry> group = new ArrayList<ReportJournal.Entry>();
+        final ArrayList<byte[]> groupData = new ArrayList<byte[]>();
+        long groupBytes = 0;
+        int groupReportCount = 0;
+        while (mReportBatchIterator.currentIndex + 1 < entries.length) {
+            // skip batches deleted since the iteration started
+            final ReportJournal.Entry entry = mJournal.get(entries[mReportBatchIterator.currentIndex + 1].name);
+            if (entry != null && !group.isEmpty() &&
+                (groupBytes + entry.length > mUploadBatchTargetBytes ||
+                 groupReportCount + entry.reportCount > MAX_REPORTS_PER_UPLOAD_BATCH)) {
+                break;
+            }
+            mReportBatchIterator.currentIndex++;
+            if (entry == null) {
+                continue;
+            }
 
-        if (currentReportsCount > 0) {
-            final String filename = MEMORY_BUFFER_NAME;
-            final byte[] data = Zipper.zipData(finalizeReports(mCurrentReports.reports).getBytes());
-            final int wifiCount = mCurrentReports.wifiCount;
-            final int cellCount = mCurrentReports.cellCount;
-            clearCurrentReports();
-            final ReportBatch result = new ReportBatch(filename, data, currentReportsCount, wifiCount, cellCount);
-            mCurrentReportsSendBuffer = result;
-            return result;
-        } else {
-            return getNextBatch();
+            final byte[] data = readJSONBatch(entry);
+            if (data == null) {
+                continue;
+            }
+            group.add(entry);
+            groupData.add(data);
+            groupBytes += entry.length;
+            groupReportCount += entry.reportCount;
+        }
+
+        if (group.isEmpty()) {
+            return null;
         }
+        if (group.size() == 1) {
+            final ReportJournal.Entry entry = group.get(0);
+            return new ReportBatch(entry.name, groupData.get(0), entry.reportCount, entry.wifiCount, entry.cellCount);
+        }
+        return mergeBatches(group, groupData);
     }
 
-    private void clearCurrentReports() {
-        mCurrentReports.reports.clear();
-        mCurrentReports.wifiCount = mCurrentReports.cellCount = 0;
+    /* Reads back the stored batches merged into a batch returned by getNextBatch(), one batch each, so they
+     * can be uploaded separately. Returns an empty list if the batch was not merged. */
+    public List<ReportBatch> split(ReportBatch batch) throws IOException {
+        final ArrayList<ReportBatch> parts = new ArrayList<ReportBatch>(batch.sourceNames.length);
+        if (batch.sourceNames.length < 2) {
+            return parts;
+        }
+        mDiskLock.lock();
+        try {
+            for (String name : batch.sourceNames) {
+                // skip batches deleted since the merge
+                final ReportJournal.Entry entry = mJournal.get(name);
+                if (entry == null) {
+                    continue;
+                }
+                final byte[] data = readJSONBatch(entry);
+                if (data != null) {
+                    parts.add(new ReportBatch(entry.name, data, entry.reportCount, entry.wifiCount, entry.cellCount));
+                }
+            }
+            return parts;
+        } finally {
+            unlockDisk();
+        }
     }
 
-    public synchronized ReportBatch getNextBatch() throws IOException {
-        if (mReportBatchIterator == null) {
+    // Returns null if the batch was dropped: a corrupt or undecodable batch would otherwise block the upload
+    // of the batches after it. Other read errors are passed on, the batch may be readable on the next attempt.
+    private byte[] readJSONBatch(ReportJournal.Entry entry) throws IOException {
+        final byte[] stored;
+        try {
+            stored = mJournal.read(entry);
+        } catch (ReportJournal.CorruptBatchException ex) {
+            dropUnreadableBatch(entry, ex);
             return null;
         }
-
-        mReportBatchIterator.currentIndex++;
-        if (mReportBatchIterator.currentIndex < 0 ||
-            mReportBatchIterator.currentIndex > mReportBatchIterator.fileList.mFiles.length - 1) {
+        try {
+            return toJSONBatch(stored, entry.format);
+        } catch (IOException ex) {
+            dropUnreadableBatch(entry, ex);
             return null;
         }
+    }
 
-        final File f = mReportBatchIterator.fileList.mFiles[mReportBatchIterator.currentIndex];
-        final String filename = f.getName();
-        final int reportCount = (int) getLongFromFilename(f.getName(), SEP_REPORT_COUNT);
-        final int wifiCount = (int) getLongFromFilename(f.getName(), SEP_WIFI_COUNT);
-        final int cellCount = (int) getLongFromFilename(f.getName(), SEP_CELL_COUNT);
-        final byte[] data = readFile(f);
-        return new ReportBatch(filename, data, reportCount, wifiCount, cellCount);
+    private ReportBatch mergeBatches(List<ReportJournal.Entry> group, List<byte[]> groupData) throws IOException {
+        if (mJsonBatchWriter == null) {
+            mJsonBatchWriter = new ReportBatchWriter();
+        }
+        mJsonBatchWriter.reset();
+        final ArrayList<String> names = new ArrayList<String>(group.size());
+        for (int i = 0; i < group.size(); i++) {
+            final ReportJournal.Entry entry = group.get(i);
+            try {
+                mJsonBatchWriter.addItems(groupData.get(i), entry.reportCount, entry.wifiCount, entry.cellCount);
+            } catch (IOException ex) {
+                dropUnreadableBatch(entry, ex);
+                continue;
+            }
+            names.add(entry.name);
+        }
+
+        final int reportCount = mJsonBatchWriter.getReportCount();
+        final int wifiCount = mJsonBatchWriter.getWifiCount();
+        final int cellCount = mJsonBatchWriter.getCellCount();
+        final byte[] data = mJsonBatchWriter.finish();
+        if (names.isEmpty()) {
+            return nextBatch();
+        }
+        return new ReportBatch(names.get(0) + "+" + (names.size() - 1), names.toArray(new String[names.size()]),
+                data, reportCount, wifiCount, cellCount);
     }
 
-    private File createFile(int reportCount, int wifiCount, int cellCount) {
-        final long time = System.currentTimeMillis();
-        final String name = FILENAME_PREFIX +
-                      SEP_TIME_MS + time +
-                      SEP_REPORT_COUNT + reportCount +
-                      SEP_WIFI_COUNT + wifiCount +
-                      SEP_CELL_COUNT + cellCount + ".gz";
-        return new File(mReportsDir, name);
+    private void dropUnreadableBatch(ReportJournal.Entry entry, IOException ex) throws IOException {
+        Log.w(LOG_TAG, "Dropping unreadable batch " + entry.name + ": " + ex);
+        mJournal.remove(entry.name);
+        updateQueuedCounts();
     }
 
-    public synchronized long getOldestBatchTimeMs() {
-        if (isDirEmpty()) {
-            return 0;
+    // Compact batches are turned into MLS JSON here, when they are about to be uploaded.
+    private byte[] toJSONBatch(byte[] data, int format) throws IOException {
+        if (format != ReportBatchWriter.FORMAT_COMPACT) {
+            return data;
         }
+        if (mJsonBatchWriter == null) {
+            mJsonBatchWriter = new ReportBatchWriter();
+        }
+        return CompactReportCodec.toJSONBatch(data, mJsonBatchWriter);
+    }
 
-        long oldest = Long.MAX_VALUE;
-        for (File f : mFileList.mFiles) {
-            final long t = getLongFromFilename(f.getName(), SEP_TIME_MS);
-            if (t < oldest) {
-                oldest = t;
-            }
+    public long getOldestBatchTimeMs() {
+        mDiskLock.lock();
+        try {
+            return mJournal.getOldestTimeMs();
+        } finally {
+            unlockDisk();
+        }
+    }
+
+    public void saveCurrentReportsSendBufferToDisk() throws IOException {
+        mDiskLock.lock();
+        try {
+            saveSendBufferToDisk();
+        } finally {
+            unlockDisk();
         }
-        return oldest;
     }
 
-    public synchronized void saveCurrentReportsSendBufferToDisk() throws IOException {
+    private void saveSendBufferToDisk() throws IOException {
         if (mCurrentReportsSendBuffer == null || mCurrentReportsSendBuffer.reportCount < 1) {
             return;
         }
 
-        saveToDisk(mCurrentReportsSendBuffer.data,
+        saveToDisk(mCurrentReportsSendBufferStored,
+                   mCurrentReports.getFormat(),
                    mCurrentReportsSendBuffer.reportCount,
                    mCurrentReportsSendBuffer.wifiCount,
                    mCurrentReportsSendBuffer.cellCount);
         mCurrentReportsSendBuffer = null;
+        mCurrentReportsSendBufferStored = null;
+        mWriteAheadLog.discardSendBuffer();
+        updateQueuedCounts();
     }
 
-    private void saveToDisk(byte[] bytes, int reportCount, int wifiCount, int cellCount)
+    private void saveToDisk(byte[] bytes, int format, int reportCount, int wifiCount, int cellCount)
       throws IOException {
-        if (mFileList.mFilesOnDiskBytes > mMaxBytesDiskStorage) {
+        if (mJournal.getBytesOnDisk() + bytes.length > mMaxBytesDiskStorage && !makeRoom(bytes.length)) {
+            countEvicted(reportCount, wifiCount, cellCount);
             return;
         }
 
-        final FileOutputStream fos = new FileOutputStream(createFile(reportCount, wifiCount, cellCount));
+        mJournal.append(bytes, format, 0, System.currentTimeMillis(), reportCount, wifiCount, cellCount);
+    }
+
+    private boolean makeRoom(long newBatchBytes) {
         try {
-            fos.write(bytes);
-        } finally {
-            fos.close();
+            if (!mRetentionPolicy.makeRoom(mStore, newBatchBytes, mMaxBytesDiskStorage)) {
+                return false;
+            }
+            // The policy counts the live batches, the segments still hold the removed ones
+            mJournal.reclaim(mMaxBytesDiskStorage - newBatchBytes);
+            return true;
+        } catch (IOException ex) {
+            // Going over the cap for a while is better than losing the new reports
+            Log.e(LOG_TAG, "Error applying the retention policy", ex);
+            return true;
         }
-        mFileList.update(mReportsDir);
     }
 
-    private String finalizeReports(ArrayList<String> reports) {
-        final String kPrefix = "{\"items\":[";
-        final String kSuffix = "]}";
-        final StringBuilder sb = new StringBuilder(kPrefix);
-        String sep = "";
-        final String separator = ",";
-        if (reports != null) {
-            for(String s: reports) {
-                sb.append(sep).append(s);
-                sep = separator;
+    // The journal, as seen by the RetentionPolicy. Only used with mDiskLock held.
+    private class JournalStore implements ReportStore {
+        private final CompactReportCodec mReplaceCodec = new CompactReportCodec();
+
+        @Override
+        public Batch[] getBatches() {
+            final ReportJournal.Entry[] entries = mJournal.snapshot();
+            final Batch[] batches = new Batch[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                final ReportJournal.Entry e = entries[i];
+                batches[i] = new Batch(e.name, e.timeMs, e.reportCount, e.wifiCount, e.cellCount, e.length,
+                        (e.flags & ReportJournal.FLAG_RECOMPACTED) != 0);
             }
+            Arrays.sort(batches, new Comparator<Batch>() {
+                @Override
+                public int compare(Batch lhs, Batch rhs) {
+                    return (lhs.timeMs < rhs.timeMs) ? -1 : ((lhs.timeMs == rhs.timeMs) ? 0 : 1);
+                }
+            });
+            return batches;
         }
 
-        final String result = sb.append(kSuffix).toString();
-        if (AppGlobals.isDebug) {
-            Log.d(LOG_TAG, result);
+        @Override
+        public long getLiveBytes() {
+            return mJournal.getLiveBytes();
         }
-        return result;
-    }
 
-    public synchronized void saveCurrentReportsToDisk() throws IOException {
-        saveCurrentReportsSendBufferToDisk();
-        if (mCurrentReports.reports.size() < 1) {
-            return;
+        @Override
+        public List<JSONObject> readReports(Batch batch) throws IOException {
+            final ReportJournal.Entry entry = mJournal.get(batch.name);
+            if (entry == null) {
+                return Collections.emptyList();
+            }
+            try {
+                return CompactReportCodec.decodeBatch(mJournal.read(entry), entry.format);
+            } catch (IOException ex) {
+                Log.w(LOG_TAG, "Removing unreadable batch " + batch.name + ": " + ex);
+                remove(batch);
+                return Collections.emptyList();
+            }
         }
-        final byte[] bytes = Zipper.zipData(finalizeReports(mCurrentReports.reports).getBytes());
-        saveToDisk(bytes, mCurrentReports.reports.size(), mCurrentReports.wifiCount, mCurrentReports.cellCount);
-        clearCurrentReports();
-    }
 
-    public synchronized void insert(String report, int wifiCount, int cellCount) throws IOException {
-        notifyStorageIsEmpty(false);
-
-        if (mFlushMemoryBuffersToDiskTimer != null) {
-            mFlushMemoryBuffersToDiskTimer.cancel();
-            mFlushMemoryBuffersToDiskTimer = null;
+        @Override
+        public void remove(Batch batch) throws IOException {
+            if (mJournal.remove(batch.name)) {
+                countEvicted(batch.reportCount, batch.wifiCount, batch.cellCount);
+            }
         }
 
-        mCurrentReports.reports.add(report);
-        mCurrentReports.wifiCount += wifiCount;
-        mCurrentReports.cellCount += cellCount;
+        @Override
+        public void replace(List<Batch> batches, List<JSONObject> reports, boolean useBestCompression)
+          throws IOException {
+            final ReportBatchWriter writer = new ReportBatchWriter(mCurrentReports.getFormat(),
+                    useBestCompression ? Deflater.BEST_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+            long timeMs = Long.MAX_VALUE;
+            for (Batch batch : batches) {
+                timeMs = Math.min(timeMs, batch.timeMs);
+            }
 
-        if (mCurrentReports.reports.size() >= MAX_REPORTS_IN_MEMORY) {
-            // save to disk
-            saveCurrentReportsToDisk();
-        } else {
-            // Schedule a timer to flush to disk after a few mins.
-            // If collection stops and wifi not available for uploading, the memory buffer is flushed to disk.
-            final int kMillis = 1000 * 60 * 3;
-            mFlushMemoryBuffersToDiskTimer = new Timer();
-            mFlushMemoryBuffersToDiskTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    try {
-                        saveCurrentReportsToDisk();
-                    } catch (IOException ex) {
-                        Log.e(LOG_TAG, "mFlushMemoryBuffersToDiskTimer exception", ex);
+            final int reportCount;
+            final int wifiCount;
+            final int cellCount;
+            try {
+                for (JSONObject report : reports) {
+                    final JSONArray wifis = report.optJSONArray(DataStorageContract.ReportsColumns.WIFI);
+                    final JSONArray cells = report.optJSONArray(DataStorageContract.ReportsColumns.CELL);
+                    final int reportWifis = (wifis == null) ? 0 : wifis.length();
+                    final int reportCells = (cells == null) ? 0 : cells.length();
+                    if (writer.getFormat() == ReportBatchWriter.FORMAT_COMPACT) {
+                        writer.add(mReplaceCodec.getBuffer(), mReplaceCodec.encode(report), reportWifis, reportCells);
+                    } else {
+                        writer.add(report.toString(), reportWifis, reportCells);
                     }
                 }
-            }, kMillis);
+
+                reportCount = writer.getReportCount();
+                wifiCount = writer.getWifiCount();
+                cellCount = writer.getCellCount();
+                if (reportCount > 0) {
+                    mJournal.append(writer.finish(), writer.getFormat(),
+                            useBestCompression ? ReportJournal.FLAG_RECOMPACTED : 0,
+                            timeMs, reportCount, wifiCount, cellCount);
+                }
+            } catch (JSONException ex) {
+                throw new IOException(ex.toString());
+            } finally {
+                writer.end();
+            }
+
+            // Counted as evicted only once the replacement is written
+            int evictedReports = -reportCount;
+            int evictedWifis = -wifiCount;
+            int evictedCells = -cellCount;
+            for (Batch batch : batches) {
+                if (mJournal.remove(batch.name)) {
+                    evictedReports += batch.reportCount;
+                    evictedWifis += batch.wifiCount;
+                    evictedCells += batch.cellCount;
+                }
+            }
+            countEvicted(Math.max(0, evictedReports), Math.max(0, evictedWifis), Math.max(0, evictedCells));
         }
     }
 
-    public synchronized Properties readSyncStats() throws IOException {
-        if (!mStatsFile.exists()) {
-            return new Properties();
-        }
+    private void saveToDisk(ReportBatchWriter writer) throws IOException {
+        final int reportCount = writer.getReportCount();
+        final int wifiCount = writer.getWifiCount();
+        final int cellCount = writer.getCellCount();
+        saveToDisk(writer.finish(), writer.getFormat(), reportCount, wifiCount, cellCount);
+    }
 
-        final FileInputStream input = new FileInputStream(mStatsFile);
+    /* Writes both in-memory buffers to the journal, waiting for the disk side if it is busy. */
+    public void saveCurrentReportsToDisk() throws IOException {
+        synchronized (mMemoryLock) {
+            handOffCurrentReports();
+        }
+        mDiskLock.lock();
         try {
-            final Properties props = new Properties();
-            props.load(input);
-            return props;
+            saveSendBufferToDisk();
+            writePendingBatches();
         } finally {
-            input.close();
+            unlockDisk();
+        }
+    }
+
+    /* Stores the bundle, as its MLS JSON (UTF-8, copied before this returns) or as a compact record,
+     * depending on the storage format. */
+    public void insert(StumblerBundle bundle, byte[] mlsJson, int length, int wifiCount, int cellCount)
+      throws IOException {
+        synchronized (mMemoryLock) {
+            if (mCurrentReports.getFormat() == ReportBatchWriter.FORMAT_COMPACT) {
+                insert(ReportBatchWriter.FORMAT_COMPACT, mCodec.getBuffer(), mCodec.encode(bundle), wifiCount, cellCount);
+            } else {
+                insert(ReportBatchWriter.FORMAT_JSON, mlsJson, length, wifiCount, cellCount);
+            }
+        }
+        notifyIfStorageStateChanged();
+        drainPendingBatches();
+    }
+
+    // Called with mMemoryLock held.
+    private void insert(int format, byte[] report, int length, int wifiCount, int cellCount) {
+        try {
+            mWriteAheadLog.append(format, report, length, wifiCount, cellCount);
+        } catch (IOException ex) {
+            // The report is still buffered in memory, it is just not crash-safe
+            Log.e(LOG_TAG, "Error appending to write-ahead log", ex);
+        }
+
+        mCurrentReports.add(report, length, wifiCount, cellCount);
+
+        if (mFlushScheduler.isFull(mCurrentReports.getReportCount())) {
+            // written to disk by drainPendingBatches(), or by the thread holding mDiskLock
+            handOffCurrentReports();
+        } else {
+            mFlushScheduler.onInsert();
+            publishQueuedCounts();
         }
     }
 
-    public synchronized void incrementSyncStats(long bytesSent, long reports, long cells, long wifis) throws IOException {
+    /* Does not lock or read the disk, safe to call from the UI thread. */
+    public SyncStats getSyncStats() {
+        return mSyncStats;
+    }
+
+    public void incrementSyncStats(long bytesSent, long reports, long cells, long wifis) throws IOException {
         if (reports + cells + wifis < 1) {
             return;
         }
 
-        final Properties properties = readSyncStats();
-        final long time = System.currentTimeMillis();
-        writeSyncStats(time,
-            Long.parseLong(properties.getProperty(DataStorageContract.Stats.KEY_BYTES_SENT, "0")) + bytesSent,
-            Long.parseLong(properties.getProperty(DataStorageContract.Stats.KEY_OBSERVATIONS_SENT, "0")) + reports,
-            Long.parseLong(properties.getProperty(DataStorageContract.Stats.KEY_CELLS_SENT, "0")) + cells,
-            Long.parseLong(properties.getProperty(DataStorageContract.Stats.KEY_WIFIS_SENT, "0")) + wifis);
+        synchronized (mStatsLock) {
+            final SyncStats s = mSyncStats;
+            writeSyncStats(System.currentTimeMillis(), s.mBytesSent + bytesSent, s.mObservationsSent + reports,
+                    s.mCellsSent + cells, s.mWifisSent + wifis);
+        }
     }
 
     public void writeSyncStats(long time, long bytesSent, long totalObs, long totalCells, long totalWifis) throws IOException {
-        final FileOutputStream out = new FileOutputStream(mStatsFile);
+        synchronized (mStatsLock) {
+            // The counters are kept in memory even if the write fails, the next write includes them
+            mSyncStats = new SyncStats(time, bytesSent, totalObs, totalCells, totalWifis);
+            mSyncStatsFile.write(mSyncStats);
+        }
+    }
+
+    public void deleteAll() {
+        mDiskLock.lock();
         try {
-            final Properties props = new Properties();
-            props.setProperty(DataStorageContract.Stats.KEY_LAST_UPLOAD_TIME, String.valueOf(time));
-            props.setProperty(DataStorageContract.Stats.KEY_BYTES_SENT, String.valueOf(bytesSent));
-            props.setProperty(DataStorageContract.Stats.KEY_OBSERVATIONS_SENT, String.valueOf(totalObs));
-            props.setProperty(DataStorageContract.Stats.KEY_CELLS_SENT, String.valueOf(totalCells));
-            props.setProperty(DataStorageContract.Stats.KEY_WIFIS_SENT, String.valueOf(totalWifis));
-            props.setProperty(DataStorageContract.Stats.KEY_VERSION, String.valueOf(DataStorageContract.Stats.VERSION_CODE));
-            props.store(out, null);
+            mJournal.clear();
+            updateQueuedCounts();
         } finally {
-            out.close();
+            unlockDisk();
+            notifyIfStorageStateChanged();
         }
     }
 
-    public synchronized void deleteAll() {
-        if (mFileList.mFiles == null) {
+    // Tells the tracker when the queue goes from empty to not empty and back, not on every insert.
+    // Called without mMemoryLock or mDiskLock held: the tracker schedules alarms.
+    private void notifyIfStorageStateChanged() {
+        if (mTracker == null) {
             return;
         }
-
-        for (File f : mFileList.mFiles) {
-            f.delete();
-        }
-        mFileList.update(mReportsDir);
-    }
-
-    private void notifyStorageIsEmpty(boolean isEmpty) {
-        if (mTracker != null) {
-            mTracker.notifyStorageStateEmpty(isEmpty);
+        synchronized (mTrackerLock) {
+            final boolean isEmpty = mQueuedCounts.mReportCount < 1;
+            if (isEmpty != mIsTrackerToldEmpty) {
+                mIsTrackerToldEmpty = isEmpty;
+                mTracker.notifyStorageStateEmpty(isEmpty);
+            }
         }
     }
 }
@@ -0,0 +1,136 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/* Decides when the in-memory reports are flushed to disk:
+ *  - when the buffer holds mMaxReports reports (checked by the caller on insert, see isFull()),
+ *  - when no report was inserted for mIdleMs,
+ *  - when the oldest report in the buffer is mMaxAgeMs old, even if reports keep arriving.
+ *
+ * Inserts only move a deadline forward, nothing is cancelled or allocated. A single check task is
+ * scheduled at a time; when it runs before the deadline (the deadline was moved), it re-arms itself
+ * for the remaining time. The flush runs on the scheduler's thread, without this object locked.
+ */
+class FlushScheduler {
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    interface TaskScheduler {
+        void schedule(Runnable task, long delayMs);
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /* One long-lived daemon thread, created on first use. */
+    static class SingleThreadTaskScheduler implements TaskScheduler {
+        private ScheduledExecutorService mExecutor;
+
+        @Override
+        public synchronized void schedule(Runnable task, long delayMs) {
+            if (mExecutor == null) {
+                mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "ReportFlusher");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            mExecutor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable mFlushTask;
+    private final Clock mClock;
+    private final TaskScheduler mScheduler;
+
+    private int mMaxReports;
+    private long mIdleMs;
+    private long mMaxAgeMs;
+
+    // Time of the first insert since the last flush, 0 if nothing is buffered
+    private long mFirstInsertMs;
+    private long mDeadlineMs;
+    private boolean mIsCheckScheduled;
+
+    private final Runnable mCheckDeadline = new Runnable() {
+        @Override
+        public void run() {
+            if (isFlushDue()) {
+                mFlushTask.run();
+            }
+        }
+    };
+
+    FlushScheduler(Runnable flushTask, int maxReports, long idleMs, long maxAgeMs,
+                   Clock clock, TaskScheduler scheduler) {
+        mFlushTask = flushTask;
+        mClock = clock;
+        mScheduler = scheduler;
+        setThresholds(maxReports, idleMs, maxAgeMs);
+    }
+
+    synchronized void setThresholds(int maxReports, long idleMs, long maxAgeMs) {
+        mMaxReports = maxReports;
+        mIdleMs = idleMs;
+        mMaxAgeMs = maxAgeMs;
+    }
+
+    synchronized boolean isFull(int reportCount) {
+        return reportCount >= mMaxReports;
+    }
+
+    synchronized void onInsert() {
+        final long now = mClock.currentTimeMillis();
+        if (mFirstInsertMs == 0) {
+            mFirstInsertMs = now;
+        }
+        mDeadlineMs = Math.min(now + mIdleMs, mFirstInsertMs + mMaxAgeMs);
+
+        if (!mIsCheckScheduled) {
+            mIsCheckScheduled = true;
+            mScheduler.schedule(mCheckDeadline, mDeadlineMs - now);
+        }
+    }
+
+    synchronized void onFlushed() {
+        mFirstInsertMs = 0;
+        mDeadlineMs = 0;
+    }
+
+    synchronized long getDeadlineMs() {
+        return mDeadlineMs;
+    }
+
+    // Called from the scheduled check. Returns true if the flush should run now,
+    // otherwise re-arms the check for the current deadline (if any).
+    private synchronized boolean isFlushDue() {
+        mIsCheckScheduled = false;
+        if (mDeadlineMs == 0) {
+            return false;
+        }
+
+        final long remaining = mDeadlineMs - mClock.currentTimeMillis();
+        if (remaining <= 0) {
+            return true;
+        }
+
+        mIsCheckScheduled = true;
+        mScheduler.schedule(mCheckDeadline, remaining);
+        return false;
+    }
+}
@@ -0,0 +1,387 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.json.JSONException;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.mozilla.mozstumbler.service.utils.LongKeyedMap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/* Writes the MLS JSON of a StumblerBundle as UTF-8, in one pass, into a reusable buffer.
+ *
+ * The output is what StumblerBundle.toMLSJSON().toString() produces (same keys, order, values and escaping),
+ * without building the JSONObject tree: the field names are encoded once, numbers and strings are written
+ * straight into the buffer, and the wifi and cell counts are returned as ints.
+ * The lat/lon are written as decimal microdegrees, so a value under 0.001 is "0.0005" rather than "5.0E-4".
+ *
+ * Not thread-safe, an instance reuses its buffer.
+ */
+public final class MLSJSONWriter {
+    private static final byte[] TIME = name(DataStorageContract.ReportsColumns.TIME);
+    private static final byte[] LAT = name(DataStorageContract.ReportsColumns.LAT);
+    private static final byte[] LON = name(DataStorageContract.ReportsColumns.LON);
+    private static final byte[] ACCURACY = name(DataStorageContract.ReportsColumns.ACCURACY);
+    private static final byte[] ALTITUDE = name(DataStorageContract.ReportsColumns.ALTITUDE);
+    private static final byte[] RADIO = name(DataStorageContract.ReportsColumns.RADIO);
+    private static final byte[] CELL = name(DataStorageContract.ReportsColumns.CELL);
+    private static final byte[] CELL_COUNT = name(DataStorageContract.ReportsColumns.CELL_COUNT);
+    private static final byte[] WIFI = name(DataStorageContract.ReportsColumns.WIFI);
+    private static final byte[] WIFI_COUNT = name(DataStorageContract.ReportsColumns.WIFI_COUNT);
+
+    // Same keys as CellInfo.toJSONObject()
+    private static final byte[] CELL_RADIO = name("radio");
+    private static final byte[] MCC = name("mcc");
+    private static final byte[] MNC = name("mnc");
+    private static final byte[] LAC = name("lac");
+    private static final byte[] CID = name("cid");
+    private static final byte[] SIGNAL = name("signal");
+    private static final byte[] ASU = name("asu");
+    private static final byte[] TA = name("ta");
+    private static final byte[] PSC = name("psc");
+    private static final byte[] AGE = name("age");
+
+    private static final byte[] KEY = name("key");
+    private static final byte[] FREQUENCY = name("frequency");
+
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    private byte[] mBuffer = new byte[4096];
+    private int mLength;
+    // Whether a value was written since the last '{' or '['
+    private boolean mNeedsComma;
+    private int mWifiCount;
+    private int mCellCount;
+
+    // "name":
+    private static byte[] name(String name) {
+        try {
+            return ("\"" + name + "\":").getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /* Writes the bundle into getBuffer(), returns the length. Throws, as toMLSJSON() does, if the
+     * position is not a finite number. */
+    public int write(StumblerBundle bundle) throws JSONException {
+        final Location location = bundle.getGpsPosition();
+        if (Double.isNaN(location.getLatitude()) || Double.isInfinite(location.getLatitude()) ||
+                Double.isNaN(location.getLongitude()) || Double.isInfinite(location.getLongitude())) {
+            throw new JSONException("Forbidden numeric value: " + location);
+        }
+
+        mLength = 0;
+        mNeedsComma = false;
+        beginObject();
+        putName(TIME);
+        putLong(location.getTime());
+        putName(LAT);
+        putMicrodegrees((long) Math.floor(location.getLatitude() * 1.0E6));
+        putName(LON);
+        putMicrodegrees((long) Math.floor(location.getLongitude() * 1.0E6));
+        if (location.hasAccuracy()) {
+            putName(ACCURACY);
+            putLong((int) Math.ceil(location.getAccuracy()));
+        }
+        if (location.hasAltitude()) {
+            putName(ALTITUDE);
+            putLong(Math.round(location.getAltitude()));
+        }
+        putName(RADIO);
+        if (bundle.getPhoneType() == TelephonyManager.PHONE_TYPE_GSM) {
+            putString("gsm");
+        } else if (bundle.getPhoneType() == TelephonyManager.PHONE_TYPE_CDMA) {
+            putString("cdma");
+        } else {
+            putString("");
+        }
+
+        mCellCount = 0;
+        putName(CELL);
+        beginArray();
+        final LongKeyedMap<CellInfo> cells = bundle.getCellData();
+        for (int i = 0; i < cells.size(); i++) {
+            putCell(cells.valueAt(i), bundle.getCellAge(i));
+            mCellCount++;
+        }
+        endArray();
+        putName(CELL_COUNT);
+        putLong(mCellCount);
+
+        mWifiCount = 0;
+        putName(WIFI);
+        beginArray();
+        final LongKeyedMap<ScanResult> wifis = bundle.getWifiData();
+        for (int i = 0; i < wifis.size(); i++) {
+            final ScanResult wifi = wifis.valueAt(i);
+            beginObject();
+            // A null value is left out, as JSONObject.put() does
+            if (wifi.BSSID != null) {
+                putName(KEY);
+                putString(wifi.BSSID);
+            }
+            putName(FREQUENCY);
+            putLong(wifi.frequency);
+            putName(SIGNAL);
+            putLong(wifi.level);
+            putAge(bundle.getWifiAge(i));
+            endObject();
+            mWifiCount++;
+        }
+        endArray();
+        putName(WIFI_COUNT);
+        putLong(mWifiCount);
+        endObject();
+
+        return mLength;
+    }
+
+    private void putCell(CellInfo cell, long age) {
+        beginObject();
+        if (cell.getCellRadio() != null) {
+            putName(CELL_RADIO);
+            putString(cell.getCellRadio());
+        }
+        putName(MCC);
+        putLong(cell.getMcc());
+        putName(MNC);
+        putLong(cell.getMnc());
+        if (cell.getLac() != CellInfo.UNKNOWN_CID) {
+            putName(LAC);
+            putLong(cell.getLac());
+        }
+        if (cell.getCid() != CellInfo.UNKNOWN_CID) {
+            putName(CID);
+            putLong(cell.getCid());
+        }
+        if (cell.getSignal() != CellInfo.UNKNOWN_SIGNAL) {
+            putName(SIGNAL);
+            putLong(cell.getSignal());
+        }
+        if (cell.getAsu() != CellInfo.UNKNOWN_SIGNAL) {
+            putName(ASU);
+            putLong(cell.getAsu());
+        }
+        if (cell.getTa() != CellInfo.UNKNOWN_CID) {
+            putName(TA);
+            putLong(cell.getTa());
+        }
+        if (cell.getPsc() != CellInfo.UNKNOWN_CID) {
+            putName(PSC);
+            putLong(cell.getPsc());
+        }
+        putAge(age);
+        endObject();
+    }
+
+    private void putAge(long age) {
+        if (age != StumblerBundle.UNKNOWN_AGE) {
+            putName(AGE);
+            putLong(age);
+        }
+    }
+
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public int getWifiCount() {
+        return mWifiCount;
+    }
+
+    public int getCellCount() {
+        return mCellCount;
+    }
+
+    /* The last report written. */
+    @Override
+    public String toString() {
+        try {
+            return new String(mBuffer, 0, mLength, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void beginObject() {
+        if (mNeedsComma) {
+            putByte(',');
+        }
+        putByte('{');
+        mNeedsComma = false;
+    }
+
+    private void endObject() {
+        putByte('}');
+        mNeedsComma = true;
+    }
+
+    private void beginArray() {
+        putByte('[');
+        mNeedsComma = false;
+    }
+
+    private void endArray() {
+        putByte(']');
+        mNeedsComma = true;
+    }
+
+    private void putName(byte[] name) {
+        ensureCapacity(name.length + 1);
+        if (mNeedsComma) {
+            mBuffer[mLength++] = ',';
+        }
+        System.arraycopy(name, 0, mBuffer, mLength, name.length);
+        mLength += name.length;
+        mNeedsComma = false;
+    }
+
+    private void putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            putAscii(Long.toString(value));
+            mNeedsComma = true;
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            mBuffer[mLength++] = '-';
+            value = -value;
+        }
+        putDigits(value, 1);
+        mNeedsComma = true;
+    }
+
+    /* Writes value / 1e6, as JSONObject writes the truncated double: no trailing zeros, no
+     * fraction if it is a whole number. */
+    private void putMicrodegrees(long valueE6) {
+        ensureCapacity(28);
+        if (valueE6 < 0) {
+            mBuffer[mLength++] = '-';
+            valueE6 = -valueE6;
+        }
+        putDigits(valueE6 / 1000000, 1);
+        long fraction = valueE6 % 1000000;
+        if (fraction != 0) {
+            int digits = 6;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            mBuffer[mLength++] = '.';
+            putDigits(fraction, digits);
+        }
+        mNeedsComma = true;
+    }
+
+    // Writes a non-negative value, left-padded with zeros to minDigits
+    private void putDigits(long value, int minDigits) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        for (int i = mLength + digits - 1; i >= mLength; i--) {
+            mBuffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        mLength += digits;
+    }
+
+    /* Quotes and escapes as JSONStringer does, encodes as UTF-8. */
+    private void putString(String s) {
+        // At most 6 bytes ("\u001f") per char, and the quotes
+        ensureCapacity(s.length() * 6 + 2);
+        mBuffer[mLength++] = '"';
+        final int n = s.length();
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    mBuffer[mLength++] = '\\';
+                    mBuffer[mLength++] = (byte) c;
+                    break;
+                case '\t':
+                    putEscape('t');
+                    break;
+                case '\b':
+                    putEscape('b');
+                    break;
+                case '\n':
+                    putEscape('n');
+                    break;
+                case '\r':
+                    putEscape('r');
+                    break;
+                case '\f':
+                    putEscape('f');
+                    break;
+                default:
+                    if (c <= 0x1f) {
+                        mBuffer[mLength++] = '\\';
+                        mBuffer[mLength++] = 'u';
+                        mBuffer[mLength++] = '0';
+                        mBuffer[mLength++] = '0';
+                        mBuffer[mLength++] = HEX[c >> 4];
+                        mBuffer[mLength++] = HEX[c & 0xf];
+                    } else if (c < 0x80) {
+                        mBuffer[mLength++] = (byte) c;
+                    } else if (c < 0x800) {
+                        mBuffer[mLength++] = (byte) (0xc0 | (c >> 6));
+                        mBuffer[mLength++] = (byte) (0x80 | (c & 0x3f));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                        mBuffer[mLength++] = (byte) (0xf0 | (codePoint >> 18));
+                        mBuffer[mLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                        mBuffer[mLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                        mBuffer[mLength++] = (byte) (0x80 | (codePoint & 0x3f));
+                    } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                        // Unpaired, replaced as String.getBytes() does
+                        mBuffer[mLength++] = '?';
+                    } else {
+                        mBuffer[mLength++] = (byte) (0xe0 | (c >> 12));
+                        mBuffer[mLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                        mBuffer[mLength++] = (byte) (0x80 | (c & 0x3f));
+                    }
+            }
+        }
+        mBuffer[mLength++] = '"';
+        mNeedsComma = true;
+    }
+
+    private void putEscape(char c) {
+        mBuffer[mLength++] = '\\';
+        mBuffer[mLength++] = (byte) c;
+    }
+
+    private void putAscii(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            mBuffer[mLength++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void putByte(int b) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = (byte) b;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + extra));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.mozstumbler.service.core.http.CachingLocationService;
+
+/* What the Reporter flushed for one GPS fix, summarized for the in-process consumers: the position,
+ * the counts, and the MLS JSON string written once by the Reporter, so that no consumer has
+ * to convert the StumblerBundle again.
+ *
+ * Immutable, and safe to share between threads. The MLS JSON object is parsed when first asked for,
+ * and shared: it must not be modified.
+ */
+public final class Observation {
+    private final Location mPosition;
+    private final int mWifiCount;
+    private final int mCellCount;
+    private final String mMLSJSONString;
+    // Computed when first asked for: the service-only case has no consumer for them
+    private volatile JSONObject mMLSJSON;
+    private volatile Long mFingerprint;
+    private volatile boolean mIsFingerprintComputed;
+
+    public Observation(Location position, String mlsJson, int wifiCount, int cellCount) {
+        mPosition = new Location(position);
+        mMLSJSONString = mlsJson;
+        mWifiCount = wifiCount;
+        mCellCount = cellCount;
+    }
+
+    /* A copy, the position is not shared. */
+    public Location getPosition() {
+        return new Location(mPosition);
+    }
+
+    public double getLatitude() {
+        return mPosition.getLatitude();
+    }
+
+    public double getLongitude() {
+        return mPosition.getLongitude();
+    }
+
+    public int getWifiCount() {
+        return mWifiCount;
+    }
+
+    public int getCellCount() {
+        return mCellCount;
+    }
+
+    /* As made by StumblerBundle.toMLSJSON(). Read only. */
+    public JSONObject getMLSJSON() {
+        JSONObject json = mMLSJSON;
+        if (json == null) {
+            try {
+                json = new JSONObject(mMLSJSONString);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+            // Racing threads may each parse it, only one is kept
+            synchronized (this) {
+                if (mMLSJSON == null) {
+                    mMLSJSON = json;
+                }
+                json = mMLSJSON;
+            }
+        }
+        return json;
+    }
+
+    public String getMLSJSONString() {
+        return mMLSJSONString;
+    }
+
+    /* The CachingLocationService fingerprint of the wifis and cells, or null if there are none. */
+    public Long getFingerprint() {
+        if (!mIsFingerprintComputed) {
+            // Racing threads compute the same value
+            mFingerprint = CachingLocationService.fingerprint(getMLSJSON());
+            mIsFingerprintComputed = true;
+        }
+        return mFingerprint;
+    }
+
+    @Override
+    public String toString() {
+        return mMLSJSONString;
+    }
+}
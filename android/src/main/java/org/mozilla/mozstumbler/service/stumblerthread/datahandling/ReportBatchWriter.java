@@ -0,0 +1,232 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/* Builds a gzipped batch of reports, {"items":[report,report,...]}, as the reports arrive.
+ *
+ * Each report is UTF-8 encoded into a reusable scratch buffer and fed straight to a Deflater,
+ * so the batch is never held uncompressed in memory. finish() writes the gzip trailer and
+ * returns the batch; the Deflater and buffers are then reused for the next batch.
+ *
+ * A FORMAT_COMPACT batch holds CompactReportCodec records instead, concatenated with no JSON framing.
+ *
+ * Not thread-safe.
+ */
+public class ReportBatchWriter {
+    // The batch formats, also recorded for each batch in the journal and the write-ahead log
+    static final int FORMAT_JSON = 0;
+    static final int FORMAT_COMPACT = 1;
+
+    private static final byte[] PREFIX = { '{', '"', 'i', 't', 'e', 'm', 's', '"', ':', '[' };
+    private static final byte[] SUFFIX = { ']', '}' };
+    private static final byte[] SEPARATOR = { ',' };
+
+    // RFC 1952 header: magic, CM=deflate, no flags, no mtime, no extra flags, OS unknown
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private final int mFormat;
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mDeflateBuffer = new byte[4096];
+    private byte[] mScratch = new byte[4096];
+    private byte[] mOut = new byte[4096];
+    private int mOutLength;
+
+    private int mReportCount;
+    private int mWifiCount;
+    private int mCellCount;
+    private long mUncompressedBytes;
+
+    public ReportBatchWriter() {
+        this(FORMAT_JSON);
+    }
+
+    ReportBatchWriter(int format) {
+        this(format, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    ReportBatchWriter(int format, int compressionLevel) {
+        mFormat = format;
+        mDeflater = new Deflater(compressionLevel, true /* raw, we write the gzip framing */);
+        reset();
+    }
+
+    int getFormat() {
+        return mFormat;
+    }
+
+    public void add(String report, int wifiCount, int cellCount) {
+        add(mScratch, encode(report), wifiCount, cellCount);
+    }
+
+    /* Adds an encoded report: UTF-8 JSON, or a compact record. */
+    void add(byte[] report, int length, int wifiCount, int cellCount) {
+        if (mFormat == FORMAT_JSON && mReportCount > 0) {
+            write(SEPARATOR, 0, SEPARATOR.length);
+        }
+        write(report, 0, length);
+        mReportCount++;
+        mWifiCount += wifiCount;
+        mCellCount += cellCount;
+    }
+
+    /* Adds the reports of a gzipped JSON batch, copied without parsing them. Nothing is added if the
+     * batch can't be read. */
+    void addItems(byte[] jsonBatch, int reportCount, int wifiCount, int cellCount) throws IOException {
+        if (mFormat != FORMAT_JSON) {
+            throw new IllegalStateException("Not a JSON batch writer");
+        }
+        final byte[] json = CompactReportCodec.gunzip(jsonBatch);
+        final int itemsLength = json.length - PREFIX.length - SUFFIX.length;
+        if (itemsLength < 0 || !startsWith(json, 0, PREFIX) || !startsWith(json, json.length - SUFFIX.length, SUFFIX)) {
+            throw new IOException("Not a JSON batch");
+        }
+        if (itemsLength > 0) {
+            if (mUncompressedBytes > PREFIX.length) {
+                write(SEPARATOR, 0, SEPARATOR.length);
+            }
+            write(json, PREFIX.length, itemsLength);
+        }
+        mReportCount += reportCount;
+        mWifiCount += wifiCount;
+        mCellCount += cellCount;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Completes the gzip stream and returns it. The writer is reset, and ready for the next batch. */
+    public byte[] finish() {
+        if (mFormat == FORMAT_JSON) {
+            write(SUFFIX, 0, SUFFIX.length);
+        }
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            drain();
+        }
+
+        ensureOutCapacity(GZIP_TRAILER_LENGTH);
+        putIntLE((int) mCrc.getValue());
+        putIntLE((int) mUncompressedBytes);
+
+        final byte[] result = Arrays.copyOf(mOut, mOutLength);
+        reset();
+        return result;
+    }
+
+    /* Frees the Deflater's native memory now, rather than when the writer is finalized.
+     * The writer can't be used after this. */
+    public void end() {
+        mDeflater.end();
+    }
+
+    public void reset() {
+        mDeflater.reset();
+        mCrc.reset();
+        mOutLength = 0;
+        mReportCount = mWifiCount = mCellCount = 0;
+        mUncompressedBytes = 0;
+        ensureOutCapacity(GZIP_HEADER.length);
+        System.arraycopy(GZIP_HEADER, 0, mOut, 0, GZIP_HEADER.length);
+        mOutLength = GZIP_HEADER.length;
+        if (mFormat == FORMAT_JSON) {
+            write(PREFIX, 0, PREFIX.length);
+        }
+    }
+
+    public int getReportCount() {
+        return mReportCount;
+    }
+
+    public int getWifiCount() {
+        return mWifiCount;
+    }
+
+    public int getCellCount() {
+        return mCellCount;
+    }
+
+    // Size of the batch written so far, before compression
+    public long getUncompressedBytes() {
+        return mUncompressedBytes;
+    }
+
+    private void write(byte[] bytes, int offset, int length) {
+        mCrc.update(bytes, offset, length);
+        mUncompressedBytes += length;
+        mDeflater.setInput(bytes, offset, length);
+        while (!mDeflater.needsInput()) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        final int n = mDeflater.deflate(mDeflateBuffer, 0, mDeflateBuffer.length);
+        if (n > 0) {
+            ensureOutCapacity(n);
+            System.arraycopy(mDeflateBuffer, 0, mOut, mOutLength, n);
+            mOutLength += n;
+        }
+    }
+
+    private void ensureOutCapacity(int extra) {
+        if (mOutLength + extra > mOut.length) {
+            mOut = Arrays.copyOf(mOut, Math.max(mOut.length * 2, mOutLength + extra));
+        }
+    }
+
+    private void putIntLE(int value) {
+        mOut[mOutLength++] = (byte) value;
+        mOut[mOutLength++] = (byte) (value >> 8);
+        mOut[mOutLength++] = (byte) (value >> 16);
+        mOut[mOutLength++] = (byte) (value >> 24);
+    }
+
+    // UTF-8 encode into mScratch, growing it as needed. Returns the encoded length.
+    private int encode(String s) {
+        final int length = s.length();
+        if (mScratch.length < length * 3) {
+            mScratch = new byte[length * 3];
+        }
+
+        final byte[] out = mScratch;
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xc0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[pos++] = (byte) (0xf0 | (cp >> 18));
+                out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Unpaired, replaced as String.getBytes() does. Not Character.isSurrogate(), that is API 19.
+                out[pos++] = '?';
+            } else {
+                out[pos++] = (byte) (0xe0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,574 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/* Append-only storage for report batches.
+ *
+ * Each batch (the gzipped bytes of up to MAX_REPORTS_IN_MEMORY reports) is appended to the
+ * current segment file, segment-<id>.dat. Once a segment grows past mMaxSegmentBytes, a new
+ * segment is started. A batch is addressed by (segment id, offset, length).
+ *
+ * The index file (batches.idx) is a header, then a log of fixed-size records: an ADD record for every
+ * batch appended, and a REMOVE record for every batch deleted. An ADD record holds all the metadata of
+ * the batch (time, counts, length and CRC32 of the data), so the index is replayed on startup and
+ * the directory is never listed after that, and no file is read to answer queries. A flush is one
+ * sequential write to the segment and one small append to the index; a torn record at the end of the
+ * index is ignored. read() checks the CRC32, and throws CorruptBatchException on a mismatch.
+ *
+ * A batch of compact records (ReportBatchWriter.FORMAT_COMPACT) is added with an ADD_COMPACT record instead.
+ * The high bits of the record type hold the batch flags (FLAG_RECOMPACTED).
+ *
+ * A segment file is deleted once all the batches in it have been removed. reclaim() frees the space held
+ * by removed batches in the other segments, by moving the live batches out of them. The index is rewritten
+ * (to a temp file, then renamed) when it holds many more REMOVE records than live batches.
+ *
+ * Not thread-safe, DataStorageManager guards access.
+ */
+class ReportJournal {
+    private static final String LOG_TAG = AppGlobals.LOG_PREFIX + ReportJournal.class.getSimpleName();
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".dat";
+    static final String INDEX_FILENAME = "batches.idx";
+
+    private static final int INDEX_MAGIC = 0x4d534249; // "MSBI"
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 4 + 4;
+
+    static final long DEFAULT_MAX_SEGMENT_BYTES = 1024 * 64;
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_ADD_COMPACT = 3;
+    private static final int RECORD_TYPE_MASK = 0x0f;
+
+    // The batch was rewritten at the best compression level by a RetentionPolicy
+    static final int FLAG_RECOMPACTED = 0x10;
+    // type, segment id, offset, length, time, report count, wifi count, cell count, crc32
+    private static final int RECORD_SIZE = 1 + 4 + 4 + 4 + 8 + 4 + 4 + 4 + 4;
+
+    // Compact the index once the REMOVE records outnumber the live batches by this much
+    private static final int INDEX_COMPACTION_SLACK = 64;
+
+    static class CorruptBatchException extends IOException {
+        CorruptBatchException(String name) {
+            super("Checksum mismatch in batch " + name);
+        }
+    }
+
+    static class Entry {
+        final String name;
+        final int segmentId;
+        final int offset;
+        final int length;
+        final long timeMs;
+        final int reportCount;
+        final int wifiCount;
+        final int cellCount;
+        final int format;
+        final int flags;
+        final int checksum;
+
+        Entry(int segmentId, int offset, int length, long timeMs, int reportCount, int wifiCount, int cellCount,
+              int format, int flags, int checksum) {
+            this.name = keyFor(segmentId, offset);
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+            this.timeMs = timeMs;
+            this.reportCount = reportCount;
+            this.wifiCount = wifiCount;
+            this.cellCount = cellCount;
+            this.format = format;
+            this.flags = flags;
+            this.checksum = checksum;
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        long size;
+        int liveCount;
+        long liveBytes;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    private final File mDir;
+    private final File mIndexFile;
+    private final long mMaxSegmentBytes;
+
+    // Insertion ordered. A batch rewritten by a RetentionPolicy keeps the time of the batches it replaces,
+    // so the order is not strictly by time.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 mCrc = new CRC32();
+    // Old name to new name of the batches moved by reclaim(), so an upload started before still deletes them
+    private final HashMap<String, String> mMovedNames = new HashMap<String, String>();
+    // Set by reclaim(), the next batch starts a new segment
+    private boolean mIsCurrentSegmentClosed;
+
+    private int mRemoveRecordCount;
+    private int mNextSegmentId;
+
+    private int mReportCount;
+    private int mWifiCount;
+    private int mCellCount;
+    private long mLiveBytes;
+    private long mSegmentBytesOnDisk;
+    // 0 when empty, -1 when it must be recomputed
+    private long mOldestTimeMs;
+
+    ReportJournal(File dir, long maxSegmentBytes) {
+        mDir = dir;
+        mIndexFile = new File(dir, INDEX_FILENAME);
+        mMaxSegmentBytes = maxSegmentBytes;
+        load();
+    }
+
+    static String keyFor(int segmentId, int offset) {
+        return SEGMENT_PREFIX + segmentId + "@" + offset;
+    }
+
+    static boolean isJournalFile(String filename) {
+        return filename.equals(INDEX_FILENAME) ||
+               (filename.startsWith(SEGMENT_PREFIX) && filename.endsWith(SEGMENT_SUFFIX));
+    }
+
+    private File segmentFile(int id) {
+        return new File(mDir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    private Segment findSegment(int id) {
+        for (Segment s : mSegments) {
+            if (s.id == id) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private Segment currentSegment() {
+        return mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+    }
+
+    private void load() {
+        if (mIndexFile.exists()) {
+            try {
+                replayIndex();
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "Error reading journal index, discarding the journal", ex);
+                mEntries.clear();
+            }
+        }
+
+        // Drop entries whose data never made it to disk, then build the segment list.
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            final Entry e = it.next();
+            Segment s = findSegment(e.segmentId);
+            if (s == null) {
+                s = new Segment(e.segmentId, segmentFile(e.segmentId));
+                s.size = s.file.length();
+                mSegments.add(s);
+            }
+            if (e.offset + e.length > s.size) {
+                it.remove();
+                continue;
+            }
+            s.liveCount++;
+            s.liveBytes += e.length;
+            addToTotals(e, 1);
+        }
+
+        // Remove segments (and stray segment files) that hold no live batches.
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                final String name = f.getName();
+                if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                final int id;
+                try {
+                    id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+                mNextSegmentId = Math.max(mNextSegmentId, id + 1);
+                if (findSegment(id) == null) {
+                    f.delete();
+                }
+            }
+        }
+
+        for (Segment s : mSegments) {
+            mNextSegmentId = Math.max(mNextSegmentId, s.id + 1);
+            mSegmentBytesOnDisk += s.size;
+        }
+
+        mOldestTimeMs = -1;
+        if (mEntries.isEmpty()) {
+            clear();
+        } else {
+            compactIndex();
+        }
+    }
+
+    private void replayIndex() throws IOException {
+        final RandomAccessFile f = new RandomAccessFile(mIndexFile, "r");
+        try {
+            if (f.length() < INDEX_HEADER_SIZE || f.readInt() != INDEX_MAGIC || f.readInt() != INDEX_VERSION) {
+                throw new IOException("Unknown index format");
+            }
+            final long recordCount = (f.length() - f.getFilePointer()) / RECORD_SIZE;
+            final byte[] bytes = new byte[RECORD_SIZE];
+            final ByteBuffer record = ByteBuffer.wrap(bytes);
+            for (long i = 0; i < recordCount; i++) {
+                f.readFully(bytes);
+                record.clear();
+                final int typeAndFlags = record.get();
+                final int type = typeAndFlags & RECORD_TYPE_MASK;
+                final int segmentId = record.getInt();
+                final int offset = record.getInt();
+                final int length = record.getInt();
+                final long time = record.getLong();
+                final int reports = record.getInt();
+                final int wifis = record.getInt();
+                final int cells = record.getInt();
+                final int checksum = record.getInt();
+                if (type == RECORD_ADD || type == RECORD_ADD_COMPACT) {
+                    final int format = (type == RECORD_ADD) ? ReportBatchWriter.FORMAT_JSON : ReportBatchWriter.FORMAT_COMPACT;
+                    final Entry e = new Entry(segmentId, offset, length, time, reports, wifis, cells, format,
+                            typeAndFlags & ~RECORD_TYPE_MASK, checksum);
+                    mEntries.put(e.name, e);
+                } else if (type == RECORD_REMOVE) {
+                    mEntries.remove(keyFor(segmentId, offset));
+                }
+            }
+        } finally {
+            f.close();
+        }
+    }
+
+    private int checksum(byte[] data) {
+        mCrc.reset();
+        mCrc.update(data, 0, data.length);
+        return (int) mCrc.getValue();
+    }
+
+    private void putRecord(byte type, Entry e) {
+        mRecord.clear();
+        mRecord.put(type);
+        mRecord.putInt(e.segmentId);
+        mRecord.putInt(e.offset);
+        mRecord.putInt(e.length);
+        mRecord.putLong(e.timeMs);
+        mRecord.putInt(e.reportCount);
+        mRecord.putInt(e.wifiCount);
+        mRecord.putInt(e.cellCount);
+        mRecord.putInt(e.checksum);
+    }
+
+    private void putHeader(FileOutputStream out) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        header.putInt(INDEX_MAGIC);
+        header.putInt(INDEX_VERSION);
+        out.write(header.array());
+    }
+
+    private static byte addRecordType(Entry e) {
+        return (byte) (((e.format == ReportBatchWriter.FORMAT_COMPACT) ? RECORD_ADD_COMPACT : RECORD_ADD) | e.flags);
+    }
+
+    private void appendRecord(byte type, Entry e) throws IOException {
+        putRecord(type, e);
+        final boolean isNew = !mIndexFile.exists();
+        final FileOutputStream out = new FileOutputStream(mIndexFile, true);
+        try {
+            if (isNew) {
+                putHeader(out);
+            }
+            out.write(mRecord.array(), 0, RECORD_SIZE);
+        } finally {
+            out.close();
+        }
+        if (type == RECORD_REMOVE) {
+            mRemoveRecordCount++;
+        }
+    }
+
+    private void compactIndex() {
+        final File tmp = new File(mDir, INDEX_FILENAME + ".tmp");
+        try {
+            final FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                putHeader(out);
+                for (Entry e : mEntries.values()) {
+                    putRecord(addRecordType(e), e);
+                    out.write(mRecord.array(), 0, RECORD_SIZE);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mIndexFile)) {
+                Log.w(LOG_TAG, "Failed to replace journal index");
+                tmp.delete();
+                return;
+            }
+            mRemoveRecordCount = 0;
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Error compacting journal index", ex);
+            tmp.delete();
+        }
+    }
+
+    private void addToTotals(Entry e, int sign) {
+        mReportCount += sign * e.reportCount;
+        mWifiCount += sign * e.wifiCount;
+        mCellCount += sign * e.cellCount;
+        mLiveBytes += sign * e.length;
+    }
+
+    Entry append(byte[] data, long timeMs, int reportCount, int wifiCount, int cellCount) throws IOException {
+        return append(data, ReportBatchWriter.FORMAT_JSON, 0, timeMs, reportCount, wifiCount, cellCount);
+    }
+
+    Entry append(byte[] data, int format, int flags, long timeMs, int reportCount, int wifiCount, int cellCount)
+      throws IOException {
+        Segment segment = currentSegment();
+        if (segment == null || mIsCurrentSegmentClosed ||
+                (segment.size > 0 && segment.size + data.length > mMaxSegmentBytes)) {
+            final int id = mNextSegmentId++;
+            segment = new Segment(id, segmentFile(id));
+            mSegments.add(segment);
+            mIsCurrentSegmentClosed = false;
+        }
+
+        final Entry e = new Entry(segment.id, (int) segment.size, data.length, timeMs, reportCount, wifiCount, cellCount,
+                format, flags, checksum(data));
+        final FileOutputStream out = new FileOutputStream(segment.file, true);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        segment.size += data.length;
+        mSegmentBytesOnDisk += data.length;
+
+        appendRecord(addRecordType(e), e);
+
+        mEntries.put(e.name, e);
+        segment.liveCount++;
+        segment.liveBytes += data.length;
+        addToTotals(e, 1);
+        if (mOldestTimeMs == 0 || (mOldestTimeMs > 0 && timeMs < mOldestTimeMs)) {
+            mOldestTimeMs = timeMs;
+        }
+        return e;
+    }
+
+    /* Throws CorruptBatchException if the data does not match the checksum in the index. */
+    byte[] read(Entry e) throws IOException {
+        final byte[] data = readData(e);
+        if (checksum(data) != e.checksum) {
+            throw new CorruptBatchException(e.name);
+        }
+        return data;
+    }
+
+    private byte[] readData(Entry e) throws IOException {
+        final RandomAccessFile f = new RandomAccessFile(segmentFile(e.segmentId), "r");
+        try {
+            final byte[] data = new byte[e.length];
+            f.seek(e.offset);
+            f.readFully(data);
+            return data;
+        } finally {
+            f.close();
+        }
+    }
+
+    /* Also finds a batch moved by reclaim() by its old name. */
+    Entry get(String name) {
+        return mEntries.get(resolve(name));
+    }
+
+    private String resolve(String name) {
+        final String moved = mMovedNames.get(name);
+        return (moved == null) ? name : moved;
+    }
+
+    /* Also removes a batch moved by reclaim() by its old name. */
+    boolean remove(String name) throws IOException {
+        final Entry e = mEntries.get(resolve(name));
+        if (e == null) {
+            return false;
+        }
+        mMovedNames.values().removeAll(Collections.singleton(e.name));
+        removeEntry(e);
+        return true;
+    }
+
+    private void removeEntry(Entry e) throws IOException {
+        mEntries.remove(e.name);
+        addToTotals(e, -1);
+        if (e.timeMs <= mOldestTimeMs) {
+            mOldestTimeMs = -1;
+        }
+
+        if (mEntries.isEmpty()) {
+            clear();
+            return;
+        }
+
+        appendRecord(RECORD_REMOVE, e);
+
+        final Segment segment = findSegment(e.segmentId);
+        if (segment != null) {
+            segment.liveBytes -= e.length;
+        }
+        if (segment != null && --segment.liveCount < 1) {
+            mSegments.remove(segment);
+            mSegmentBytesOnDisk -= segment.size;
+            if (!segment.file.delete()) {
+                Log.w(LOG_TAG, "Failed to delete " + segment.file.getName());
+            }
+        }
+
+        if (mRemoveRecordCount > mEntries.size() + INDEX_COMPACTION_SLACK) {
+            compactIndex();
+        }
+    }
+
+    /* Moves the live batches out of the segments that hold removed ones, the most removed bytes first, until
+     * the segments take at most maxBytesOnDisk, or hold no removed batches. A moved batch is appended with a
+     * new name, so it comes after the batches appended before in snapshot(). */
+    void reclaim(long maxBytesOnDisk) throws IOException {
+        while (mSegmentBytesOnDisk > maxBytesOnDisk) {
+            Segment mostRemoved = null;
+            for (Segment s : mSegments) {
+                if (s.size > s.liveBytes &&
+                        (mostRemoved == null || s.size - s.liveBytes > mostRemoved.size - mostRemoved.liveBytes)) {
+                    mostRemoved = s;
+                }
+            }
+            if (mostRemoved == null) {
+                return;
+            }
+            if (mostRemoved == currentSegment()) {
+                mIsCurrentSegmentClosed = true;
+            }
+            for (Entry e : snapshot()) {
+                if (e.segmentId == mostRemoved.id) {
+                    move(e);
+                }
+            }
+        }
+    }
+
+    private void move(Entry e) throws IOException {
+        final byte[] data;
+        try {
+            data = read(e);
+        } catch (CorruptBatchException ex) {
+            // It would be dropped when uploaded
+            Log.w(LOG_TAG, "Dropping unreadable batch " + e.name + ": " + ex);
+            remove(e.name);
+            return;
+        }
+        final Entry moved = append(data, e.format, e.flags, e.timeMs, e.reportCount, e.wifiCount, e.cellCount);
+        removeEntry(e);
+        for (Map.Entry<String, String> alias : mMovedNames.entrySet()) {
+            if (alias.getValue().equals(e.name)) {
+                alias.setValue(moved.name);
+            }
+        }
+        mMovedNames.put(e.name, moved.name);
+    }
+
+    void clear() {
+        for (Segment s : mSegments) {
+            s.file.delete();
+        }
+        mSegments.clear();
+        mEntries.clear();
+        mMovedNames.clear();
+        mIsCurrentSegmentClosed = false;
+        mIndexFile.delete();
+        mRemoveRecordCount = 0;
+        mOldestTimeMs = 0;
+        mReportCount = mWifiCount = mCellCount = 0;
+        mLiveBytes = mSegmentBytesOnDisk = 0;
+    }
+
+    Entry[] snapshot() {
+        return mEntries.values().toArray(new Entry[mEntries.size()]);
+    }
+
+    boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    int getBatchCount() {
+        return mEntries.size();
+    }
+
+    int getReportCount() {
+        return mReportCount;
+    }
+
+    int getWifiCount() {
+        return mWifiCount;
+    }
+
+    int getCellCount() {
+        return mCellCount;
+    }
+
+    // Bytes of batches not yet deleted.
+    long getLiveBytes() {
+        return mLiveBytes;
+    }
+
+    // Size of all segment files, including space held by removed batches in partially consumed segments.
+    long getBytesOnDisk() {
+        return mSegmentBytesOnDisk;
+    }
+
+    long getOldestTimeMs() {
+        if (mOldestTimeMs < 0) {
+            // The oldest batch was removed
+            mOldestTimeMs = 0;
+            for (Entry e : mEntries.values()) {
+                if (mOldestTimeMs == 0 || e.timeMs < mOldestTimeMs) {
+                    mOldestTimeMs = e.timeMs;
+                }
+            }
+        }
+        return mOldestTimeMs;
+    }
+}
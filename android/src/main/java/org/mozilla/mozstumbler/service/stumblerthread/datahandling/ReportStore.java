@@ -0,0 +1,51 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+
+/* The stored report batches, as seen by a RetentionPolicy. Reports are exchanged as MLS JSON objects,
+ * whatever the format they are stored in. Removed and replaced reports are counted as evicted. */
+public interface ReportStore {
+    public static final class Batch {
+        public final String name;
+        public final long timeMs;
+        public final int reportCount;
+        public final int wifiCount;
+        public final int cellCount;
+        public final long bytes;
+        // Already rewritten at the best compression level
+        public final boolean isRecompacted;
+
+        public Batch(String name, long timeMs, int reportCount, int wifiCount, int cellCount, long bytes,
+                     boolean isRecompacted) {
+            this.name = name;
+            this.timeMs = timeMs;
+            this.reportCount = reportCount;
+            this.wifiCount = wifiCount;
+            this.cellCount = cellCount;
+            this.bytes = bytes;
+            this.isRecompacted = isRecompacted;
+        }
+    }
+
+    /* Oldest first. */
+    public Batch[] getBatches();
+
+    /* The bytes of the stored batches. The store frees the space left by removed and replaced batches
+     * once the policy has returned, so this is what the batches will take on disk. */
+    public long getLiveBytes();
+
+    /* An unreadable batch is removed, and returns no reports. */
+    public List<JSONObject> readReports(Batch batch) throws IOException;
+
+    public void remove(Batch batch) throws IOException;
+
+    /* Writes the reports as one batch, with the oldest time of the batches, then removes the batches. */
+    public void replace(List<Batch> batches, List<JSONObject> reports, boolean useBestCompression) throws IOException;
+}
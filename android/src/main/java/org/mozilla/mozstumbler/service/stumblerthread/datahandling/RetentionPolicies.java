@@ -0,0 +1,268 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/* The retention policies for DataStorageManager. They are usually chained, cheapest loss first:
+ *   chain(thinRedundant(), recompact(), DROP_OLDEST)
+ */
+public final class RetentionPolicies {
+    private RetentionPolicies() {}
+
+    /* Drops the new batch, the store keeps its oldest reports. */
+    public static final RetentionPolicy DROP_NEWEST = new RetentionPolicy() {
+        @Override
+        public boolean makeRoom(ReportStore store, long newBatchBytes, long maxBytes) {
+            return false;
+        }
+    };
+
+    /* Removes the oldest batches until the new batch fits. */
+    public static final RetentionPolicy DROP_OLDEST = new RetentionPolicy() {
+        @Override
+        public boolean makeRoom(ReportStore store, long newBatchBytes, long maxBytes) throws IOException {
+            for (ReportStore.Batch batch : store.getBatches()) {
+                if (fits(store, newBatchBytes, maxBytes)) {
+                    break;
+                }
+                store.remove(batch);
+            }
+            // Once the store is empty, a batch bigger than the cap is still written
+            return true;
+        }
+    };
+
+    /* Removes the reports that add nothing to a newer report: same grid cell, and the same wifis and cells. */
+    public static RetentionPolicy thinRedundant() {
+        return new ThinRedundant();
+    }
+
+    /* Merges the oldest batches, and rewrites them at the best compression level. */
+    public static RetentionPolicy recompact() {
+        return new Recompact();
+    }
+
+    /* Tries each policy in turn, until one makes room. */
+    public static RetentionPolicy chain(final RetentionPolicy... policies) {
+        return new RetentionPolicy() {
+            @Override
+            public boolean makeRoom(ReportStore store, long newBatchBytes, long maxBytes) throws IOException {
+                for (RetentionPolicy policy : policies) {
+                    if (policy.makeRoom(store, newBatchBytes, maxBytes)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    static boolean fits(ReportStore store, long newBatchBytes, long maxBytes) {
+        return store.getLiveBytes() + newBatchBytes <= maxBytes;
+    }
+
+    static class ThinRedundant implements RetentionPolicy {
+        // About 55 m in latitude
+        static final double GRID_DEGREES = 0.0005;
+
+        // The report keys of the batches already read, so each batch is decoded once unless it is thinned
+        private final HashMap<String, long[]> mKeysByBatch = new HashMap<String, long[]>();
+
+        // A report kept by makeRoom(), its identity is only computed when another report has the same key
+        private static final class Kept {
+            final ReportStore.Batch batch;
+            final int index;
+            String identity;
+
+            Kept(ReportStore.Batch batch, int index, String identity) {
+                this.batch = batch;
+                this.index = index;
+                this.identity = identity;
+            }
+        }
+
+        @Override
+        public boolean makeRoom(ReportStore store, long newBatchBytes, long maxBytes) throws IOException {
+            final ReportStore.Batch[] batches = store.getBatches();
+            final HashSet<String> names = new HashSet<String>();
+            for (ReportStore.Batch batch : batches) {
+                names.add(batch.name);
+            }
+            mKeysByBatch.keySet().retainAll(names);
+
+            // Newest first, so the newest report of each identity is kept
+            final HashMap<Long, ArrayList<Kept>> kept = new HashMap<Long, ArrayList<Kept>>();
+            // The reports of the batches read by this call, by the name they had when read
+            final HashMap<String, List<JSONObject>> read = new HashMap<String, List<JSONObject>>();
+            for (int i = batches.length - 1; i >= 0; i--) {
+                final ReportStore.Batch batch = batches[i];
+                long[] keys = mKeysByBatch.get(batch.name);
+                if (keys == null) {
+                    keys = keysOf(readReports(store, batch, read));
+                    mKeysByBatch.put(batch.name, keys);
+                }
+
+                final boolean[] isRedundant = new boolean[keys.length];
+                int redundantCount = 0;
+                for (int k = 0; k < keys.length; k++) {
+                    ArrayList<Kept> sameKey = kept.get(keys[k]);
+                    if (sameKey == null) {
+                        sameKey = new ArrayList<Kept>(1);
+                        kept.put(keys[k], sameKey);
+                        sameKey.add(new Kept(batch, k, null));
+                        continue;
+                    }
+
+                    // The keys are hashes, the reports are only redundant if their identities are equal
+                    final List<JSONObject> reports = readReports(store, batch, read);
+                    if (reports.size() != keys.length) {
+                        break;
+                    }
+                    final String identity = identityOf(reports.get(k));
+                    for (Kept other : sameKey) {
+                        if (identity.equals(identityOf(store, other, read))) {
+                            isRedundant[k] = true;
+                            redundantCount++;
+                            break;
+                        }
+                    }
+                    if (!isRedundant[k]) {
+                        sameKey.add(new Kept(batch, k, identity));
+                    }
+                }
+                if (redundantCount == 0) {
+                    continue;
+                }
+
+                final List<JSONObject> reports = readReports(store, batch, read);
+                if (redundantCount == keys.length || reports.size() != keys.length) {
+                    store.remove(batch);
+                    continue;
+                }
+                final ArrayList<JSONObject> keptReports = new ArrayList<JSONObject>();
+                for (int k = 0; k < keys.length; k++) {
+                    if (!isRedundant[k]) {
+                        keptReports.add(reports.get(k));
+                    }
+                }
+                store.replace(Collections.singletonList(batch), keptReports, batch.isRecompacted);
+            }
+            return fits(store, newBatchBytes, maxBytes);
+        }
+
+        private static List<JSONObject> readReports(ReportStore store, ReportStore.Batch batch,
+                                                    HashMap<String, List<JSONObject>> read) throws IOException {
+            List<JSONObject> reports = read.get(batch.name);
+            if (reports == null) {
+                reports = store.readReports(batch);
+                read.put(batch.name, reports);
+            }
+            return reports;
+        }
+
+        // Null if the batch of the report turned out to be unreadable
+        private static String identityOf(ReportStore store, Kept report, HashMap<String, List<JSONObject>> read)
+          throws IOException {
+            if (report.identity == null) {
+                final List<JSONObject> reports = readReports(store, report.batch, read);
+                if (report.index >= reports.size()) {
+                    return null;
+                }
+                report.identity = identityOf(reports.get(report.index));
+            }
+            return report.identity;
+        }
+
+        long[] keysOf(List<JSONObject> reports) {
+            final long[] keys = new long[reports.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = keyOf(reports.get(i));
+            }
+            return keys;
+        }
+
+        // A hash of identityOf(), different identities may have the same key
+        long keyOf(JSONObject report) {
+            final String identity = identityOf(report);
+            long key = 1125899906842597L;
+            for (int i = 0; i < identity.length(); i++) {
+                key = key * 31 + identity.charAt(i);
+            }
+            return key;
+        }
+
+        // The grid cell, and the sorted wifi and cell identifiers
+        static String identityOf(JSONObject report) {
+            final ArrayList<String> ids = new ArrayList<String>();
+            final JSONArray wifis = report.optJSONArray(DataStorageContract.ReportsColumns.WIFI);
+            for (int i = 0; wifis != null && i < wifis.length(); i++) {
+                final JSONObject wifi = wifis.optJSONObject(i);
+                if (wifi != null) {
+                    ids.add(wifi.optString("key"));
+                }
+            }
+            final JSONArray cells = report.optJSONArray(DataStorageContract.ReportsColumns.CELL);
+            for (int i = 0; cells != null && i < cells.length(); i++) {
+                final JSONObject cell = cells.optJSONObject(i);
+                if (cell != null) {
+                    ids.add(cell.optString("radio") + " " + cell.optInt("mcc") + " " + cell.optInt("mnc") + " " +
+                            cell.optInt("lac") + " " + cell.optInt("cid") + " " + cell.optInt("psc"));
+                }
+            }
+            Collections.sort(ids);
+
+            final StringBuilder identity = new StringBuilder();
+            identity.append((long) Math.floor(report.optDouble(DataStorageContract.ReportsColumns.LAT) / GRID_DEGREES))
+                    .append(' ')
+                    .append((long) Math.floor(report.optDouble(DataStorageContract.ReportsColumns.LON) / GRID_DEGREES));
+            for (String id : ids) {
+                identity.append('\n').append(id);
+            }
+            return identity.toString();
+        }
+    }
+
+    static final class Recompact implements RetentionPolicy {
+        // Bigger batches compress better, but must still be accepted by the server in one request
+        static final int MAX_REPORTS_PER_BATCH = 500;
+
+        @Override
+        public boolean makeRoom(ReportStore store, long newBatchBytes, long maxBytes) throws IOException {
+            while (!fits(store, newBatchBytes, maxBytes)) {
+                final ArrayList<ReportStore.Batch> group = new ArrayList<ReportStore.Batch>();
+                int reportCount = 0;
+                for (ReportStore.Batch batch : store.getBatches()) {
+                    if (batch.isRecompacted) {
+                        continue;
+                    }
+                    if (reportCount > 0 && reportCount + batch.reportCount > MAX_REPORTS_PER_BATCH) {
+                        break;
+                    }
+                    group.add(batch);
+                    reportCount += batch.reportCount;
+                }
+                if (group.isEmpty()) {
+                    return false;
+                }
+
+                final ArrayList<JSONObject> reports = new ArrayList<JSONObject>(reportCount);
+                for (ReportStore.Batch batch : group) {
+                    reports.addAll(store.readReports(batch));
+                }
+                store.replace(group, reports, true);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import java.io.IOException;
+
+/* Decides what DataStorageManager gives up once the reports on disk reach the storage cap.
+ * See RetentionPolicies for the implementations. */
+public interface RetentionPolicy {
+    /* Called before a batch of newBatchBytes is written, when it would take the store past maxBytes.
+     * Returns true if there is now room for the batch (or it should be written anyway), false to drop it. */
+    public boolean makeRoom(ReportStore store, long newBatchBytes, long maxBytes) throws IOException;
+}
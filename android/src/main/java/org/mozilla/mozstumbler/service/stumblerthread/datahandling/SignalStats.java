@@ -0,0 +1,121 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+
+import java.util.Arrays;
+
+/* The readings of each wifi or cell in a StumblerBundle: sample count, strongest and mean signal,
+ * and first and last seen times, indexed as the bundle's map entries.
+ *
+ * The slots are parallel primitive arrays. A slot is overwritten when its entry is added to a reset
+ * bundle, so the arrays are only allocated when a bundle holds more entries than it ever did.
+ *
+ * A signal is in dBm, or in ASU for the cells whose radio doesn't report dBm, and must be valid
+ * (StumblerBundle filters them), or UNKNOWN_SIGNAL. The two units can't be compared: a slot holding
+ * ASU readings restarts from the first dBm reading, and ASU readings of a slot holding dBm readings
+ * are only counted as samples.
+ */
+public final class SignalStats {
+    public static final int UNKNOWN_SIGNAL = CellInfo.UNKNOWN_SIGNAL;
+
+    private int[] mSampleCount;
+    private int[] mSignalCount;
+    private int[] mMaxSignal;
+    private long[] mSignalSum;
+    private boolean[] mIsAsu;
+    private long[] mFirstSeen;
+    private long[] mLastSeen;
+
+    SignalStats(int capacity) {
+        mSampleCount = new int[capacity];
+        mSignalCount = new int[capacity];
+        mMaxSignal = new int[capacity];
+        mSignalSum = new long[capacity];
+        mIsAsu = new boolean[capacity];
+        mFirstSeen = new long[capacity];
+        mLastSeen = new long[capacity];
+    }
+
+    /* Overwrites the slot with a first reading. */
+    void start(int index, int signal, boolean isAsu, long time) {
+        if (index >= mSampleCount.length) {
+            grow(Math.max(index + 1, mSampleCount.length * 2));
+        }
+        mSampleCount[index] = 0;
+        mSignalCount[index] = 0;
+        mMaxSignal[index] = UNKNOWN_SIGNAL;
+        mSignalSum[index] = 0;
+        mIsAsu[index] = isAsu;
+        mFirstSeen[index] = time;
+        mLastSeen[index] = time;
+        add(index, signal, isAsu, time);
+    }
+
+    /* Merges a reading into the slot. */
+    void add(int index, int signal, boolean isAsu, long time) {
+        mSampleCount[index]++;
+        mFirstSeen[index] = Math.min(mFirstSeen[index], time);
+        mLastSeen[index] = Math.max(mLastSeen[index], time);
+        if (signal == UNKNOWN_SIGNAL) {
+            return;
+        }
+
+        if (mSignalCount[index] == 0 || (mIsAsu[index] && !isAsu)) {
+            mSignalCount[index] = 1;
+            mMaxSignal[index] = signal;
+            mSignalSum[index] = signal;
+            mIsAsu[index] = isAsu;
+            return;
+        }
+        if (isAsu != mIsAsu[index]) {
+            return;
+        }
+        mSignalCount[index]++;
+        mSignalSum[index] += signal;
+        mMaxSignal[index] = Math.max(mMaxSignal[index], signal);
+    }
+
+    private void grow(int capacity) {
+        mSampleCount = Arrays.copyOf(mSampleCount, capacity);
+        mSignalCount = Arrays.copyOf(mSignalCount, capacity);
+        mMaxSignal = Arrays.copyOf(mMaxSignal, capacity);
+        mSignalSum = Arrays.copyOf(mSignalSum, capacity);
+        mIsAsu = Arrays.copyOf(mIsAsu, capacity);
+        mFirstSeen = Arrays.copyOf(mFirstSeen, capacity);
+        mLastSeen = Arrays.copyOf(mLastSeen, capacity);
+    }
+
+    /* The number of scans the entry was seen in. */
+    public int getSampleCount(int index) {
+        return mSampleCount[index];
+    }
+
+    /* The strongest signal, or UNKNOWN_SIGNAL if no reading had one. */
+    public int getMaxSignal(int index) {
+        return mMaxSignal[index];
+    }
+
+    /* The mean signal, rounded, or UNKNOWN_SIGNAL if no reading had one. */
+    public int getMeanSignal(int index) {
+        if (mSignalCount[index] == 0) {
+            return UNKNOWN_SIGNAL;
+        }
+        return (int) Math.round((double) mSignalSum[index] / mSignalCount[index]);
+    }
+
+    public boolean isAsu(int index) {
+        return mIsAsu[index];
+    }
+
+    public long getFirstSeen(int index) {
+        return mFirstSeen[index];
+    }
+
+    public long getLastSeen(int index) {
+        return mLastSeen[index];
+    }
+}
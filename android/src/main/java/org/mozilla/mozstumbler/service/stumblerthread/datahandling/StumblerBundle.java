@@ -6,92 +6,199 @@ package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
 
 import android.location.Location;
 import android.net.wifi.ScanResult;
-import android.os.Bundle;
-import android.os.Parcel;
-import android.os.Parcelable;
 import android.telephony.TelephonyManager;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
-
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import org.mozilla.mozstumbler.service.utils.LongKeyedMap;
 
 /**
  * A StumblerBundle contains stumbling data related to a single GPS lat/long fix.
+ *
+ * The wifis are keyed by their BSSID packed in a long, the cells by CellInfo.getCellIdentityKey(), so
+ * adding a scan makes no key Strings. A bundle can be reset() for the next fix, keeping its maps.
+ *
+ * A wifi or cell seen in several scans is kept once, as its strongest reading, and its readings are
+ * summarized in getWifiStats() and getCellStats(), at the same index as in getWifiData() and getCellData().
+ * Of those, the time it was last seen is uploaded, as the MLS "age" of the entry; the submit format has
+ * no field for the others.
  */
-public final class StumblerBundle implements Parcelable {
+public final class StumblerBundle {
+    // Above the Reporter limits, so that the maps don't grow
+    private static final int EXPECTED_WIFIS = 256;
+    private static final int EXPECTED_CELLS = 64;
+    // Set on the keys of BSSIDs that aren't 12 hex digits, which are hashed: a packed BSSID is 48 bits
+    private static final long HASHED_KEY_BIT = 1L << 63;
+    // The valid cell signal readings
+    private static final int MIN_DBM = -150;
+    private static final int MAX_DBM = -20;
+    private static final int MAX_ASU = 97;
+
+    public static final long UNKNOWN_AGE = Long.MIN_VALUE;
+    // The scans of a bundle are seconds away from its fix, a longer age means the clocks disagree
+    static final long MAX_AGE_MS = 1000 * 60 * 60;
+
     private final int mPhoneType;
-    private final Location mGpsPosition;
-    private final Map<String, ScanResult> mWifiData;
-    private final Map<String, CellInfo> mCellData;
+    private Location mGpsPosition;
+    private final LongKeyedMap<ScanResult> mWifiData = new LongKeyedMap<ScanResult>(EXPECTED_WIFIS);
+    private final LongKeyedMap<CellInfo> mCellData = new LongKeyedMap<CellInfo>(EXPECTED_CELLS);
+    private final SignalStats mWifiStats = new SignalStats(EXPECTED_WIFIS);
+    private final SignalStats mCellStats = new SignalStats(EXPECTED_CELLS);
 
-    @Override
-    public int describeContents() {
-        return 0;
+    public StumblerBundle(Location position, int phoneType) {
+        mGpsPosition = position;
+        mPhoneType = phoneType;
     }
 
-    @Override
-    public void writeToParcel(Parcel out, int flags) {
-        Bundle wifiBundle = new Bundle(ScanResult.class.getClassLoader());
-        Collection<String> scans = mWifiData.keySet();
-        for (String s : scans) {
-            wifiBundle.putParcelable(s, mWifiData.get(s));
-        }
+    /* Empties the bundle, for the given fix. */
+    public void reset(Location position) {
+        mGpsPosition = position;
+        mWifiData.clear();
+        mCellData.clear();
+    }
 
-        Bundle cellBundle = new Bundle(CellInfo.class.getClassLoader());
-        Collection<String> cells = mCellData.keySet();
-        for (String c : cells) {
-            cellBundle.putParcelable(c, mCellData.get(c));
-        }
+    public Location getGpsPosition() {
+        return mGpsPosition;
+    }
+
+    public int getPhoneType() {
+        return mPhoneType;
+    }
+
+    public LongKeyedMap<ScanResult> getWifiData() {
+        return mWifiData;
+    }
 
-        out.writeBundle(wifiBundle);
-        out.writeBundle(cellBundle);
-        out.writeParcelable(mGpsPosition, 0);
-        out.writeInt(mPhoneType);
+    public LongKeyedMap<CellInfo> getCellData() {
+        return mCellData;
+    }
+
+    public SignalStats getWifiStats() {
+        return mWifiStats;
     }
 
-    private StumblerBundle(Parcel in) {
-        mWifiData = new HashMap<String, ScanResult>();
-        mCellData = new HashMap<String, CellInfo>();
+    public SignalStats getCellStats() {
+        return mCellStats;
+    }
 
-        Bundle wifiBundle = in.readBundle(ScanResult.class.getClassLoader());
-        Bundle cellBundle = in.readBundle(CellInfo.class.getClassLoader());
+    public boolean addWifi(ScanResult wifi) {
+        return addWifi(wifi, System.currentTimeMillis());
+    }
 
-        Collection<String> scans = wifiBundle.keySet();
-        for (String s : scans) {
-            mWifiData.put(s, (ScanResult) wifiBundle.get(s));
+    /* Adds the wifi, or if its BSSID is in the bundle, keeps the stronger of the two readings, and merges
+     * the reading into its stats. Returns whether the BSSID was added. */
+    public boolean addWifi(ScanResult wifi, long time) {
+        final long key = wifiKey(wifi.BSSID);
+        final int index = mWifiData.indexOf(key);
+        if (index < 0) {
+            mWifiData.putIfAbsent(key, wifi);
+            mWifiStats.start(mWifiData.size() - 1, wifi.level, false, time);
+            return true;
+        }
+        if (wifi.level > mWifiData.valueAt(index).level) {
+            mWifiData.setValueAt(index, wifi);
         }
+        mWifiStats.add(index, wifi.level, false, time);
+        return false;
+    }
+
+    public boolean addCell(CellInfo cell) {
+        return addCell(cell, System.currentTimeMillis());
+    }
 
-        Collection<String> cells = cellBundle.keySet();
-        for (String c : cells) {
-            mCellData.put(c, (CellInfo) cellBundle.get(c));
+    /* Adds the cell, or if its identity is in the bundle, keeps the stronger of the two readings, and
+     * merges the reading into its stats. Returns whether the identity was added. */
+    public boolean addCell(CellInfo cell, long time) {
+        // The signal in dBm when the radio reports it, the ASU otherwise
+        final int dbm = validDbm(cell);
+        final boolean isAsu = dbm == CellInfo.UNKNOWN_SIGNAL;
+        final int signal = isAsu ? validAsu(cell) : dbm;
+
+        final long key = cell.getCellIdentityKey();
+        final int index = mCellData.indexOf(key);
+        if (index < 0) {
+            mCellData.putIfAbsent(key, cell);
+            mCellStats.start(mCellData.size() - 1, signal, isAsu, time);
+            return true;
+        }
+        if (isStronger(cell, mCellData.valueAt(index))) {
+            mCellData.setValueAt(index, cell);
         }
+        mCellStats.add(index, signal, isAsu, time);
+        return false;
+    }
 
-        mGpsPosition = in.readParcelable(Location.class.getClassLoader());
-        mPhoneType = in.readInt();
+    /* How long before the fix the wifi at index was last seen, in ms (negative if it was seen after the fix),
+     * or UNKNOWN_AGE if the fix or the scan has no time, or if they are over MAX_AGE_MS apart. */
+    public long getWifiAge(int index) {
+        return age(mWifiStats.getLastSeen(index));
     }
 
-    public StumblerBundle(Location position, int phoneType) {
-        mGpsPosition = position;
-        mPhoneType = phoneType;
-        mWifiData = new HashMap<String, ScanResult>();
-        mCellData = new HashMap<String, CellInfo>();
+    /* As getWifiAge(), for the cell at index. */
+    public long getCellAge(int index) {
+        return age(mCellStats.getLastSeen(index));
     }
 
-    public Location getGpsPosition() {
-        return mGpsPosition;
+    private long age(long lastSeen) {
+        if (lastSeen <= 0 || mGpsPosition.getTime() <= 0) {
+            return UNKNOWN_AGE;
+        }
+        final long age = mGpsPosition.getTime() - lastSeen;
+        return (Math.abs(age) > MAX_AGE_MS) ? UNKNOWN_AGE : age;
     }
 
-    public Map<String, ScanResult> getWifiData() {
-        return mWifiData;
+    /* A reading in dBm beats one with only an ASU, and a reading without a valid signal never replaces
+     * one with it. UNKNOWN_SIGNAL is below any valid value. */
+    static boolean isStronger(CellInfo reading, CellInfo kept) {
+        final int dbm = validDbm(reading);
+        final int keptDbm = validDbm(kept);
+        if (dbm != CellInfo.UNKNOWN_SIGNAL || keptDbm != CellInfo.UNKNOWN_SIGNAL) {
+            return dbm > keptDbm;
+        }
+        return validAsu(reading) > validAsu(kept);
     }
 
-    public Map<String, CellInfo> getCellData() {
-        return mCellData;
+    private static int validDbm(CellInfo cell) {
+        final int dbm = cell.getSignal();
+        return (dbm >= MIN_DBM && dbm <= MAX_DBM) ? dbm : CellInfo.UNKNOWN_SIGNAL;
+    }
+
+    // 99 is "unknown" for GSM and UMTS, LTE goes up to 97
+    private static int validAsu(CellInfo cell) {
+        final int asu = cell.getAsu();
+        return (asu >= 0 && asu <= MAX_ASU) ? asu : CellInfo.UNKNOWN_SIGNAL;
+    }
+
+    /* The BSSID as a 48-bit long (case and separators are ignored), or a hash of it if it isn't
+     * 12 hex digits. */
+    public static long wifiKey(String bssid) {
+        if (bssid == null) {
+            return HASHED_KEY_BIT;
+        }
+        long key = 0;
+        int digits = 0;
+        for (int i = 0; i < bssid.length(); i++) {
+            final int digit = Character.digit(bssid.charAt(i), 16);
+            if (digit >= 0) {
+                key = (key << 4) | digit;
+                digits++;
+            } else if (bssid.charAt(i) != ':' && bssid.charAt(i) != '-') {
+                digits = -1;
+                break;
+            }
+        }
+        if (digits == 12) {
+            return key;
+        }
+
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < bssid.length(); i++) {
+            hash = (hash ^ bssid.charAt(i)) * 0x100000001b3L;
+        }
+        return hash | HASHED_KEY_BIT;
     }
 
     public JSONObject toMLSJSON() throws JSONException {
@@ -119,8 +226,11 @@ public final class StumblerBundle implements Parcelable {
         }
 
         JSONArray cellJSON = new JSONArray();
-        for (CellInfo c : mCellData.values()) {
-            JSONObject obj = c.toJSONObject();
+        for (int i = 0; i < mCellData.size(); i++) {
+            JSONObject obj = mCellData.valueAt(i).toJSONObject();
+            if (getCellAge(i) != UNKNOWN_AGE) {
+                obj.put("age", getCellAge(i));
+            }
             cellJSON.put(obj);
         }
 
@@ -128,11 +238,15 @@ public final class StumblerBundle implements Parcelable {
         item.put(DataStorageContract.ReportsColumns.CELL_COUNT, cellJSON.length());
 
         JSONArray wifis = new JSONArray();
-        for (ScanResult s : mWifiData.values()) {
+        for (int i = 0; i < mWifiData.size(); i++) {
+            ScanResult s = mWifiData.valueAt(i);
             JSONObject wifiEntry = new JSONObject();
             wifiEntry.put("key", s.BSSID);
             wifiEntry.put("frequency", s.frequency);
             wifiEntry.put("signal", s.level);
+            if (getWifiAge(i) != UNKNOWN_AGE) {
+                wifiEntry.put("age", getWifiAge(i));
+            }
             wifis.put(wifiEntry);
         }
         item.put(DataStorageContract.ReportsColumns.WIFI, wifis);
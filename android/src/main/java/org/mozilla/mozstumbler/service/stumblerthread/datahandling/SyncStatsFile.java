@@ -0,0 +1,148 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/* The all-time upload counters, in a fixed-layout binary file:
+ * [magic][version], then two slots of [sequence][last upload time][bytes][observations][cells][wifis][crc32].
+ * Each update writes the whole record to the slot not holding the latest one, so a torn write leaves the
+ * previous record intact, and load() picks the valid slot with the highest sequence.
+ *
+ * The counters of upload_stats.ini (see DataStorageContract.Stats), written by older versions, are
+ * moved to the binary file on the first load().
+ *
+ * Not thread-safe, DataStorageManager guards access.
+ */
+class SyncStatsFile {
+    private static final String LOG_TAG = AppGlobals.LOG_PREFIX + SyncStatsFile.class.getSimpleName();
+
+    static final String FILENAME = "upload_stats.bin";
+    static final String LEGACY_FILENAME = "upload_stats.ini";
+
+    private static final int MAGIC = 0x4d535353; // "MSSS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4;
+    private static final int SLOT_SIZE = 6 * 8 + 4;
+
+    private final File mFile;
+    private final File mLegacyFile;
+    private final ByteBuffer mSlot = ByteBuffer.allocate(SLOT_SIZE);
+    private final CRC32 mCrc = new CRC32();
+    private long mSequence;
+
+    SyncStatsFile(File dir) {
+        mFile = new File(dir, FILENAME);
+        mLegacyFile = new File(dir, LEGACY_FILENAME);
+    }
+
+    DataStorageManager.SyncStats load() {
+        if (!mFile.exists() && mLegacyFile.exists()) {
+            final DataStorageManager.SyncStats stats = loadLegacy();
+            try {
+                write(stats);
+                mLegacyFile.delete();
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "Error converting " + LEGACY_FILENAME, ex);
+            }
+            return stats;
+        }
+
+        DataStorageManager.SyncStats latest = new DataStorageManager.SyncStats(0, 0, 0, 0, 0);
+        if (!mFile.exists()) {
+            return latest;
+        }
+        try {
+            final RandomAccessFile f = new RandomAccessFile(mFile, "r");
+            try {
+                if (f.length() < HEADER_SIZE || f.readInt() != MAGIC || f.readInt() != VERSION) {
+                    Log.w(LOG_TAG, "Unknown stats file format");
+                    return latest;
+                }
+                final byte[] bytes = new byte[SLOT_SIZE];
+                for (int slot = 0; slot < 2 && f.getFilePointer() + SLOT_SIZE <= f.length(); slot++) {
+                    f.readFully(bytes);
+                    final ByteBuffer b = ByteBuffer.wrap(bytes);
+                    final long sequence = b.getLong();
+                    final DataStorageManager.SyncStats stats = new DataStorageManager.SyncStats(
+                            b.getLong(), b.getLong(), b.getLong(), b.getLong(), b.getLong());
+                    if (b.getInt() == checksum(bytes) && sequence >= mSequence) {
+                        mSequence = sequence;
+                        latest = stats;
+                    }
+                }
+            } finally {
+                f.close();
+            }
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Error reading " + FILENAME, ex);
+        }
+        return latest;
+    }
+
+    private DataStorageManager.SyncStats loadLegacy() {
+        try {
+            final FileInputStream input = new FileInputStream(mLegacyFile);
+            try {
+                final Properties props = new Properties();
+                props.load(input);
+                return new DataStorageManager.SyncStats(
+                        Long.parseLong(props.getProperty(DataStorageContract.Stats.KEY_LAST_UPLOAD_TIME, "0")),
+                        Long.parseLong(props.getProperty(DataStorageContract.Stats.KEY_BYTES_SENT, "0")),
+                        Long.parseLong(props.getProperty(DataStorageContract.Stats.KEY_OBSERVATIONS_SENT, "0")),
+                        Long.parseLong(props.getProperty(DataStorageContract.Stats.KEY_CELLS_SENT, "0")),
+                        Long.parseLong(props.getProperty(DataStorageContract.Stats.KEY_WIFIS_SENT, "0")));
+            } finally {
+                input.close();
+            }
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Error reading " + LEGACY_FILENAME, ex);
+        } catch (NumberFormatException ex) {
+            Log.e(LOG_TAG, "Error reading " + LEGACY_FILENAME, ex);
+        }
+        return new DataStorageManager.SyncStats(0, 0, 0, 0, 0);
+    }
+
+    void write(DataStorageManager.SyncStats stats) throws IOException {
+        final long sequence = mSequence + 1;
+        mSlot.clear();
+        mSlot.putLong(sequence);
+        mSlot.putLong(stats.mLastUploadTimeMs);
+        mSlot.putLong(stats.mBytesSent);
+        mSlot.putLong(stats.mObservationsSent);
+        mSlot.putLong(stats.mCellsSent);
+        mSlot.putLong(stats.mWifisSent);
+        mSlot.putInt(checksum(mSlot.array()));
+
+        final RandomAccessFile f = new RandomAccessFile(mFile, "rw");
+        try {
+            if (f.length() < HEADER_SIZE) {
+                f.writeInt(MAGIC);
+                f.writeInt(VERSION);
+            }
+            f.seek(HEADER_SIZE + (sequence % 2) * SLOT_SIZE);
+            f.write(mSlot.array());
+        } finally {
+            f.close();
+        }
+        mSequence = sequence;
+    }
+
+    // Of the slot, without the checksum itself
+    private int checksum(byte[] slot) {
+        mCrc.reset();
+        mCrc.update(slot, 0, SLOT_SIZE - 4);
+        return (int) mCrc.getValue();
+    }
+}
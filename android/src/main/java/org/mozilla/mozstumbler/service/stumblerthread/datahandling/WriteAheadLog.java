@@ -0,0 +1,305 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/* Keeps a copy on disk of the reports that are only in memory, so they survive the process being killed.
+ *
+ * Each inserted report is appended to MEMORY_BUFFER_FILENAME as one small record:
+ * [length][format][wifi count][cell count][crc32][report], where the report is UTF-8 JSON or a compact
+ * record (see ReportBatchWriter.FORMAT_COMPACT). When the memory buffer is written to the
+ * journal, the file is truncated. When the memory buffer becomes the send buffer, the file is renamed to
+ * SEND_BUFFER_FILENAME, which is deleted once the send buffer is uploaded or written to the journal.
+ * When the memory buffer is handed off to be written to the journal later, the file is renamed to a
+ * pending file (PENDING_PREFIX + id), which is deleted once that batch is in the journal.
+ *
+ * On startup, replay() returns the reports of all these files, oldest first (a torn record at the end
+ * of a file is dropped), and rewrites the ones the Replayer keeps in memory as the new memory buffer log.
+ *
+ * The stream is not synced, the data is in the OS page cache once write() returns, which is
+ * enough to survive the process being killed.
+ *
+ * Not thread-safe. DataStorageManager calls append(), sealAsPending() and sealAsSendBuffer() with its memory
+ * lock held, and discardPending() and discardSendBuffer(), which only delete a file, with its disk lock held.
+ */
+class WriteAheadLog {
+    private static final String LOG_TAG = AppGlobals.LOG_PREFIX + WriteAheadLog.class.getSimpleName();
+
+    static final String MEMORY_BUFFER_FILENAME = "memory-buffer.wal";
+    static final String SEND_BUFFER_FILENAME = "send-buffer.wal";
+    static final String PENDING_PREFIX = "pending-";
+    static final String PENDING_SUFFIX = ".wal";
+
+    private static final int HEADER_SIZE = 5 * 4;
+    // Sanity check for corrupt length fields, reports are at most a few tens of KB
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    interface Replayer {
+        // Returns false if the report is not kept in memory, and does not need to be logged again
+        boolean replay(int format, byte[] report, int wifiCount, int cellCount);
+    }
+
+    private final File mDir;
+    private final File mMemoryBufferFile;
+    private final File mSendBufferFile;
+    private final CRC32 mCrc = new CRC32();
+    private ByteBuffer mRecord = ByteBuffer.allocate(4096);
+    private FileOutputStream mOut;
+    private int mNextPendingId;
+
+    WriteAheadLog(File dir) {
+        mDir = dir;
+        mMemoryBufferFile = new File(dir, MEMORY_BUFFER_FILENAME);
+        mSendBufferFile = new File(dir, SEND_BUFFER_FILENAME);
+    }
+
+    private static class Record {
+        final int format;
+        final byte[] report;
+        final int wifiCount;
+        final int cellCount;
+
+        Record(int format, byte[] report, int wifiCount, int cellCount) {
+            this.format = format;
+            this.report = report;
+            this.wifiCount = wifiCount;
+            this.cellCount = cellCount;
+        }
+    }
+
+    /* Returns the number of reports replayed. */
+    int replay(Replayer replayer) {
+        final ArrayList<Record> records = new ArrayList<Record>();
+        read(mSendBufferFile, records);
+        final File[] pendingFiles = getPendingFiles();
+        for (File f : pendingFiles) {
+            read(f, records);
+        }
+        read(mMemoryBufferFile, records);
+
+        close();
+        mSendBufferFile.delete();
+        for (File f : pendingFiles) {
+            f.delete();
+        }
+        mMemoryBufferFile.delete();
+
+        for (Record r : records) {
+            if (!replayer.replay(r.format, r.report, r.wifiCount, r.cellCount)) {
+                continue;
+            }
+            try {
+                append(r.format, r.report, r.report.length, r.wifiCount, r.cellCount);
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "Error rewriting the memory buffer log", ex);
+            }
+        }
+        return records.size();
+    }
+
+    // Sorted by id, which is the order they were handed off in
+    private File[] getPendingFiles() {
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        final ArrayList<File> pending = new ArrayList<File>();
+        for (File f : files) {
+            if (getPendingId(f.getName()) >= 0) {
+                pending.add(f);
+            }
+        }
+        Collections.sort(pending, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final int l = getPendingId(lhs.getName());
+                final int r = getPendingId(rhs.getName());
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+        return pending.toArray(new File[pending.size()]);
+    }
+
+    private static int getPendingId(String name) {
+        if (!name.startsWith(PENDING_PREFIX) || !name.endsWith(PENDING_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(PENDING_PREFIX.length(), name.length() - PENDING_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private void read(File file, ArrayList<Record> out) {
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length = in.readInt();
+                final int format = in.readInt();
+                final int wifiCount = in.readInt();
+                final int cellCount = in.readInt();
+                final int checksum = in.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    Log.w(LOG_TAG, "Corrupt record in " + file.getName());
+                    return;
+                }
+                final byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                crc.reset();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    Log.w(LOG_TAG, "Checksum mismatch in " + file.getName());
+                    return;
+                }
+                out.add(new Record(format, bytes, wifiCount, cellCount));
+            }
+        } catch (EOFException ex) {
+            // end of file, or a torn record that is dropped
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Error reading " + file.getName(), ex);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "", ex);
+                }
+            }
+        }
+    }
+
+    void append(String report, int wifiCount, int cellCount) throws IOException {
+        final byte[] bytes = report.getBytes("UTF-8");
+        append(ReportBatchWriter.FORMAT_JSON, bytes, bytes.length, wifiCount, cellCount);
+    }
+
+    void append(int format, byte[] report, int length, int wifiCount, int cellCount) throws IOException {
+        if (mRecord.capacity() < HEADER_SIZE + length) {
+            mRecord = ByteBuffer.allocate(HEADER_SIZE + length);
+        }
+
+        mCrc.reset();
+        mCrc.update(report, 0, length);
+        mRecord.clear();
+        mRecord.putInt(length);
+        mRecord.putInt(format);
+        mRecord.putInt(wifiCount);
+        mRecord.putInt(cellCount);
+        mRecord.putInt((int) mCrc.getValue());
+        mRecord.put(report, 0, length);
+
+        if (mOut == null) {
+            mOut = new FileOutputStream(mMemoryBufferFile, true);
+        }
+        mOut.write(mRecord.array(), 0, mRecord.position());
+    }
+
+    /* The memory buffer was written to the journal. */
+    void truncateMemoryBuffer() {
+        close();
+        mMemoryBufferFile.delete();
+    }
+
+    /* The memory buffer was handed off to be written to the journal. Returns the id to pass to discardPending(),
+     * or -1 if there is nothing logged. */
+    int sealAsPending() {
+        close();
+        if (!mMemoryBufferFile.exists()) {
+            return -1;
+        }
+        final int id = mNextPendingId++;
+        if (!mMemoryBufferFile.renameTo(new File(mDir, PENDING_PREFIX + id + PENDING_SUFFIX))) {
+            // The records must not stay in the memory buffer log, they would be replayed with the batch
+            Log.w(LOG_TAG, "Error sealing the memory buffer log");
+            mMemoryBufferFile.delete();
+            return -1;
+        }
+        return id;
+    }
+
+    /* The batch handed off by sealAsPending() is in the journal. */
+    void discardPending(int id) {
+        if (id >= 0) {
+            new File(mDir, PENDING_PREFIX + id + PENDING_SUFFIX).delete();
+        }
+    }
+
+    /* The memory buffer became the send buffer. */
+    void sealAsSendBuffer() {
+        close();
+        if (!mMemoryBufferFile.exists()) {
+            return;
+        }
+        if (!mSendBufferFile.exists() && mMemoryBufferFile.renameTo(mSendBufferFile)) {
+            return;
+        }
+
+        // There is already a send buffer log, add these records to it.
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(mMemoryBufferFile);
+            out = new FileOutputStream(mSendBufferFile, true);
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Error sealing the memory buffer log", ex);
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "", ex);
+            }
+        }
+        mMemoryBufferFile.delete();
+    }
+
+    /* The send buffer was uploaded, or written to the journal. */
+    void discardSendBuffer() {
+        mSendBufferFile.delete();
+    }
+
+    private void close() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.close();
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "", ex);
+        }
+        mOut = null;
+    }
+}
@@ -5,7 +5,6 @@
 package org.mozilla.mozstumbler.service.stumblerthread.scanners;
 
 import android.content.Context;
-import android.content.Intent;
 import android.location.GpsSatellite;
 import android.location.GpsStatus;
 import android.location.Location;
@@ -13,22 +12,13 @@ import android.location.LocationListener;
 import android.location.LocationManager;
 import android.location.LocationProvider;
 import android.os.Bundle;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.AppGlobals.ActiveOrPassiveStumbling;
+import org.mozilla.mozstumbler.service.stumblerthread.ScanEventBus;
 
 public class GPSScanner implements LocationListener {
-    public static final String ACTION_BASE = AppGlobals.ACTION_NAMESPACE + ".GPSScanner.";
-    public static final String ACTION_GPS_UPDATED = ACTION_BASE + "GPS_UPDATED";
-    public static final String ACTION_ARG_TIME = AppGlobals.ACTION_ARG_TIME;
-    public static final String SUBJECT_NEW_STATUS = "new_status";
-    public static final String SUBJECT_LOCATION_LOST = "location_lost";
-    public static final String SUBJECT_NEW_LOCATION = "new_location";
-    public static final String NEW_STATUS_ARG_FIXES = "fixes";
-    public static final String NEW_STATUS_ARG_SATS = "sats";
-    public static final String NEW_LOCATION_ARG_LOCATION = "location";
     public static final int MIN_SAT_USED_IN_FIX = 3;
 
     private static final String LOG_TAG = AppGlobals.LOG_PREFIX + GPSScanner.class.getSimpleName();
@@ -219,18 +209,11 @@ public class GPSScanner implements LocationListener {
     }
 
     private void reportNewLocationReceived(Location location) {
-        Intent i = new Intent(ACTION_GPS_UPDATED);
-        i.putExtra(Intent.EXTRA_SUBJECT, SUBJECT_NEW_LOCATION);
-        i.putExtra(NEW_LOCATION_ARG_LOCATION, location);
-        i.putExtra(ACTION_ARG_TIME, System.currentTimeMillis());
-        LocalBroadcastManager.getInstance(mContext).sendBroadcastSync(i);
+        ScanEventBus.getInstance().postNewLocation(location);
     }
 
     private void reportLocationLost() {
-        Intent i = new Intent(ACTION_GPS_UPDATED);
-        i.putExtra(Intent.EXTRA_SUBJECT, SUBJECT_LOCATION_LOST);
-        i.putExtra(ACTION_ARG_TIME, System.currentTimeMillis());
-        LocalBroadcastManager.getInstance(mContext).sendBroadcastSync(i);
+        ScanEventBus.getInstance().postLocationLost();
     }
 
 }
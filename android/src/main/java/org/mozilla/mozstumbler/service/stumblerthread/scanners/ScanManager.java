@@ -9,13 +9,12 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.location.Location;
 import android.os.BatteryManager;
-import android.support.v4.content.LocalBroadcastManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.AppGlobals.ActiveOrPassiveStumbling;
-import org.mozilla.mozstumbler.service.stumblerthread.Reporter;
+import org.mozilla.mozstumbler.service.stumblerthread.ScanEventBus;
 import org.mozilla.mozstumbler.service.stumblerthread.blocklist.WifiBlockListInterface;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellScanner;
 
@@ -81,8 +80,7 @@ public class ScanManager {
         mPassiveModeFlushTimer.schedule(new TimerTask() {
             @Override
             public void run() {
-                Intent flush = new Intent(Reporter.ACTION_FLUSH_TO_BUNDLE);
-                LocalBroadcastManager.getInstance(mContext).sendBroadcastSync(flush);
+                ScanEventBus.getInstance().postFlush();
             }
         }, when);
     }
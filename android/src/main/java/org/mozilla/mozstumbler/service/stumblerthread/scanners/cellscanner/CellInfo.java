@@ -95,6 +95,18 @@ public class CellInfo implements Parcelable {
         return mPsc;
     }
 
+    public int getSignal() {
+        return mSignal;
+    }
+
+    public int getAsu() {
+        return mAsu;
+    }
+
+    public int getTa() {
+        return mTa;
+    }
+
     public JSONObject toJSONObject() {
         final JSONObject obj = new JSONObject();
 
@@ -125,6 +137,36 @@ public class CellInfo implements Parcelable {
                 + " " + getPsc();
     }
 
+    /* The fields of getCellIdentity(), hashed (64-bit FNV-1a) without making a String. */
+    public long getCellIdentityKey() {
+        long hash = 0xcbf29ce484222325L;
+        hash = hashString(hash, mRadio);
+        hash = hashString(hash, mCellRadio);
+        hash = hashInt(hash, mMcc);
+        hash = hashInt(hash, mMnc);
+        hash = hashInt(hash, mLac);
+        hash = hashInt(hash, mCid);
+        return hashInt(hash, mPsc);
+    }
+
+    private static long hashString(long hash, String s) {
+        if (s == null) {
+            return hashInt(hash, -1);
+        }
+        for (int i = 0; i < s.length(); i++) {
+            hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        // A separator, so that ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0xffff) * 0x100000001b3L;
+    }
+
+    private static long hashInt(long hash, int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -4,41 +4,32 @@
 
 package org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Message;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.AppGlobals.ActiveOrPassiveStumbling;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.mozilla.mozstumbler.service.AppGlobals.ActiveOrPassiveStumbling;
-import org.mozilla.mozstumbler.service.stumblerthread.Reporter;
+import org.mozilla.mozstumbler.service.stumblerthread.ScanEventBus;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.Observation;
+import org.mozilla.mozstumbler.service.utils.LongKeyedMap;
 
 public class CellScanner {
-    public static final String ACTION_BASE = AppGlobals.ACTION_NAMESPACE + ".CellScanner.";
-    public static final String ACTION_CELLS_SCANNED = ACTION_BASE + "CELLS_SCANNED";
-    public static final String ACTION_CELLS_SCANNED_ARG_CELLS = "cells";
-    public static final String ACTION_CELLS_SCANNED_ARG_TIME = AppGlobals.ACTION_ARG_TIME;
-
     private static final String LOG_TAG = AppGlobals.LOG_PREFIX + CellScanner.class.getSimpleName();
     private static final long CELL_MIN_UPDATE_TIME = 1000; // milliseconds
 
     private final Context mContext;
     private Timer mCellScanTimer;
-    private final Set<String> mCells = new HashSet<String>();
-    private final ReportFlushedReceiver mReportFlushedReceiver = new ReportFlushedReceiver();
+    private final LongKeyedMap<CellInfo> mCells = new LongKeyedMap<CellInfo>();
+    private final ReportFlushedListener mReportFlushedListener = new ReportFlushedListener();
     private final AtomicBoolean mReportWasFlushed = new AtomicBoolean();
     private Handler mBroadcastScannedHandler;
     private final CellScannerImpl mCellScannerImplementation;
@@ -62,15 +53,14 @@ public class CellScanner {
             return;
         }
 
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mReportFlushedReceiver,
-                new IntentFilter(Reporter.ACTION_NEW_BUNDLE));
+        ScanEventBus.getInstance().register(mReportFlushedListener);
 
-        // This is to ensure the broadcast happens from the same thread the CellScanner start() is on
+        // This is to ensure the results are posted from the same thread the CellScanner start() is on
         mBroadcastScannedHandler = new Handler() {
             @Override
+            @SuppressWarnings("unchecked")
             public void handleMessage(Message msg) {
-                Intent intent = (Intent) msg.obj;
-                LocalBroadcastManager.getInstance(mContext).sendBroadcastSync(intent);
+                ScanEventBus.getInstance().postCellsScanned((List<CellInfo>) msg.obj);
             }
         };
 
@@ -94,7 +84,6 @@ public class CellScanner {
                     return;
                 }
                 //if (SharedConstants.isDebug) Log.d(LOG_TAG, "Cell Scanning Timer fired");
-                final long curTime = System.currentTimeMillis();
 
                 ArrayList<CellInfo> cells = (sTestingModeCellInfoArray != null)? sTestingModeCellInfoArray :
                         new ArrayList<CellInfo>(mCellScannerImplementation.getCellInfo());
@@ -107,17 +96,10 @@ public class CellScanner {
                     clearCells();
                 }
 
-                for (CellInfo cell : cells) {
-                    addToCells(cell.getCellIdentity());
-                }
+                addToCells(cells);
 
-                Intent intent = new Intent(ACTION_CELLS_SCANNED);
-                intent.putParcelableArrayListExtra(ACTION_CELLS_SCANNED_ARG_CELLS, cells);
-                intent.putExtra(ACTION_CELLS_SCANNED_ARG_TIME, curTime);
-                // send to handler, so broadcast is not from timer thread
-                Message message = new Message();
-                message.obj = intent;
-                mBroadcastScannedHandler.sendMessage(message);
+                // send to handler, so the results are not posted from the timer thread
+                mBroadcastScannedHandler.obtainMessage(0, cells).sendToTarget();
 
             }
         }, 0, CELL_MIN_UPDATE_TIME);
@@ -127,14 +109,16 @@ public class CellScanner {
         mCells.clear();
     }
 
-    private synchronized void addToCells(String cell) {
-        mCells.add(cell);
+    private synchronized void addToCells(List<CellInfo> cells) {
+        for (int i = 0; i < cells.size(); i++) {
+            mCells.putIfAbsent(cells.get(i).getCellIdentityKey(), cells.get(i));
+        }
     }
 
     public synchronized void stop() {
         mReportWasFlushed.set(false);
         clearCells();
-        LocalBroadcastManager.getInstance(mContext).unregisterReceiver(mReportFlushedReceiver);
+        ScanEventBus.getInstance().unregister(mReportFlushedListener);
 
         if (mCellScanTimer != null) {
             mCellScanTimer.cancel();
@@ -147,9 +131,9 @@ public class CellScanner {
         return mCells.size();
     }
 
-    private class ReportFlushedReceiver extends BroadcastReceiver {
+    private class ReportFlushedListener implements ScanEventBus.ObservationListener {
         @Override
-        public void onReceive(Context c, Intent i) {
+        public void onNewObservation(Observation observation) {
             mReportWasFlushed.set(true);
         }
     }
@@ -9,13 +9,24 @@ package org.mozilla.mozstumbler.service.uploadthread;
  */
 public class AsyncUploadParam {
 
+    // Batches submitted at once, see UploadPipeline
+    public static final int DEFAULT_MAX_CONCURRENT_SUBMITS = 2;
+
     final boolean useWifiOnly;
     final String nickname;
     final String emailAddress;
+    final int maxConcurrentSubmits;
 
     public AsyncUploadParam(boolean wifiOnly,
                             String nick,
                             String email) {
+        this(wifiOnly, nick, email, DEFAULT_MAX_CONCURRENT_SUBMITS);
+    }
+
+    public AsyncUploadParam(boolean wifiOnly,
+                            String nick,
+                            String email,
+                            int maxSubmits) {
 
         if (email == null) {
             email = "";
@@ -28,5 +39,6 @@ public class AsyncUploadParam {
         useWifiOnly = wifiOnly;
         nickname = nick;
         emailAddress = email;
+        maxConcurrentSubmits = maxSubmits;
     }
 }
@@ -8,14 +8,13 @@ import android.os.AsyncTask;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.http.KeepAliveEstimator;
 import org.mozilla.mozstumbler.service.core.http.HttpUtil;
 import org.mozilla.mozstumbler.service.core.http.IHttpUtil;
 import org.mozilla.mozstumbler.service.core.http.ILocationService;
-import org.mozilla.mozstumbler.service.core.http.IResponse;
 import org.mozilla.mozstumbler.service.core.http.MLS;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
 import org.mozilla.mozstumbler.service.utils.NetworkInfo;
-import org.mozilla.mozstumbler.service.utils.Zipper;
 
 import java.io.IOException;
 import java.util.HashMap;
@@ -26,7 +25,8 @@ import java.util.concurrent.atomic.AtomicLong;
 * it will return immediately, and SyncResult is null.
 *
 * Threading:
-* Uploads on a separate thread. ONLY DataStorageManager is thread-safe, do not call
+* Uploads on a separate thread, the batches are submitted by UploadPipeline on its own threads.
+* ONLY DataStorageManager is thread-safe, do not call
 * preferences, do not call any code that isn't thread-safe. You will cause suffering.
 * An exception is made for AppGlobals.isDebug, a false reading is of no consequence.
 *
@@ -49,6 +49,8 @@ public class AsyncUploader extends AsyncTask<AsyncUploadParam, AsyncProgressList
     private static AsyncUploaderListener sAsyncListener;
     private static final String LOG_TAG = AppGlobals.LOG_PREFIX + AsyncUploader.class.getSimpleName();
     public static final AtomicLong sTotalBytesUploadedThisSession = new AtomicLong();
+    // Throughput of the last upload, from the first read to the last response
+    public static final AtomicLong sLastUploadBytesPerSecond = new AtomicLong();
     public static final AtomicBoolean isUploading = new AtomicBoolean();
 
     // This listener can show progress for any AsyncUploader. This global use is particularly
@@ -100,11 +102,6 @@ public class AsyncUploader extends AsyncTask<AsyncUploadParam, AsyncProgressList
     }
 
     private void uploadReports(AsyncUploadParam param) {
-        long uploadedObservations = 0;
-        long uploadedCells = 0;
-        long uploadedWifis = 0;
-        long totalBytesSent = 0;
-
         if (param.useWifiOnly && !NetworkInfo.getInstance().isWifiAvailable()) {
             if (AppGlobals.isDebug) {
                 Log.d(LOG_TAG, "not on WiFi, not sending");
@@ -118,58 +115,42 @@ public class AsyncUploader extends AsyncTask<AsyncUploadParam, AsyncProgressList
 
         String error = null;
 
-        try {
-            DataStorageManager.ReportBatch batch = dm.getFirstBatch();
-            HashMap<String, String> headers = new HashMap<String, String>();
-            headers.put(MLS.EMAIL_HEADER, param.emailAddress);
-            headers.put(MLS.NICKNAME_HEADER, param.nickname);
-
-            while (batch != null) {
-               IResponse result = mls.submit(batch.data, headers, true);
-
-                if (result != null && result.isSuccessCode2XX()) {
-                    totalBytesSent += result.bytesSent();
-
-                    String logMsg =  "MLS Submit: [HTTP Status:" + result.httpResponse() + "], [Bytes Sent:" + result.bytesSent() + "]";
-                    AppGlobals.guiLogInfo(logMsg, "#FFFFCC", true, false);
-
-                    dm.delete(batch.filename);
-
-                    uploadedObservations += batch.reportCount;
-                    uploadedWifis += batch.wifiCount;
-                    uploadedCells += batch.cellCount;
-                } else {
-                    String logMsg = "HTTP error unknown";
-                    if (result != null) {
-                        logMsg = "HTTP non-success code: " + result.httpResponse();
-                    }
-                    
-                    if (result != null && result.isErrorCode400BadRequest()) {
-                        logMsg += ", 400 Error, deleting bad report";
-                        if (AppGlobals.guiLogMessageBuffer != null) { // if true, this is a GUI app
-                            String unzipped = Zipper.unzipData(batch.data);
-                            AppGlobals.guiLogInfo(unzipped, "red", false, true);
-                        }
-                        dm.delete(batch.filename);
-                    } else {
-                        DataStorageManager.getInstance().saveCurrentReportsSendBufferToDisk();
-                    }
-                    AppGlobals.guiLogError(logMsg);
-                }
-
-                batch = dm.getNextBatch();
-            }
-        }
-        catch (IOException ex) {
-            error = ex.toString();
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(MLS.EMAIL_HEADER, param.emailAddress);
+        headers.put(MLS.NICKNAME_HEADER, param.nickname);
+
+        final UploadScheduler scheduler = UploadScheduler.getInstance();
+        dm.setUploadBatchTargetBytes(scheduler.getBatchTargetBytes());
+
+        // On an error, the batches uploaded before it are still counted
+        final UploadPipeline.Result result = new UploadPipeline(mls, dm, param.maxConcurrentSubmits).upload(headers);
+        if (result.error != null) {
+            error = result.error.toString();
         }
 
-        sTotalBytesUploadedThisSession.addAndGet(totalBytesSent);
+        if (result.batches > 0) {
+            sTotalBytesUploadedThisSession.addAndGet(result.bytesSent);
+            sLastUploadBytesPerSecond.set(result.getBytesPerSecond());
+            scheduler.recordUpload(result.bytesSent, result.elapsedMs);
+
+            String logMsg = "Uploaded " + (result.batches - result.failedBatches) + "/" + result.batches + " batches, " +
+                    result.bytesSent + " bytes in " + result.elapsedMs + " ms (" + result.getBytesPerSecond() + " bytes/s, " +
+                    param.maxConcurrentSubmits + " in flight, " + result.retries + " retries)";
+            if (result.isStopped) {
+                logMsg += ", stopped after repeated failures";
+            }
+            Log.d(LOG_TAG, logMsg);
+            AppGlobals.guiLogInfo(logMsg);
+
+            final KeepAliveEstimator keepAlive = KeepAliveEstimator.getInstance();
+            Log.d(LOG_TAG, "Connection reuse (guessed): " + keepAlive.getGuessedReusedCount() + " reused, " +
+                    keepAlive.getGuessedNewCount() + " new");
+        }
 
         try {
-            dm.incrementSyncStats(totalBytesSent, uploadedObservations, uploadedCells, uploadedWifis);
+            dm.incrementSyncStats(result.bytesSent, result.reports, result.cells, result.wifis);
         } catch (IOException ex) {
-            error = ex.toString();
+            error = (error == null) ? ex.toString() : error + ", " + ex;
         } finally {
             if (error != null) {
                 Log.d(LOG_TAG, error);
@@ -0,0 +1,157 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.http.IResponse;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/* Decides when the next submit to MLS may go out, from the outcomes of the previous ones.
+ *
+ * A failed submit delays the next one by an exponential backoff with jitter, or by the server's Retry-After,
+ * whichever is longer. A rejected batch says nothing about the server, and is neither a failure nor a success
+ * here. After FAILURE_THRESHOLD consecutive failures the circuit is open: the upload stops,
+ * and the next upload waits for the longer upload backoff, then probes the server with one batch at a time
+ * until a submit succeeds.
+ *
+ * The state is kept for the process, across uploads. Thread-safe.
+ */
+class RetryScheduler {
+    private static final String LOG_TAG = AppGlobals.LOG_PREFIX + RetryScheduler.class.getSimpleName();
+
+    enum Outcome {
+        SUCCESS,
+        // The server is fine, the batch is not: it is dropped, and not retried
+        BAD_REQUEST,
+        // Worth retrying: no response, 408, 429, 5xx
+        RETRYABLE,
+        // Other errors (such as 401, 403, 413), the batch stays queued for a later upload.
+        // Not counted as a failure, so these can't open the circuit for all the batches.
+        REJECTED
+    }
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final int MAX_ATTEMPTS_PER_BATCH = 3;
+
+    // Between the submits of one upload
+    static final long SUBMIT_BACKOFF_BASE_MS = 1000;
+    // Between uploads, once the circuit is open
+    static final long UPLOAD_BACKOFF_BASE_MS = 1000 * 60 * 5;
+    static final long MAX_BACKOFF_MS = 1000 * 60 * 60 * 6;
+    // Longer Retry-After values are assumed to be bogus
+    static final long MAX_RETRY_AFTER_MS = 1000 * 60 * 60 * 24;
+
+    private static final RetryScheduler sInstance = new RetryScheduler(new Random());
+
+    private final Random mRandom;
+    private int mConsecutiveFailures;
+    private long mNotBeforeMs;
+
+    static RetryScheduler getInstance() {
+        return sInstance;
+    }
+
+    RetryScheduler(Random random) {
+        mRandom = random;
+    }
+
+    static Outcome classify(IResponse response) {
+        if (response == null) {
+            return Outcome.RETRYABLE;
+        }
+        final int status = response.httpResponse();
+        if (response.isSuccessCode2XX()) {
+            return Outcome.SUCCESS;
+        } else if (response.isErrorCode400BadRequest()) {
+            return Outcome.BAD_REQUEST;
+        } else if (status == 408 || status == 429 || status / 100 == 5) {
+            return Outcome.RETRYABLE;
+        }
+        return Outcome.REJECTED;
+    }
+
+    /* Records the outcome of a submit, and returns it. */
+    synchronized Outcome record(IResponse response) {
+        final Outcome outcome = classify(response);
+        if (outcome == Outcome.SUCCESS || outcome == Outcome.BAD_REQUEST) {
+            mConsecutiveFailures = 0;
+            mNotBeforeMs = 0;
+            return outcome;
+        } else if (outcome == Outcome.REJECTED) {
+            return outcome;
+        }
+
+        mConsecutiveFailures++;
+        long delayMs = isOpen() ?
+                backoff(UPLOAD_BACKOFF_BASE_MS, mConsecutiveFailures - FAILURE_THRESHOLD) :
+                backoff(SUBMIT_BACKOFF_BASE_MS, mConsecutiveFailures - 1);
+        final long now = System.currentTimeMillis();
+        final long retryAfterMs = (response == null) ? -1 : parseRetryAfterMs(response.getFirstHeader("Retry-After"), now);
+        delayMs = Math.max(delayMs, Math.min(retryAfterMs, MAX_RETRY_AFTER_MS));
+        mNotBeforeMs = now + delayMs;
+        return outcome;
+    }
+
+    // base * 2^exponent, capped, and randomly shortened by up to half, so clients don't retry in step
+    private long backoff(long baseMs, int exponent) {
+        final long delayMs = Math.min(MAX_BACKOFF_MS, baseMs << Math.min(exponent, 20));
+        return delayMs / 2 + (long) (mRandom.nextDouble() * (delayMs / 2));
+    }
+
+    /* Retry-After is either seconds, or an HTTP date. Returns -1 if missing or invalid. */
+    static long parseRetryAfterMs(String value, long nowMs) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException ex) {
+            // not seconds
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            final Date date = format.parse(value);
+            return Math.max(0, date.getTime() - nowMs);
+        } catch (ParseException ex) {
+            Log.w(LOG_TAG, "Invalid Retry-After: " + value);
+            return -1;
+        }
+    }
+
+    synchronized boolean isOpen() {
+        return mConsecutiveFailures >= FAILURE_THRESHOLD;
+    }
+
+    /* How long until the next submit may go out, 0 if it can go now. */
+    synchronized long getDelayMs() {
+        return Math.max(0, mNotBeforeMs - System.currentTimeMillis());
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return mConsecutiveFailures;
+    }
+
+    /* Waits until the next submit may go out. */
+    void awaitTurn() throws InterruptedException {
+        final long delayMs = getDelayMs();
+        if (delayMs > 0) {
+            sleep(delayMs);
+        }
+    }
+
+    // Overridden by tests
+    void sleep(long ms) throws InterruptedException {
+        Thread.sleep(ms);
+    }
+}
@@ -18,7 +18,8 @@ import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageMa
 import org.mozilla.mozstumbler.service.utils.NetworkInfo;
 
 // Only if data is queued and device awake: check network availability and upload.
-// Mozilla Stumbler use: this alarm is periodic and repeating.
+// Mozilla Stumbler use: this alarm is re-armed after each upload, for when the UploadScheduler decides
+// (and on connectivity changes, see ConnectivityChangeReceiver).
 // Fennec use: The alarm is single-shot and it is set to run -if there is data in the queue-
 // under these conditions:
 // 1) Fennec start/pause (actually gecko start which is ~4 sec after Fennec start).
@@ -33,6 +34,16 @@ public class UploadAlarmReceiver extends BroadcastReceiver {
     private static final String LOG_TAG = AppGlobals.LOG_PREFIX + UploadAlarmReceiver.class.getSimpleName();
     private static final String EXTRA_IS_REPEATING = "is_repeating";
     private static boolean sIsAlreadyScheduled;
+    // When the adaptive alarm is armed for, 0 if it isn't
+    private static long sAdaptiveDeadlineMs;
+
+    // Registered by the StumblerService while data is queued: the network coming or going changes the schedule
+    public static class ConnectivityChangeReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            scheduleAdaptiveAlarm(context);
+        }
+    }
 
     public static class UploadAlarmService extends IntentService {
 
@@ -71,11 +82,28 @@ public class UploadAlarmReceiver extends BroadcastReceiver {
                 }
             }
 
+            // The next alarm is armed first: this upload may not run, and its outcome is not waited for
+            final UploadScheduler.Decision decision = decide();
+            Log.d(LOG_TAG, "Alarm upload(), " + decision);
+            if (isRepeating) {
+                onAdaptiveAlarmFired();
+                UploadAlarmReceiver.scheduleAdaptiveAlarm(this);
+            }
+
+            // The last uploads failed: wait for the backoff (or the server's Retry-After) to pass.
+            // A single-shot alarm is set for when it has passed.
+            if (decision.reason == UploadScheduler.Reason.BACKING_OFF) {
+                if (!isRepeating) {
+                    UploadAlarmReceiver.scheduleAlarm(this, decision.delayMs / 1000 + 1, false);
+                }
+                return;
+            }
+
             // @TODO: Check the buildtype to see if we're running in Client mode
             // or inside of Fennec.  If we're in Client mode, we should send a
             // signal to MainApp that we want to initiate
             // an upload instead of doing it right here.
-            if (NetworkInfo.getInstance().isWifiAvailable()) {
+            if (decision.delayMs != UploadScheduler.NEVER) {
                 Log.d(LOG_TAG, "Alarm upload(), call AsyncUploader");
 
                 AsyncUploader uploader = new AsyncUploader();
@@ -89,16 +117,56 @@ public class UploadAlarmReceiver extends BroadcastReceiver {
         }
     }
 
+    private static UploadScheduler.Decision decide() {
+        final NetworkInfo networkInfo = NetworkInfo.getInstance();
+        return UploadScheduler.getInstance().decide(DataStorageManager.getInstance().getQueuedCounts().mBytes,
+                networkInfo.isConnected(), networkInfo.isWifiAvailable(), Prefs.getInstance().getUseWifiOnly());
+    }
+
+    /* Arms the alarm for when the UploadScheduler decides the next upload should run, or cancels it if there
+     * should be none for now. An armed alarm is only moved earlier: re-arming it later on every change
+     * would keep pushing the upload back. */
+    public static synchronized void scheduleAdaptiveAlarm(Context c) {
+        if (DataStorageManager.getInstance() == null) {
+            return;
+        }
+        final UploadScheduler.Decision decision = decide();
+        if (decision.delayMs == UploadScheduler.NEVER) {
+            Log.d(LOG_TAG, "no upload alarm: " + decision);
+            cancelAlarm(c, true);
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final long deadlineMs = now + decision.delayMs;
+        if (sAdaptiveDeadlineMs > now && sAdaptiveDeadlineMs <= deadlineMs) {
+            return;
+        }
+
+        Log.d(LOG_TAG, "schedule adaptive alarm: " + decision);
+        sIsAlreadyScheduled = true;
+        sAdaptiveDeadlineMs = deadlineMs;
+        AlarmManager alarmManager = (AlarmManager) c.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.RTC, deadlineMs, createIntent(c, true));
+    }
+
+    private static synchronized void onAdaptiveAlarmFired() {
+        sAdaptiveDeadlineMs = 0;
+    }
+
     private static PendingIntent createIntent(Context c, boolean isRepeating) {
         Intent intent = new Intent(c, UploadAlarmReceiver.class);
         intent.putExtra(EXTRA_IS_REPEATING, isRepeating);
         return PendingIntent.getBroadcast(c, 0, intent, 0);
     }
 
-    public static void cancelAlarm(Context c, boolean isRepeating) {
+    public static synchronized void cancelAlarm(Context c, boolean isRepeating) {
         Log.d(LOG_TAG, "cancelAlarm");
         // this is to stop scheduleAlarm from constantly rescheduling, not to guard cancellation.
         sIsAlreadyScheduled = false;
+        if (isRepeating) {
+            sAdaptiveDeadlineMs = 0;
+        }
         AlarmManager alarmManager = (AlarmManager) c.getSystemService(Context.ALARM_SERVICE);
         PendingIntent pi = createIntent(c, isRepeating);
         alarmManager.cancel(pi);
@@ -127,6 +195,7 @@ public class UploadAlarmReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(final Context context, Intent intent) {
         Intent startServiceIntent = new Intent(context, UploadAlarmService.class);
+        startServiceIntent.putExtra(EXTRA_IS_REPEATING, intent.getBooleanExtra(EXTRA_IS_REPEATING, true));
         context.startService(startServiceIntent);
     }
 }
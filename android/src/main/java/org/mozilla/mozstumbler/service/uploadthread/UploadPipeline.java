@@ -0,0 +1,281 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.http.ILocationService;
+import org.mozilla.mozstumbler.service.core.http.IResponse;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
+import org.mozilla.mozstumbler.service.utils.Zipper;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/* Uploads the queued batches with up to maxInFlight submits at once. While the submits are in flight,
+ * the next batch is read from DataStorageManager, so it is ready as soon as a submit completes.
+ *
+ * The results are handled on the calling thread, in the order the submits complete: an accepted batch
+ * (or one rejected as a bad request) is deleted there, once. A batch that failed with a retryable error
+ * is submitted again, up to RetryScheduler.MAX_ATTEMPTS_PER_BATCH times; RetryScheduler spaces out the
+ * submits after a failure, and stops the upload once its circuit opens. A merged batch rejected as too large
+ * (413) is split back into its stored batches, which are submitted one by one. A batch that is not uploaded stays
+ * queued for the next upload; if it is the in-memory send buffer, it is written to disk.
+ */
+class UploadPipeline {
+    private static final String LOG_TAG = AppGlobals.LOG_PREFIX + UploadPipeline.class.getSimpleName();
+
+    static class Result {
+        int batches;
+        int failedBatches;
+        int retries;
+        // The circuit was open, nothing more was submitted
+        boolean isStopped;
+        long reports;
+        long wifis;
+        long cells;
+        long bytesSent;
+        long elapsedMs;
+        // The first error from DataStorageManager, if any. The counts still add up what was uploaded.
+        IOException error;
+
+        long getBytesPerSecond() {
+            return (elapsedMs < 1) ? bytesSent * 1000 : bytesSent * 1000 / elapsedMs;
+        }
+    }
+
+    private static class Outcome {
+        final DataStorageManager.ReportBatch batch;
+        final IResponse response;
+
+        Outcome(DataStorageManager.ReportBatch batch, IResponse response) {
+            this.batch = batch;
+            this.response = response;
+        }
+    }
+
+    private final ILocationService mLocationService;
+    private final DataStorageManager mDataStorageManager;
+    private final int mMaxInFlight;
+    private final RetryScheduler mRetryScheduler;
+    // Failed batches to submit again, and the number of submits of each batch so far
+    private final ArrayDeque<DataStorageManager.ReportBatch> mRetries = new ArrayDeque<DataStorageManager.ReportBatch>();
+    private final IdentityHashMap<DataStorageManager.ReportBatch, Integer> mAttempts =
+            new IdentityHashMap<DataStorageManager.ReportBatch, Integer>();
+
+    UploadPipeline(ILocationService locationService, DataStorageManager dm, int maxInFlight) {
+        this(locationService, dm, maxInFlight, RetryScheduler.getInstance());
+    }
+
+    UploadPipeline(ILocationService locationService, DataStorageManager dm, int maxInFlight, RetryScheduler retryScheduler) {
+        mLocationService = locationService;
+        mDataStorageManager = dm;
+        mMaxInFlight = Math.max(1, maxInFlight);
+        mRetryScheduler = retryScheduler;
+    }
+
+    // While the circuit is open, one batch probes the server
+    private int getMaxInFlight() {
+        return mRetryScheduler.isOpen() ? 1 : mMaxInFlight;
+    }
+
+    /* Stops submitting at the first IOException from DataStorageManager, and returns it in the Result
+     * once the submits in flight have completed. */
+    Result upload(final Map<String, String> headers) {
+        final Result result = new Result();
+        final long startMs = System.currentTimeMillis();
+        if (mRetryScheduler.isOpen() && mRetryScheduler.getDelayMs() > 0) {
+            Log.d(LOG_TAG, "Backing off for " + mRetryScheduler.getDelayMs() + " ms, not uploading");
+            result.isStopped = true;
+            return result;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(mMaxInFlight, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, LOG_TAG);
+            }
+        });
+        final CompletionService<Outcome> submits = new ExecutorCompletionService<Outcome>(executor);
+
+        IOException error = null;
+        boolean isInterrupted = false;
+        int inFlight = 0;
+        try {
+            DataStorageManager.ReportBatch batch;
+            try {
+                batch = mDataStorageManager.getFirstBatch();
+            } catch (IOException ex) {
+                error = ex;
+                batch = null;
+            }
+            while (batch != null || !mRetries.isEmpty() || inFlight > 0) {
+                if (result.isStopped || isInterrupted || error != null) {
+                    batch = null;
+                    error = giveUpRetries(error);
+                }
+                while (!result.isStopped && (batch != null || !mRetries.isEmpty()) && inFlight < getMaxInFlight()) {
+                    final boolean isRetry = !mRetries.isEmpty();
+                    final DataStorageManager.ReportBatch toSubmit = isRetry ? mRetries.removeFirst() : batch;
+                    final Integer attempts = mAttempts.get(toSubmit);
+                    mAttempts.put(toSubmit, (attempts == null) ? 1 : attempts + 1);
+                    submits.submit(new Callable<Outcome>() {
+                        @Override
+                        public Outcome call() {
+                            try {
+                                mRetryScheduler.awaitTurn();
+                                return new Outcome(toSubmit, mLocationService.submit(toSubmit.data, headers, true));
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                                return new Outcome(toSubmit, null);
+                            } catch (RuntimeException ex) {
+                                Log.e(LOG_TAG, "Error submitting " + toSubmit.filename, ex);
+                                return new Outcome(toSubmit, null);
+                            }
+                        }
+                    });
+                    inFlight++;
+                    if (isRetry) {
+                        continue;
+                    }
+
+                    // read ahead, while the submits are in flight
+                    try {
+                        batch = mDataStorageManager.getNextBatch();
+                    } catch (IOException ex) {
+                        error = ex;
+                        batch = null;
+                    }
+                }
+                if (inFlight == 0) {
+                    // stopped, the batches not submitted stay queued
+                    break;
+                }
+
+                final Outcome outcome;
+                try {
+                    outcome = submits.take().get();
+                } catch (InterruptedException ex) {
+                    // The submits in flight are still handled, so their batches are not uploaded twice
+                    isInterrupted = true;
+                    continue;
+                } catch (ExecutionException ex) {
+                    throw new IllegalStateException("The submit task catches everything", ex);
+                }
+                inFlight--;
+                try {
+                    handleOutcome(outcome, result);
+                } catch (IOException ex) {
+                    if (error == null) {
+                        error = ex;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        result.elapsedMs = System.currentTimeMillis() - startMs;
+        result.error = error;
+        return result;
+    }
+
+    // The batches waiting for a retry stay queued. Returns the first error.
+    private IOException giveUpRetries(IOException error) {
+        while (!mRetries.isEmpty()) {
+            try {
+                keepQueued(mRetries.removeFirst());
+            } catch (IOException ex) {
+                if (error == null) {
+                    error = ex;
+                }
+            }
+        }
+        return error;
+    }
+
+    private void keepQueued(DataStorageManager.ReportBatch batch) throws IOException {
+        if (batch.isSendBuffer()) {
+            mDataStorageManager.saveCurrentReportsSendBufferToDisk();
+        }
+    }
+
+    private void handleOutcome(Outcome outcome, Result result) throws IOException {
+        final DataStorageManager.ReportBatch batch = outcome.batch;
+        final IResponse response = outcome.response;
+        final RetryScheduler.Outcome kind = mRetryScheduler.record(response);
+
+        if (kind == RetryScheduler.Outcome.SUCCESS) {
+            result.batches++;
+            result.bytesSent += response.bytesSent();
+
+            String logMsg =  "MLS Submit: [HTTP Status:" + response.httpResponse() + "], [Bytes Sent:" + response.bytesSent() + "]";
+            AppGlobals.guiLogInfo(logMsg, "#FFFFCC", true, false);
+
+            mDataStorageManager.delete(batch);
+
+            result.reports += batch.reportCount;
+            result.wifis += batch.wifiCount;
+            result.cells += batch.cellCount;
+            return;
+        }
+
+        String logMsg = "HTTP error unknown";
+        if (response != null) {
+            logMsg = "HTTP non-success code: " + response.httpResponse();
+        }
+        if (mRetryScheduler.isOpen()) {
+            result.isStopped = true;
+        }
+
+        if (kind == RetryScheduler.Outcome.REJECTED && response.httpResponse() == 413) {
+            final List<DataStorageManager.ReportBatch> parts = mDataStorageManager.split(batch);
+            if (!parts.isEmpty()) {
+                for (int i = parts.size() - 1; i >= 0; i--) {
+                    mRetries.addFirst(parts.get(i));
+                }
+                Log.d(LOG_TAG, logMsg + ", splitting " + batch.filename + " into " + parts.size() + " batches");
+                return;
+            }
+        }
+
+        if (kind == RetryScheduler.Outcome.RETRYABLE && !result.isStopped &&
+                mAttempts.get(batch) < RetryScheduler.MAX_ATTEMPTS_PER_BATCH) {
+            result.retries++;
+            mRetries.addLast(batch);
+            Log.d(LOG_TAG, logMsg + ", retrying in " + mRetryScheduler.getDelayMs() + " ms");
+            return;
+        }
+
+        result.batches++;
+        result.failedBatches++;
+        if (kind == RetryScheduler.Outcome.BAD_REQUEST) {
+            logMsg += ", 400 Error, deleting bad report";
+            if (AppGlobals.guiLogMessageBuffer != null) { // if true, this is a GUI app
+                String unzipped = Zipper.unzipData(batch.data);
+                AppGlobals.guiLogInfo(unzipped, "red", false, true);
+            }
+            mDataStorageManager.delete(batch);
+        } else {
+            keepQueued(batch);
+        }
+        if (result.isStopped) {
+            logMsg += ", " + mRetryScheduler.getConsecutiveFailures() + " failures in a row, stopping the upload";
+        }
+        AppGlobals.guiLogError(logMsg);
+    }
+}
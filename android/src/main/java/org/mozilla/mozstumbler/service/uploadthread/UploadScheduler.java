@@ -0,0 +1,138 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.uploadthread;
+
+/* Decides when the next upload should run, and how big its batches should be.
+ *
+ * The inputs are whether anything is queued (from DataStorageManager's StorageIsEmptyTracker), the queued
+ * bytes, the connectivity, the throughput measured by the last uploads, and the RetryScheduler backoff.
+ * Nothing queued, or no usable network, means no upload until that changes. A large backlog on a fast link
+ * is uploaded soon, a small one on a metered link waits longer. Batches are sized to take about
+ * TARGET_SUBMIT_MS each at the measured throughput.
+ *
+ * The last decision is kept, for display and tests. Thread-safe.
+ */
+public class UploadScheduler {
+
+    public enum Reason {
+        NOTHING_QUEUED,
+        OFFLINE,
+        WAITING_FOR_WIFI,
+        BACKING_OFF,
+        LARGE_BACKLOG,
+        SMALL_BACKLOG,
+        DEFAULT_INTERVAL
+    }
+
+    public static final long NEVER = -1;
+
+    public static class Decision {
+        // Until the next upload, or NEVER (until the inputs change)
+        public final long delayMs;
+        public final long batchTargetBytes;
+        public final Reason reason;
+
+        Decision(long delayMs, long batchTargetBytes, Reason reason) {
+            this.delayMs = delayMs;
+            this.batchTargetBytes = batchTargetBytes;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return reason + ", delay " + ((delayMs == NEVER) ? "never" : delayMs + " ms") +
+                    ", batches of " + batchTargetBytes + " bytes";
+        }
+    }
+
+    static final long MIN_INTERVAL_MS = 1000 * 30;
+    static final long DEFAULT_INTERVAL_MS = 1000 * 60 * 5;
+    static final long MAX_INTERVAL_MS = 1000 * 60 * 20;
+
+    static final long SMALL_BACKLOG_BYTES = 1024 * 16;
+    static final long LARGE_BACKLOG_BYTES = 1024 * 256;
+    static final long FAST_LINK_BYTES_PER_SECOND = 1024 * 32;
+
+    static final long TARGET_SUBMIT_MS = 1000 * 4;
+    static final long DEFAULT_BATCH_TARGET_BYTES = 1024 * 64;
+    static final long MIN_BATCH_TARGET_BYTES = 1024 * 16;
+    static final long MAX_BATCH_TARGET_BYTES = 1024 * 512;
+    // Smaller uploads measure the latency more than the throughput
+    static final long MIN_THROUGHPUT_SAMPLE_BYTES = 1024 * 8;
+    // Weight of a new throughput sample
+    private static final double THROUGHPUT_SMOOTHING = 0.3;
+
+    private static final UploadScheduler sInstance = new UploadScheduler(RetryScheduler.getInstance());
+
+    private final RetryScheduler mRetryScheduler;
+    private boolean mIsStorageEmpty;
+    // Bytes per second, 0 until measured
+    private long mThroughput;
+    private Decision mLastDecision;
+
+    public static UploadScheduler getInstance() {
+        return sInstance;
+    }
+
+    UploadScheduler(RetryScheduler retryScheduler) {
+        mRetryScheduler = retryScheduler;
+    }
+
+    /* From DataStorageManager's StorageIsEmptyTracker. */
+    public synchronized void setStorageEmpty(boolean isEmpty) {
+        mIsStorageEmpty = isEmpty;
+    }
+
+    /* Records the throughput of an upload. */
+    public synchronized void recordUpload(long bytesSent, long elapsedMs) {
+        if (bytesSent < MIN_THROUGHPUT_SAMPLE_BYTES || elapsedMs < 1) {
+            return;
+        }
+        final long sample = bytesSent * 1000 / elapsedMs;
+        mThroughput = (mThroughput == 0) ? sample :
+                (long) (mThroughput * (1 - THROUGHPUT_SMOOTHING) + sample * THROUGHPUT_SMOOTHING);
+    }
+
+    public synchronized long getThroughput() {
+        return mThroughput;
+    }
+
+    public synchronized Decision decide(long queuedBytes, boolean isConnected, boolean isWifi,
+                                        boolean useWifiOnly) {
+        final long batchTargetBytes = getBatchTargetBytes();
+        final boolean isFastLink = (mThroughput == 0) ? isWifi : mThroughput >= FAST_LINK_BYTES_PER_SECOND;
+
+        if (mIsStorageEmpty || queuedBytes <= 0) {
+            mLastDecision = new Decision(NEVER, batchTargetBytes, Reason.NOTHING_QUEUED);
+        } else if (!isConnected) {
+            mLastDecision = new Decision(NEVER, batchTargetBytes, Reason.OFFLINE);
+        } else if (useWifiOnly && !isWifi) {
+            mLastDecision = new Decision(NEVER, batchTargetBytes, Reason.WAITING_FOR_WIFI);
+        } else if (mRetryScheduler.isOpen() && mRetryScheduler.getDelayMs() > 0) {
+            mLastDecision = new Decision(Math.max(MIN_INTERVAL_MS, mRetryScheduler.getDelayMs()),
+                    batchTargetBytes, Reason.BACKING_OFF);
+        } else if (queuedBytes >= LARGE_BACKLOG_BYTES && isFastLink) {
+            mLastDecision = new Decision(MIN_INTERVAL_MS, batchTargetBytes, Reason.LARGE_BACKLOG);
+        } else if (queuedBytes < SMALL_BACKLOG_BYTES && !isWifi) {
+            mLastDecision = new Decision(MAX_INTERVAL_MS, batchTargetBytes, Reason.SMALL_BACKLOG);
+        } else {
+            mLastDecision = new Decision(DEFAULT_INTERVAL_MS, batchTargetBytes, Reason.DEFAULT_INTERVAL);
+        }
+        return mLastDecision;
+    }
+
+    /* The batch size for the next upload, from the measured throughput. */
+    public synchronized long getBatchTargetBytes() {
+        if (mThroughput == 0) {
+            return DEFAULT_BATCH_TARGET_BYTES;
+        }
+        return Math.max(MIN_BATCH_TARGET_BYTES, Math.min(MAX_BATCH_TARGET_BYTES, mThroughput * TARGET_SUBMIT_MS / 1000));
+    }
+
+    /* The last decision, or null if none was made. */
+    public synchronized Decision getLastDecision() {
+        return mLastDecision;
+    }
+}
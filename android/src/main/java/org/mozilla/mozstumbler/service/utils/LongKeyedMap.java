@@ -0,0 +1,153 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.utils;
+
+import java.util.Arrays;
+
+/* A map from long keys to values, for deduplicating scan results without boxing or String keys.
+ *
+ * The entries are kept in insertion order in parallel arrays, and are iterated by index (size(), valueAt(i)),
+ * so iterating allocates nothing. An open-addressing table (linear probing, at most half full) maps a key to
+ * its entry index. Entries can't be removed one by one; clear() keeps the arrays, so a map that is cleared
+ * and refilled stops allocating once it has grown to its working size.
+ *
+ * Not thread-safe.
+ */
+public final class LongKeyedMap<V> {
+    private static final int MIN_SLOTS = 16;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    // Entry index + 1, 0 is an empty slot. The length is a power of 2.
+    private int[] mSlots;
+    private int mSize;
+
+    public LongKeyedMap() {
+        this(MIN_SLOTS / 2);
+    }
+
+    public LongKeyedMap(int expectedSize) {
+        int slots = MIN_SLOTS;
+        while (slots < expectedSize * 2) {
+            slots *= 2;
+        }
+        mSlots = new int[slots];
+        mKeys = new long[slots / 2];
+        mValues = new Object[slots / 2];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return mSlots[findSlot(key)] != 0;
+    }
+
+    /* The value, or null if the key isn't in the map. */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final int entry = mSlots[findSlot(key)];
+        return (entry == 0) ? null : (V) mValues[entry - 1];
+    }
+
+    /* The index of the key's entry, or -1 if the key isn't in the map. */
+    public int indexOf(long key) {
+        return mSlots[findSlot(key)] - 1;
+    }
+
+    /* Adds the entry unless the key is already in the map. Returns whether it was added. */
+    public boolean putIfAbsent(long key, V value) {
+        int slot = findSlot(key);
+        if (mSlots[slot] != 0) {
+            return false;
+        }
+        if ((mSize + 1) * 2 > mSlots.length) {
+            grow();
+            slot = findSlot(key);
+        }
+        mKeys[mSize] = key;
+        mValues[mSize] = value;
+        mSize++;
+        mSlots[slot] = mSize;
+        return true;
+    }
+
+    /* Replaces the value if the key is in the map, adds the entry otherwise. */
+    public void put(long key, V value) {
+        final int entry = mSlots[findSlot(key)];
+        if (entry != 0) {
+            mValues[entry - 1] = value;
+        } else {
+            putIfAbsent(key, value);
+        }
+    }
+
+    /* Entries are indexed from 0 to size() - 1, in insertion order. */
+    public long keyAt(int index) {
+        checkIndex(index);
+        return mKeys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int index) {
+        checkIndex(index);
+        return (V) mValues[index];
+    }
+
+    public void setValueAt(int index, V value) {
+        checkIndex(index);
+        mValues[index] = value;
+    }
+
+    /* Removes all the entries, and keeps the capacity. */
+    public void clear() {
+        if (mSize == 0) {
+            return;
+        }
+        Arrays.fill(mSlots, 0);
+        Arrays.fill(mValues, 0, mSize, null);
+        mSize = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+    }
+
+    // The slot holding the key, or the empty slot where it would go
+    private int findSlot(long key) {
+        final int mask = mSlots.length - 1;
+        int slot = hash(key) & mask;
+        while (mSlots[slot] != 0 && mKeys[mSlots[slot] - 1] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32);
+    }
+
+    private void grow() {
+        mKeys = Arrays.copyOf(mKeys, mKeys.length * 2);
+        mValues = Arrays.copyOf(mValues, mValues.length * 2);
+        mSlots = new int[mSlots.length * 2];
+        final int mask = mSlots.length - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = hash(mKeys[i]) & mask;
+            while (mSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mSlots[slot] = i + 1;
+        }
+    }
+}
@@ -41,4 +41,14 @@ public final class NetworkInfo {
         return (aNet != null && aNet.getType() == ConnectivityManager.TYPE_WIFI);
     }
 
+    public synchronized boolean isConnected() {
+        if (mConnectivityManager == null) {
+            Log.e(LOG_TAG, "ConnectivityManager is null!");
+            return false;
+        }
+
+        android.net.NetworkInfo aNet = mConnectivityManager.getActiveNetworkInfo();
+        return (aNet != null && aNet.isConnected());
+    }
+
 }
@@ -96,7 +96,16 @@ public class SerializableTile {
 
      */
     public byte[] asBytes() throws CharacterCodingException {
-        ByteArrayBuffer buff = new ByteArrayBuffer(10);
+        ByteArrayBuffer buff = headerBytes();
+        if (tData != null) {
+            buff.append(tData, 0, tData.length);
+        }
+        return buff.toByteArray();
+    }
+
+    // Everything up to the content body
+    private ByteArrayBuffer headerBytes() {
+        ByteArrayBuffer buff = new ByteArrayBuffer(256);
 
         buff.append(FILE_HEADER, 0, FILE_HEADER.length);
         buff.append(intAsBytes(headers.size()), 0, 4);
@@ -114,10 +123,8 @@ public class SerializableTile {
             buff.append(intAsBytes(0), 0, 4);
         } else {
             buff.append(intAsBytes(tData.length), 0, 4);
-            buff.append(tData, 0, tData.length);
         }
-
-        return buff.toByteArray();
+        return buff;
     }
 
     public boolean saveFile(File aFile) {
@@ -126,10 +133,18 @@ public class SerializableTile {
             // Always update cache-control on save
             setHeader("cache-control",
                     Long.toString(CACHE_TILE_MS + System.currentTimeMillis()));
+            // The tile data is written as is, not copied into one array with the headers
+            ByteArrayBuffer header = headerBytes();
             FileOutputStream fos = new FileOutputStream(aFile);
-            fos.write(this.asBytes());
-            fos.flush();
-            fos.close();
+            try {
+                fos.write(header.buffer(), 0, header.length());
+                if (tData != null) {
+                    fos.write(tData);
+                }
+                fos.flush();
+            } finally {
+                fos.close();
+            }
             return true;
         } catch (IOException e) {
             Log.w(LOG_TAG, "Error writing SerializableTile to disk");
@@ -0,0 +1,179 @@
+package org.mozilla.mozstumbler.client.mapview;
+
+import android.location.Location;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.Observation;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class LocalPositionIndexTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("index", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    private static JSONObject report(double lat, double lon, int cid, String... bssids) throws JSONException {
+        JSONObject report = new JSONObject();
+        report.put("lat", lat);
+        report.put("lon", lon);
+        report.put("accuracy", 10);
+        JSONArray wifis = new JSONArray();
+        for (String bssid : bssids) {
+            JSONObject wifi = new JSONObject();
+            wifi.put("key", bssid);
+            wifi.put("signal", -60);
+            wifis.put(wifi);
+        }
+        report.put("wifi", wifis);
+        JSONArray cells = new JSONArray();
+        if (cid > 0) {
+            JSONObject cell = new JSONObject();
+            cell.put("radio", "gsm");
+            cell.put("mcc", 302);
+            cell.put("mnc", 720);
+            cell.put("lac", 1);
+            cell.put("cid", cid);
+            cells.put(cell);
+        }
+        report.put("cell", cells);
+        return report;
+    }
+
+    @Test
+    public void testWifiKeys() {
+        assertEquals(0xaabbccddeeffL, LocalPositionIndex.wifiKey("aa:bb:cc:dd:ee:ff"));
+        assertEquals(0xaabbccddeeffL, LocalPositionIndex.wifiKey("AABBCCDDEEFF"));
+        assertEquals(0, LocalPositionIndex.wifiKey("aa:bb:cc"));
+        assertEquals(0, LocalPositionIndex.wifiKey("not a bssid!"));
+    }
+
+    @Test
+    public void testEstimateIsTheCentroid() throws JSONException {
+        LocalPositionIndex index = new LocalPositionIndex(null, DIRECT);
+        index.add(report(43.0, -79.0, 1, "aaaaaaaaaaaa"));
+        index.add(report(43.002, -79.0, 1, "aaaaaaaaaaaa"));
+        index.add(report(43.001, -79.002, 0, "bbbbbbbbbbbb"));
+
+        Location location = index.estimate(report(0, 0, 0, "aaaaaaaaaaaa"));
+        assertEquals(43.001, location.getLatitude(), 1e-6);
+        assertEquals(-79.0, location.getLongitude(), 1e-6);
+
+        location = index.estimate(report(0, 0, 0, "aaaaaaaaaaaa", "bbbbbbbbbbbb", "cccccccccccc"));
+        assertEquals(43.001, location.getLatitude(), 1e-6);
+        assertEquals(-79.001, location.getLongitude(), 1e-6);
+        assertTrue(location.getAccuracy() >= LocalPositionIndex.WIFI_MIN_ACCURACY_M);
+
+        // Cells only count without a known wifi
+        location = index.estimate(report(0, 0, 1, "cccccccccccc"));
+        assertEquals(43.001, location.getLatitude(), 1e-6);
+        assertEquals(LocalPositionIndex.CELL_MIN_ACCURACY_M, location.getAccuracy(), 1);
+
+        assertNull(index.estimate(report(0, 0, 2, "cccccccccccc")));
+    }
+
+    @Test
+    public void testObservationsAreIndexedOnTheExecutor() throws Exception {
+        final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        LocalPositionIndex index = new LocalPositionIndex(null, new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                tasks.add(r);
+            }
+        });
+        final Location[] estimates = new Location[2];
+        for (int i = 0; i < estimates.length; i++) {
+            final int n = i;
+            Location position = new Location("mock");
+            position.setLatitude(43.0);
+            position.setLongitude(-79.0);
+            String json = report(43.0, -79.0, 0, "aaaaaaaaaaaa").toString();
+            index.addAsync(new Observation(position, json, 1, 0), new LocalPositionIndex.EstimateListener() {
+                @Override
+                public void onEstimate(Location location) {
+                    estimates[n] = location;
+                }
+            });
+        }
+        assertEquals(0, index.size());
+
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        assertEquals(1, index.size());
+        // Only the observations indexed before are used
+        assertNull(estimates[0]);
+        assertEquals(43.0, estimates[1].getLatitude(), 1e-6);
+    }
+
+    @Test
+    public void testSizeIsBounded() throws JSONException {
+        LocalPositionIndex index = new LocalPositionIndex(null, DIRECT);
+        int count = LocalPositionIndex.MAX_ENTRIES + 5000;
+        for (int i = 1; i <= count; i++) {
+            index.add(report(43.0, -79.0, 0, String.format("%012x", i)));
+        }
+        assertEquals(LocalPositionIndex.MAX_ENTRIES, index.size());
+
+        // The most recent ones are kept, the oldest evicted
+        for (int i = count - 100; i <= count; i++) {
+            assertNotNull(index.estimate(report(0, 0, 0, String.format("%012x", i))));
+        }
+        int found = 0;
+        for (int i = 1; i <= 5000; i++) {
+            found += (index.estimate(report(0, 0, 0, String.format("%012x", i))) == null) ? 0 : 1;
+        }
+        assertTrue(found < 1000);
+    }
+
+    @Test
+    public void testIndexIsSavedAndLoaded() throws JSONException {
+        LocalPositionIndex index = new LocalPositionIndex(dir, DIRECT);
+        index.add(report(43.0, -79.0, 1, "aaaaaaaaaaaa"));
+        index.save();
+
+        index = new LocalPositionIndex(dir, DIRECT);
+        assertEquals(2, index.size());
+        Location location = index.estimate(report(0, 0, 0, "aaaaaaaaaaaa"));
+        assertEquals(43.0, location.getLatitude(), 1e-6);
+    }
+}
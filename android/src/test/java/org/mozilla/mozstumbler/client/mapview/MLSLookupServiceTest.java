@@ -0,0 +1,153 @@
+package org.mozilla.mozstumbler.client.mapview;
+
+import android.location.Location;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.core.http.CachingLocationService;
+import org.mozilla.mozstumbler.service.core.http.HTTPResponse;
+import org.mozilla.mozstumbler.service.core.http.ILocationService;
+import org.mozilla.mozstumbler.service.core.http.IResponse;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MLSLookupServiceTest {
+
+    // Answers every search with the same location, once released, and records the concurrency
+    private static class SearchService implements ILocationService {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger searches = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        @Override
+        public IResponse search(byte[] data, Map<String, String> headers, boolean precompressed) {
+            searches.incrementAndGet();
+            int now = inFlight.incrementAndGet();
+            while (maxInFlight.get() < now) {
+                maxInFlight.compareAndSet(maxInFlight.get(), now);
+            }
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            inFlight.decrementAndGet();
+            byte[] body = "{\"status\":\"ok\",\"lat\":43.5,\"lon\":-79.25,\"accuracy\":100}".getBytes();
+            return new HTTPResponse(200, new HashMap<String, List<String>>(), body, data.length);
+        }
+
+        @Override
+        public IResponse submit(byte[] data, Map<String, String> headers, boolean precompressed) {
+            return null;
+        }
+    }
+
+    private static class Results implements MLSLookupService.Callback {
+        final List<Location> locations = new ArrayList<Location>();
+        final CountDownLatch done;
+
+        Results(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        @Override
+        public synchronized void setMLSResponseLocation(Location loc) {
+            locations.add(loc);
+            done.countDown();
+        }
+
+        @Override
+        public void errorMLSResponse(boolean stopRequesting) {
+            done.countDown();
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private static JSONObject query(String signal, String... bssids) throws JSONException {
+        JSONObject query = new JSONObject();
+        JSONArray wifis = new JSONArray();
+        for (String bssid : bssids) {
+            JSONObject wifi = new JSONObject();
+            wifi.put("key", bssid);
+            wifi.put("signal", signal);
+            wifis.put(wifi);
+        }
+        query.put("wifi", wifis);
+        return query;
+    }
+
+    @Test
+    public void testIdenticalQueriesAreSentOnce() throws Exception {
+        SearchService mls = new SearchService();
+        MLSLookupService service = new MLSLookupService(new CachingLocationService(mls, null, DIRECT), DIRECT);
+        Results results = new Results(4);
+
+        // Same wifis, in another order and with other signal strengths
+        service.lookup(query("-50", "aaaaaaaaaaaa", "bbbbbbbbbbbb"), results);
+        service.lookup(query("-70", "bbbbbbbbbbbb", "aaaaaaaaaaaa"), results);
+        service.lookup(query("-50", "cccccccccccc"), results);
+        mls.release.countDown();
+        assertTrue(waitFor(service, 2));
+        // answered from the cache
+        service.lookup(query("-60", "aaaaaaaaaaaa", "bbbbbbbbbbbb"), results);
+
+        assertTrue(results.done.await(10, TimeUnit.SECONDS));
+        assertEquals(4, results.locations.size());
+        assertEquals(43.5, results.locations.get(3).getLatitude(), 1e-6);
+        assertEquals(2, mls.searches.get());
+        assertEquals(3, service.getRequestCount());
+        assertEquals(1, service.getDedupedCount());
+        assertEquals(1, service.getCacheHitCount());
+    }
+
+    @Test
+    public void testConcurrencyIsBounded() throws Exception {
+        SearchService mls = new SearchService();
+        MLSLookupService service = new MLSLookupService(new CachingLocationService(mls, null, DIRECT), DIRECT);
+        Results results = new Results(20);
+        for (int i = 0; i < 20; i++) {
+            service.lookup(query("-50", String.format("%012x", i)), results);
+        }
+        Thread.sleep(100);
+        mls.release.countDown();
+
+        assertTrue(results.done.await(10, TimeUnit.SECONDS));
+        assertEquals(20, mls.searches.get());
+        assertEquals(MLSLookupService.MAX_CONCURRENT_REQUESTS, mls.maxInFlight.get());
+    }
+
+    // Until the requests sent have been answered
+    private static boolean waitFor(MLSLookupService service, int answered) throws InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            if (service.getRequestCount() >= answered && service.getPendingCount() == 0) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,176 @@
+package org.mozilla.mozstumbler.service.core.http;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class CachingLocationServiceTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private static final String FOUND = "{\"status\":\"ok\",\"lat\":43.5,\"lon\":-79.25,\"accuracy\":100}";
+
+    // Answers every search with the body set, and counts them
+    private static class SearchService implements ILocationService {
+        String body = FOUND;
+        int searches;
+
+        @Override
+        public IResponse search(byte[] data, Map<String, String> headers, boolean precompressed) {
+            searches++;
+            return new HTTPResponse(200, new HashMap<String, List<String>>(), body.getBytes(), data.length);
+        }
+
+        @Override
+        public IResponse submit(byte[] data, Map<String, String> headers, boolean precompressed) {
+            return null;
+        }
+    }
+
+    private File dir;
+    private SearchService mls;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("search", "");
+        dir.delete();
+        dir.mkdirs();
+        mls = new SearchService();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    private static JSONObject query(String signal, String... bssids) throws JSONException {
+        JSONObject query = new JSONObject();
+        JSONArray wifis = new JSONArray();
+        for (String bssid : bssids) {
+            JSONObject wifi = new JSONObject();
+            wifi.put("key", bssid);
+            wifi.put("signal", signal);
+            wifis.put(wifi);
+        }
+        query.put("wifi", wifis);
+        return query;
+    }
+
+    private static IResponse search(ILocationService service, JSONObject query) {
+        return service.search(query.toString().getBytes(), null, false);
+    }
+
+    @Test
+    public void testFingerprintIgnoresOrderAndSignal() throws JSONException {
+        assertEquals(CachingLocationService.fingerprint(query("-50", "aa:bb:cc:dd:ee:ff", "112233445566")),
+                CachingLocationService.fingerprint(query("-70", "112233445566", "AABBCCDDEEFF")));
+        assertFalse(CachingLocationService.fingerprint(query("-50", "aabbccddeeff")).equals(
+                CachingLocationService.fingerprint(query("-50", "aabbccddeeff", "112233445566"))));
+        assertNull(CachingLocationService.fingerprint(new JSONObject()));
+    }
+
+    @Test
+    public void testFoundLocationsAreCached() throws JSONException {
+        CachingLocationService service = new CachingLocationService(mls, null, null);
+        search(service, query("-50", "aabbccddeeff", "112233445566"));
+        IResponse response = search(service, query("-60", "112233445566", "aabbccddeeff"));
+
+        assertEquals(1, mls.searches);
+        assertEquals(200, response.httpResponse());
+        assertEquals(FOUND, response.body());
+        assertEquals(1, service.getHitCount());
+        assertEquals(1, service.getMissCount());
+        assertEquals(0.5f, service.getHitRate(), 1e-6);
+
+        // Not found is asked again
+        mls.body = "{\"status\":\"not_found\"}";
+        search(service, query("-50", "000000000000"));
+        search(service, query("-50", "000000000000"));
+        assertEquals(3, mls.searches);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws JSONException {
+        CachingLocationService service = new CachingLocationService(mls, null, null);
+        for (int i = 0; i <= CachingLocationService.MAX_ENTRIES; i++) {
+            search(service, query("-50", String.format("%012x", i)));
+            if (i > 0) {
+                // keeps the first one in use
+                search(service, query("-50", String.format("%012x", 0)));
+            }
+        }
+        assertEquals(CachingLocationService.MAX_ENTRIES, service.size());
+
+        int searches = mls.searches;
+        search(service, query("-50", String.format("%012x", 0)));
+        search(service, query("-50", String.format("%012x", 1)));
+        assertEquals(searches + 1, mls.searches);
+    }
+
+    @Test
+    public void testCacheIsReloadedFromDisk() throws JSONException {
+        CachingLocationService service = new CachingLocationService(mls, dir, DIRECT);
+        search(service, query("-50", "aabbccddeeff"));
+        search(service, query("-50", "112233445566"));
+
+        service = new CachingLocationService(mls, dir, DIRECT);
+        assertEquals(2, service.size());
+        search(service, query("-50", "aabbccddeeff"));
+        assertEquals(2, mls.searches);
+        assertEquals(1, service.getHitCount());
+    }
+
+    @Test
+    public void testSavesAreCoalesced() throws JSONException {
+        final ArrayList<Runnable> saves = new ArrayList<Runnable>();
+        CachingLocationService service = new CachingLocationService(mls, dir, new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                saves.add(r);
+            }
+        });
+        search(service, query("-50", "aabbccddeeff"));
+        search(service, query("-50", "112233445566"));
+        search(service, query("-50", "000000000001"));
+        assertEquals(1, saves.size());
+        assertFalse(new File(dir, CachingLocationService.FILENAME).exists());
+
+        saves.get(0).run();
+        assertTrue(new File(dir, CachingLocationService.FILENAME).exists());
+        assertEquals(3, new CachingLocationService(mls, dir, DIRECT).size());
+
+        // A save is queued again once the last one ran
+        search(service, query("-50", "000000000002"));
+        assertEquals(2, saves.size());
+    }
+}
@@ -0,0 +1,235 @@
+package org.mozilla.mozstumbler.service.core.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class HttpUtilTest {
+
+    // A stand-in HTTP/1.1 server, which answers "ok" to every request and counts the connections.
+    // If closeAfterResponse is set, it closes each connection after one response, without telling the client.
+    // The first dropRequests requests are read and counted, then the connection is closed without a response.
+    private static class Server implements Runnable {
+        final ServerSocket serverSocket;
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        volatile byte[] lastBody;
+        volatile boolean closeAfterResponse;
+        final AtomicInteger dropRequests = new AtomicInteger();
+
+        Server() throws IOException {
+            serverSocket = new ServerSocket(0);
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread handler = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException ex) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                String header;
+                while ((header = readHeader(in)) != null) {
+                    int contentLength = 0;
+                    for (String line : header.split("\r\n")) {
+                        if (line.toLowerCase().startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(line.substring(15).trim());
+                        }
+                    }
+                    byte[] body = new byte[contentLength];
+                    for (int i = 0; i < contentLength; i++) {
+                        body[i] = (byte) in.read();
+                    }
+                    lastBody = body;
+                    requests.incrementAndGet();
+                    if (dropRequests.getAndDecrement() > 0) {
+                        break;
+                    }
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes("US-ASCII"));
+                    out.flush();
+                    if (closeAfterResponse) {
+                        break;
+                    }
+                }
+                socket.close();
+            } catch (IOException ex) {
+                // the client went away
+            }
+        }
+
+        // Up to the empty line, or null at the end of the stream
+        private static String readHeader(InputStream in) throws IOException {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1) {
+                header.write(c);
+                String s = header.toString("US-ASCII");
+                if (s.endsWith("\r\n\r\n")) {
+                    return s;
+                }
+            }
+            return null;
+        }
+    }
+
+    private Server server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new Server();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.serverSocket.close();
+    }
+
+    @Test
+    public void testConnectionIsReused() {
+        KeepAliveEstimator pool = new KeepAliveEstimator();
+        HttpUtil http = new HttpUtil("test", pool);
+        for (int i = 0; i < 5; i++) {
+            IResponse response = http.get(server.url(), null);
+            assertEquals(200, response.httpResponse());
+            assertEquals("ok", response.body());
+            assertEquals(2, ((HTTPResponse) response).bytesAllocated());
+        }
+        IResponse response = http.post(server.url(), new byte[100], new HashMap<String, String>(), true);
+        assertEquals(200, response.httpResponse());
+        assertEquals(100, response.bytesSent());
+        http.head(server.url(), null);
+
+        assertEquals(7, server.requests.get());
+        assertEquals(1, server.connections.get());
+        assertEquals(1, pool.getGuessedNewCount());
+        assertEquals(6, pool.getGuessedReusedCount());
+    }
+
+    @Test
+    public void testStaleConnectionIsRetried() {
+        server.closeAfterResponse = true;
+        KeepAliveEstimator pool = new KeepAliveEstimator();
+        HttpUtil http = new HttpUtil("test", pool);
+        for (int i = 0; i < 3; i++) {
+            IResponse response = http.post(server.url(), new byte[10], null, true);
+            assertNotNull(response);
+            assertEquals(200, response.httpResponse());
+        }
+        assertEquals(3, server.requests.get());
+    }
+
+    @Test
+    public void testStaleConnectionIsRetriedForGet() {
+        server.closeAfterResponse = true;
+        for (int i = 0; i < 3; i++) {
+            // A new estimator each time: the reused connection is one it has no record of
+            HttpUtil http = new HttpUtil("test", new KeepAliveEstimator());
+            IResponse response = http.get(server.url(), null);
+            assertNotNull(response);
+            assertEquals(200, response.httpResponse());
+        }
+        assertEquals(3, server.requests.get());
+    }
+
+    @Test
+    public void testPostIsNotResentAfterServerReadIt() {
+        // The connection is lost after the server read the request: it must not be sent twice
+        server.dropRequests.set(1);
+        HttpUtil http = new HttpUtil("test", new KeepAliveEstimator());
+        assertNull(http.post(server.url(), new byte[10], null, true));
+        assertEquals(1, server.requests.get());
+    }
+
+    @Test
+    public void testGetIsResentAfterServerReadIt() {
+        server.dropRequests.set(1);
+        HttpUtil http = new HttpUtil("test", new KeepAliveEstimator());
+        IResponse response = http.get(server.url(), null);
+        assertNotNull(response);
+        assertEquals(200, response.httpResponse());
+        assertEquals(2, server.requests.get());
+    }
+
+    @Test
+    public void testGetUrlReusesConnection() throws IOException {
+        KeepAliveEstimator pool = new KeepAliveEstimator();
+        HttpUtil http = new HttpUtil("test", pool);
+        assertEquals("ok", http.getUrlAsString(server.url()));
+
+        InputStream in = http.getUrlAsStream(server.url());
+        assertEquals('o', in.read());
+        assertEquals('k', in.read());
+        assertEquals(-1, in.read());
+        in.close();
+
+        File file = File.createTempFile("get", "");
+        try {
+            http.getUrlAsFile(new java.net.URL(server.url()), file);
+            assertEquals(2, file.length());
+        } finally {
+            file.delete();
+        }
+
+        assertEquals(3, server.requests.get());
+        assertEquals(1, server.connections.get());
+        assertEquals(2, pool.getGuessedReusedCount());
+    }
+
+    @Test
+    public void testPostStreamsBody() {
+        byte[] data = new byte[100 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        HttpUtil http = new HttpUtil("test", new KeepAliveEstimator());
+        IResponse response = http.post(server.url(), RequestBody.of(data), null);
+        assertEquals(200, response.httpResponse());
+        assertEquals(data.length, response.bytesSent());
+        assertTrue(Arrays.equals(data, server.lastBody));
+    }
+}
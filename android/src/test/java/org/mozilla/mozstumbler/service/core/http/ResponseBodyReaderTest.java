@@ -0,0 +1,79 @@
+package org.mozilla.mozstumbler.service.core.http;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ResponseBodyReaderTest {
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        return data;
+    }
+
+    // Returns at most 1000 bytes per read, as a network stream does
+    private static InputStream stream(byte[] data) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+    }
+
+    @Test
+    public void testKnownLengthIsReadInPlace() throws IOException {
+        byte[] data = data(50000);
+        ResponseBodyReader reader = new ResponseBodyReader();
+        byte[] body = reader.read(stream(data), data.length);
+        assertTrue(Arrays.equals(data, body));
+        assertEquals(data.length, reader.getAllocatedBytes());
+    }
+
+    @Test
+    public void testWrongLength() throws IOException {
+        byte[] data = data(3000);
+        assertTrue(Arrays.equals(data, new ResponseBodyReader().read(stream(data), 5000)));
+        assertTrue(Arrays.equals(data, new ResponseBodyReader().read(stream(data), 1000)));
+    }
+
+    @Test
+    public void testLargeLengthIsNotPreallocated() throws IOException {
+        byte[] data = data(3000);
+        ResponseBodyReader reader = new ResponseBodyReader();
+        assertTrue(Arrays.equals(data, reader.read(stream(data), Integer.MAX_VALUE)));
+        assertTrue(reader.getAllocatedBytes() <= ResponseBodyReader.INITIAL_BUFFER_SIZE + data.length);
+
+        data = data(ResponseBodyReader.MAX_PREALLOCATED_SIZE * 2);
+        assertTrue(Arrays.equals(data, new ResponseBodyReader().read(stream(data), data.length)));
+    }
+
+    @Test
+    public void testUnknownLengthReusesBuffers() throws IOException {
+        byte[] data = data(ResponseBodyReader.INITIAL_BUFFER_SIZE * 3);
+        assertTrue(Arrays.equals(data, new ResponseBodyReader().read(stream(data), -1)));
+
+        // The grown buffer is pooled, the next body of unknown length only allocates its result
+        long reused = ResponseBodyReader.getReusedBufferCount();
+        ResponseBodyReader reader = new ResponseBodyReader();
+        assertTrue(Arrays.equals(data, reader.read(stream(data), -1)));
+        assertEquals(data.length, reader.getAllocatedBytes());
+        assertTrue(ResponseBodyReader.getReusedBufferCount() > reused);
+
+        assertEquals(0, new ResponseBodyReader().read(stream(new byte[0]), -1).length);
+    }
+}
@@ -0,0 +1,117 @@
+package org.mozilla.mozstumbler.service.stumblerthread;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ScanEventBusTest {
+
+    private static class CountingListener implements ScanEventBus.WifiScanListener, ScanEventBus.GpsListener {
+        int mWifis;
+        int mLocations;
+        int mLost;
+        Object mLast;
+
+        @Override
+        public void onWifisScanned(List<ScanResult> results) {
+            mWifis += results.size();
+            mLast = results;
+        }
+
+        @Override
+        public void onNewLocation(Location location) {
+            mLocations++;
+            mLast = location;
+        }
+
+        @Override
+        public void onLocationLost() {
+            mLost++;
+        }
+    }
+
+    private static List<ScanResult> makeScanResults(int count) throws Exception {
+        // The (WifiSsid, BSSID, caps, level, frequency, tsf) constructor is hidden
+        Constructor<?> ctor = null;
+        for (Constructor<?> c : ScanResult.class.getConstructors()) {
+            if (c.getParameterTypes().length == 6) {
+                ctor = c;
+            }
+        }
+        ArrayList<ScanResult> results = new ArrayList<ScanResult>();
+        for (int i = 0; i < count; i++) {
+            results.add((ScanResult) ctor.newInstance(null, String.format("01:02:03:04:05:%02x", i), "", -60, 2412, 0L));
+        }
+        return results;
+    }
+
+    @Test
+    public void testDispatchByListenerType() throws Exception {
+        ScanEventBus bus = new ScanEventBus();
+        CountingListener listener = new CountingListener();
+        bus.register(listener);
+        // Registering twice delivers once
+        bus.register(listener);
+
+        List<ScanResult> results = makeScanResults(3);
+        bus.postWifisScanned(results);
+        assertEquals(3, listener.mWifis);
+        assertSame(results, listener.mLast);
+
+        Location location = new Location("mock");
+        bus.postNewLocation(location);
+        bus.postLocationLost();
+        assertEquals(1, listener.mLocations);
+        assertEquals(1, listener.mLost);
+        assertSame(location, listener.mLast);
+
+        // Not a CellScanListener, so not called
+        bus.postCellsScanned(null);
+
+        bus.unregister(listener);
+        bus.postWifisScanned(results);
+        bus.postLocationLost();
+        assertEquals(3, listener.mWifis);
+        assertEquals(1, listener.mLost);
+    }
+
+    @Test
+    public void testListenersChangedDuringDispatch() throws Exception {
+        final ScanEventBus bus = new ScanEventBus();
+        final CountingListener second = new CountingListener();
+        final CountingListener added = new CountingListener();
+        // Unregisters the second listener and registers another one, while a scan is being posted
+        ScanEventBus.WifiScanListener first = new ScanEventBus.WifiScanListener() {
+            @Override
+            public void onWifisScanned(List<ScanResult> results) {
+                bus.unregister(second);
+                bus.register(added);
+            }
+        };
+        bus.register(first);
+        bus.register(second);
+
+        // The post in progress goes to the listeners registered when it started
+        List<ScanResult> results = makeScanResults(2);
+        bus.postWifisScanned(results);
+        assertEquals(2, second.mWifis);
+        assertEquals(0, added.mWifis);
+
+        bus.postWifisScanned(results);
+        assertEquals(2, second.mWifis);
+        assertEquals(2, added.mWifis);
+    }
+}
@@ -0,0 +1,197 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class CompactReportCodecTest {
+
+    private static final long AP_SEED = 0x5c4a7e3b1d20L;
+
+    private ScanResult makeScanResult(String bssid, int level, int frequency) throws Exception {
+        for (Constructor<?> c : ScanResult.class.getConstructors()) {
+            if (c.getParameterTypes().length == 6) {
+                return (ScanResult) c.newInstance(null, bssid, "caps", level, frequency, 10L);
+            }
+        }
+        throw new RuntimeException("No constructor found");
+    }
+
+    private CellInfo makeCellInfo(int mcc, int mnc, int lac, int cid, int asu) throws Exception {
+        CellInfo cell = new CellInfo(TelephonyManager.PHONE_TYPE_GSM);
+        Method method = CellInfo.class.getDeclaredMethod("setGsmCellInfo",
+                int.class, int.class, int.class, int.class, int.class);
+        method.setAccessible(true);
+        method.invoke(cell, mcc, mnc, lac, cid, asu);
+        return cell;
+    }
+
+    private StumblerBundle makeBundle(int seed, boolean withAltitude) throws Exception {
+        Location location = new Location("mock");
+        location.setTime(1406863343313L + seed);
+        location.setLatitude(43.6532 + seed * 0.0001);
+        location.setLongitude(-79.3832 - seed * 0.0001);
+        location.setAccuracy(12.3f);
+        if (withAltitude) {
+            location.setAltitude(-12.6);
+        }
+
+        StumblerBundle bundle = new StumblerBundle(location, TelephonyManager.PHONE_TYPE_GSM);
+        // Successive reports mostly see the same access points, as when walking down a street
+        Random random = new Random(seed);
+        for (int i = 0; i < 20; i++) {
+            String bssid = String.format("%012x", (AP_SEED + (seed + i) * 0x9e3779b97f4aL) & 0xffffffffffffL);
+            bundle.addWifi(makeScanResult(bssid, -40 - random.nextInt(50), i % 2 == 0 ? 2412 : 58320));
+        }
+        CellInfo cell = makeCellInfo(302, 720, 2000 + seed, 1600199 + seed, 19);
+        bundle.addCell(cell);
+        return bundle;
+    }
+
+    private byte[] gunzip(byte[] data) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRecordDecodesToMLSJSON() throws Exception {
+        CompactReportCodec codec = new CompactReportCodec();
+        for (int seed = 0; seed < 2; seed++) {
+            StumblerBundle bundle = makeBundle(seed, seed == 1);
+            int length = codec.encode(bundle);
+            ByteBuffer in = ByteBuffer.wrap(codec.getBuffer(), 0, length);
+            assertEquals(bundle.toMLSJSON().toString(), CompactReportCodec.decodeToMLSJSON(in).toString());
+            assertFalse(in.hasRemaining());
+        }
+    }
+
+    @Test
+    public void testJSONReencodesToTheSameRecord() throws Exception {
+        CompactReportCodec codec = new CompactReportCodec();
+        StumblerBundle bundle = makeBundle(7, true);
+        int length = codec.encode(bundle);
+        byte[] record = Arrays.copyOf(codec.getBuffer(), length);
+
+        JSONObject json = CompactReportCodec.decodeToMLSJSON(ByteBuffer.wrap(record));
+        int reencodedLength = codec.encode(json);
+        assertEquals(length, reencodedLength);
+        assertTrue(Arrays.equals(record, Arrays.copyOf(codec.getBuffer(), reencodedLength)));
+    }
+
+    @Test
+    public void testAgesAreKept() throws Exception {
+        StumblerBundle bundle = makeBundle(3, false);
+        long time = bundle.getGpsPosition().getTime();
+        bundle.addWifi(makeScanResult("0123456789ab", -50, 2412), time - 1500);
+        bundle.addWifi(makeScanResult("01:23:45:67:89:CD", -50, 2412), time + 200);
+        bundle.addCell(makeCellInfo(302, 720, 2000, 1600199, 19), time - 10);
+
+        CompactReportCodec codec = new CompactReportCodec();
+        int length = codec.encode(bundle);
+        byte[] record = Arrays.copyOf(codec.getBuffer(), length);
+        JSONObject json = CompactReportCodec.decodeToMLSJSON(ByteBuffer.wrap(record));
+        assertEquals(bundle.toMLSJSON().toString(), json.toString());
+        assertTrue(json.toString().contains("\"age\":1500"));
+
+        assertEquals(length, codec.encode(json));
+        assertTrue(Arrays.equals(record, Arrays.copyOf(codec.getBuffer(), length)));
+    }
+
+    @Test
+    public void testNonCanonicalBSSIDIsKept() throws Exception {
+        StumblerBundle bundle = makeBundle(0, false);
+        bundle.getWifiData().clear();
+        bundle.addWifi(makeScanResult("01:23:45:67:89:AB", -50, 2437));
+
+        CompactReportCodec codec = new CompactReportCodec();
+        int length = codec.encode(bundle);
+        JSONObject json = CompactReportCodec.decodeToMLSJSON(ByteBuffer.wrap(codec.getBuffer(), 0, length));
+        JSONArray wifis = json.getJSONArray(DataStorageContract.ReportsColumns.WIFI);
+        assertEquals(1, wifis.length());
+        assertEquals("01:23:45:67:89:AB", wifis.getJSONObject(0).getString("key"));
+    }
+
+    @Test
+    public void testMissingBSSIDHasNoKey() throws Exception {
+        StumblerBundle bundle = makeBundle(0, false);
+        bundle.getWifiData().clear();
+        bundle.addWifi(makeScanResult(null, -50, 2437));
+        bundle.addWifi(makeScanResult("", -60, 2412));
+
+        CompactReportCodec codec = new CompactReportCodec();
+        int length = codec.encode(bundle);
+        byte[] record = Arrays.copyOf(codec.getBuffer(), length);
+        JSONObject json = CompactReportCodec.decodeToMLSJSON(ByteBuffer.wrap(record));
+        JSONArray wifis = json.getJSONArray(DataStorageContract.ReportsColumns.WIFI);
+        assertEquals(2, wifis.length());
+        assertFalse(wifis.getJSONObject(0).has("key"));
+        assertEquals("", wifis.getJSONObject(1).getString("key"));
+
+        MLSJSONWriter writer = new MLSJSONWriter();
+        writer.write(bundle);
+        assertEquals(new JSONObject(writer.toString()).toString(), json.toString());
+
+        assertEquals(length, codec.encode(json));
+        assertTrue(Arrays.equals(record, Arrays.copyOf(codec.getBuffer(), length)));
+    }
+
+    @Test
+    public void testBatchConvertsToJSONBatch() throws Exception {
+        CompactReportCodec codec = new CompactReportCodec();
+        ReportBatchWriter compact = new ReportBatchWriter(ReportBatchWriter.FORMAT_COMPACT);
+        ReportBatchWriter json = new ReportBatchWriter();
+        for (int i = 0; i < 50; i++) {
+            StumblerBundle bundle = makeBundle(i, i % 3 == 0);
+            compact.add(codec.getBuffer(), codec.encode(bundle), 20, 1);
+            json.add(bundle.toMLSJSON().toString(), 20, 1);
+        }
+        long compactBytes = compact.getUncompressedBytes();
+        long jsonBytes = json.getUncompressedBytes();
+        byte[] compactBatch = compact.finish();
+        byte[] jsonBatch = json.finish();
+
+        byte[] converted = CompactReportCodec.toJSONBatch(compactBatch, new ReportBatchWriter());
+        assertEquals(new String(gunzip(jsonBatch), "UTF-8"), new String(gunzip(converted), "UTF-8"));
+
+        assertTrue(compactBytes * 4 < jsonBytes);
+        assertTrue(compactBatch.length < jsonBatch.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedRecord() throws IOException, JSONException {
+        CompactReportCodec.decodeToMLSJSON(ByteBuffer.wrap(new byte[] { CompactReportCodec.VERSION, 0, 0 }));
+    }
+}
@@ -0,0 +1,274 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class DataStorageManagerConcurrencyTest {
+
+    private static final long HOUR_MS = 1000 * 60 * 60;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("dsm", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    private DataStorageManager create(long maxBytes, int maxReportsInMemory) {
+        DataStorageManager dm = new DataStorageManager(dir, null, maxBytes, 2, ReportBatchWriter.FORMAT_JSON);
+        dm.setMemoryFlushThresholds(maxReportsInMemory, HOUR_MS, HOUR_MS);
+        return dm;
+    }
+
+    private static String report(int id) {
+        return "{\"id\":" + id + "}";
+    }
+
+    private static JSONArray items(byte[] batch) throws Exception {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(batch));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return new JSONObject(new String(out.toByteArray(), "UTF-8")).getJSONArray("items");
+    }
+
+    // Uploads and deletes everything queued, as AsyncUploader does. Returns the number of reports.
+    private static int upload(DataStorageManager dm, HashSet<Integer> ids) throws Exception {
+        int reportCount = 0;
+        DataStorageManager.ReportBatch batch = dm.getFirstBatch();
+        while (batch != null) {
+            JSONArray items = items(batch.data);
+            assertEquals(batch.reportCount, items.length());
+            for (int i = 0; i < items.length(); i++) {
+                assertTrue("uploaded twice", ids.add(items.getJSONObject(i).getInt("id")));
+            }
+            reportCount += batch.reportCount;
+            dm.incrementSyncStats(batch.data.length, batch.reportCount, batch.cellCount, batch.wifiCount);
+            assertTrue(dm.delete(batch));
+            batch = dm.getNextBatch();
+        }
+        return reportCount;
+    }
+
+    @Test(timeout = 30000)
+    public void testInsertDoesNotWaitForDisk() throws Exception {
+        final CountDownLatch inMakeRoom = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // Every batch goes over the 1 byte cap, the policy blocks the disk side until released
+        final DataStorageManager dm = create(1, 5);
+        dm.setRetentionPolicy(new RetentionPolicy() {
+            @Override
+            public boolean makeRoom(ReportStore store, long newBatchBytes, long maxBytes) {
+                inMakeRoom.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                return true;
+            }
+        });
+
+        DataStorageManagers.insert(dm, report(0), 1, 0);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dm.saveCurrentReportsToDisk();
+                } catch (Throwable ex) {
+                    error.set(ex);
+                }
+            }
+        });
+        flusher.start();
+        assertTrue(inMakeRoom.await(10, TimeUnit.SECONDS));
+
+        // The memory buffer fills up 4 times while the disk side is stuck
+        for (int i = 1; i <= 20; i++) {
+            DataStorageManagers.insert(dm, report(i), 1, 0);
+        }
+        assertEquals(21, dm.getQueuedCounts().mReportCount);
+        assertTrue(flusher.isAlive());
+
+        release.countDown();
+        flusher.join();
+        assertNull(error.get());
+
+        HashSet<Integer> ids = new HashSet<Integer>();
+        assertEquals(21, upload(dm, ids));
+        assertEquals(21, ids.size());
+        assertEquals(0, dm.getQueuedCounts().mReportCount);
+    }
+
+    @Test
+    public void testTrackerIsOnlyToldOfChanges() throws Exception {
+        final ArrayList<Boolean> states = new ArrayList<Boolean>();
+        final DataStorageManager dm = new DataStorageManager(dir, new DataStorageManager.StorageIsEmptyTracker() {
+            @Override
+            public void notifyStorageStateEmpty(boolean isEmpty) {
+                states.add(isEmpty);
+            }
+        }, 10 * 1024 * 1024, 2, ReportBatchWriter.FORMAT_JSON);
+        dm.setMemoryFlushThresholds(5, HOUR_MS, HOUR_MS);
+
+        for (int i = 0; i < 12; i++) {
+            DataStorageManagers.insert(dm, report(i), 1, 0);
+        }
+        assertEquals(Arrays.asList(false), states);
+
+        assertEquals(12, upload(dm, new HashSet<Integer>()));
+        assertEquals(Arrays.asList(false, true), states);
+
+        DataStorageManagers.insert(dm, report(12), 1, 0);
+        assertEquals(Arrays.asList(false, true, false), states);
+    }
+
+    @Test
+    public void testSmallBatchesAreMerged() throws Exception {
+        final DataStorageManager dm = create(10 * 1024 * 1024, 5);
+        for (int i = 0; i < 20 * 5; i++) {
+            DataStorageManagers.insert(dm, report(i), 2, 1);
+        }
+        dm.saveCurrentReportsToDisk();
+
+        DataStorageManager.ReportBatch batch = dm.getFirstBatch();
+        assertEquals(100, batch.reportCount);
+        assertEquals(200, batch.wifiCount);
+        assertEquals(100, batch.cellCount);
+        assertEquals(100, items(batch.data).length());
+        assertNull(dm.getNextBatch());
+
+        // Only deleting the merged batch deletes the stored batches
+        assertEquals(100, dm.getQueuedCounts().mReportCount);
+        assertTrue(dm.delete(batch));
+        assertEquals(0, dm.getQueuedCounts().mReportCount);
+        assertTrue(dm.isDirEmpty());
+    }
+
+    @Test
+    public void testMergedBatchesStayUnderTheCaps() throws Exception {
+        final DataStorageManager dm = create(10 * 1024 * 1024, 50);
+        for (int i = 0; i < 30 * 50; i++) {
+            DataStorageManagers.insert(dm, report(i), 1, 0);
+        }
+        dm.saveCurrentReportsToDisk();
+
+        HashSet<Integer> ids = new HashSet<Integer>();
+        DataStorageManager.ReportBatch batch = dm.getFirstBatch();
+        int batchCount = 0;
+        while (batch != null) {
+            batchCount++;
+            assertTrue(batch.reportCount <= DataStorageManager.MAX_REPORTS_PER_UPLOAD_BATCH);
+            JSONArray items = items(batch.data);
+            for (int i = 0; i < items.length(); i++) {
+                assertTrue(ids.add(items.getJSONObject(i).getInt("id")));
+            }
+            batch = dm.getNextBatch();
+        }
+        assertEquals(3, batchCount);
+        assertEquals(1500, ids.size());
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentInsertAndUpload() throws Exception {
+        final int reportCount = 5000;
+        final DataStorageManager dm = create(10 * 1024 * 1024, 7);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch insertsDone = new CountDownLatch(1);
+
+        Thread inserter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < reportCount; i++) {
+                        DataStorageManagers.insert(dm, report(i), 2, 1);
+                    }
+                } catch (Throwable ex) {
+                    error.set(ex);
+                } finally {
+                    insertsDone.countDown();
+                }
+            }
+        });
+
+        final HashSet<Integer> ids = new HashSet<Integer>();
+        final int[] uploaded = new int[1];
+        Thread uploader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (insertsDone.getCount() > 0) {
+                        uploaded[0] += upload(dm, ids);
+                    }
+                } catch (Throwable ex) {
+                    error.set(ex);
+                }
+            }
+        });
+
+        inserter.start();
+        uploader.start();
+        inserter.join();
+        uploader.join();
+        assertNull(error.get());
+
+        uploaded[0] += upload(dm, ids);
+        assertEquals(reportCount, uploaded[0]);
+        assertEquals(reportCount, ids.size());
+        assertEquals(0, dm.getQueuedCounts().mReportCount);
+        assertTrue(dm.isDirEmpty());
+        assertEquals(reportCount, dm.getSyncStats().mObservationsSent);
+
+        // Nothing is left in the write-ahead log
+        assertEquals(0, create(10 * 1024 * 1024, 7).getQueuedCounts().mReportCount);
+        assertFalse(new File(dir, "reports/" + WriteAheadLog.SEND_BUFFER_FILENAME).exists());
+    }
+}
@@ -2,7 +2,6 @@ package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
 
 import android.app.Application;
 import android.content.Context;
-import android.content.Intent;
 import android.location.Location;
 import android.net.wifi.ScanResult;
 import android.telephony.TelephonyManager;
@@ -13,17 +12,15 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mozilla.mozstumbler.service.stumblerthread.Reporter;
-import org.mozilla.mozstumbler.service.stumblerthread.scanners.GPSScanner;
-import org.mozilla.mozstumbler.service.stumblerthread.scanners.WifiScanner;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
-import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellScanner;
+import org.mozilla.mozstumbler.service.utils.LongKeyedMap;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Map;
+import java.util.List;
 
 
 import static junit.framework.Assert.assertTrue;
@@ -55,8 +52,7 @@ public class DataStorageManagerTest {
         // The Reporter class needs a reference to a context
         rp.startup(ctx);
 
-        Intent gpsUpdated = getLocationIntent();
-        rp.onReceive(ctx, gpsUpdated);
+        rp.onNewLocation(getLocation());
         assertTrue(null != rp.getGPSLocation());
     }
 
@@ -70,14 +66,14 @@ public class DataStorageManagerTest {
             bssidList.add(bssid);
         }
         String[] bssidArray  = bssidList.toArray(new String[bssidList.size()]);
-        Intent wifiIntent = getWifiIntent(bssidArray);
+        List<ScanResult> scanResults = getScanResults(bssidArray);
 
-        Map<String, ScanResult> wifiData = rp.getWifiData();
+        LongKeyedMap<ScanResult> wifiData = rp.getWifiData();
         Assert.assertTrue("Max wifi limit is exceeded", wifiData.size() <= Reporter.MAX_WIFIS_PER_LOCATION);
 
         // This should push the reporter into a state that forces a
         // flush
-        rp.onReceive(ctx, wifiIntent);
+        rp.onWifisScanned(scanResults);
 
         wifiData = rp.getWifiData();
         Assert.assertTrue("Max wifi limit exceeded", wifiData == null);
@@ -93,28 +89,18 @@ public class DataStorageManagerTest {
             cellIdList.add(cell);
         }
 
-        Intent cellIntent = getCellIntent(cellIdList);
-        Map<String, CellInfo> cellData = rp.getCellData();
+        LongKeyedMap<CellInfo> cellData = rp.getCellData();
         Assert.assertTrue("Max cell limit exceeded", cellData.size() < Reporter.MAX_CELLS_PER_LOCATION);
 
         // Accepting the extra content into the Report should force
         // the Reporter to flush content
-        rp.onReceive(ctx, cellIntent);
+        rp.onCellsScanned(cellIdList);
 
         cellData = rp.getCellData();
         Assert.assertTrue("Cell data was not flushed properly", cellData == null);
     }
 
-    private Intent getCellIntent(ArrayList<CellInfo> cells) {
-        long curTime = System.currentTimeMillis();
-        Intent intent = new Intent(CellScanner.ACTION_CELLS_SCANNED);
-        intent.putParcelableArrayListExtra(CellScanner.ACTION_CELLS_SCANNED_ARG_CELLS, cells);
-        intent.putExtra(CellScanner.ACTION_CELLS_SCANNED_ARG_TIME, curTime);
-        return intent;
-
-    }
-
-    private Intent getWifiIntent(String[] bssids) {
+    private List<ScanResult> getScanResults(String[] bssids) {
         ArrayList<ScanResult> scanResults = new ArrayList<ScanResult>();
 
         ScanResult scan;
@@ -123,10 +109,7 @@ public class DataStorageManagerTest {
             scanResults.add(scan);
         }
 
-        Intent i = new Intent(WifiScanner.ACTION_WIFIS_SCANNED);
-        i.putParcelableArrayListExtra(WifiScanner.ACTION_WIFIS_SCANNED_ARG_RESULTS, scanResults);
-        i.putExtra(WifiScanner.ACTION_WIFIS_SCANNED_ARG_TIME, System.currentTimeMillis());
-        return i;
+        return scanResults;
     }
 
     CellInfo makeCellInfo(int mcc, int mnc, int lac, int cid, int asu) {
@@ -182,15 +165,11 @@ public class DataStorageManagerTest {
         return scan;
     }
 
-    private Intent getLocationIntent() {
+    private Location getLocation() {
         Location location = new Location("mock");
         location.setLongitude(20);
         location.setLatitude(30);
-        Intent i = new Intent(GPSScanner.ACTION_GPS_UPDATED);
-        i.putExtra(Intent.EXTRA_SUBJECT, GPSScanner.SUBJECT_NEW_LOCATION);
-        i.putExtra(GPSScanner.NEW_LOCATION_ARG_LOCATION, location);
-        i.putExtra(GPSScanner.ACTION_ARG_TIME, System.currentTimeMillis());
-        return i;
+        return location;
     }
 
     private Application getApplicationContext() {
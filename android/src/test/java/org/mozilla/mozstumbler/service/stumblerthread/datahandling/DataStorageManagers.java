@@ -0,0 +1,40 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import java.io.File;
+import java.io.IOException;
+
+/* Creates DataStorageManager instances for the tests of other packages, without a Context. */
+public final class DataStorageManagers {
+    private static final long HOUR_MS = 1000 * 60 * 60;
+
+    private DataStorageManagers() {}
+
+    public static DataStorageManager create(File dir, long maxBytes, int maxReportsInMemory) {
+        DataStorageManager dm = new DataStorageManager(dir, null, maxBytes, 2, ReportBatchWriter.FORMAT_JSON);
+        dm.setMemoryFlushThresholds(maxReportsInMemory, HOUR_MS, HOUR_MS);
+        return dm;
+    }
+
+    /* As create(), but getNextBatch() throws after returning nextBatches batches. */
+    public static DataStorageManager createFailing(File dir, long maxBytes, int maxReportsInMemory, final int nextBatches) {
+        DataStorageManager dm = new DataStorageManager(dir, null, maxBytes, 2, ReportBatchWriter.FORMAT_JSON) {
+            private int mCalls;
+
+            @Override
+            public ReportBatch getNextBatch() throws IOException {
+                if (mCalls++ >= nextBatches) {
+                    throw new IOException("Disk error");
+                }
+                return super.getNextBatch();
+            }
+        };
+        dm.setMemoryFlushThresholds(maxReportsInMemory, HOUR_MS, HOUR_MS);
+        return dm;
+    }
+
+    /* Stores a report as Reporter does. The managers of the tests store MLS JSON, so the bundle is not read. */
+    public static void insert(DataStorageManager dm, String report, int wifiCount, int cellCount) throws IOException {
+        final byte[] bytes = report.getBytes("UTF-8");
+        dm.insert(null, bytes, bytes.length, wifiCount, cellCount);
+    }
+}
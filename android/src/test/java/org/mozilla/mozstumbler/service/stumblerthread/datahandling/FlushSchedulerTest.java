@@ -0,0 +1,121 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class FlushSchedulerTest {
+
+    private static final long IDLE_MS = 3000;
+    private static final long MAX_AGE_MS = 10000;
+
+    // Runs scheduled tasks only when the test advances the clock
+    private static class FakeTime implements FlushScheduler.Clock, FlushScheduler.TaskScheduler {
+        long now = 1000;
+        final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        final ArrayList<Long> runAt = new ArrayList<Long>();
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            tasks.add(task);
+            runAt.add(now + delayMs);
+        }
+
+        void advance(long ms) {
+            final long end = now + ms;
+            boolean ran = true;
+            while (ran) {
+                ran = false;
+                for (int i = 0; i < tasks.size(); i++) {
+                    if (runAt.get(i) <= end) {
+                        now = Math.max(now, runAt.get(i));
+                        Runnable task = tasks.remove(i);
+                        runAt.remove(i);
+                        task.run();
+                        ran = true;
+                        break;
+                    }
+                }
+            }
+            now = end;
+        }
+    }
+
+    private FakeTime time;
+    private FlushScheduler scheduler;
+    private int flushCount;
+
+    @Before
+    public void setUp() {
+        time = new FakeTime();
+        flushCount = 0;
+        scheduler = new FlushScheduler(new Runnable() {
+            @Override
+            public void run() {
+                flushCount++;
+                scheduler.onFlushed();
+            }
+        }, 50, IDLE_MS, MAX_AGE_MS, time, time);
+    }
+
+    @Test
+    public void testFlushAfterIdle() {
+        scheduler.onInsert();
+        time.advance(IDLE_MS - 1);
+        assertEquals(0, flushCount);
+        time.advance(1);
+        assertEquals(1, flushCount);
+
+        // nothing buffered, nothing scheduled
+        time.advance(IDLE_MS * 10);
+        assertEquals(1, flushCount);
+        assertTrue(time.tasks.isEmpty());
+    }
+
+    @Test
+    public void testInsertsOnlyMoveTheDeadline() {
+        for (int i = 0; i < 4; i++) {
+            scheduler.onInsert();
+            time.advance(2000);
+        }
+        // One pending check, re-armed from the last insert
+        assertEquals(0, flushCount);
+        assertEquals(1, time.tasks.size());
+        time.advance(1000);
+        assertEquals(1, flushCount);
+    }
+
+    @Test
+    public void testFlushAtMaxAge() {
+        // A report every 2s never lets the idle deadline pass
+        for (int i = 0; i < 5; i++) {
+            scheduler.onInsert();
+            time.advance(2000);
+        }
+        assertEquals(1, flushCount);
+        assertEquals(1000 + MAX_AGE_MS, time.now);
+    }
+
+    @Test
+    public void testSizeThreshold() {
+        assertFalse(scheduler.isFull(49));
+        assertTrue(scheduler.isFull(50));
+        scheduler.setThresholds(10, IDLE_MS, MAX_AGE_MS);
+        assertTrue(scheduler.isFull(10));
+    }
+}
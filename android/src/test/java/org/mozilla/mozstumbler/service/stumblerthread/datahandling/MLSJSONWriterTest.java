@@ -0,0 +1,141 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MLSJSONWriterTest {
+
+    private ScanResult makeScanResult(String bssid, int level, int frequency) throws Exception {
+        for (Constructor<?> c : ScanResult.class.getConstructors()) {
+            if (c.getParameterTypes().length == 6) {
+                return (ScanResult) c.newInstance(null, bssid, "caps", level, frequency, 10L);
+            }
+        }
+        throw new RuntimeException("No constructor found");
+    }
+
+    private CellInfo makeCellInfo(int mcc, int mnc, int lac, int cid, int asu) throws Exception {
+        CellInfo cell = new CellInfo(TelephonyManager.PHONE_TYPE_GSM);
+        Method method = CellInfo.class.getDeclaredMethod("setGsmCellInfo",
+                int.class, int.class, int.class, int.class, int.class);
+        method.setAccessible(true);
+        method.invoke(cell, mcc, mnc, lac, cid, asu);
+        return cell;
+    }
+
+    private StumblerBundle makeBundle(double lat, double lon, int wifis, int cells) throws Exception {
+        Location location = new Location("mock");
+        location.setTime(1406863343313L);
+        location.setLatitude(lat);
+        location.setLongitude(lon);
+        location.setAccuracy(12.3f);
+        location.setAltitude(-12.6);
+
+        StumblerBundle bundle = new StumblerBundle(location, TelephonyManager.PHONE_TYPE_GSM);
+        Random random = new Random(wifis);
+        for (int i = 0; i < wifis; i++) {
+            String bssid = String.format("%012x", random.nextLong() & 0xffffffffffffL);
+            bundle.addWifi(makeScanResult(bssid, -40 - random.nextInt(50), i % 2 == 0 ? 2412 : 5180));
+        }
+        for (int i = 0; i < cells; i++) {
+            CellInfo cell = makeCellInfo(302, 720, 2000 + i, 1600199 + i, 19);
+            bundle.addCell(cell);
+        }
+        return bundle;
+    }
+
+    // Reparsed, so that the key order of the org.json implementation doesn't matter
+    private static void assertSameJSON(StumblerBundle bundle, String json) throws Exception {
+        assertEquals(bundle.toMLSJSON().toString(), new JSONObject(json).toString());
+    }
+
+    private static String written(MLSJSONWriter writer, StumblerBundle bundle) throws Exception {
+        int length = writer.write(bundle);
+        String json = writer.toString();
+        assertTrue(Arrays.equals(json.getBytes("UTF-8"), Arrays.copyOf(writer.getBuffer(), length)));
+        return json;
+    }
+
+    @Test
+    public void testWritesWhatToMLSJSONDoes() throws Exception {
+        MLSJSONWriter writer = new MLSJSONWriter();
+        StumblerBundle bundle = makeBundle(43.6532123, -79.3832987, 200, 50);
+        assertSameJSON(bundle, written(writer, bundle));
+        assertEquals(200, writer.getWifiCount());
+        assertEquals(50, writer.getCellCount());
+
+        // The buffer is reused
+        bundle = makeBundle(43, -79.5, 3, 0);
+        assertSameJSON(bundle, written(writer, bundle));
+        assertEquals(3, writer.getWifiCount());
+        assertEquals(0, writer.getCellCount());
+
+        bundle = new StumblerBundle(new Location("mock"), TelephonyManager.PHONE_TYPE_NONE);
+        assertSameJSON(bundle, written(writer, bundle));
+    }
+
+    @Test
+    public void testAgesAreWritten() throws Exception {
+        MLSJSONWriter writer = new MLSJSONWriter();
+        StumblerBundle bundle = makeBundle(43, -79.5, 0, 0);
+        long time = bundle.getGpsPosition().getTime();
+        bundle.addWifi(makeScanResult("0123456789ab", -50, 2412), time - 1500);
+        bundle.addWifi(makeScanResult("0123456789ac", -50, 2412), time + 200);
+        bundle.addCell(makeCellInfo(302, 720, 2000, 1600199, 19), time - 10);
+        String json = written(writer, bundle);
+        assertTrue(json.contains("\"signal\":-50,\"age\":1500}"));
+        assertTrue(json.contains("\"age\":-200}"));
+        assertSameJSON(bundle, json);
+    }
+
+    @Test
+    public void testSmallCoordinatesHaveTheSameValue() throws Exception {
+        MLSJSONWriter writer = new MLSJSONWriter();
+        double[] values = { 0.0005, -0.0000004, 0.000001, -0.9999999, 179.9999995, -180 };
+        for (double value : values) {
+            StumblerBundle bundle = makeBundle(value, -value, 1, 0);
+            JSONObject expected = bundle.toMLSJSON();
+            JSONObject json = new JSONObject(written(writer, bundle));
+            assertEquals(expected.getDouble(DataStorageContract.ReportsColumns.LAT),
+                    json.getDouble(DataStorageContract.ReportsColumns.LAT));
+            assertEquals(expected.getDouble(DataStorageContract.ReportsColumns.LON),
+                    json.getDouble(DataStorageContract.ReportsColumns.LON));
+        }
+        assertTrue(written(writer, makeBundle(0.0005, 0, 1, 0)).contains("\"lat\":0.0005,\"lon\":0,"));
+    }
+
+    @Test
+    public void testStringsAreEscaped() throws Exception {
+        MLSJSONWriter writer = new MLSJSONWriter();
+        StumblerBundle bundle = makeBundle(1, 2, 0, 0);
+        String key = "a\"b/c\\d\te\n\u0001 é中😀";
+        bundle.addWifi(makeScanResult(key, -50, 2412));
+        String json = written(writer, bundle);
+        assertTrue(json.contains("\"key\":\"a\\\"b\\/c\\\\d\\te\\n\\u0001 é中😀\""));
+        assertSameJSON(bundle, json);
+    }
+
+    @Test(expected = JSONException.class)
+    public void testNaNIsRejected() throws Exception {
+        new MLSJSONWriter().write(makeBundle(Double.NaN, 0, 1, 0));
+    }
+}
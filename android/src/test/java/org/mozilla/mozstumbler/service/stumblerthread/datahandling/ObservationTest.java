@@ -0,0 +1,68 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.core.http.CachingLocationService;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Constructor;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ObservationTest {
+
+    private static ScanResult scanResult(String bssid) throws Exception {
+        for (Constructor<?> c : ScanResult.class.getConstructors()) {
+            if (c.getParameterTypes().length == 6) {
+                return (ScanResult) c.newInstance(null, bssid, "", -60, 2412, 0L);
+            }
+        }
+        throw new IllegalStateException("No ScanResult constructor");
+    }
+
+    private static Observation observe(StumblerBundle bundle) throws JSONException {
+        MLSJSONWriter writer = new MLSJSONWriter();
+        writer.write(bundle);
+        return new Observation(bundle.getGpsPosition(), writer.toString(), writer.getWifiCount(), writer.getCellCount());
+    }
+
+    @Test
+    public void testSummarizesTheBundle() throws Exception {
+        Location location = new Location("mock");
+        location.setLatitude(43.5);
+        location.setLongitude(-79.25);
+        StumblerBundle bundle = new StumblerBundle(location, TelephonyManager.PHONE_TYPE_GSM);
+        bundle.addWifi(scanResult("01:02:03:04:05:06"));
+        bundle.addWifi(scanResult("01:02:03:04:05:07"));
+
+        Observation observation = observe(bundle);
+        assertEquals(2, observation.getWifiCount());
+        assertEquals(0, observation.getCellCount());
+        assertEquals(43.5, observation.getLatitude(), 1e-9);
+        assertEquals(CachingLocationService.fingerprint(bundle.toMLSJSON()), observation.getFingerprint());
+        assertEquals(bundle.toMLSJSON().toString(), observation.getMLSJSON().toString());
+
+        // The position is not shared with the bundle, or with the readers
+        location.setLatitude(0);
+        assertEquals(43.5, observation.getPosition().getLatitude(), 1e-9);
+        assertNotSame(observation.getPosition(), observation.getPosition());
+        assertSame(observation.getMLSJSON(), observation.getMLSJSON());
+    }
+
+    @Test
+    public void testNoFingerprintWithoutWifisOrCells() throws Exception {
+        Observation observation = observe(new StumblerBundle(new Location("mock"), TelephonyManager.PHONE_TYPE_GSM));
+        assertNull(observation.getFingerprint());
+    }
+}
@@ -0,0 +1,97 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+import static junit.framework.Assert.assertEquals;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ReportBatchWriterTest {
+
+    private static final int REPORTS_PER_BATCH = 50;
+
+    private String makeReport(int seed) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"timestamp\":").append(1406863343313L + seed)
+          .append(",\"lat\":43.6").append(seed).append(",\"lon\":-79.3").append(seed)
+          .append(",\"accuracy\":10,\"radio\":\"gsm\",\"cell\":[],\"cell_count\":0,\"wifi\":[");
+        for (int i = 0; i < 20; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"key\":\"").append(Long.toHexString(0xabcd00000000L + seed * 20 + i))
+              .append("\",\"frequency\":2412,\"signal\":-").append(40 + i).append('}');
+        }
+        return sb.append("],\"wifi_count\":20}").toString();
+    }
+
+    private String expectedBatch(ArrayList<String> reports) {
+        StringBuilder sb = new StringBuilder("{\"items\":[");
+        String sep = "";
+        for (String s : reports) {
+            sb.append(sep).append(s);
+            sep = ",";
+        }
+        return sb.append("]}").toString();
+    }
+
+    private String unzip(byte[] data) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(data)), "UTF-8");
+        try {
+            char[] buf = new char[1024];
+            int n;
+            while ((n = reader.read(buf)) > 0) {
+                sb.append(buf, 0, n);
+            }
+        } finally {
+            reader.close();
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testBatchMatchesConcatenatedReports() throws IOException {
+        ReportBatchWriter writer = new ReportBatchWriter();
+        // Run twice to check that the writer is reusable after finish()
+        for (int batch = 0; batch < 2; batch++) {
+            ArrayList<String> reports = new ArrayList<String>();
+            for (int i = 0; i < REPORTS_PER_BATCH; i++) {
+                String report = makeReport(batch * 100 + i) + (i == 3 ? "é中😀" : "");
+                reports.add(report);
+                writer.add(report, 20, 1);
+            }
+            assertEquals(REPORTS_PER_BATCH, writer.getReportCount());
+            assertEquals(REPORTS_PER_BATCH * 20, writer.getWifiCount());
+            assertEquals(REPORTS_PER_BATCH, writer.getCellCount());
+
+            String expected = expectedBatch(reports);
+            // the closing "]}" is written by finish()
+            assertEquals(expected.getBytes("UTF-8").length - 2, writer.getUncompressedBytes());
+            assertEquals(expected, unzip(writer.finish()));
+            assertEquals(0, writer.getReportCount());
+        }
+    }
+
+    @Test
+    public void testUnpairedSurrogateIsReplaced() throws IOException {
+        ReportBatchWriter writer = new ReportBatchWriter();
+        writer.add("{\"ssid\":\"a\ud800b\udc00\"}", 0, 0);
+        assertEquals("{\"items\":[{\"ssid\":\"a?b?\"}]}", unzip(writer.finish()));
+    }
+
+    @Test
+    public void testEmptyBatch() throws IOException {
+        assertEquals("{\"items\":[]}", unzip(new ReportBatchWriter().finish()));
+    }
+}
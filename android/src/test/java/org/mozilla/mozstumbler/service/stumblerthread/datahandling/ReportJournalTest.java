@@ -0,0 +1,151 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ReportJournalTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private byte[] makeData(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void testAppendReadRemove() throws IOException {
+        ReportJournal journal = new ReportJournal(dir, 1024);
+        ReportJournal.Entry a = journal.append(makeData(100, 1), 1000, 3, 20, 5);
+        ReportJournal.Entry b = journal.append(makeData(200, 2), 2000, 4, 30, 6);
+
+        assertEquals(2, journal.getBatchCount());
+        assertEquals(7, journal.getReportCount());
+        assertEquals(50, journal.getWifiCount());
+        assertEquals(11, journal.getCellCount());
+        assertEquals(300, journal.getLiveBytes());
+        assertEquals(1000, journal.getOldestTimeMs());
+        assertTrue(Arrays.equals(makeData(200, 2), journal.read(b)));
+
+        assertTrue(journal.remove(a.name));
+        assertFalse(journal.remove(a.name));
+        assertNull(journal.get(a.name));
+        assertEquals(2000, journal.getOldestTimeMs());
+        assertEquals(4, journal.getReportCount());
+
+        assertTrue(journal.remove(b.name));
+        assertTrue(journal.isEmpty());
+        assertEquals(0, journal.getBytesOnDisk());
+    }
+
+    @Test
+    public void testSegmentRollover() throws IOException {
+        ReportJournal journal = new ReportJournal(dir, 250);
+        ReportJournal.Entry a = journal.append(makeData(200, 1), 1, 1, 1, 1);
+        ReportJournal.Entry b = journal.append(makeData(200, 2), 2, 1, 1, 1);
+        journal.append(makeData(200, 3), 3, 1, 1, 1);
+
+        assertTrue(a.segmentId != b.segmentId);
+        assertEquals(600, journal.getBytesOnDisk());
+
+        // The first segment is deleted once its only batch is removed
+        journal.remove(a.name);
+        assertEquals(400, journal.getBytesOnDisk());
+        assertFalse(new File(dir, ReportJournal.SEGMENT_PREFIX + a.segmentId + ReportJournal.SEGMENT_SUFFIX).exists());
+    }
+
+    @Test
+    public void testReclaimMovesLiveBatches() throws IOException {
+        ReportJournal journal = new ReportJournal(dir, 1024);
+        ReportJournal.Entry a = journal.append(makeData(100, 1), 1000, 3, 20, 5);
+        ReportJournal.Entry b = journal.append(makeData(100, 2), 2000, 4, 30, 6);
+        ReportJournal.Entry c = journal.append(makeData(100, 3), 3000, 5, 40, 7);
+        journal.remove(b.name);
+        assertEquals(200, journal.getLiveBytes());
+        assertEquals(300, journal.getBytesOnDisk());
+
+        journal.reclaim(250);
+        assertEquals(200, journal.getBytesOnDisk());
+        assertFalse(new File(dir, ReportJournal.SEGMENT_PREFIX + a.segmentId + ReportJournal.SEGMENT_SUFFIX).exists());
+        assertEquals(8, journal.getReportCount());
+        assertEquals(1000, journal.getOldestTimeMs());
+
+        // The old names still find the moved batches
+        assertTrue(Arrays.equals(makeData(100, 1), journal.read(journal.get(a.name))));
+        assertTrue(journal.remove(c.name));
+        assertNull(journal.get(c.name));
+
+        ReportJournal reopened = new ReportJournal(dir, 1024);
+        assertEquals(1, reopened.getBatchCount());
+        assertEquals(100, reopened.getLiveBytes());
+        assertTrue(Arrays.equals(makeData(100, 1), reopened.read(reopened.snapshot()[0])));
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        ReportJournal journal = new ReportJournal(dir, 1024);
+        ReportJournal.Entry a = journal.append(makeData(100, 1), 1000, 3, 20, 5);
+        ReportJournal.Entry b = journal.append(makeData(50, 2), 2000, 4, 30, 6);
+        ReportJournal.Entry c = journal.append(makeData(70, 3), 3000, 5, 40, 7);
+        journal.remove(b.name);
+
+        ReportJournal reopened = new ReportJournal(dir, 1024);
+        assertEquals(2, reopened.getBatchCount());
+        assertEquals(8, reopened.getReportCount());
+        assertNull(reopened.get(b.name));
+        assertTrue(Arrays.equals(makeData(100, 1), reopened.read(reopened.get(a.name))));
+        assertTrue(Arrays.equals(makeData(70, 3), reopened.read(reopened.get(c.name))));
+    }
+
+    @Test(expected = ReportJournal.CorruptBatchException.class)
+    public void testCorruptBatchIsDetected() throws IOException {
+        ReportJournal journal = new ReportJournal(dir, 1024);
+        journal.append(makeData(100, 1), 1000, 1, 1, 1);
+        ReportJournal.Entry b = journal.append(makeData(100, 2), 2000, 1, 1, 1);
+
+        RandomAccessFile segment = new RandomAccessFile(
+                new File(dir, ReportJournal.SEGMENT_PREFIX + b.segmentId + ReportJournal.SEGMENT_SUFFIX), "rw");
+        segment.seek(b.offset + 10);
+        segment.write(0xff);
+        segment.close();
+
+        ReportJournal reopened = new ReportJournal(dir, 1024);
+        reopened.read(reopened.get(b.name));
+    }
+}
@@ -0,0 +1,199 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class RetentionPoliciesTest {
+
+    private static final long REPORT_BYTES = 100;
+
+    // Each report takes REPORT_BYTES, or half that once recompacted
+    private static class FakeStore implements ReportStore {
+        final ArrayList<Batch> batches = new ArrayList<Batch>();
+        final HashMap<String, List<JSONObject>> reports = new HashMap<String, List<JSONObject>>();
+        int evictedReports;
+        int nextId;
+
+        void add(long timeMs, List<JSONObject> batchReports, boolean recompacted) {
+            long bytes = batchReports.size() * (recompacted ? REPORT_BYTES / 2 : REPORT_BYTES);
+            Batch b = new Batch("b" + nextId++, timeMs, batchReports.size(), 0, 0, bytes, recompacted);
+            batches.add(b);
+            reports.put(b.name, batchReports);
+        }
+
+        @Override
+        public Batch[] getBatches() {
+            ArrayList<Batch> sorted = new ArrayList<Batch>(batches);
+            Collections.sort(sorted, new Comparator<Batch>() {
+                @Override
+                public int compare(Batch lhs, Batch rhs) {
+                    return Long.valueOf(lhs.timeMs).compareTo(rhs.timeMs);
+                }
+            });
+            return sorted.toArray(new Batch[sorted.size()]);
+        }
+
+        @Override
+        public long getLiveBytes() {
+            long total = 0;
+            for (Batch b : batches) {
+                total += b.bytes;
+            }
+            return total;
+        }
+
+        @Override
+        public List<JSONObject> readReports(Batch batch) {
+            return reports.get(batch.name);
+        }
+
+        @Override
+        public void remove(Batch batch) {
+            if (batches.remove(batch)) {
+                evictedReports += batch.reportCount;
+            }
+        }
+
+        @Override
+        public void replace(List<Batch> old, List<JSONObject> newReports, boolean useBestCompression) {
+            long timeMs = Long.MAX_VALUE;
+            for (Batch b : old) {
+                timeMs = Math.min(timeMs, b.timeMs);
+                remove(b);
+            }
+            evictedReports -= newReports.size();
+            add(timeMs, newReports, useBestCompression);
+        }
+    }
+
+    private static JSONObject report(double lat, double lon, String... bssids) throws JSONException {
+        JSONObject item = new JSONObject();
+        item.put(DataStorageContract.ReportsColumns.LAT, lat);
+        item.put(DataStorageContract.ReportsColumns.LON, lon);
+        JSONArray wifis = new JSONArray();
+        for (String bssid : bssids) {
+            JSONObject wifi = new JSONObject();
+            wifi.put("key", bssid);
+            wifi.put("signal", -50);
+            wifis.put(wifi);
+        }
+        item.put(DataStorageContract.ReportsColumns.WIFI, wifis);
+        return item;
+    }
+
+    private static List<JSONObject> reports(double lat, int count) throws JSONException {
+        ArrayList<JSONObject> list = new ArrayList<JSONObject>();
+        for (int i = 0; i < count; i++) {
+            list.add(report(lat + i * 0.01, 0, "0000000000" + (10 + i)));
+        }
+        return list;
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        FakeStore store = new FakeStore();
+        store.add(3000, reports(1, 5), false);
+        store.add(1000, reports(2, 5), false);
+        store.add(2000, reports(3, 5), false);
+
+        assertTrue(RetentionPolicies.DROP_OLDEST.makeRoom(store, 400, 1500));
+        assertEquals(2, store.batches.size());
+        assertEquals(5, store.evictedReports);
+        for (ReportStore.Batch b : store.batches) {
+            assertTrue(b.timeMs != 1000);
+        }
+        assertFalse(RetentionPolicies.DROP_NEWEST.makeRoom(store, 400, 1000));
+    }
+
+    @Test
+    public void testThinKeepsNewestOfRedundantReports() throws Exception {
+        FakeStore store = new FakeStore();
+        ArrayList<JSONObject> older = new ArrayList<JSONObject>();
+        older.add(report(43.65001, -79.38001, "aaaaaaaaaaaa", "bbbbbbbbbbbb"));
+        older.add(report(43.66, -79.38, "aaaaaaaaaaaa", "bbbbbbbbbbbb"));  // another grid cell
+        older.add(report(43.65002, -79.38002, "aaaaaaaaaaaa"));             // other wifis
+        ArrayList<JSONObject> newer = new ArrayList<JSONObject>();
+        newer.add(report(43.65003, -79.38003, "bbbbbbbbbbbb", "aaaaaaaaaaaa"));
+        newer.add(report(43.65004, -79.38004, "aaaaaaaaaaaa", "bbbbbbbbbbbb"));
+        store.add(1000, older, false);
+        store.add(2000, newer, false);
+
+        RetentionPolicy thin = RetentionPolicies.thinRedundant();
+        assertTrue(thin.makeRoom(store, 100, 400));
+        assertEquals(2, store.evictedReports);
+        assertEquals(3, store.getLiveBytes() / REPORT_BYTES);
+
+        // Nothing left to thin
+        assertFalse(thin.makeRoom(store, 100, 300));
+        assertEquals(2, store.evictedReports);
+    }
+
+    @Test
+    public void testThinComparesReportsWithTheSameKey() throws Exception {
+        FakeStore store = new FakeStore();
+        ArrayList<JSONObject> older = new ArrayList<JSONObject>();
+        older.add(report(43.65001, -79.38001, "aaaaaaaaaaaa", "bbbbbbbbbbbb"));
+        older.add(report(43.65002, -79.38002, "aaaaaaaaaaaa"));
+        ArrayList<JSONObject> newer = new ArrayList<JSONObject>();
+        newer.add(report(43.65003, -79.38003, "bbbbbbbbbbbb", "aaaaaaaaaaaa"));
+        newer.add(report(43.66, -79.38, "cccccccccccc"));
+        store.add(1000, older, false);
+        store.add(2000, newer, false);
+
+        // Every report has the same key, only the one seen again is dropped
+        RetentionPolicy thin = new RetentionPolicies.ThinRedundant() {
+            @Override
+            long keyOf(JSONObject report) {
+                return 0;
+            }
+        };
+        thin.makeRoom(store, 100, 400);
+        assertEquals(1, store.evictedReports);
+        assertEquals(3, store.getLiveBytes() / REPORT_BYTES);
+    }
+
+    @Test
+    public void testRecompactThenDropOldest() throws Exception {
+        FakeStore store = new FakeStore();
+        for (int i = 0; i < 4; i++) {
+            store.add(1000 + i, reports(i, 10), false);
+        }
+        RetentionPolicy policy = RetentionPolicies.chain(RetentionPolicies.recompact(), RetentionPolicies.DROP_OLDEST);
+
+        assertTrue(policy.makeRoom(store, 1000, 3000));
+        assertEquals(0, store.evictedReports);
+        assertEquals(1, store.batches.size());
+        assertTrue(store.batches.get(0).isRecompacted);
+        assertEquals(1000, store.batches.get(0).timeMs);
+        assertEquals(40, store.batches.get(0).reportCount);
+
+        // Everything is recompacted, the oldest reports go
+        assertTrue(policy.makeRoom(store, 1000, 1500));
+        assertEquals(40, store.evictedReports);
+    }
+
+    @Test
+    public void testUnreadableBatchIsSkipped() throws IOException, JSONException {
+        FakeStore store = new FakeStore();
+        store.add(1000, new ArrayList<JSONObject>(), false);
+        assertFalse(RetentionPolicies.thinRedundant().makeRoom(store, 100, 50));
+    }
+}
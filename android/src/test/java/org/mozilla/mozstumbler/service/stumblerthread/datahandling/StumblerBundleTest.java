@@ -0,0 +1,188 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class StumblerBundleTest {
+
+    private ScanResult makeScanResult(String bssid, int level) throws Exception {
+        for (Constructor<?> c : ScanResult.class.getConstructors()) {
+            if (c.getParameterTypes().length == 6) {
+                return (ScanResult) c.newInstance(null, bssid, "caps", level, 2412, 10L);
+            }
+        }
+        throw new RuntimeException("No constructor found");
+    }
+
+    private CellInfo makeCellInfo(int mcc, int mnc, int lac, int cid, int asu) throws Exception {
+        CellInfo cell = new CellInfo(TelephonyManager.PHONE_TYPE_GSM);
+        Method method = CellInfo.class.getDeclaredMethod("setGsmCellInfo",
+                int.class, int.class, int.class, int.class, int.class);
+        method.setAccessible(true);
+        method.invoke(cell, mcc, mnc, lac, cid, asu);
+        return cell;
+    }
+
+    private CellInfo makeCdmaCellInfo(int dbm) throws Exception {
+        CellInfo cell = new CellInfo(TelephonyManager.PHONE_TYPE_CDMA);
+        Method method = CellInfo.class.getDeclaredMethod("setCdmaCellInfo", int.class, int.class, int.class, int.class);
+        method.setAccessible(true);
+        method.invoke(cell, 1, 2, 3, dbm);
+        return cell;
+    }
+
+    @Test
+    public void testWifiKeys() {
+        assertEquals(0x0123456789abL, StumblerBundle.wifiKey("01:23:45:67:89:ab"));
+        assertEquals(StumblerBundle.wifiKey("01:23:45:67:89:ab"), StumblerBundle.wifiKey("01-23-45-67-89-AB"));
+        assertEquals(StumblerBundle.wifiKey("01:23:45:67:89:ab"), StumblerBundle.wifiKey("0123456789ab"));
+
+        // Not a MAC address: hashed, and never equal to a packed one
+        assertTrue(StumblerBundle.wifiKey("not a bssid") < 0);
+        assertTrue(StumblerBundle.wifiKey("01:23:45:67:89") < 0);
+        assertFalse(StumblerBundle.wifiKey("not a bssid") == StumblerBundle.wifiKey("not a bssiD"));
+    }
+
+    @Test
+    public void testDuplicatesAreDropped() throws Exception {
+        StumblerBundle bundle = new StumblerBundle(new Location("mock"), TelephonyManager.PHONE_TYPE_GSM);
+        assertTrue(bundle.addWifi(makeScanResult("01:23:45:67:89:ab", -50)));
+        assertFalse(bundle.addWifi(makeScanResult("01:23:45:67:89:AB", -60)));
+        assertTrue(bundle.addWifi(makeScanResult("01:23:45:67:89:ac", -60)));
+        assertEquals(2, bundle.getWifiData().size());
+        assertEquals(-50, bundle.getWifiData().valueAt(0).level);
+
+        CellInfo cell = makeCellInfo(302, 720, 2000, 1600199, 19);
+        assertEquals(cell.getCellIdentityKey(), makeCellInfo(302, 720, 2000, 1600199, 5).getCellIdentityKey());
+        assertTrue(bundle.addCell(cell));
+        assertFalse(bundle.addCell(makeCellInfo(302, 720, 2000, 1600199, 5)));
+        assertTrue(bundle.addCell(makeCellInfo(302, 720, 2001, 1600199, 19)));
+        assertEquals(2, bundle.getCellData().size());
+
+        Location location = new Location("mock");
+        location.setLatitude(12);
+        bundle.reset(location);
+        assertTrue(bundle.getWifiData().isEmpty());
+        assertTrue(bundle.getCellData().isEmpty());
+        assertEquals(12.0, bundle.getGpsPosition().getLatitude());
+    }
+
+    @Test
+    public void testStrongestReadingIsKept() throws Exception {
+        StumblerBundle bundle = new StumblerBundle(new Location("mock"), TelephonyManager.PHONE_TYPE_GSM);
+        bundle.addWifi(makeScanResult("01:23:45:67:89:ab", -80), 1000);
+        ScanResult strongest = makeScanResult("01:23:45:67:89:ab", -50);
+        bundle.addWifi(strongest, 6000);
+        bundle.addWifi(makeScanResult("01:23:45:67:89:ab", -71), 11000);
+        assertEquals(1, bundle.getWifiData().size());
+        assertTrue(strongest == bundle.getWifiData().valueAt(0));
+
+        SignalStats stats = bundle.getWifiStats();
+        assertEquals(3, stats.getSampleCount(0));
+        assertEquals(-50, stats.getMaxSignal(0));
+        assertEquals(-67, stats.getMeanSignal(0));
+        assertEquals(1000, stats.getFirstSeen(0));
+        assertEquals(11000, stats.getLastSeen(0));
+
+        // GSM cells report an ASU, 99 is unknown
+        bundle.addCell(makeCellInfo(302, 720, 2000, 1600199, 12), 1000);
+        CellInfo strongestCell = makeCellInfo(302, 720, 2000, 1600199, 25);
+        bundle.addCell(strongestCell, 2000);
+        bundle.addCell(makeCellInfo(302, 720, 2000, 1600199, 20), 3000);
+        bundle.addCell(makeCellInfo(302, 720, 2000, 1600199, 99), 4000);
+        assertEquals(1, bundle.getCellData().size());
+        assertTrue(strongestCell == bundle.getCellData().valueAt(0));
+
+        stats = bundle.getCellStats();
+        assertEquals(4, stats.getSampleCount(0));
+        assertTrue(stats.isAsu(0));
+        assertEquals(25, stats.getMaxSignal(0));
+        assertEquals(19, stats.getMeanSignal(0));
+        assertEquals(4000, stats.getLastSeen(0));
+
+        // Slots are overwritten after a reset
+        bundle.reset(new Location("mock"));
+        bundle.addWifi(makeScanResult("01:23:45:67:89:ac", -60), 20000);
+        assertEquals(1, bundle.getWifiStats().getSampleCount(0));
+        assertEquals(-60, bundle.getWifiStats().getMeanSignal(0));
+        assertEquals(20000, bundle.getWifiStats().getFirstSeen(0));
+    }
+
+    @Test
+    public void testAsuAndDbmAreNotCompared() {
+        SignalStats stats = new SignalStats(1);
+        stats.start(0, 30, true, 1000);
+        stats.add(0, -95, false, 2000);
+        stats.add(0, 31, true, 3000);
+        stats.add(0, SignalStats.UNKNOWN_SIGNAL, false, 4000);
+        stats.add(0, -85, false, 5000);
+        assertEquals(5, stats.getSampleCount(0));
+        assertFalse(stats.isAsu(0));
+        assertEquals(-85, stats.getMaxSignal(0));
+        assertEquals(-90, stats.getMeanSignal(0));
+        assertEquals(5000, stats.getLastSeen(0));
+
+        // Slots past the capacity grow the arrays
+        stats.start(3, SignalStats.UNKNOWN_SIGNAL, false, 6000);
+        assertEquals(1, stats.getSampleCount(3));
+        assertEquals(SignalStats.UNKNOWN_SIGNAL, stats.getMeanSignal(3));
+        assertEquals(-85, stats.getMaxSignal(0));
+    }
+
+    @Test
+    public void testAgeIsFromTheLastSeenTime() throws Exception {
+        Location location = new Location("mock");
+        location.setTime(1000000);
+        StumblerBundle bundle = new StumblerBundle(location, TelephonyManager.PHONE_TYPE_GSM);
+        bundle.addWifi(makeScanResult("01:23:45:67:89:ab", -80), 997000);
+        bundle.addWifi(makeScanResult("01:23:45:67:89:ab", -90), 998500);
+        bundle.addWifi(makeScanResult("01:23:45:67:89:ac", -80), 1002000);
+        bundle.addCell(makeCellInfo(302, 720, 2000, 1600199, 12), 1000000 + StumblerBundle.MAX_AGE_MS + 1);
+        assertEquals(1500, bundle.getWifiAge(0));
+        assertEquals(-2000, bundle.getWifiAge(1));
+        // Over an hour apart, the clocks disagree
+        assertEquals(StumblerBundle.UNKNOWN_AGE, bundle.getCellAge(0));
+
+        JSONObject json = bundle.toMLSJSON();
+        assertEquals(1500, json.getJSONArray(DataStorageContract.ReportsColumns.WIFI).getJSONObject(0).getLong("age"));
+        assertFalse(json.getJSONArray(DataStorageContract.ReportsColumns.CELL).getJSONObject(0).has("age"));
+
+        // No time for the fix
+        bundle.reset(new Location("mock"));
+        bundle.addWifi(makeScanResult("01:23:45:67:89:ab", -80), 997000);
+        assertEquals(StumblerBundle.UNKNOWN_AGE, bundle.getWifiAge(0));
+    }
+
+    @Test
+    public void testUnknownSignalNeverWins() throws Exception {
+        CellInfo asu = makeCellInfo(302, 720, 2000, 1600199, 12);
+        assertFalse(StumblerBundle.isStronger(makeCellInfo(302, 720, 2000, 1600199, 99), asu));
+        assertFalse(StumblerBundle.isStronger(makeCellInfo(302, 720, 2000, 1600199, -1), asu));
+        assertTrue(StumblerBundle.isStronger(asu, makeCellInfo(302, 720, 2000, 1600199, 99)));
+
+        // CDMA cells report dBm
+        CellInfo dbm = makeCdmaCellInfo(-90);
+        assertTrue(StumblerBundle.isStronger(dbm, asu));
+        assertFalse(StumblerBundle.isStronger(asu, dbm));
+        assertFalse(StumblerBundle.isStronger(makeCdmaCellInfo(CellInfo.UNKNOWN_SIGNAL), dbm));
+        assertFalse(StumblerBundle.isStronger(makeCdmaCellInfo(0), dbm));
+        assertTrue(StumblerBundle.isStronger(makeCdmaCellInfo(-80), dbm));
+    }
+}
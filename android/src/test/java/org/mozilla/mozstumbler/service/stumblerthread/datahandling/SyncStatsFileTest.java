@@ -0,0 +1,101 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class SyncStatsFileTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("stats", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testWriteAndLoad() throws IOException {
+        assertEquals(0, new SyncStatsFile(dir).load().mObservationsSent);
+
+        SyncStatsFile file = new SyncStatsFile(dir);
+        file.load();
+        file.write(new DataStorageManager.SyncStats(1000, 2, 3, 4, 5));
+        file.write(new DataStorageManager.SyncStats(2000, 20, 30, 40, 50));
+        file.write(new DataStorageManager.SyncStats(3000, 200, 300, 400, 500));
+
+        DataStorageManager.SyncStats stats = new SyncStatsFile(dir).load();
+        assertEquals(3000, stats.mLastUploadTimeMs);
+        assertEquals(200, stats.mBytesSent);
+        assertEquals(300, stats.mObservationsSent);
+        assertEquals(400, stats.mCellsSent);
+        assertEquals(500, stats.mWifisSent);
+    }
+
+    @Test
+    public void testTornWriteKeepsPreviousRecord() throws IOException {
+        SyncStatsFile file = new SyncStatsFile(dir);
+        file.write(new DataStorageManager.SyncStats(1000, 2, 3, 4, 5));
+        file.write(new DataStorageManager.SyncStats(2000, 20, 30, 40, 50));
+
+        // The second record is in the first slot, damage it
+        RandomAccessFile f = new RandomAccessFile(new File(dir, SyncStatsFile.FILENAME), "rw");
+        f.seek(8 + 20);
+        f.write(0xff);
+        f.close();
+
+        assertEquals(3, new SyncStatsFile(dir).load().mObservationsSent);
+    }
+
+    @Test
+    public void testLegacyFileIsConverted() throws IOException {
+        Properties props = new Properties();
+        props.setProperty(DataStorageContract.Stats.KEY_LAST_UPLOAD_TIME, "1406863343313");
+        props.setProperty(DataStorageContract.Stats.KEY_BYTES_SENT, "12345");
+        props.setProperty(DataStorageContract.Stats.KEY_OBSERVATIONS_SENT, "67");
+        props.setProperty(DataStorageContract.Stats.KEY_CELLS_SENT, "8");
+        props.setProperty(DataStorageContract.Stats.KEY_WIFIS_SENT, "910");
+        props.setProperty(DataStorageContract.Stats.KEY_VERSION, String.valueOf(DataStorageContract.Stats.VERSION_CODE));
+        FileOutputStream out = new FileOutputStream(new File(dir, SyncStatsFile.LEGACY_FILENAME));
+        props.store(out, null);
+        out.close();
+
+        DataStorageManager.SyncStats stats = new SyncStatsFile(dir).load();
+        assertEquals(1406863343313L, stats.mLastUploadTimeMs);
+        assertEquals(67, stats.mObservationsSent);
+        assertFalse(new File(dir, SyncStatsFile.LEGACY_FILENAME).exists());
+        assertTrue(new File(dir, SyncStatsFile.FILENAME).exists());
+
+        stats = new SyncStatsFile(dir).load();
+        assertEquals(12345, stats.mBytesSent);
+        assertEquals(8, stats.mCellsSent);
+        assertEquals(910, stats.mWifisSent);
+    }
+}
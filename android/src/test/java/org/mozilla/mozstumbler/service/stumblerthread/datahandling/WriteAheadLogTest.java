@@ -0,0 +1,122 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+import static junit.framework.Assert.assertEquals;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class WriteAheadLogTest {
+
+    private File dir;
+
+    private static class Collector implements WriteAheadLog.Replayer {
+        final ArrayList<String> reports = new ArrayList<String>();
+        int wifis;
+        int cells;
+
+        @Override
+        public boolean replay(int format, byte[] report, int wifiCount, int cellCount) {
+            try {
+                reports.add(new String(report, "UTF-8"));
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+            wifis += wifiCount;
+            cells += cellCount;
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("wal", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testReplayAfterKill() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir);
+        wal.append("{\"a\":1}", 2, 3);
+        wal.append("{\"b\":2}", 4, 5);
+        wal.sealAsSendBuffer();
+        wal.append("{\"c\":3}", 6, 7);
+
+        // simulate a torn record at the end of the file
+        FileOutputStream out = new FileOutputStream(new File(dir, WriteAheadLog.MEMORY_BUFFER_FILENAME), true);
+        out.write(new byte[] { 0, 0, 0, 20, 0, 0 });
+        out.close();
+
+        Collector c = new Collector();
+        assertEquals(3, new WriteAheadLog(dir).replay(c));
+        assertEquals("{\"a\":1}", c.reports.get(0));
+        assertEquals("{\"c\":3}", c.reports.get(2));
+        assertEquals(12, c.wifis);
+        assertEquals(15, c.cells);
+
+        // The replayed reports are logged again, until they are flushed
+        assertEquals(3, new WriteAheadLog(dir).replay(new Collector()));
+    }
+
+    @Test
+    public void testFlushedReportsAreNotReplayed() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir);
+        wal.append("{\"a\":1}", 1, 1);
+        wal.sealAsSendBuffer();
+        wal.append("{\"b\":2}", 1, 1);
+        wal.discardSendBuffer();
+
+        Collector c = new Collector();
+        new WriteAheadLog(dir).replay(c);
+        assertEquals(1, c.reports.size());
+        assertEquals("{\"b\":2}", c.reports.get(0));
+
+        wal = new WriteAheadLog(dir);
+        wal.truncateMemoryBuffer();
+        assertEquals(0, new WriteAheadLog(dir).replay(new Collector()));
+    }
+
+    @Test
+    public void testPendingBatchesAreReplayedInOrder() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir);
+        wal.append("{\"a\":1}", 1, 1);
+        assertEquals(0, wal.sealAsPending());
+        wal.append("{\"b\":2}", 1, 1);
+        int second = wal.sealAsPending();
+        wal.append("{\"c\":3}", 1, 1);
+        wal.sealAsPending();
+        wal.append("{\"d\":4}", 1, 1);
+        // Written to the journal
+        wal.discardPending(second);
+
+        Collector c = new Collector();
+        new WriteAheadLog(dir).replay(c);
+        assertEquals(3, c.reports.size());
+        assertEquals("{\"a\":1}", c.reports.get(0));
+        assertEquals("{\"c\":3}", c.reports.get(1));
+        assertEquals("{\"d\":4}", c.reports.get(2));
+    }
+}
@@ -0,0 +1,170 @@
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.core.http.HTTPResponse;
+import org.mozilla.mozstumbler.service.core.http.ILocationService;
+import org.mozilla.mozstumbler.service.core.http.IResponse;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManagers;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class UploadPipelineTest {
+
+    private File dir;
+
+    // Answers after a delay, with the status codes given in order (then 200), and records the concurrency
+    private static class SlowService implements ILocationService {
+        final List<Integer> statusCodes = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<byte[]> submitted = Collections.synchronizedList(new ArrayList<byte[]>());
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        @Override
+        public IResponse submit(byte[] data, Map<String, String> headers, boolean precompressed) {
+            int now = inFlight.incrementAndGet();
+            while (maxInFlight.get() < now) {
+                maxInFlight.compareAndSet(maxInFlight.get(), now);
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            submitted.add(data);
+            int status = 200;
+            synchronized (statusCodes) {
+                if (!statusCodes.isEmpty()) {
+                    status = statusCodes.remove(0);
+                }
+            }
+            inFlight.decrementAndGet();
+            return new HTTPResponse(status, new HashMap<String, List<String>>(), new byte[0], data.length);
+        }
+
+        @Override
+        public IResponse search(byte[] data, Map<String, String> headers, boolean precompressed) {
+            return null;
+        }
+    }
+
+    // Does not wait between submits
+    private static RetryScheduler scheduler() {
+        return new RetryScheduler(new Random(0)) {
+            @Override
+            void sleep(long ms) {
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("upload", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    // batchCount batches of 5 reports on disk, and 2 reports in memory. The stored batches are not merged.
+    private DataStorageManager makeQueue(int batchCount) throws IOException {
+        DataStorageManager dm = DataStorageManagers.create(dir, 10 * 1024 * 1024, 5);
+        dm.setUploadBatchTargetBytes(1);
+        for (int i = 0; i < batchCount * 5 + 2; i++) {
+            DataStorageManagers.insert(dm, "{\"id\":" + i + "}", 1, 1);
+        }
+        return dm;
+    }
+
+    @Test
+    public void testAllBatchesUploadedOnce() throws IOException {
+        DataStorageManager dm = makeQueue(12);
+        SlowService service = new SlowService();
+
+        UploadPipeline.Result result = new UploadPipeline(service, dm, 3, scheduler()).upload(new HashMap<String, String>());
+
+        assertEquals(13, result.batches);
+        assertEquals(0, result.failedBatches);
+        assertEquals(62, result.reports);
+        assertEquals(3, service.maxInFlight.get());
+        HashSet<byte[]> distinct = new HashSet<byte[]>(service.submitted);
+        assertEquals(13, distinct.size());
+        assertEquals(0, dm.getQueuedCounts().mReportCount);
+        assertTrue(result.getBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void testUploadedBatchesAreCountedOnError() throws IOException {
+        DataStorageManager dm = DataStorageManagers.createFailing(dir, 10 * 1024 * 1024, 5, 2);
+        dm.setUploadBatchTargetBytes(1);
+        for (int i = 0; i < 4 * 5 + 2; i++) {
+            DataStorageManagers.insert(dm, "{\"id\":" + i + "}", 1, 1);
+        }
+        SlowService service = new SlowService();
+
+        // The send buffer and 2 batches are read before the error
+        UploadPipeline.Result result = new UploadPipeline(service, dm, 2, scheduler()).upload(new HashMap<String, String>());
+        assertNotNull(result.error);
+        assertEquals(3, result.batches);
+        assertEquals(12, result.reports);
+        assertEquals(12, result.wifis);
+        assertTrue(result.bytesSent > 0);
+        assertEquals(10, dm.getQueuedCounts().mReportCount);
+    }
+
+    @Test
+    public void testFailedBatchesStayQueued() throws IOException {
+        DataStorageManager dm = makeQueue(4);
+        SlowService service = new SlowService();
+        // The send buffer (2 reports) is refused, one batch is a bad request, one is refused
+        service.statusCodes.add(403);
+        service.statusCodes.add(400);
+        service.statusCodes.add(413);
+
+        UploadPipeline.Result result = new UploadPipeline(service, dm, 1, scheduler()).upload(new HashMap<String, String>());
+
+        assertEquals(5, result.batches);
+        assertEquals(3, result.failedBatches);
+        assertEquals(10, result.reports);
+        // Not retried. The send buffer is written to disk, the batch that failed is still there
+        assertEquals(7, dm.getQueuedCounts().mReportCount);
+
+        result = new UploadPipeline(service, dm, 2, scheduler()).upload(new HashMap<String, String>());
+        assertEquals(2, result.batches);
+        assertEquals(7, result.reports);
+        assertEquals(0, dm.getQueuedCounts().mReportCount);
+    }
+}
@@ -0,0 +1,269 @@
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.core.http.HTTPResponse;
+import org.mozilla.mozstumbler.service.core.http.IHttpUtil;
+import org.mozilla.mozstumbler.service.core.http.IResponse;
+import org.mozilla.mozstumbler.service.core.http.MLS;
+import org.mozilla.mozstumbler.service.core.http.RequestBody;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManagers;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class UploadRetryTest {
+
+    private static final int NO_RESPONSE = -1;
+
+    // Answers the posts with the scripted status codes in order (then 200), NO_RESPONSE for a network error
+    private static class ScriptedHttpUtil implements IHttpUtil {
+        final List<Integer> statusCodes = Collections.synchronizedList(new ArrayList<Integer>());
+        final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        int posts;
+
+        @Override
+        public synchronized IResponse post(String urlString, byte[] data, Map<String, String> headers, boolean precompressed) {
+            posts++;
+            int status = statusCodes.isEmpty() ? 200 : statusCodes.remove(0);
+            if (status == NO_RESPONSE) {
+                return null;
+            }
+            return new HTTPResponse(status, this.headers, new byte[0], data.length);
+        }
+
+        @Override
+        public IResponse post(String urlString, RequestBody body, Map<String, String> headers) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getUrlAsString(URL url) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getUrlAsString(String url) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InputStream getUrlAsStream(String url) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public File getUrlAsFile(URL url, File file) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public IResponse get(String urlString, Map<String, String> headers) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public IResponse head(String latestUrl, Map<String, String> headers) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // Records the waits instead of sleeping
+    private static class RecordingScheduler extends RetryScheduler {
+        final List<Long> sleeps = Collections.synchronizedList(new ArrayList<Long>());
+
+        RecordingScheduler() {
+            super(new Random(0));
+        }
+
+        @Override
+        void sleep(long ms) {
+            sleeps.add(ms);
+        }
+    }
+
+    private File dir;
+    private ScriptedHttpUtil http;
+    private RecordingScheduler scheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("retry", "");
+        dir.delete();
+        dir.mkdirs();
+        http = new ScriptedHttpUtil();
+        scheduler = new RecordingScheduler();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    // batchCount batches of 5 reports on disk
+    private DataStorageManager makeQueue(int batchCount) throws IOException {
+        DataStorageManager dm = DataStorageManagers.create(dir, 10 * 1024 * 1024, 5);
+        dm.setUploadBatchTargetBytes(1);
+        for (int i = 0; i < batchCount * 5; i++) {
+            DataStorageManagers.insert(dm, "{\"id\":" + i + "}", 1, 1);
+        }
+        return dm;
+    }
+
+    private UploadPipeline.Result upload(DataStorageManager dm) throws IOException {
+        return new UploadPipeline(new MLS(http, "test"), dm, 1, scheduler).upload(new HashMap<String, String>());
+    }
+
+    @Test
+    public void testRetryableFailuresAreRetried() throws IOException {
+        DataStorageManager dm = makeQueue(2);
+        http.statusCodes.add(NO_RESPONSE);
+        http.statusCodes.add(503);
+
+        UploadPipeline.Result result = upload(dm);
+        assertEquals(2, result.batches);
+        assertEquals(0, result.failedBatches);
+        assertEquals(2, result.retries);
+        assertEquals(10, result.reports);
+        assertEquals(4, http.posts);
+        assertEquals(0, dm.getQueuedCounts().mReportCount);
+
+        // 1s then 2s, less up to half of it
+        assertEquals(2, scheduler.sleeps.size());
+        assertTrue(scheduler.sleeps.get(0) <= 1000 && scheduler.sleeps.get(0) >= 400);
+        assertTrue(scheduler.sleeps.get(1) <= 2000 && scheduler.sleeps.get(1) >= 900);
+        assertEquals(0, scheduler.getConsecutiveFailures());
+    }
+
+    @Test
+    public void testRetryAfterIsHonored() throws IOException {
+        DataStorageManager dm = makeQueue(1);
+        http.statusCodes.add(429);
+        http.headers.put("Retry-After", Collections.singletonList("120"));
+
+        UploadPipeline.Result result = upload(dm);
+        assertEquals(1, result.retries);
+        assertEquals(1, scheduler.sleeps.size());
+        assertTrue(scheduler.sleeps.get(0) > 119 * 1000);
+    }
+
+    @Test
+    public void testCircuitOpensAfterConsecutiveFailures() throws IOException {
+        DataStorageManager dm = makeQueue(4);
+        for (int i = 0; i < 10; i++) {
+            http.statusCodes.add(500);
+        }
+
+        // The first batch fails 3 times, the others are not submitted
+        UploadPipeline.Result result = upload(dm);
+        assertTrue(result.isStopped);
+        assertEquals(RetryScheduler.FAILURE_THRESHOLD, http.posts);
+        assertEquals(1, result.failedBatches);
+        assertEquals(20, dm.getQueuedCounts().mReportCount);
+        assertTrue(scheduler.isOpen());
+        assertTrue(scheduler.getDelayMs() > RetryScheduler.UPLOAD_BACKOFF_BASE_MS / 2 - 1000);
+
+        // Nothing is submitted until the backoff has passed
+        result = upload(dm);
+        assertTrue(result.isStopped);
+        assertEquals(0, result.batches);
+        assertEquals(RetryScheduler.FAILURE_THRESHOLD, http.posts);
+
+        // A success closes the circuit
+        scheduler.record(new HTTPResponse(200, http.headers, new byte[0], 0));
+        assertFalse(scheduler.isOpen());
+        assertEquals(0, scheduler.getDelayMs());
+    }
+
+    @Test
+    public void testRejectedBatchIsNotRetried() throws IOException {
+        DataStorageManager dm = makeQueue(2);
+        http.statusCodes.add(403);
+
+        UploadPipeline.Result result = upload(dm);
+        assertEquals(0, result.retries);
+        assertEquals(1, result.failedBatches);
+        assertEquals(5, result.reports);
+        assertEquals(5, dm.getQueuedCounts().mReportCount);
+    }
+
+    @Test
+    public void testRejectedBatchesDoNotOpenTheCircuit() throws IOException {
+        DataStorageManager dm = makeQueue(4);
+        for (int i = 0; i < 4; i++) {
+            http.statusCodes.add(403);
+        }
+
+        UploadPipeline.Result result = upload(dm);
+        assertFalse(result.isStopped);
+        assertEquals(4, http.posts);
+        assertEquals(4, result.failedBatches);
+        assertFalse(scheduler.isOpen());
+        assertEquals(0, scheduler.getConsecutiveFailures());
+        assertEquals(0, scheduler.getDelayMs());
+    }
+
+    @Test
+    public void testTooLargeMergedBatchIsSplit() throws IOException {
+        DataStorageManager dm = makeQueue(3);
+        dm.setUploadBatchTargetBytes(1024 * 1024);
+        http.statusCodes.add(413);
+
+        // The merged batch is rejected, then its 3 stored batches are uploaded one by one
+        UploadPipeline.Result result = upload(dm);
+        assertEquals(4, http.posts);
+        assertEquals(0, result.failedBatches);
+        assertEquals(15, result.reports);
+        assertEquals(0, dm.getQueuedCounts().mReportCount);
+    }
+
+    @Test
+    public void testTooLargeBatchStaysQueued() throws IOException {
+        DataStorageManager dm = makeQueue(2);
+        http.statusCodes.add(413);
+
+        UploadPipeline.Result result = upload(dm);
+        assertEquals(2, http.posts);
+        assertEquals(1, result.failedBatches);
+        assertEquals(5, dm.getQueuedCounts().mReportCount);
+    }
+
+    @Test
+    public void testParseRetryAfter() {
+        long now = 1420070400000L; // Thu, 01 Jan 2015 00:00:00 GMT
+        assertEquals(30000, RetryScheduler.parseRetryAfterMs(" 30 ", now));
+        assertEquals(90000, RetryScheduler.parseRetryAfterMs("Thu, 01 Jan 2015 00:01:30 GMT", now));
+        assertEquals(0, RetryScheduler.parseRetryAfterMs("Wed, 31 Dec 2014 23:00:00 GMT", now));
+        assertEquals(-1, RetryScheduler.parseRetryAfterMs("soon", now));
+        assertEquals(-1, RetryScheduler.parseRetryAfterMs(null, now));
+    }
+}
@@ -0,0 +1,89 @@
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class UploadSchedulerTest {
+
+    private static final long KB = 1024;
+
+    private RetryScheduler retryScheduler;
+    private UploadScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        retryScheduler = new RetryScheduler(new Random(0));
+        scheduler = new UploadScheduler(retryScheduler);
+    }
+
+    @Test
+    public void testNoUploadWithoutDataOrNetwork() {
+        scheduler.setStorageEmpty(true);
+        assertEquals(UploadScheduler.Reason.NOTHING_QUEUED, scheduler.decide(100 * KB, true, true, false).reason);
+        scheduler.setStorageEmpty(false);
+        assertEquals(UploadScheduler.Reason.NOTHING_QUEUED, scheduler.decide(0, true, true, false).reason);
+
+        UploadScheduler.Decision decision = scheduler.decide(100 * KB, false, false, false);
+        assertEquals(UploadScheduler.Reason.OFFLINE, decision.reason);
+        assertEquals(UploadScheduler.NEVER, decision.delayMs);
+        assertEquals(UploadScheduler.Reason.WAITING_FOR_WIFI, scheduler.decide(100 * KB, true, false, true).reason);
+    }
+
+    @Test
+    public void testIntervalFollowsBacklogAndLink() {
+        // A large backlog on wifi goes soon, until a slow link is measured
+        UploadScheduler.Decision decision = scheduler.decide(1024 * KB, true, true, false);
+        assertEquals(UploadScheduler.Reason.LARGE_BACKLOG, decision.reason);
+        assertEquals(UploadScheduler.MIN_INTERVAL_MS, decision.delayMs);
+        scheduler.recordUpload(64 * KB, 10 * 1000);
+        assertEquals(UploadScheduler.Reason.DEFAULT_INTERVAL, scheduler.decide(1024 * KB, true, true, false).reason);
+
+        // A small backlog on a mobile network waits longer
+        decision = scheduler.decide(4 * KB, true, false, false);
+        assertEquals(UploadScheduler.Reason.SMALL_BACKLOG, decision.reason);
+        assertEquals(UploadScheduler.MAX_INTERVAL_MS, decision.delayMs);
+        assertEquals(UploadScheduler.DEFAULT_INTERVAL_MS, scheduler.decide(4 * KB, true, true, false).delayMs);
+    }
+
+    @Test
+    public void testBackoffIsHonored() {
+        for (int i = 0; i < RetryScheduler.FAILURE_THRESHOLD; i++) {
+            retryScheduler.record(null);
+        }
+        UploadScheduler.Decision decision = scheduler.decide(1024 * KB, true, true, false);
+        assertEquals(UploadScheduler.Reason.BACKING_OFF, decision.reason);
+        assertTrue(decision.delayMs >= RetryScheduler.UPLOAD_BACKOFF_BASE_MS / 2 - 1000);
+    }
+
+    @Test
+    public void testBatchesFollowThroughput() {
+        assertEquals(UploadScheduler.DEFAULT_BATCH_TARGET_BYTES, scheduler.getBatchTargetBytes());
+
+        // Too small to measure anything
+        scheduler.recordUpload(KB, 1);
+        assertEquals(0, scheduler.getThroughput());
+
+        scheduler.recordUpload(100 * KB, 1000);
+        assertEquals(100 * KB, scheduler.getThroughput());
+        assertEquals(100 * KB * UploadScheduler.TARGET_SUBMIT_MS / 1000, scheduler.getBatchTargetBytes());
+
+        // Smoothed, and bounded
+        scheduler.recordUpload(10 * KB, 10 * 1000);
+        assertTrue(scheduler.getThroughput() < 100 * KB && scheduler.getThroughput() > 50 * KB);
+        for (int i = 0; i < 50; i++) {
+            scheduler.recordUpload(10 * KB, 10 * 1000);
+        }
+        assertEquals(UploadScheduler.MIN_BATCH_TARGET_BYTES, scheduler.getBatchTargetBytes());
+        assertEquals(UploadScheduler.MIN_BATCH_TARGET_BYTES, scheduler.decide(100 * KB, true, true, false).batchTargetBytes);
+    }
+}
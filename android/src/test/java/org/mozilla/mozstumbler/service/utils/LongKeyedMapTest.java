@@ -0,0 +1,79 @@
+package org.mozilla.mozstumbler.service.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class LongKeyedMapTest {
+
+    @Test
+    public void testPutAndGet() {
+        LongKeyedMap<String> map = new LongKeyedMap<String>();
+        assertTrue(map.isEmpty());
+        assertTrue(map.putIfAbsent(42, "a"));
+        assertFalse(map.putIfAbsent(42, "b"));
+        assertEquals("a", map.get(42));
+        map.put(42, "c");
+        assertEquals("c", map.get(42));
+        assertEquals(1, map.size());
+
+        assertNull(map.get(-42));
+        assertFalse(map.containsKey(0));
+        assertTrue(map.putIfAbsent(0, "zero"));
+        assertTrue(map.putIfAbsent(Long.MIN_VALUE, "min"));
+        assertEquals("zero", map.get(0));
+        assertEquals(1, map.indexOf(0));
+        assertEquals(-1, map.indexOf(1));
+        map.setValueAt(1, "zero again");
+        assertEquals("zero again", map.get(0));
+        assertEquals("min", map.get(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testGrowsAndKeepsInsertionOrder() {
+        LongKeyedMap<Long> map = new LongKeyedMap<Long>(4);
+        final int count = 1000;
+        for (int i = 0; i < count; i++) {
+            // Keys that differ only in their high bits
+            assertTrue(map.putIfAbsent((long) i << 40, (long) i));
+        }
+        assertEquals(count, map.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals((long) i << 40, map.keyAt(i));
+            assertEquals(Long.valueOf(i), map.valueAt(i));
+            assertEquals(Long.valueOf(i), map.get((long) i << 40));
+        }
+    }
+
+    @Test
+    public void testClearAndReuse() {
+        LongKeyedMap<String> map = new LongKeyedMap<String>();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, "first" + i);
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertFalse(map.containsKey(5));
+
+        map.put(99, "second");
+        assertEquals(1, map.size());
+        assertEquals(99, map.keyAt(0));
+        assertEquals("second", map.valueAt(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIndexPastSize() {
+        LongKeyedMap<String> map = new LongKeyedMap<String>();
+        map.put(1, "a");
+        map.clear();
+        map.valueAt(0);
+    }
+}